@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.jvm;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Streams JDK Flight Recorder events and turns events of guarded threads into violations.
+ * <p>
+ * The stream runs on a daemon thread, so it never keeps the JVM alive. After every flush of the
+ * stream {@link JvmStrictMode} drops policies of ended threads and closes the engine when no thread is guarded.
+ */
+final class JfrEngine {
+
+    private static final Logger LOGGER = Logger.getLogger("StrictModeCompat");
+
+    private static final String FILE_READ = "jdk.FileRead";
+    private static final String FILE_WRITE = "jdk.FileWrite";
+    private static final String SOCKET_READ = "jdk.SocketRead";
+    private static final String SOCKET_WRITE = "jdk.SocketWrite";
+    private static final String MONITOR_WAIT = "jdk.JavaMonitorWait";
+    private static final String MONITOR_ENTER = "jdk.JavaMonitorEnter";
+
+    private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+
+    private static final String THREAD_NAME = "StrictModeCompat JFR";
+
+    private final RecordingStream mStream = new RecordingStream();
+
+    // Event name -> enabled threshold, guarded by JvmStrictMode.class
+    private final Map<String, Long> mThresholds = new HashMap<>();
+
+    private boolean mStarted;
+
+    JfrEngine() {
+        mStream.onFlush(new Runnable() {
+
+            @Override
+            public void run() {
+                JvmStrictMode.onFlush();
+            }
+        });
+        handle(FILE_READ, ThreadPolicy.DETECT_DISK_READS);
+        handle(FILE_WRITE, ThreadPolicy.DETECT_DISK_WRITES);
+        handle(SOCKET_READ, ThreadPolicy.DETECT_NETWORK);
+        handle(SOCKET_WRITE, ThreadPolicy.DETECT_NETWORK);
+        handle(MONITOR_WAIT, ThreadPolicy.DETECT_MONITOR_WAITS);
+        handle(MONITOR_ENTER, ThreadPolicy.DETECT_MONITOR_WAITS);
+    }
+
+    /**
+     * Enable events needed by the current policies with the lowest threshold among them,
+     * disable the others, and start the stream.
+     */
+    void require(Iterable<ThreadPolicy> policies) {
+        Map<String, Long> required = new HashMap<>();
+        for (ThreadPolicy policy : policies) {
+            if ((policy.detects & ThreadPolicy.DETECT_DISK_READS) != 0) {
+                lower(required, FILE_READ, policy.thresholdNanos);
+            }
+            if ((policy.detects & ThreadPolicy.DETECT_DISK_WRITES) != 0) {
+                lower(required, FILE_WRITE, policy.thresholdNanos);
+            }
+            if ((policy.detects & ThreadPolicy.DETECT_NETWORK) != 0) {
+                lower(required, SOCKET_READ, policy.thresholdNanos);
+                lower(required, SOCKET_WRITE, policy.thresholdNanos);
+            }
+            if ((policy.detects & ThreadPolicy.DETECT_MONITOR_WAITS) != 0) {
+                lower(required, MONITOR_WAIT, policy.thresholdNanos);
+                lower(required, MONITOR_ENTER, policy.thresholdNanos);
+            }
+        }
+
+        for (Iterator<String> iterator = mThresholds.keySet().iterator(); iterator.hasNext(); ) {
+            String event = iterator.next();
+            if (!required.containsKey(event)) {
+                mStream.disable(event);
+                iterator.remove();
+            }
+        }
+        for (Map.Entry<String, Long> entry : required.entrySet()) {
+            if (!entry.getValue().equals(mThresholds.get(entry.getKey()))) {
+                mStream.enable(entry.getKey()).withThreshold(Duration.ofNanos(entry.getValue())).withStackTrace();
+                mThresholds.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!mStarted && !required.isEmpty()) {
+            mStarted = true;
+            // RecordingStream.startAsync() runs on a non-daemon thread
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    mStream.start();
+                }
+            }, THREAD_NAME);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the recording. Can be called from the stream thread.
+     */
+    void close() {
+        mStream.close();
+    }
+
+    private static void lower(Map<String, Long> thresholds, String event, long thresholdNanos) {
+        Long threshold = thresholds.get(event);
+        if (threshold == null || thresholdNanos < threshold) {
+            thresholds.put(event, thresholdNanos);
+        }
+    }
+
+    private void handle(final String event, final int detect) {
+        mStream.onEvent(event, new Consumer<RecordedEvent>() {
+
+            @Override
+            public void accept(RecordedEvent recorded) {
+                onEvent(recorded, detect);
+            }
+        });
+    }
+
+    private void onEvent(RecordedEvent event, int detect) {
+        RecordedThread thread = event.getThread();
+        if (thread == null) {
+            return;
+        }
+        // The policy may have been replaced since the event, streaming is about a second late
+        ThreadPolicy policy = JvmStrictMode.policyAt(
+                thread.getJavaThreadId(),
+                PolicyHistory.epochNanos(event.getStartTime())
+        );
+        long durationNanos = event.getDuration().toNanos();
+        if (policy == null || (policy.detects & detect) == 0 || durationNanos < policy.thresholdNanos) {
+            return;
+        }
+
+        final Violation violation = violationOf(event, thread, durationNanos);
+        if (policy.penaltyLog) {
+            LOGGER.log(Level.WARNING, "StrictMode policy violation: " + violation.getMessage(), violation);
+        }
+        final OnThreadViolationListener listener = policy.listener;
+        if (listener != null) {
+            policy.listenerExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    listener.onThreadViolation(violation);
+                }
+            });
+        }
+    }
+
+    private static Violation violationOf(RecordedEvent event, RecordedThread thread, long durationNanos) {
+        String threadName = thread.getJavaName();
+        long threadId = thread.getJavaThreadId();
+        StackTraceElement[] frames = framesOf(event.getStackTrace());
+        String duration = " in " + durationNanos / 1000 + "us";
+        switch (event.getEventType().getName()) {
+            case FILE_READ:
+                return new DiskReadViolation(
+                        "Read " + event.getLong("bytesRead") + " bytes from " + pathOf(event) + duration,
+                        threadName, threadId, durationNanos, frames
+                );
+
+            case FILE_WRITE:
+                return new DiskWriteViolation(
+                        "Wrote " + event.getLong("bytesWritten") + " bytes to " + pathOf(event) + duration,
+                        threadName, threadId, durationNanos, frames
+                );
+
+            case SOCKET_READ:
+                return new NetworkViolation(
+                        "Read " + event.getLong("bytesRead") + " bytes from " + addressOf(event) + duration,
+                        threadName, threadId, durationNanos, frames
+                );
+
+            case SOCKET_WRITE:
+                return new NetworkViolation(
+                        "Wrote " + event.getLong("bytesWritten") + " bytes to " + addressOf(event) + duration,
+                        threadName, threadId, durationNanos, frames
+                );
+
+            case MONITOR_WAIT:
+                return new MonitorWaitViolation(
+                        "Waited on " + classNameOf(event.getClass("monitorClass")) + duration,
+                        threadName, threadId, durationNanos, frames
+                );
+
+            default:
+                return new MonitorWaitViolation(
+                        "Blocked on " + classNameOf(event.getClass("monitorClass")) + duration,
+                        threadName, threadId, durationNanos, frames
+                );
+        }
+    }
+
+    private static String pathOf(RecordedEvent event) {
+        String path = event.getString("path");
+        // Streams opened from a FileDescriptor, like System.out, have no path
+        return path != null ? path : "a file descriptor";
+    }
+
+    private static String addressOf(RecordedEvent event) {
+        String host = event.getString("host");
+        String address = host != null && !host.isEmpty() ? host : event.getString("address");
+        return address + ':' + event.getInt("port");
+    }
+
+    private static String classNameOf(RecordedClass type) {
+        return type != null ? type.getName() : "unknown";
+    }
+
+    private static StackTraceElement[] framesOf(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return NO_FRAMES;
+        }
+        List<RecordedFrame> recorded = stackTrace.getFrames();
+        StackTraceElement[] frames = new StackTraceElement[recorded.size()];
+        for (int i = 0; i < frames.length; i++) {
+            RecordedFrame frame = recorded.get(i);
+            RecordedMethod method = frame.getMethod();
+            frames[i] = new StackTraceElement(
+                    method.getType().getName(),
+                    method.getName(),
+                    null,
+                    frame.isJavaFrame() ? frame.getLineNumber() : -2
+            );
+        }
+        return frames;
+    }
+}
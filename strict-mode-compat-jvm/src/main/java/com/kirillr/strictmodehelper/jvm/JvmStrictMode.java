@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.jvm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StrictMode for JVM services and tools, where {@code android.os.StrictMode} doesn't exist.
+ *
+ * <pre>
+ * JvmStrictMode.setThreadPolicy(new ThreadPolicy.Builder()
+ *         .detectDiskReads()
+ *         .detectNetwork()
+ *         .threshold(TimeUnit.MILLISECONDS.toNanos(1))
+ *         .penaltyListener(executor, listener)
+ *         .build());
+ * </pre>
+ * <p>
+ * A thread with a policy is guarded. Blocking calls are found in JDK Flight Recorder events
+ * ({@code jdk.FileRead}, {@code jdk.FileWrite}, {@code jdk.SocketRead}, {@code jdk.SocketWrite},
+ * {@code jdk.JavaMonitorWait} and {@code jdk.JavaMonitorEnter}) streamed from the running recording,
+ * only event types requested by current policies are enabled. Events are delivered with the latency
+ * of JFR streaming, about a second, so violations don't interrupt the guarded thread. An event is
+ * checked against the policy in place when it started, not when it's delivered.
+ * <p>
+ * The recording runs on a daemon thread and stops by itself once no thread is guarded, including
+ * when guarded threads end.
+ */
+public final class JvmStrictMode {
+
+    // Guarded thread id -> its recent policies, written under JvmStrictMode.class
+    private static final Map<Long, PolicyHistory> sPolicies = new ConcurrentHashMap<>();
+
+    private static JfrEngine sEngine;
+
+    private JvmStrictMode() {
+    }
+
+    /**
+     * Guard the current thread with the policy. {@link ThreadPolicy#LAX} stops guarding it.
+     */
+    public static void setThreadPolicy(ThreadPolicy policy) {
+        Thread thread = Thread.currentThread();
+        long now = PolicyHistory.nowNanos();
+        JfrEngine unused;
+        synchronized (JvmStrictMode.class) {
+            PolicyHistory history = sPolicies.get(thread.getId());
+            if (history == null) {
+                if (policy.detects == 0) {
+                    return;
+                }
+                history = new PolicyHistory(thread);
+                sPolicies.put(thread.getId(), history);
+            }
+            history.add(now, policy);
+            if (sEngine == null && policy.detects != 0) {
+                sEngine = new JfrEngine();
+            }
+            unused = update(now);
+        }
+        // Outside of the lock, closing waits for the stream thread
+        if (unused != null) {
+            unused.close();
+        }
+    }
+
+    public static ThreadPolicy getThreadPolicy() {
+        PolicyHistory history = sPolicies.get(Thread.currentThread().getId());
+        return history != null ? history.current() : ThreadPolicy.LAX;
+    }
+
+    /**
+     * Stop the recording and unguard all threads.
+     */
+    public static void shutdown() {
+        JfrEngine engine;
+        synchronized (JvmStrictMode.class) {
+            engine = sEngine;
+            sEngine = null;
+            sPolicies.clear();
+        }
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    /**
+     * Called on the stream thread after each flush to notice ended threads.
+     */
+    static void onFlush() {
+        JfrEngine unused;
+        synchronized (JvmStrictMode.class) {
+            unused = update(PolicyHistory.nowNanos());
+        }
+        if (unused != null) {
+            unused.close();
+        }
+    }
+
+    /**
+     * Drop expired histories and update the events of the engine.
+     *
+     * @return the engine to close when no thread is guarded anymore
+     */
+    private static JfrEngine update(long nowNanos) {
+        List<ThreadPolicy> current = new ArrayList<>(sPolicies.size());
+        for (Iterator<PolicyHistory> iterator = sPolicies.values().iterator(); iterator.hasNext(); ) {
+            PolicyHistory guarded = iterator.next();
+            if (guarded.isExpired(nowNanos)) {
+                iterator.remove();
+            } else {
+                current.add(guarded.current());
+            }
+        }
+        JfrEngine engine = sEngine;
+        if (engine == null) {
+            return null;
+        }
+        if (sPolicies.isEmpty()) {
+            sEngine = null;
+            return engine;
+        }
+        engine.require(current);
+        return null;
+    }
+
+    /**
+     * Policy of the thread at the time in nanoseconds since the epoch, {@code null} if it wasn't guarded.
+     */
+    static ThreadPolicy policyAt(long threadId, long timeNanos) {
+        PolicyHistory history = sPolicies.get(threadId);
+        return history != null ? history.at(timeNanos) : null;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.jvm;
+
+/**
+ * Read from or write to a socket on a guarded thread.
+ */
+public final class NetworkViolation extends Violation {
+
+    private static final long serialVersionUID = 1L;
+
+    NetworkViolation(String message, String threadName, long threadId, long durationNanos, StackTraceElement[] frames) {
+        super(message, threadName, threadId, durationNanos, frames);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.jvm;
+
+import java.lang.ref.WeakReference;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Policies of a guarded thread with the time they were set, so events streamed about a second
+ * later are matched against the policy in place when they started.
+ * <p>
+ * Times are nanoseconds since the epoch, the clock of {@link jdk.jfr.consumer.RecordedEvent#getStartTime()}.
+ * Replaced policies are kept for the retention time, longer than the latency of streaming.
+ * The policy of an ended thread is replaced with {@link ThreadPolicy#LAX} when the end is noticed.
+ */
+final class PolicyHistory {
+
+    private static final long RETENTION_NANOS = 10_000_000_000L;
+
+    private final WeakReference<Thread> mThread;
+
+    // Guarded by this, ordered by time
+    private long[] mSince = new long[2];
+    private ThreadPolicy[] mPolicies = new ThreadPolicy[2];
+    private int mSize;
+
+    PolicyHistory(Thread thread) {
+        mThread = new WeakReference<>(thread);
+    }
+
+    synchronized void add(long nowNanos, ThreadPolicy policy) {
+        prune(nowNanos);
+        if (mSize == mPolicies.length) {
+            mSince = Arrays.copyOf(mSince, mSize * 2);
+            mPolicies = Arrays.copyOf(mPolicies, mSize * 2);
+        }
+        mSince[mSize] = nowNanos;
+        mPolicies[mSize] = policy;
+        mSize++;
+    }
+
+    /**
+     * The policy in place at the time, {@code null} if the thread wasn't guarded then
+     * or the policy is older than the retention time.
+     */
+    synchronized ThreadPolicy at(long timeNanos) {
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (mSince[i] <= timeNanos) {
+                return mPolicies[i].detects != 0 ? mPolicies[i] : null;
+            }
+        }
+        return null;
+    }
+
+    synchronized ThreadPolicy current() {
+        return mPolicies[mSize - 1];
+    }
+
+    /**
+     * Whether the thread isn't guarded or has ended, and none of the replaced policies can match
+     * an event anymore.
+     */
+    synchronized boolean isExpired(long nowNanos) {
+        Thread thread = mThread.get();
+        if ((thread == null || !thread.isAlive()) && mPolicies[mSize - 1].detects != 0) {
+            add(nowNanos, ThreadPolicy.LAX);
+        }
+        prune(nowNanos);
+        return mSize == 1 && mPolicies[0].detects == 0;
+    }
+
+    static long nowNanos() {
+        return epochNanos(Instant.now());
+    }
+
+    static long epochNanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    // Drop policies replaced before the retention time, the current one is always kept
+    private void prune(long nowNanos) {
+        int expired = 0;
+        while (expired < mSize - 1 && nowNanos - mSince[expired + 1] > RETENTION_NANOS) {
+            expired++;
+        }
+        if (expired > 0) {
+            System.arraycopy(mSince, expired, mSince, 0, mSize - expired);
+            System.arraycopy(mPolicies, expired, mPolicies, 0, mSize - expired);
+            Arrays.fill(mPolicies, mSize - expired, mSize, null);
+            mSize -= expired;
+        }
+    }
+}
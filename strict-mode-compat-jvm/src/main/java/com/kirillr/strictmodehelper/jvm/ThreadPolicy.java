@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.jvm;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy of a guarded thread, set with {@link JvmStrictMode#setThreadPolicy(ThreadPolicy)}.
+ */
+public final class ThreadPolicy {
+
+    static final int DETECT_DISK_READS = 1;
+    static final int DETECT_DISK_WRITES = 1 << 1;
+    static final int DETECT_NETWORK = 1 << 2;
+    static final int DETECT_MONITOR_WAITS = 1 << 3;
+    static final int DETECT_ALL = DETECT_DISK_READS | DETECT_DISK_WRITES | DETECT_NETWORK | DETECT_MONITOR_WAITS;
+
+    // Threshold of these events in the default JFR configuration, initialized before LAX
+    private static final long DEFAULT_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * Policy which detects nothing, the thread isn't guarded.
+     */
+    public static final ThreadPolicy LAX = new Builder().build();
+
+    final int detects;
+    final long thresholdNanos;
+    final boolean penaltyLog;
+    final Executor listenerExecutor;
+    final OnThreadViolationListener listener;
+
+    private ThreadPolicy(Builder builder) {
+        detects = builder.mDetects;
+        thresholdNanos = builder.mThresholdNanos;
+        penaltyLog = builder.mPenaltyLog || (builder.mListener == null && builder.mDetects != 0);
+        listenerExecutor = builder.mListenerExecutor;
+        listener = builder.mListener;
+    }
+
+    @Override
+    public String toString() {
+        return "ThreadPolicy{detects=" + Integer.toBinaryString(detects) + ", thresholdNanos=" + thresholdNanos + '}';
+    }
+
+    public static final class Builder {
+
+        private int mDetects;
+        private long mThresholdNanos = DEFAULT_THRESHOLD_NANOS;
+        private boolean mPenaltyLog;
+        private Executor mListenerExecutor;
+        private OnThreadViolationListener mListener;
+
+        public Builder() {
+        }
+
+        public Builder(ThreadPolicy policy) {
+            mDetects = policy.detects;
+            mThresholdNanos = policy.thresholdNanos;
+            mPenaltyLog = policy.penaltyLog;
+            mListenerExecutor = policy.listenerExecutor;
+            mListener = policy.listener;
+        }
+
+        public Builder detectAll() {
+            mDetects |= DETECT_ALL;
+            return this;
+        }
+
+        public Builder detectDiskReads() {
+            mDetects |= DETECT_DISK_READS;
+            return this;
+        }
+
+        public Builder detectDiskWrites() {
+            mDetects |= DETECT_DISK_WRITES;
+            return this;
+        }
+
+        public Builder detectNetwork() {
+            mDetects |= DETECT_NETWORK;
+            return this;
+        }
+
+        /**
+         * Detect {@link Object#wait()} and waits to enter a contended monitor.
+         */
+        public Builder detectMonitorWaits() {
+            mDetects |= DETECT_MONITOR_WAITS;
+            return this;
+        }
+
+        public Builder permitAll() {
+            mDetects = 0;
+            return this;
+        }
+
+        public Builder permitDiskReads() {
+            mDetects &= ~DETECT_DISK_READS;
+            return this;
+        }
+
+        public Builder permitDiskWrites() {
+            mDetects &= ~DETECT_DISK_WRITES;
+            return this;
+        }
+
+        public Builder permitNetwork() {
+            mDetects &= ~DETECT_NETWORK;
+            return this;
+        }
+
+        public Builder permitMonitorWaits() {
+            mDetects &= ~DETECT_MONITOR_WAITS;
+            return this;
+        }
+
+        /**
+         * Ignore calls shorter than the threshold. Default is 20 ms, the threshold of the default
+         * JFR configuration. A lower threshold raises the overhead of the recording, with 0 every call
+         * is a violation.
+         */
+        public Builder threshold(long thresholdNanos) {
+            if (thresholdNanos < 0) {
+                throw new IllegalArgumentException("thresholdNanos must not be negative");
+            }
+            mThresholdNanos = thresholdNanos;
+            return this;
+        }
+
+        /**
+         * Log violations to {@link java.util.logging.Logger} {@code StrictModeCompat}.
+         */
+        public Builder penaltyLog() {
+            mPenaltyLog = true;
+            return this;
+        }
+
+        /**
+         * Call the listener with every violation. The listener is called on the executor, violations
+         * are handed over to it from the thread which reads recorded events.
+         */
+        public Builder penaltyListener(Executor executor, OnThreadViolationListener listener) {
+            if (executor == null || listener == null) {
+                throw new NullPointerException("executor and listener must not be null");
+            }
+            mListenerExecutor = executor;
+            mListener = listener;
+            return this;
+        }
+
+        /**
+         * Construct the policy. If no penalties are enabled {@link #penaltyLog()} is implicitly set.
+         */
+        public ThreadPolicy build() {
+            return new ThreadPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.jvm;
+
+/**
+ * Violation of {@link ThreadPolicy} found in a JDK Flight Recorder event.
+ * <p>
+ * The stack trace is the stack recorded with the event, it is never filled in by the thread which
+ * creates the violation.
+ */
+public abstract class Violation extends Throwable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String mThreadName;
+    private final long mThreadId;
+    private final long mDurationNanos;
+
+    Violation(String message, String threadName, long threadId, long durationNanos, StackTraceElement[] frames) {
+        super(message);
+        mThreadName = threadName;
+        mThreadId = threadId;
+        mDurationNanos = durationNanos;
+        setStackTrace(frames);
+    }
+
+    /**
+     * Guarded thread which made the call.
+     */
+    public String getThreadName() {
+        return mThreadName;
+    }
+
+    public long getThreadId() {
+        return mThreadId;
+    }
+
+    /**
+     * Duration of the blocking call.
+     */
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
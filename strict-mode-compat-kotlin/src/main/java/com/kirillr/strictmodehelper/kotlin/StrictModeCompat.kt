@@ -42,5 +42,21 @@ class StrictModeCompat private constructor() {
         inline fun noteSlowCall(lazyMessage: () -> String) {
             StrictModeCompat.noteSlowCall(lazyMessage())
         }
+
+        /**
+         * Run [block] inside of a named section. Violations reported to
+         * [com.kirillr.strictmodehelper.StrictModeCompat.OnViolationInfoListener] are tagged with the section path.
+         *
+         * @see StrictModeCompat.beginSection
+         */
+        @JvmStatic
+        inline fun <T> section(name: String, block: () -> T): T {
+            StrictModeCompat.beginSection(name)
+            try {
+                return block()
+            } finally {
+                StrictModeCompat.endSection()
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("unused")
+
+package com.kirillr.strictmodehelper.kotlin
+
+import com.kirillr.strictmodehelper.CompactViolation
+import com.kirillr.strictmodehelper.StackFingerprint
+import com.kirillr.strictmodehelper.StrictModeCompat
+import com.kirillr.strictmodehelper.ViolationInfo
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.launch
+import java.util.concurrent.Executor
+
+/**
+ * Source of violations for coroutines.
+ *
+ * Pass [listener] to [StrictModeCompat.ThreadPolicy.Builder.penaltyInfoListener] or
+ * [StrictModeCompat.VmPolicy.Builder.penaltyInfoListener] together with [executor], or call
+ * `emitTo(source)` in the penalty DSL. Violations are emitted without suspending into a buffer
+ * of [capacity] elements, when the buffer is full [overflow] decides which violation is dropped.
+ * Every collector runs in its own coroutine on any dispatcher.
+ *
+ * Violations which happen while there are no collectors are lost, except for the last [replay] ones.
+ *
+ * @param overflow [BufferOverflow.DROP_OLDEST] or [BufferOverflow.DROP_LATEST]. Listeners can't wait
+ * for slow collectors, so [BufferOverflow.SUSPEND] isn't supported.
+ */
+class ViolationSource(
+    capacity: Int = DEFAULT_CAPACITY,
+    overflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+    replay: Int = 0
+) {
+
+    init {
+        require(overflow != BufferOverflow.SUSPEND) { "SUSPEND overflow isn't supported" }
+        require(capacity > 0) { "capacity must be positive" }
+    }
+
+    private val flow = MutableSharedFlow<ViolationInfo>(
+        replay = replay,
+        extraBufferCapacity = capacity,
+        onBufferOverflow = overflow
+    )
+
+    /**
+     * Runs the listener on the thread which reports violations. Emission never blocks.
+     */
+    val executor: Executor = Executor { command -> command.run() }
+
+    val listener = StrictModeCompat.OnViolationInfoListener { info -> flow.tryEmit(info) }
+
+    /**
+     * Violations reported to [listener].
+     */
+    fun violations(): SharedFlow<ViolationInfo> = flow.asSharedFlow()
+
+    private companion object {
+
+        private const val DEFAULT_CAPACITY = 64
+    }
+}
+
+/**
+ * Violation merged with other violations with the same fingerprint.
+ *
+ * @property info the latest violation
+ * @property count number of merged violations
+ */
+class ConflatedViolation(
+    val info: ViolationInfo,
+    val fingerprint: Long,
+    val count: Int
+) {
+
+    override fun toString(): String {
+        return "ConflatedViolation(${StackFingerprint.toString(fingerprint)} x$count, ${info.violation})"
+    }
+}
+
+/**
+ * When the collector is slower than the upstream, violations with the same [StackFingerprint]
+ * which wait for the collector are merged into one [ConflatedViolation].
+ * Violations with different fingerprints are never dropped and keep the order of first occurrence.
+ */
+fun Flow<ViolationInfo>.conflateByFingerprint(): Flow<ConflatedViolation> = flow {
+    coroutineScope {
+        val pending = LinkedHashMap<Long, ConflatedViolation>()
+        val signal = Channel<Unit>(Channel.CONFLATED)
+        launch {
+            try {
+                this@conflateByFingerprint.collect { info ->
+                    val fingerprint = StackFingerprint.of(info.violation)
+                    synchronized(pending) {
+                        val count = pending[fingerprint]?.count ?: 0
+                        pending[fingerprint] = ConflatedViolation(info, fingerprint, count + 1)
+                    }
+                    // Conflated channel never suspends
+                    signal.send(Unit)
+                }
+            } finally {
+                signal.close()
+            }
+        }
+
+        for (ignored in signal) {
+            while (true) {
+                val next = synchronized(pending) {
+                    val iterator = pending.values.iterator()
+                    if (iterator.hasNext()) iterator.next().also { iterator.remove() } else null
+                } ?: break
+                emit(next)
+            }
+        }
+    }
+}
+
+/**
+ * Reduce violations to [CompactViolation] records, so buffers downstream don't keep violations
+ * alive. Only the top [maxFrames] frames of every stack are kept.
+ */
+fun Flow<ViolationInfo>.compact(
+    maxFrames: Int = CompactViolation.DEFAULT_MAX_FRAMES
+): Flow<CompactViolation> = map { CompactViolation.of(it, maxFrames) }
+
+/**
+ * Group elements into batches. A batch is emitted when it has [maxSize] elements or [windowMillis]
+ * passed since its first element, whichever happens first. The last incomplete batch is emitted
+ * when the upstream completes. Empty batches are never emitted.
+ */
+fun <T> Flow<T>.windowed(maxSize: Int, windowMillis: Long): Flow<List<T>> {
+    require(maxSize > 0) { "maxSize must be positive" }
+    require(windowMillis > 0) { "windowMillis must be positive" }
+
+    return flow {
+        coroutineScope {
+            // Elements and window timeouts come through one channel, so receiving is never cancelled
+            val events = Channel<WindowEvent<T>>(Channel.BUFFERED)
+            launch {
+                try {
+                    this@windowed.collect { value -> events.send(WindowEvent.Element(value)) }
+                } finally {
+                    events.close()
+                }
+            }
+
+            var batch = ArrayList<T>(maxSize)
+            var window = 0
+            var timer: Job? = null
+            for (event in events) {
+                val flush = when (event) {
+                    is WindowEvent.Element -> {
+                        batch.add(event.value)
+                        if (batch.size == 1) {
+                            val current = window
+                            timer = launch {
+                                delay(windowMillis)
+                                try {
+                                    events.send(WindowEvent.Timeout(current))
+                                } catch (e: ClosedSendChannelException) {
+                                    // Upstream completed, the batch is flushed after the loop
+                                }
+                            }
+                        }
+                        batch.size >= maxSize
+                    }
+                    // Timeout of an already emitted batch is ignored
+                    is WindowEvent.Timeout -> event.window == window
+                }
+
+                if (flush) {
+                    timer?.cancel()
+                    window++
+                    emit(batch)
+                    batch = ArrayList(maxSize)
+                }
+            }
+
+            timer?.cancel()
+            if (batch.isNotEmpty()) emit(batch)
+        }
+    }
+}
+
+private sealed class WindowEvent<out T> {
+
+    class Element<T>(val value: T) : WindowEvent<T>()
+
+    class Timeout(val window: Int) : WindowEvent<Nothing>()
+}
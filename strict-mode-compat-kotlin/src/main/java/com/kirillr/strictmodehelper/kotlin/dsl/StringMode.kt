@@ -17,19 +17,40 @@
 package com.kirillr.strictmodehelper.kotlin.dsl
 
 import android.os.StrictMode
+import com.kirillr.strictmodehelper.SamplingPolicy
 import com.kirillr.strictmodehelper.StrictModeCompat
+import com.kirillr.strictmodehelper.ViolationInfo
+import com.kirillr.strictmodehelper.kotlin.ViolationSource
+import java.util.concurrent.Executor
 
+/**
+ * Build and apply StrictMode policies.
+ *
+ * @param sampling when set, policies are applied only in sampled sessions and threads,
+ * everyone else gets permissive policies. See [StrictModeCompat.setPolicies].
+ */
 @Suppress("unused")
 fun initStrictMode(
     enable: Boolean = true,
     enableDefaults: Boolean = true,
+    sampling: SamplingPolicy? = null,
     config: (StrictModeConfig.() -> Unit)
 ) {
     if (!enable) return
 
     with(StrictModeConfig(enableDefaults).apply(config)) {
-        threadPolicyConfig?.let(::buildThreadPolicy).let(StrictMode::setThreadPolicy)
-        vmPolicyConfig?.let(::buildVmPolicy).let(StrictMode::setVmPolicy)
+        val threadPolicy = threadPolicyConfig?.let(::buildThreadPolicy)
+        val vmPolicy = vmPolicyConfig?.let(::buildVmPolicy)
+        if (sampling == null) {
+            threadPolicy?.let(StrictModeCompat::setThreadPolicy)
+            vmPolicy?.let(StrictModeCompat::setVmPolicy)
+        } else {
+            StrictModeCompat.setPolicies(
+                threadPolicy ?: StrictMode.getThreadPolicy(),
+                vmPolicy ?: StrictMode.getVmPolicy(),
+                sampling
+            )
+        }
     }
 }
 
@@ -55,6 +76,10 @@ private fun buildThreadPolicy(config: ThreadPolicyConfig): StrictMode.ThreadPoli
             onViolation?.let { onViolation ->
                 penaltyListener(checkNotNull(onViolationExecutor), onViolation)
             }
+
+            infoListener(onViolationInfoExecutor, onViolationInfo, sources)?.let { (executor, listener) ->
+                penaltyInfoListener(executor, listener)
+            }
         }
     }.build()
 }
@@ -93,6 +118,33 @@ private fun buildVmPolicy(config: VmPolicyConfig): StrictMode.VmPolicy {
             onViolation?.let { onViolation ->
                 penaltyListener(checkNotNull(onViolationExecutor), onViolation)
             }
+
+            infoListener(onViolationInfoExecutor, onViolationInfo, sources)?.let { (executor, listener) ->
+                penaltyInfoListener(executor, listener)
+            }
         }
     }.build()
 }
+
+/**
+ * [onViolationInfo] and [sources] as one listener, a compat builder keeps one info listener.
+ * Sources never block, so they get violations on the reporting thread.
+ */
+private fun infoListener(
+    executor: Executor?,
+    onViolationInfo: ((info: ViolationInfo) -> Unit)?,
+    sources: List<ViolationSource>
+): Pair<Executor, StrictModeCompat.OnViolationInfoListener>? {
+    if (sources.isEmpty()) {
+        return onViolationInfo?.let { checkNotNull(executor) to StrictModeCompat.OnViolationInfoListener(it) }
+    }
+
+    val targets = sources.toList()
+    val listener = StrictModeCompat.OnViolationInfoListener { info ->
+        targets.forEach { it.listener.onViolation(info) }
+        if (onViolationInfo != null) {
+            checkNotNull(executor).execute { onViolationInfo(info) }
+        }
+    }
+    return targets.first().executor to listener
+}
@@ -19,6 +19,9 @@
 package com.kirillr.strictmodehelper.kotlin.dsl
 
 import android.os.strictmode.Violation
+import com.kirillr.strictmodehelper.StrictModeCompat
+import com.kirillr.strictmodehelper.ViolationInfo
+import com.kirillr.strictmodehelper.kotlin.ViolationSource
 import java.util.concurrent.Executor
 import android.os.DropBoxManager
 import android.os.StrictMode
@@ -152,6 +155,32 @@ class ThreadPolicyConfig private constructor(
             this.onViolation = body
         }
 
+        internal var onViolationInfo: ((info: ViolationInfo) -> Unit)? = null
+        internal var onViolationInfoExecutor: Executor? = null
+
+        /**
+         * Call [StrictModeCompat.OnViolationInfoListener.onViolation] on specified [executor] every violation.
+         * [ViolationInfo] carries the context of the violating thread, like the sampling rate.
+         *
+         * Work on [Build.VERSION_CODES.P] and newer.
+         */
+        fun onViolationInfo(executor: Executor, body: (info: ViolationInfo) -> Unit) {
+            onViolationInfoExecutor = executor
+            this.onViolationInfo = body
+        }
+
+        internal val sources = mutableListOf<ViolationSource>()
+
+        /**
+         * Emit every violation to [source]. Can be combined with [onViolation], [onViolationInfo]
+         * and other sources, every one of them gets every violation.
+         *
+         * Work on [Build.VERSION_CODES.P] and newer.
+         */
+        fun emitTo(source: ViolationSource) {
+            sources += source
+        }
+
         internal companion object {
 
             internal operator fun invoke(enableDefaults: Boolean): PenaltyConfig {
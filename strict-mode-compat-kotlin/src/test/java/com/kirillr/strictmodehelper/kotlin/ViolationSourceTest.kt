@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.kotlin
+
+import android.os.Build
+import android.os.StrictMode
+import android.os.strictmode.CustomViolation
+import android.os.strictmode.Violation
+import com.kirillr.strictmodehelper.ViolationInfo
+import com.kirillr.strictmodehelper.kotlin.dsl.initStrictMode
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.robolectric.util.ReflectionHelpers
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P], manifest = Config.NONE)
+class ViolationSourceTest {
+
+    private val direct = Executor { command -> command.run() }
+
+    @After
+    fun tearDown() {
+        StrictMode.setThreadPolicy(StrictMode.ThreadPolicy.LAX)
+    }
+
+    @Test
+    fun emitToAndOnViolationBothReceiveViolations() {
+        val source = ViolationSource(replay = 1)
+        val violations = CopyOnWriteArrayList<Violation>()
+        initStrictMode(enableDefaults = false) {
+            threadPolicy {
+                customSlowCalls = true
+                penalty {
+                    onViolation(direct) { violations += it }
+                    emitTo(source)
+                }
+            }
+        }
+
+        val violation = reportThreadViolation()
+
+        assertEquals(listOf(violation), violations)
+        assertSame(violation, source.first().violation)
+    }
+
+    @Test
+    fun emitToAndOnViolationInfoBothReceiveViolations() {
+        val first = ViolationSource(replay = 1)
+        val second = ViolationSource(replay = 1)
+        val infos = CopyOnWriteArrayList<ViolationInfo>()
+        initStrictMode(enableDefaults = false) {
+            threadPolicy {
+                customSlowCalls = true
+                penalty {
+                    emitTo(first)
+                    onViolationInfo(direct) { infos += it }
+                    emitTo(second)
+                }
+            }
+        }
+
+        val violation = reportThreadViolation()
+
+        assertEquals(1, infos.size)
+        assertSame(violation, infos[0].violation)
+        assertSame(infos[0], first.first())
+        assertSame(infos[0], second.first())
+    }
+
+    /**
+     * Call the listener of the current policy the way StrictMode does.
+     */
+    private fun reportThreadViolation(): Violation {
+        val policy = StrictMode.getThreadPolicy()
+        val listener = ReflectionHelpers.getField<StrictMode.OnThreadViolationListener>(policy, "mListener")
+        val executor = ReflectionHelpers.getField<Executor>(policy, "mCallbackExecutor")
+        val violation = ReflectionHelpers.callConstructor(
+            CustomViolation::class.java,
+            ReflectionHelpers.ClassParameter.from(String::class.java, "slow call")
+        )
+        executor.execute { listener.onThreadViolation(violation) }
+        return violation
+    }
+
+    private fun ViolationSource.first(): ViolationInfo = runBlocking {
+        withTimeout(TIMEOUT_MILLIS) { violations().first() }
+    }
+
+    private companion object {
+
+        private const val TIMEOUT_MILLIS = 5_000L
+    }
+}
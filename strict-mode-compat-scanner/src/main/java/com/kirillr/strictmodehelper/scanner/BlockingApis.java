@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.scanner;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Known blocking APIs grouped by the categories detected by {@code ThreadPolicy.Builder}.
+ * Methods are matched by owner and name, any descriptor.
+ */
+final class BlockingApis {
+
+    enum Category {
+        DISK_READ,
+        DISK_WRITE,
+        NETWORK
+    }
+
+    private static final String ANY = "*";
+
+    // owner -> method name, name + descriptor or ANY -> category
+    private static final Map<String, Map<String, Category>> sApis = new HashMap<>();
+
+    static {
+        add(Category.DISK_READ, "java/io/FileInputStream", "<init>");
+        add(Category.DISK_READ, "java/io/FileReader", "<init>");
+        add(Category.DISK_READ, "java/io/RandomAccessFile", "<init>");
+        add(Category.DISK_READ, "java/io/File", "exists", "length", "isFile", "isDirectory", "list", "listFiles", "lastModified", "canRead");
+        add(Category.DISK_READ, "java/nio/file/Files", "readAllBytes", "readAllLines", "newInputStream", "newBufferedReader", "exists", "size");
+        add(Category.DISK_READ, "android/content/Context", "getSharedPreferences");
+        add(Category.DISK_READ, "android/content/ContextWrapper", "getSharedPreferences");
+        add(Category.DISK_READ, "android/preference/PreferenceManager", "getDefaultSharedPreferences");
+        add(Category.DISK_READ, "android/database/sqlite/SQLiteDatabase", "query", "rawQuery", "queryWithFactory", "rawQueryWithFactory");
+        add(Category.DISK_READ, "android/database/sqlite/SQLiteOpenHelper", "getReadableDatabase", "getWritableDatabase");
+        add(Category.DISK_READ, "android/graphics/BitmapFactory", "decodeFile", "decodeStream");
+
+        add(Category.DISK_WRITE, "java/io/FileOutputStream", "<init>");
+        add(Category.DISK_WRITE, "java/io/FileWriter", "<init>");
+        add(Category.DISK_WRITE, "java/io/File", "createNewFile", "delete", "mkdir", "mkdirs", "renameTo", "setLastModified");
+        add(Category.DISK_WRITE, "java/nio/file/Files", "write", "newOutputStream", "newBufferedWriter", "createFile", "delete", "move", "copy");
+        add(Category.DISK_WRITE, "android/content/SharedPreferences$Editor", "commit");
+        add(Category.DISK_WRITE, "android/database/sqlite/SQLiteDatabase", "insert", "insertOrThrow", "update", "delete", "replace", "execSQL");
+
+        // Constructors with an address connect right away
+        add(Category.NETWORK, "java/net/Socket", "connect",
+                "<init>(Ljava/lang/String;I)V",
+                "<init>(Ljava/lang/String;IZ)V",
+                "<init>(Ljava/lang/String;ILjava/net/InetAddress;I)V",
+                "<init>(Ljava/net/InetAddress;I)V",
+                "<init>(Ljava/net/InetAddress;IZ)V",
+                "<init>(Ljava/net/InetAddress;ILjava/net/InetAddress;I)V");
+        add(Category.NETWORK, "javax/net/SocketFactory", "createSocket(Ljava/lang/String;I)Ljava/net/Socket;",
+                "createSocket(Ljava/lang/String;ILjava/net/InetAddress;I)Ljava/net/Socket;",
+                "createSocket(Ljava/net/InetAddress;I)Ljava/net/Socket;",
+                "createSocket(Ljava/net/InetAddress;ILjava/net/InetAddress;I)Ljava/net/Socket;");
+        add(Category.NETWORK, "java/net/DatagramSocket", "send", "receive", "connect");
+        add(Category.NETWORK, "java/net/URL", "openStream", "getContent");
+        add(Category.NETWORK, "java/net/URLConnection", "connect", "getInputStream", "getOutputStream", "getContent");
+        add(Category.NETWORK, "java/net/HttpURLConnection", "connect", "getInputStream", "getOutputStream", "getResponseCode");
+        add(Category.NETWORK, "javax/net/ssl/HttpsURLConnection", "connect", "getInputStream", "getOutputStream", "getResponseCode");
+        add(Category.NETWORK, "java/net/InetAddress", "getByName", "getAllByName", "getLocalHost");
+        add(Category.NETWORK, "java/nio/channels/SocketChannel", "open", "connect", "read", "write");
+    }
+
+    private BlockingApis() {
+    }
+
+    private static void add(Category category, String owner, String... names) {
+        Map<String, Category> methods = sApis.get(owner);
+        if (methods == null) {
+            methods = new HashMap<>();
+            sApis.put(owner, methods);
+        }
+        for (String name : names) {
+            methods.put(name, category);
+        }
+    }
+
+    /**
+     * Category of the method declared by the owner or {@code null} if it isn't a known blocking API.
+     * Subtypes are resolved by the caller.
+     */
+    static Category categoryOf(String owner, String name, String descriptor) {
+        Map<String, Category> methods = sApis.get(owner);
+        if (methods == null) {
+            return null;
+        }
+        Category category = methods.get(name + descriptor);
+        if (category == null) {
+            category = methods.get(name);
+        }
+        return category != null ? category : methods.get(ANY);
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.scanner;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds blocking calls reachable from main thread entry points in compiled classes.
+ * <p>
+ * Entry points are methods annotated with {@code @MainThread}/{@code @UiThread} (or declared in
+ * annotated classes) and lifecycle overrides of {@code Activity}, {@code Fragment} and {@code View}
+ * subclasses. Class files are parsed in parallel, then the call graph is walked breadth first from
+ * all entry points at once, so every blocking call site is reported once with the shortest path.
+ * Virtual calls are resolved with class hierarchy analysis. Bodies of lambdas and method references
+ * aren't treated as called by the method which creates them, they run later and often on another thread.
+ * <p>
+ * Blocking APIs are matched in supertypes too, so subclasses of {@code Socket} or
+ * {@code HttpURLConnection} are found. Supertypes of JDK classes are read from the JDK running the
+ * scanner, other libraries and {@code android.jar} can be passed with {@code --classpath}, they
+ * are used only for the class hierarchy.
+ * <p>
+ * Runs on directories and jars of class files, for example the input of R8/D8:
+ * <pre>
+ * java -jar strict-mode-compat-scanner.jar [--fail-on-findings] [--classpath &lt;path&gt;] &lt;dir or jar&gt;...
+ * </pre>
+ */
+public final class BlockingCallScanner {
+
+    private static final Set<String> ACTIVITY_CLASSES = new HashSet<>(Arrays.asList(
+            "android/app/Activity",
+            "androidx/activity/ComponentActivity",
+            "androidx/core/app/ComponentActivity",
+            "androidx/fragment/app/FragmentActivity",
+            "androidx/appcompat/app/AppCompatActivity"
+    ));
+
+    private static final Set<String> FRAGMENT_CLASSES = new HashSet<>(Arrays.asList(
+            "android/app/Fragment",
+            "androidx/fragment/app/Fragment",
+            "androidx/fragment/app/DialogFragment"
+    ));
+
+    private static final Set<String> VIEW_CLASSES = new HashSet<>(Arrays.asList(
+            "android/view/View",
+            "android/view/ViewGroup"
+    ));
+
+    private static final Set<String> ACTIVITY_LIFECYCLE = new HashSet<>(Arrays.asList(
+            "onCreate", "onStart", "onRestart", "onResume", "onPostCreate", "onPostResume",
+            "onPause", "onStop", "onDestroy", "onNewIntent", "onActivityResult",
+            "onSaveInstanceState", "onRestoreInstanceState", "onConfigurationChanged",
+            "onWindowFocusChanged", "onBackPressed", "onCreateOptionsMenu", "onOptionsItemSelected"
+    ));
+
+    private static final Set<String> FRAGMENT_LIFECYCLE = new HashSet<>(Arrays.asList(
+            "onAttach", "onCreate", "onCreateView", "onViewCreated", "onActivityCreated", "onStart",
+            "onResume", "onPause", "onStop", "onDestroyView", "onDestroy", "onDetach",
+            "onSaveInstanceState", "onViewStateRestored", "onActivityResult"
+    ));
+
+    private static final Set<String> VIEW_LIFECYCLE = new HashSet<>(Arrays.asList(
+            "onFinishInflate", "onAttachedToWindow", "onDetachedFromWindow", "onMeasure", "onLayout",
+            "onSizeChanged", "onDraw", "dispatchDraw", "draw", "onTouchEvent", "onInterceptTouchEvent",
+            "onKeyDown", "onKeyUp", "onVisibilityChanged", "onWindowFocusChanged"
+    ));
+
+    private static final String[] NO_TYPES = new String[0];
+
+    private final int mParallelism;
+
+    private Map<String, ClassInfo> mClasses = Collections.emptyMap();
+    // Classes of the classpath, used only for the class hierarchy
+    private Map<String, ClassInfo> mLibraries = Collections.emptyMap();
+    private final Map<String, List<String>> mSubtypes = new HashMap<>();
+    // Supertypes of classes outside of the inputs and the classpath
+    private final Map<String, String[]> mPlatformSupertypes = new HashMap<>();
+
+    public BlockingCallScanner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlockingCallScanner(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean failOnFindings = false;
+        List<File> inputs = new ArrayList<>();
+        List<File> classpath = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--fail-on-findings")) {
+                failOnFindings = true;
+            } else if (args[i].equals("--classpath") && i + 1 < args.length) {
+                for (String path : args[++i].split(File.pathSeparator)) {
+                    classpath.add(new File(path));
+                }
+            } else {
+                inputs.add(new File(args[i]));
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: BlockingCallScanner [--fail-on-findings] [--classpath <path>] <dir or jar>...");
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        BlockingCallScanner scanner = new BlockingCallScanner();
+        List<Finding> findings = scanner.scan(inputs, classpath);
+        for (Finding finding : findings) {
+            System.out.println(finding);
+        }
+        System.out.printf("%d blocking calls reachable from the main thread, %d classes scanned in %d ms%n",
+                findings.size(), scanner.mClasses.size(), (System.nanoTime() - start) / 1000000);
+        if (failOnFindings && !findings.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Scan directories and jars of class files.
+     */
+    public List<Finding> scan(Collection<File> inputs) throws IOException {
+        return scan(inputs, Collections.<File>emptyList());
+    }
+
+    /**
+     * Scan directories and jars of class files, with the classpath used only to resolve supertypes.
+     */
+    public List<Finding> scan(Collection<File> inputs, Collection<File> classpath) throws IOException {
+        mClasses = parse(inputs, ClassReader.SKIP_FRAMES);
+        mLibraries = parse(classpath, ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+        mPlatformSupertypes.clear();
+        indexSubtypes();
+        return walk(findEntryPoints());
+    }
+
+    private Map<String, ClassInfo> parse(Collection<File> inputs, final int parsingOptions) throws IOException {
+        final Map<String, ClassInfo> classes = new ConcurrentHashMap<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        List<ZipFile> jars = new ArrayList<>();
+        try {
+            for (File input : inputs) {
+                if (input.isDirectory()) {
+                    for (final Path path : listClassFiles(input.toPath())) {
+                        tasks.add(new Callable<Void>() {
+
+                            @Override
+                            public Void call() throws IOException {
+                                index(Files.readAllBytes(path), parsingOptions, classes);
+                                return null;
+                            }
+                        });
+                    }
+                } else {
+                    final ZipFile jar = new ZipFile(input);
+                    jars.add(jar);
+                    for (final ZipEntry entry : Collections.list(jar.entries())) {
+                        if (!isClassFile(entry.getName())) {
+                            continue;
+                        }
+                        tasks.add(new Callable<Void>() {
+
+                            @Override
+                            public Void call() throws IOException {
+                                try (InputStream stream = jar.getInputStream(entry)) {
+                                    index(readFully(stream), parsingOptions, classes);
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                }
+            }
+            runAll(tasks);
+        } finally {
+            for (ZipFile jar : jars) {
+                jar.close();
+            }
+        }
+        return classes;
+    }
+
+    private void runAll(List<Callable<Void>> tasks) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(mParallelism);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Scan interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse class file", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void index(byte[] bytes, int parsingOptions, Map<String, ClassInfo> classes) {
+        ClassIndexer indexer = new ClassIndexer();
+        try {
+            new ClassReader(bytes).accept(indexer, parsingOptions);
+        } catch (RuntimeException e) {
+            // A broken or too new class file shouldn't fail the whole scan
+            System.err.println("Skipped unreadable class file: " + e);
+            return;
+        }
+        ClassInfo info = indexer.getClassInfo();
+        classes.put(info.name, info);
+    }
+
+    private static boolean isClassFile(String name) {
+        return name.endsWith(".class") && !name.endsWith("module-info.class");
+    }
+
+    private static List<Path> listClassFiles(Path root) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (isClassFile(file.toString())) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        byte[] buffer = new byte[8192];
+        int size = 0;
+        int read;
+        while ((read = stream.read(buffer, size, buffer.length - size)) != -1) {
+            size += read;
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size * 2);
+            }
+        }
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void indexSubtypes() {
+        mSubtypes.clear();
+        for (ClassInfo info : mClasses.values()) {
+            if (info.superName != null) {
+                addSubtype(info.superName, info.name);
+            }
+            for (String parent : info.interfaces) {
+                addSubtype(parent, info.name);
+            }
+        }
+    }
+
+    private void addSubtype(String parent, String child) {
+        List<String> children = mSubtypes.get(parent);
+        if (children == null) {
+            children = new ArrayList<>();
+            mSubtypes.put(parent, children);
+        }
+        children.add(child);
+    }
+
+    /**
+     * Superclass and interfaces of the class, read from the JDK running the scanner
+     * when it's neither in the inputs nor on the classpath.
+     */
+    private String[] supertypesOf(String className) {
+        ClassInfo info = mClasses.get(className);
+        if (info == null) {
+            info = mLibraries.get(className);
+        }
+        if (info != null) {
+            return supertypes(info.superName, info.interfaces);
+        }
+
+        String[] supertypes = mPlatformSupertypes.get(className);
+        if (supertypes == null) {
+            supertypes = NO_TYPES;
+            try (InputStream stream = ClassLoader.getSystemResourceAsStream(className + ".class")) {
+                if (stream != null) {
+                    ClassReader reader = new ClassReader(stream);
+                    supertypes = supertypes(reader.getSuperName(), reader.getInterfaces());
+                }
+            } catch (IOException | RuntimeException e) {
+                // Unknown class or a class file too new for ASM, the hierarchy ends here
+            }
+            mPlatformSupertypes.put(className, supertypes);
+        }
+        return supertypes;
+    }
+
+    // Superclass first
+    private static String[] supertypes(String superName, String[] interfaces) {
+        if (superName == null) {
+            return interfaces;
+        }
+        String[] supertypes = new String[interfaces.length + 1];
+        supertypes[0] = superName;
+        System.arraycopy(interfaces, 0, supertypes, 1, interfaces.length);
+        return supertypes;
+    }
+
+    /**
+     * Category of the blocking API invoked by the call. The method is looked up in the owner and
+     * its supertypes until a scanned class implements it, that implementation is walked instead.
+     * Constructors are looked up only in superclasses.
+     */
+    private BlockingApis.Category categoryOf(MethodRef target) {
+        String signature = target.signature();
+        boolean constructor = target.name.equals("<init>");
+        ArrayDeque<String> pending = new ArrayDeque<>();
+        Set<String> seen = new HashSet<>();
+        pending.add(target.owner);
+        while (!pending.isEmpty()) {
+            String type = pending.poll();
+            if (!seen.add(type)) {
+                continue;
+            }
+            BlockingApis.Category category = BlockingApis.categoryOf(type, target.name, target.descriptor);
+            if (category != null) {
+                return category;
+            }
+            ClassInfo info = mClasses.get(type);
+            if (info != null && info.methods.containsKey(signature)) {
+                return null;
+            }
+
+            String[] supertypes = supertypesOf(type);
+            if (constructor) {
+                // Only java/lang/Object has no superclass and it has no interfaces either
+                if (supertypes.length > 0) {
+                    pending.add(supertypes[0]);
+                }
+            } else {
+                pending.addAll(Arrays.asList(supertypes));
+            }
+        }
+        return null;
+    }
+
+    private boolean extendsAny(String className, Set<String> parents) {
+        String current = className;
+        while (current != null) {
+            if (parents.contains(current)) {
+                return true;
+            }
+            ClassInfo info = mClasses.get(current);
+            current = info != null ? info.superName : null;
+        }
+        return false;
+    }
+
+    private List<ClassInfo.MethodInfo> findEntryPoints() {
+        List<ClassInfo.MethodInfo> entryPoints = new ArrayList<>();
+        for (ClassInfo info : mClasses.values()) {
+            Set<String> lifecycle = null;
+            if (extendsAny(info.name, ACTIVITY_CLASSES)) {
+                lifecycle = ACTIVITY_LIFECYCLE;
+            } else if (extendsAny(info.name, FRAGMENT_CLASSES)) {
+                lifecycle = FRAGMENT_LIFECYCLE;
+            } else if (extendsAny(info.name, VIEW_CLASSES)) {
+                lifecycle = VIEW_LIFECYCLE;
+            }
+
+            for (ClassInfo.MethodInfo method : info.methods.values()) {
+                if (method.mainThread || (lifecycle != null && lifecycle.contains(method.ref.name))) {
+                    entryPoints.add(method);
+                }
+            }
+        }
+        return entryPoints;
+    }
+
+    /**
+     * Multi-source breadth first search over the call graph.
+     */
+    private List<Finding> walk(List<ClassInfo.MethodInfo> entryPoints) {
+        Map<MethodRef, MethodRef> parents = new HashMap<>();
+        ArrayDeque<ClassInfo.MethodInfo> queue = new ArrayDeque<>();
+        for (ClassInfo.MethodInfo entryPoint : entryPoints) {
+            if (!parents.containsKey(entryPoint.ref)) {
+                parents.put(entryPoint.ref, null);
+                queue.add(entryPoint);
+            }
+        }
+
+        Map<String, Finding> findings = new LinkedHashMap<>();
+        while (!queue.isEmpty()) {
+            ClassInfo.MethodInfo method = queue.poll();
+            for (ClassInfo.CallSite call : method.calls) {
+                if (call.deferred) {
+                    // Lambda bodies don't inherit the thread of the method creating them
+                    continue;
+                }
+                BlockingApis.Category category = categoryOf(call.target);
+                if (category != null) {
+                    String key = method.ref + "|" + call.target + "|" + call.line;
+                    if (!findings.containsKey(key)) {
+                        findings.put(key, new Finding(category.name(), pathTo(method.ref, parents), call.target, call.line));
+                    }
+                    continue;
+                }
+
+                for (ClassInfo.MethodInfo target : resolve(call)) {
+                    if (!parents.containsKey(target.ref)) {
+                        parents.put(target.ref, method.ref);
+                        queue.add(target);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(findings.values());
+    }
+
+    private static List<MethodRef> pathTo(MethodRef method, Map<MethodRef, MethodRef> parents) {
+        List<MethodRef> path = new ArrayList<>();
+        for (MethodRef current = method; current != null; current = parents.get(current)) {
+            path.add(current);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Methods which can be invoked by the call site: the inherited implementation
+     * and, for virtual calls, overrides in all known subtypes.
+     */
+    private List<ClassInfo.MethodInfo> resolve(ClassInfo.CallSite call) {
+        List<ClassInfo.MethodInfo> targets = new ArrayList<>();
+        String signature = call.target.signature();
+        for (String current = call.target.owner; current != null; ) {
+            ClassInfo info = mClasses.get(current);
+            if (info == null) {
+                break;
+            }
+            ClassInfo.MethodInfo method = info.methods.get(signature);
+            if (method != null) {
+                targets.add(method);
+                break;
+            }
+            current = info.superName;
+        }
+
+        if (call.virtual) {
+            ArrayDeque<String> pending = new ArrayDeque<>();
+            Set<String> seen = new HashSet<>();
+            pending.add(call.target.owner);
+            while (!pending.isEmpty()) {
+                List<String> children = mSubtypes.get(pending.poll());
+                if (children == null) {
+                    continue;
+                }
+                for (String child : children) {
+                    if (!seen.add(child)) {
+                        continue;
+                    }
+                    ClassInfo.MethodInfo override = mClasses.get(child).methods.get(signature);
+                    if (override != null) {
+                        targets.add(override);
+                    }
+                    pending.add(child);
+                }
+            }
+        }
+        return targets;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.scanner;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Reads class hierarchy, main thread annotations and call sites of a single class.
+ */
+final class ClassIndexer extends ClassVisitor {
+
+    private static final String[] MAIN_THREAD_ANNOTATIONS = {
+            "Landroidx/annotation/MainThread;",
+            "Landroidx/annotation/UiThread;",
+            "Landroid/support/annotation/MainThread;",
+            "Landroid/support/annotation/UiThread;",
+            "Landroid/annotation/MainThread;",
+            "Landroid/annotation/UiThread;",
+    };
+
+    private ClassInfo mClassInfo;
+    private boolean mMainThreadClass;
+
+    ClassIndexer() {
+        super(Opcodes.ASM9);
+    }
+
+    ClassInfo getClassInfo() {
+        return mClassInfo;
+    }
+
+    static boolean isMainThreadAnnotation(String descriptor) {
+        for (String annotation : MAIN_THREAD_ANNOTATIONS) {
+            if (annotation.equals(descriptor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        mClassInfo = new ClassInfo(name, superName, interfaces);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+        if (isMainThreadAnnotation(descriptor)) {
+            mMainThreadClass = true;
+        }
+        return null;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+            return null;
+        }
+
+        MethodRef ref = new MethodRef(mClassInfo.name, name, descriptor);
+        return new MethodIndexer(ref, mMainThreadClass && !name.startsWith("<"));
+    }
+
+    private final class MethodIndexer extends MethodVisitor {
+
+        private final MethodRef mRef;
+        private boolean mMainThread;
+        private ClassInfo.MethodInfo mMethod;
+        private int mLine;
+
+        MethodIndexer(MethodRef ref, boolean mainThread) {
+            super(Opcodes.ASM9);
+            mRef = ref;
+            mMainThread = mainThread;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            if (isMainThreadAnnotation(descriptor)) {
+                mMainThread = true;
+            }
+            return null;
+        }
+
+        @Override
+        public void visitCode() {
+            // Annotations are visited before the code
+            mMethod = new ClassInfo.MethodInfo(mRef, mMainThread);
+            mClassInfo.methods.put(mRef.signature(), mMethod);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            mLine = line;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (owner.startsWith("[")) {
+                // Methods of arrays, like clone()
+                return;
+            }
+            boolean virtual = opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKEINTERFACE;
+            mMethod.calls.add(new ClassInfo.CallSite(new MethodRef(owner, name, descriptor), mLine, virtual, false));
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrap, Object... arguments) {
+            // Lambdas and method references only capture their implementation method here,
+            // it runs when the functional interface is invoked, often on an executor or a callback
+            for (Object argument : arguments) {
+                if (argument instanceof Handle) {
+                    Handle handle = (Handle) argument;
+                    MethodRef target = new MethodRef(handle.getOwner(), handle.getName(), handle.getDesc());
+                    mMethod.calls.add(new ClassInfo.CallSite(target, mLine, false, true));
+                }
+            }
+        }
+    }
+}
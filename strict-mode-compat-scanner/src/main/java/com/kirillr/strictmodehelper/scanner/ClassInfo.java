@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.scanner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Part of a class file needed to build the call graph.
+ */
+final class ClassInfo {
+
+    final String name;
+    final String superName;
+    final String[] interfaces;
+
+    // Keyed by name + descriptor
+    final Map<String, MethodInfo> methods = new HashMap<>();
+
+    ClassInfo(String name, String superName, String[] interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces != null ? interfaces : new String[0];
+    }
+
+    static final class MethodInfo {
+
+        final MethodRef ref;
+        final boolean mainThread;
+        final List<CallSite> calls = new ArrayList<>();
+
+        MethodInfo(MethodRef ref, boolean mainThread) {
+            this.ref = ref;
+            this.mainThread = mainThread;
+        }
+    }
+
+    static final class CallSite {
+
+        final MethodRef target;
+        final int line;
+        final boolean virtual;
+        // Lambda or method reference body, runs later and possibly on another thread
+        final boolean deferred;
+
+        CallSite(MethodRef target, int line, boolean virtual, boolean deferred) {
+            this.target = target;
+            this.line = line;
+            this.virtual = virtual;
+            this.deferred = deferred;
+        }
+    }
+}
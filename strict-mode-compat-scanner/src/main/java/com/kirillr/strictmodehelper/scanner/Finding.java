@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.scanner;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Path from a main thread entry point to a blocking API.
+ */
+public final class Finding {
+
+    private final String mCategory;
+    private final MethodRef mEntryPoint;
+    private final List<MethodRef> mPath;
+    private final MethodRef mBlockingCall;
+    private final int mLine;
+
+    Finding(String category, List<MethodRef> path, MethodRef blockingCall, int line) {
+        mCategory = category;
+        mEntryPoint = path.get(0);
+        mPath = Collections.unmodifiableList(path);
+        mBlockingCall = blockingCall;
+        mLine = line;
+    }
+
+    /**
+     * {@code DISK_READ}, {@code DISK_WRITE} or {@code NETWORK}.
+     */
+    public String getCategory() {
+        return mCategory;
+    }
+
+    public MethodRef getEntryPoint() {
+        return mEntryPoint;
+    }
+
+    /**
+     * Methods from the entry point to the method which makes the blocking call, inclusive.
+     */
+    public List<MethodRef> getPath() {
+        return mPath;
+    }
+
+    public MethodRef getBlockingCall() {
+        return mBlockingCall;
+    }
+
+    /**
+     * Line of the blocking call in the last method of the path, 0 if unknown.
+     */
+    public int getLine() {
+        return mLine;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder()
+                .append(mCategory).append(": ").append(mBlockingCall).append('\n');
+        for (int i = 0; i < mPath.size(); i++) {
+            builder.append(i == 0 ? "    from " : "      -> ").append(mPath.get(i));
+            if (i == mPath.size() - 1 && mLine > 0) {
+                builder.append(" (line ").append(mLine).append(')');
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.scanner;
+
+import java.util.Objects;
+
+/**
+ * Method identified by internal name of the owner class, method name and descriptor.
+ */
+public final class MethodRef {
+
+    public final String owner;
+    public final String name;
+    public final String descriptor;
+
+    MethodRef(String owner, String name, String descriptor) {
+        this.owner = owner;
+        this.name = name;
+        this.descriptor = descriptor;
+    }
+
+    String signature() {
+        return name + descriptor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MethodRef)) {
+            return false;
+        }
+        MethodRef other = (MethodRef) o;
+        return owner.equals(other.owner) && name.equals(other.name) && descriptor.equals(other.descriptor);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(owner, name, descriptor);
+    }
+
+    @Override
+    public String toString() {
+        return owner.replace('/', '.') + '.' + name + descriptor;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.scanner;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Scans the compiled {@link ScannerFixtures}.
+ */
+public class BlockingCallScannerTest {
+
+    private static final String[] FIXTURE_CLASSES = {
+            "ScannerFixtures",
+            "ScannerFixtures$TimeoutSocket",
+            "ScannerFixtures$LoggingConnection",
+    };
+
+    @ClassRule
+    public static final TemporaryFolder sFolder = new TemporaryFolder();
+
+    // Entry point name -> finding
+    private static final Map<String, Finding> sFindings = new HashMap<>();
+
+    @BeforeClass
+    public static void scan() throws IOException {
+        File classes = sFolder.newFolder("classes");
+        File packageDir = new File(classes, "com/kirillr/strictmodehelper/scanner");
+        if (!packageDir.mkdirs()) {
+            throw new IOException("Can't create " + packageDir);
+        }
+        for (String name : FIXTURE_CLASSES) {
+            try (InputStream stream = BlockingCallScannerTest.class.getResourceAsStream(name + ".class")) {
+                Files.copy(stream, new File(packageDir, name + ".class").toPath());
+            }
+        }
+
+        List<Finding> findings = new BlockingCallScanner(1).scan(Collections.singletonList(classes));
+        for (Finding finding : findings) {
+            Finding previous = sFindings.put(finding.getEntryPoint().name, finding);
+            if (previous != null) {
+                throw new AssertionError("Several findings for " + finding.getEntryPoint());
+            }
+        }
+    }
+
+    @Test
+    public void directCall() {
+        Finding finding = sFindings.get("diskReadDirectly");
+        assertNotNull(finding);
+        assertEquals("DISK_READ", finding.getCategory());
+        assertEquals("java.io.File.exists()Z", finding.getBlockingCall().toString());
+    }
+
+    @Test
+    public void lambdaBodiesDontRunOnTheCreatingThread() {
+        assertNull(sFindings.get("noneFromLambda"));
+        assertNull(sFindings.get("noneFromMethodReference"));
+    }
+
+    @Test
+    public void socketConstructorWithAddressConnects() {
+        Finding finding = sFindings.get("networkFromSocketConstructor");
+        assertNotNull(finding);
+        assertEquals("NETWORK", finding.getCategory());
+        assertEquals("java.net.Socket.<init>(Ljava/lang/String;I)V", finding.getBlockingCall().toString());
+
+        assertNull(sFindings.get("noneFromUnconnectedSocket"));
+    }
+
+    @Test
+    public void scannedSubclassConstructor() {
+        Finding finding = sFindings.get("networkFromSocketSubclassConstructor");
+        assertNotNull(finding);
+        assertEquals("NETWORK", finding.getCategory());
+        assertEquals(methodNames("networkFromSocketSubclassConstructor", "<init>"), methodNames(finding.getPath()));
+    }
+
+    @Test
+    public void platformSubclass() {
+        Finding finding = sFindings.get("networkFromPlatformSubclass");
+        assertNotNull(finding);
+        assertEquals("NETWORK", finding.getCategory());
+        assertEquals("javax/net/ssl/SSLSocket", finding.getBlockingCall().owner);
+    }
+
+    @Test
+    public void methodInheritedByScannedSubclass() {
+        Finding finding = sFindings.get("networkFromInheritedMethod");
+        assertNotNull(finding);
+        assertEquals("NETWORK", finding.getCategory());
+        assertEquals("getResponseCode", finding.getBlockingCall().name);
+    }
+
+    private static List<String> methodNames(String... names) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, names);
+        return list;
+    }
+
+    private static List<String> methodNames(List<MethodRef> path) {
+        List<String> names = new ArrayList<>();
+        for (MethodRef method : path) {
+            names.add(method.name);
+        }
+        return names;
+    }
+}
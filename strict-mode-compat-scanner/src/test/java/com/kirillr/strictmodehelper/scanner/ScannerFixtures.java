@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.scanner;
+
+import androidx.annotation.MainThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Classes scanned by {@link BlockingCallScannerTest}, every entry point is named after the expected result.
+ */
+@SuppressWarnings({"unused", "ResultOfMethodCallIgnored"})
+final class ScannerFixtures {
+
+    private final Executor mExecutor;
+
+    ScannerFixtures(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @MainThread
+    void diskReadDirectly() {
+        new File("config").exists();
+    }
+
+    @MainThread
+    void noneFromLambda() {
+        mExecutor.execute(() -> new File("config").exists());
+    }
+
+    @MainThread
+    void noneFromMethodReference() {
+        mExecutor.execute(this::readConfig);
+    }
+
+    private void readConfig() {
+        new File("config").exists();
+    }
+
+    @MainThread
+    void networkFromSocketConstructor() throws IOException {
+        new Socket("example.com", 80).close();
+    }
+
+    @MainThread
+    void noneFromUnconnectedSocket() throws IOException {
+        new Socket().close();
+    }
+
+    @MainThread
+    void networkFromSocketSubclassConstructor() throws IOException {
+        new TimeoutSocket("example.com", 80).close();
+    }
+
+    @MainThread
+    void networkFromPlatformSubclass(SSLSocket socket) throws IOException {
+        socket.connect(new InetSocketAddress("example.com", 443));
+    }
+
+    @MainThread
+    void networkFromInheritedMethod(LoggingConnection connection) throws IOException {
+        connection.getResponseCode();
+    }
+
+    static final class TimeoutSocket extends Socket {
+
+        TimeoutSocket(String host, int port) throws IOException {
+            super(host, port);
+        }
+    }
+
+    static final class LoggingConnection extends HttpURLConnection {
+
+        LoggingConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}
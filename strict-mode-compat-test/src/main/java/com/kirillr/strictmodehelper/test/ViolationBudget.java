@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.test;
+
+import android.os.Build;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.os.strictmode.Violation;
+
+import com.kirillr.strictmodehelper.StackFingerprint;
+import com.kirillr.strictmodehelper.StrictModeCompat;
+
+import org.junit.Assume;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Budgets of thread policy violations for a block of code.
+ *
+ * <pre>
+ * ViolationBudget budget = new ViolationBudget.Builder()
+ *         .atMost(DiskReadViolation.class, 2)
+ *         .atMost(NetworkViolation.class, 0)
+ *         .build();
+ * budget.run(new Runnable() { ... });
+ * </pre>
+ * <p>
+ * The block runs with a counting thread policy which detects all violations. Only violations of
+ * the current thread are counted, every run has its own counters, so tests can run in parallel.
+ * Violations which went over budget fail the run with {@link AssertionError} listing their stacks
+ * grouped by {@link StackFingerprint}.
+ * <p>
+ * Violation listeners are available on Android 9.0+, on older versions the run is skipped with
+ * a failed assumption. On a thread with {@link Looper} StrictMode delivers violations after the current
+ * message, when the run is already finished, so runs on such threads fail with
+ * {@link IllegalStateException}. Run the block on a thread without one, like the instrumentation
+ * thread, not on the main thread or with {@code @UiThreadTest}.
+ * <p>
+ * Under Robolectric the test thread is the main thread with its {@link Looper}. There the run drains
+ * the main Looper with {@code ShadowLooper.idleMainLooper()} before it checks budgets, so violations
+ * delivered in a message are counted. Robolectric is looked up by reflection, it isn't a dependency.
+ *
+ * @see ViolationBudgetRule
+ */
+public final class ViolationBudget {
+
+    private static final String ROBOLECTRIC_FINGERPRINT = "robolectric";
+    private static final String SHADOW_LOOPER = "org.robolectric.shadows.ShadowLooper";
+
+    private static final int MAX_FRAMES = 8;
+    private static final int MAX_FINGERPRINTS = 5;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    @NonNull
+    private final Map<Class<? extends Throwable>, Integer> mBudgets;
+
+    private ViolationBudget(@NonNull Builder builder) {
+        mBudgets = new LinkedHashMap<>(builder.mBudgets);
+    }
+
+    public void run(@NonNull final Runnable block) {
+        try {
+            call(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    block.run();
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public <T> T call(@NonNull Callable<T> block) throws Exception {
+        Session session = start();
+        T result;
+        try {
+            result = block.call();
+        } catch (Throwable e) {
+            session.restore();
+            throw e;
+        }
+        session.finish();
+        return result;
+    }
+
+    /**
+     * Install the counting policy on the current thread. Call {@link Session#finish()} on the same
+     * thread to restore the previous policy and check budgets.
+     *
+     * @throws IllegalStateException if the current thread has a {@link Looper}, except the main
+     *                               thread under Robolectric
+     */
+    @NonNull
+    public Session start() {
+        Assume.assumeTrue(
+                "Violation listeners require Android 9.0",
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+        );
+        Looper looper = Looper.myLooper();
+        boolean drainMainLooper = looper != null && looper == Looper.getMainLooper() && isRobolectric();
+        if (looper != null && !drainMainLooper) {
+            // Violations would be delivered after finish() and never counted
+            throw new IllegalStateException("ViolationBudget can't count violations on thread "
+                    + Thread.currentThread().getName() + " with Looper, run it on a thread without one");
+        }
+        return new Session(mBudgets, drainMainLooper);
+    }
+
+    private static boolean isRobolectric() {
+        if (!ROBOLECTRIC_FINGERPRINT.equals(Build.FINGERPRINT)) {
+            return false;
+        }
+        try {
+            Class.forName(SHADOW_LOOPER);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Run messages of the main Looper which are due, including delivery of violations.
+     */
+    static void idleRobolectricMainLooper() {
+        try {
+            Class.forName(SHADOW_LOOPER).getMethod("idleMainLooper").invoke(null);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Can't drain the main Looper of Robolectric", e);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Can't drain the main Looper of Robolectric", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Can't drain the main Looper of Robolectric", e);
+        }
+    }
+
+    /**
+     * Counters of a single run.
+     */
+    public static final class Session {
+
+        @NonNull
+        private final Map<Class<? extends Throwable>, Integer> mBudgets;
+
+        @NonNull
+        private final Thread mThread = Thread.currentThread();
+
+        @NonNull
+        private final StrictMode.ThreadPolicy mPrevious;
+
+        // Violations on the main thread of Robolectric are delivered by its Looper
+        private final boolean mDrainMainLooper;
+
+        // Violation class -> fingerprint -> violations, touched only by mThread
+        private final Map<Class<?>, Map<Long, List<Throwable>>> mViolations = new LinkedHashMap<>();
+
+        private boolean mFinished;
+
+        Session(@NonNull Map<Class<? extends Throwable>, Integer> budgets, boolean drainMainLooper) {
+            mBudgets = budgets;
+            mDrainMainLooper = drainMainLooper;
+            mPrevious = StrictModeCompat.getThreadPolicy();
+            StrictModeCompat.setThreadPolicy(
+                    new StrictModeCompat.ThreadPolicy.Builder()
+                            .detectAll()
+                            .penaltyListener(DIRECT_EXECUTOR, new StrictModeCompat.OnThreadViolationListener() {
+
+                                @Override
+                                public void onThreadViolation(@NonNull Violation violation) {
+                                    record(violation);
+                                }
+                            })
+                            .build()
+            );
+        }
+
+        void record(@NonNull Throwable violation) {
+            if (Thread.currentThread() != mThread || mFinished) {
+                return;
+            }
+            Map<Long, List<Throwable>> byFingerprint = mViolations.get(violation.getClass());
+            if (byFingerprint == null) {
+                byFingerprint = new LinkedHashMap<>();
+                mViolations.put(violation.getClass(), byFingerprint);
+            }
+            long fingerprint = StackFingerprint.of(violation);
+            List<Throwable> violations = byFingerprint.get(fingerprint);
+            if (violations == null) {
+                violations = new ArrayList<>(1);
+                byFingerprint.put(fingerprint, violations);
+            }
+            violations.add(violation);
+        }
+
+        /**
+         * Count of recorded violations of the type or its subclasses.
+         */
+        public int getCount(@NonNull Class<? extends Throwable> type) {
+            int count = 0;
+            for (Map.Entry<Class<?>, Map<Long, List<Throwable>>> entry : mViolations.entrySet()) {
+                if (type.isAssignableFrom(entry.getKey())) {
+                    for (List<Throwable> violations : entry.getValue().values()) {
+                        count += violations.size();
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Restore the previous policy and check budgets.
+         *
+         * @throws AssertionError if a budget is exceeded
+         */
+        public void finish() {
+            if (mDrainMainLooper && !mFinished) {
+                // Before the counting policy with its listener is replaced
+                idleRobolectricMainLooper();
+            }
+            restore();
+            StringBuilder message = null;
+            for (Map.Entry<Class<? extends Throwable>, Integer> budget : mBudgets.entrySet()) {
+                int count = getCount(budget.getKey());
+                if (count > budget.getValue()) {
+                    if (message == null) {
+                        message = new StringBuilder("Violation budget exceeded");
+                    }
+                    message.append("\n\n").append(budget.getKey().getSimpleName())
+                            .append(": ").append(count).append(" > ").append(budget.getValue());
+                    appendFingerprints(message, budget.getKey());
+                }
+            }
+            if (message != null) {
+                throw new AssertionError(message.toString());
+            }
+        }
+
+        void restore() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            StrictModeCompat.setThreadPolicy(mPrevious);
+        }
+
+        private void appendFingerprints(@NonNull StringBuilder message, @NonNull Class<? extends Throwable> type) {
+            List<Map.Entry<Long, List<Throwable>>> groups = new ArrayList<>();
+            for (Map.Entry<Class<?>, Map<Long, List<Throwable>>> entry : mViolations.entrySet()) {
+                if (type.isAssignableFrom(entry.getKey())) {
+                    groups.addAll(entry.getValue().entrySet());
+                }
+            }
+            Collections.sort(groups, new Comparator<Map.Entry<Long, List<Throwable>>>() {
+
+                @Override
+                public int compare(Map.Entry<Long, List<Throwable>> first, Map.Entry<Long, List<Throwable>> second) {
+                    return second.getValue().size() - first.getValue().size();
+                }
+            });
+
+            for (int i = 0; i < groups.size() && i < MAX_FINGERPRINTS; i++) {
+                Map.Entry<Long, List<Throwable>> group = groups.get(i);
+                Throwable sample = group.getValue().get(0);
+                message.append("\n  [").append(StackFingerprint.toString(group.getKey())).append("] x")
+                        .append(group.getValue().size()).append(' ').append(sample.getClass().getName());
+                StackTraceElement[] frames = sample.getStackTrace();
+                for (int frame = 0; frame < frames.length && frame < MAX_FRAMES; frame++) {
+                    message.append("\n      at ").append(frames[frame]);
+                }
+            }
+            if (groups.size() > MAX_FINGERPRINTS) {
+                message.append("\n  ... ").append(groups.size() - MAX_FINGERPRINTS).append(" more");
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        private final Map<Class<? extends Throwable>, Integer> mBudgets = new LinkedHashMap<>();
+
+        /**
+         * Allow at most {@code count} violations of the type or its subclasses,
+         * like {@code android.os.strictmode.DiskReadViolation}.
+         */
+        public Builder atMost(@NonNull Class<? extends Throwable> type, int count) {
+            if (count < 0) {
+                throw new IllegalArgumentException("count must not be negative");
+            }
+            mBudgets.put(type, count);
+            return this;
+        }
+
+        /**
+         * Allow no violations of the type or its subclasses.
+         */
+        public Builder none(@NonNull Class<? extends Throwable> type) {
+            return atMost(type, 0);
+        }
+
+        public ViolationBudget build() {
+            return new ViolationBudget(this);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.test;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Runs every test of the class within the {@link ViolationBudget} on the test thread. Tests on threads
+ * with a Looper, like {@code @UiThreadTest}, fail, except Robolectric tests, see {@link ViolationBudget}.
+ *
+ * <pre>
+ * &#64;Rule
+ * public final ViolationBudgetRule budget = new ViolationBudgetRule(
+ *         new ViolationBudget.Builder()
+ *                 .atMost(DiskReadViolation.class, 2)
+ *                 .none(NetworkViolation.class)
+ *                 .build()
+ * );
+ * </pre>
+ */
+public final class ViolationBudgetRule implements TestRule {
+
+    @NonNull
+    private final ViolationBudget mBudget;
+
+    @Nullable
+    private ViolationBudget.Session mSession;
+
+    public ViolationBudgetRule(@NonNull ViolationBudget budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Counters of the running test.
+     */
+    @NonNull
+    public ViolationBudget.Session getSession() {
+        ViolationBudget.Session session = mSession;
+        if (session == null) {
+            throw new IllegalStateException("No test is running");
+        }
+        return session;
+    }
+
+    @Override
+    public Statement apply(final Statement base, Description description) {
+        return new Statement() {
+
+            @Override
+            public void evaluate() throws Throwable {
+                ViolationBudget.Session session = mBudget.start();
+                mSession = session;
+                try {
+                    base.evaluate();
+                } catch (Throwable e) {
+                    session.restore();
+                    throw e;
+                } finally {
+                    mSession = null;
+                }
+                session.finish();
+            }
+        };
+    }
+}
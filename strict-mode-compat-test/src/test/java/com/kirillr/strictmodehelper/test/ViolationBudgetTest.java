@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.test;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.StrictMode;
+import android.os.strictmode.CustomViolation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The test thread of Robolectric is the main thread, violations there are delivered by its Looper.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class ViolationBudgetTest {
+
+    private static final Runnable TWO_SLOW_CALLS = new Runnable() {
+
+        @Override
+        public void run() {
+            StrictMode.noteSlowCall("first");
+            StrictMode.noteSlowCall("second");
+        }
+    };
+
+    private StrictMode.ThreadPolicy mPrevious;
+
+    @Before
+    public void setUp() {
+        mPrevious = StrictMode.getThreadPolicy();
+    }
+
+    @After
+    public void tearDown() {
+        StrictMode.setThreadPolicy(mPrevious);
+    }
+
+    @Test
+    public void countsViolationsDeliveredByMainLooper() {
+        ViolationBudget.Session session = budget(2).start();
+        TWO_SLOW_CALLS.run();
+        session.finish();
+        assertEquals(2, session.getCount(CustomViolation.class));
+    }
+
+    @Test
+    public void failsOverBudgetOnMainLooper() {
+        AssertionError error = runExpectingFailure(budget(1));
+        assertTrue(error.getMessage(), error.getMessage().contains("CustomViolation: 2 > 1"));
+    }
+
+    @Test
+    public void restoresPreviousPolicy() {
+        StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder().detectDiskReads().build();
+        StrictMode.setThreadPolicy(policy);
+        budget(2).run(TWO_SLOW_CALLS);
+        assertEquals(policy.toString(), StrictMode.getThreadPolicy().toString());
+    }
+
+    @Test
+    public void countsViolationsOnThreadWithoutLooper() throws InterruptedException {
+        final AtomicReference<AssertionError> error = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                error.set(runExpectingFailure(budget(0)));
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(error.get().getMessage(), error.get().getMessage().contains("CustomViolation: 2 > 0"));
+    }
+
+    @Test
+    public void rejectsOtherLooperThreads() throws InterruptedException {
+        HandlerThread thread = new HandlerThread("budget");
+        thread.start();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(thread.getLooper()).post(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    budget(2).start();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        thread.quit();
+        assertNotNull(error.get());
+        assertTrue(error.get() instanceof IllegalStateException);
+    }
+
+    private static ViolationBudget budget(int slowCalls) {
+        return new ViolationBudget.Builder()
+                .atMost(CustomViolation.class, slowCalls)
+                .build();
+    }
+
+    private static AssertionError runExpectingFailure(ViolationBudget budget) {
+        try {
+            budget.run(TWO_SLOW_CALLS);
+        } catch (AssertionError e) {
+            return e;
+        }
+        fail("Budget wasn't exceeded");
+        return null;
+    }
+}
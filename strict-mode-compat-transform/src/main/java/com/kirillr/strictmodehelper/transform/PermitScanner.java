@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.transform;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects permits of annotated methods, keyed by method name and descriptor.
+ */
+final class PermitScanner extends ClassVisitor {
+
+    static final String ANNOTATION_PACKAGE = "Lcom/kirillr/strictmodehelper/annotation/";
+
+    // Values of com.kirillr.strictmodehelper.PermitScopes constants
+    static final int DISK_READS = 1;
+    static final int DISK_WRITES = 1 << 1;
+    static final int NETWORK = 1 << 2;
+
+    private final Map<String, Integer> mPermits = new HashMap<>();
+
+    PermitScanner() {
+        super(Opcodes.ASM9);
+    }
+
+    Map<String, Integer> getPermits() {
+        return mPermits;
+    }
+
+    static int permitOf(String annotationDescriptor) {
+        if (!annotationDescriptor.startsWith(ANNOTATION_PACKAGE)) {
+            return 0;
+        }
+
+        switch (annotationDescriptor.substring(ANNOTATION_PACKAGE.length())) {
+            case "PermitDiskReads;":
+                return DISK_READS;
+            case "PermitDiskWrites;":
+                return DISK_READS | DISK_WRITES;
+            case "PermitNetwork;":
+                return NETWORK;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public MethodVisitor visitMethod(
+            int access,
+            final String name,
+            final String descriptor,
+            String signature,
+            String[] exceptions
+    ) {
+        if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0 || name.equals("<init>") || name.equals("<clinit>")) {
+            return null;
+        }
+
+        return new MethodVisitor(Opcodes.ASM9) {
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String annotationDescriptor, boolean visible) {
+                int permit = permitOf(annotationDescriptor);
+                if (permit != 0) {
+                    String key = name + descriptor;
+                    Integer current = mPermits.get(key);
+                    mPermits.put(key, current == null ? permit : current | permit);
+                }
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.transform;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+import java.util.Map;
+
+/**
+ * Wraps bodies of annotated methods into {@code PermitScopes.enter()}/{@code PermitScopes.exit()}
+ * with a try/finally equivalent. Inserted code uses only static calls and a local variable.
+ */
+final class PermitScopeClassVisitor extends ClassVisitor {
+
+    private static final String PERMIT_SCOPES = "com/kirillr/strictmodehelper/PermitScopes";
+    private static final Type THREAD_POLICY = Type.getObjectType("android/os/StrictMode$ThreadPolicy");
+    private static final String ENTER_DESCRIPTOR = "(I)" + THREAD_POLICY.getDescriptor();
+    private static final String EXIT_DESCRIPTOR = "(" + THREAD_POLICY.getDescriptor() + ")V";
+
+    private final Map<String, Integer> mPermits;
+
+    PermitScopeClassVisitor(ClassVisitor classVisitor, Map<String, Integer> permits) {
+        super(Opcodes.ASM9, classVisitor);
+        mPermits = permits;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(
+            int access,
+            String name,
+            String descriptor,
+            String signature,
+            String[] exceptions
+    ) {
+        MethodVisitor visitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+        Integer permits = mPermits.get(name + descriptor);
+        if (permits == null) {
+            return visitor;
+        }
+        return new ScopeAdapter(visitor, access, name, descriptor, permits);
+    }
+
+    private static final class ScopeAdapter extends AdviceAdapter {
+
+        private final int mPermits;
+        private final Label mTryStart = new Label();
+        private int mOldPolicy;
+
+        ScopeAdapter(MethodVisitor visitor, int access, String name, String descriptor, int permits) {
+            super(Opcodes.ASM9, visitor, access, name, descriptor);
+            mPermits = permits;
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            push(mPermits);
+            visitMethodInsn(Opcodes.INVOKESTATIC, PERMIT_SCOPES, "enter", ENTER_DESCRIPTOR, false);
+            mOldPolicy = newLocal(THREAD_POLICY);
+            storeLocal(mOldPolicy);
+            visitLabel(mTryStart);
+        }
+
+        @Override
+        protected void onMethodExit(int opcode) {
+            if (opcode != ATHROW) {
+                exitScope();
+            }
+        }
+
+        /**
+         * Handler is registered after the original ones, so it covers only exceptions
+         * which aren't caught inside of the method.
+         */
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            Label handler = new Label();
+            visitTryCatchBlock(mTryStart, handler, handler, null);
+            visitLabel(handler);
+            exitScope();
+            throwException();
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        private void exitScope() {
+            loadLocal(mOldPolicy);
+            visitMethodInsn(Opcodes.INVOKESTATIC, PERMIT_SCOPES, "exit", EXIT_DESCRIPTOR, false);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.transform;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Build step that wraps methods annotated with {@code @PermitDiskReads}, {@code @PermitDiskWrites}
+ * and {@code @PermitNetwork} into permit scopes of {@code com.kirillr.strictmodehelper.PermitScopes}.
+ * <p>
+ * Runs on a plain JVM over compiled classes:
+ * <pre>
+ * java -jar strict-mode-compat-transform.jar &lt;input dir&gt; &lt;output dir&gt; [classpath entry...]
+ * </pre>
+ * Classpath entries, for example {@code android.jar} and dependencies, are used to compute stack map frames.
+ * Their class files are only read, never loaded. A class missing from the classpath fails the transform
+ * instead of producing frames which don't verify. Classes without annotated methods are copied as is.
+ */
+public final class PermitScopeTransform {
+
+    private final ClassLoader mClassLoader;
+
+    public PermitScopeTransform(List<File> classpath) {
+        List<URL> urls = new ArrayList<>();
+        for (File file : classpath) {
+            try {
+                urls.add(file.toURI().toURL());
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        mClassLoader = new URLClassLoader(urls.toArray(new URL[0]), null);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: PermitScopeTransform <input dir> <output dir> [classpath entry...]");
+            System.exit(2);
+        }
+
+        Path input = new File(args[0]).toPath();
+        Path output = new File(args[1]).toPath();
+        List<File> classpath = new ArrayList<>();
+        classpath.add(input.toFile());
+        for (int i = 2; i < args.length; i++) {
+            classpath.add(new File(args[i]));
+        }
+
+        int transformed = new PermitScopeTransform(classpath).transformDirectory(input, output);
+        System.out.println("PermitScopeTransform: " + transformed + " classes transformed");
+    }
+
+    /**
+     * Transform all classes from {@code input} directory into {@code output} directory.
+     * Other files are copied.
+     *
+     * @return count of transformed classes
+     */
+    public int transformDirectory(final Path input, final Path output) throws IOException {
+        final int[] transformed = {0};
+        Files.walkFileTree(input, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path target = output.resolve(input.relativize(file).toString());
+                Files.createDirectories(target.getParent());
+                byte[] bytes = Files.readAllBytes(file);
+                if (file.toString().endsWith(".class")) {
+                    byte[] result;
+                    try {
+                        result = transform(bytes);
+                    } catch (IllegalStateException e) {
+                        throw new IOException("Failed to transform " + file, e);
+                    }
+                    if (result != bytes) {
+                        transformed[0]++;
+                    }
+                    bytes = result;
+                }
+                Files.write(target, bytes);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return transformed[0];
+    }
+
+    /**
+     * Transform a single class.
+     *
+     * @return transformed bytes or {@code classBytes} itself if the class has no annotated methods
+     * @throws IllegalStateException if a class needed to compute stack map frames isn't on the classpath
+     */
+    public byte[] transform(byte[] classBytes) {
+        ClassReader reader = new ClassReader(classBytes);
+        PermitScanner scanner = new PermitScanner();
+        reader.accept(scanner, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        Map<String, Integer> permits = scanner.getPermits();
+        if (permits.isEmpty()) {
+            return classBytes;
+        }
+
+        ClassWriter writer = new ClasspathClassWriter(reader, mClassLoader);
+        reader.accept(new PermitScopeClassVisitor(writer, permits), ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Resolves common super classes from class files of the build classpath. Classes aren't loaded,
+     * so the tool doesn't need to link {@code android.jar} or run static initializers.
+     */
+    private static final class ClasspathClassWriter extends ClassWriter {
+
+        private static final String OBJECT = "java/lang/Object";
+
+        private final ClassLoader mClassLoader;
+
+        // Internal name -> header of its class file
+        private final Map<String, ClassHeader> mHeaders = new HashMap<>();
+
+        ClasspathClassWriter(ClassReader reader, ClassLoader classLoader) {
+            super(reader, ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+            mClassLoader = classLoader;
+            // The class itself may not be on the classpath yet
+            mHeaders.put(reader.getClassName(), new ClassHeader(reader));
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            if (type1.equals(type2)) {
+                return type1;
+            }
+            // Verifier treats interfaces as Object
+            if (header(type1).isInterface() || header(type2).isInterface()) {
+                return OBJECT;
+            }
+
+            List<String> superClasses = new ArrayList<>();
+            for (String type = type1; type != null; type = header(type).superName) {
+                superClasses.add(type);
+            }
+            for (String type = type2; type != null; type = header(type).superName) {
+                if (superClasses.contains(type)) {
+                    return type;
+                }
+            }
+            return OBJECT;
+        }
+
+        private ClassHeader header(String type) {
+            ClassHeader header = mHeaders.get(type);
+            if (header == null) {
+                try (InputStream stream = mClassLoader.getResourceAsStream(type + ".class")) {
+                    if (stream == null) {
+                        throw new IllegalStateException("Class " + type.replace('/', '.')
+                                + " isn't on the classpath, it's needed to compute stack map frames");
+                    }
+                    header = new ClassHeader(new ClassReader(stream));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to read class " + type.replace('/', '.'), e);
+                }
+                mHeaders.put(type, header);
+            }
+            return header;
+        }
+    }
+
+    private static final class ClassHeader {
+
+        final int access;
+        final String superName;
+
+        ClassHeader(ClassReader reader) {
+            access = reader.getAccess();
+            superName = reader.getSuperName();
+        }
+
+        boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.StrictMode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces the runtime class of the library in tests of the transform, records calls instead of
+ * changing thread policies.
+ */
+public final class PermitScopes {
+
+    public static final List<String> sCalls = new ArrayList<>();
+
+    private PermitScopes() {
+    }
+
+    public static StrictMode.ThreadPolicy enter(int permits) {
+        sCalls.add("enter " + permits);
+        return null;
+    }
+
+    public static void exit(StrictMode.ThreadPolicy old) {
+        sCalls.add("exit");
+    }
+}
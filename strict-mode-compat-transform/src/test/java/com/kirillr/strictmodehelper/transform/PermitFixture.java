@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.transform;
+
+import com.kirillr.strictmodehelper.annotation.PermitDiskReads;
+import com.kirillr.strictmodehelper.annotation.PermitNetwork;
+
+import java.io.IOException;
+
+/**
+ * Class transformed by {@link PermitScopeTransformTest}.
+ */
+public final class PermitFixture {
+
+    @PermitDiskReads
+    public Base read(boolean left) {
+        // Branches merge Left and Right, their common super class is read from the classpath
+        Base base = left ? new Left() : new Right();
+        return base;
+    }
+
+    @PermitNetwork
+    public void fail() throws IOException {
+        throw new IOException("failed");
+    }
+
+    public void plain() {
+    }
+
+    public abstract static class Base {
+    }
+
+    public static final class Left extends Base {
+    }
+
+    public static final class Right extends Base {
+    }
+}
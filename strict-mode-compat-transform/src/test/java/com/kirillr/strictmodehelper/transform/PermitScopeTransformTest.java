@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper.transform;
+
+import com.kirillr.strictmodehelper.PermitScopes;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Transforms {@link PermitFixture} offline and runs it from a separate class loader.
+ */
+public class PermitScopeTransformTest {
+
+    private static final String PACKAGE_PATH = "com/kirillr/strictmodehelper/transform/";
+
+    private static final String[] FIXTURE_CLASSES = {
+            "PermitFixture",
+            "PermitFixture$Base",
+            "PermitFixture$Left",
+            "PermitFixture$Right",
+    };
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Path mInput;
+    private Path mOutput;
+
+    @Before
+    public void setUp() throws IOException {
+        PermitScopes.sCalls.clear();
+        mInput = mFolder.newFolder("input").toPath();
+        mOutput = mFolder.newFolder("output").toPath();
+        Path packageDir = Files.createDirectories(mInput.resolve(PACKAGE_PATH));
+        for (String name : FIXTURE_CLASSES) {
+            try (InputStream stream = PermitScopeTransformTest.class.getResourceAsStream(name + ".class")) {
+                Files.copy(stream, packageDir.resolve(name + ".class"));
+            }
+        }
+    }
+
+    @Test
+    public void wrapsAnnotatedMethods() throws Exception {
+        PermitScopeTransform transform = new PermitScopeTransform(Collections.singletonList(mInput.toFile()));
+        assertEquals(1, transform.transformDirectory(mInput, mOutput));
+
+        Class<?> fixtureClass = new OutputClassLoader(mOutput).loadClass(PermitFixture.class.getName());
+        Object fixture = fixtureClass.getConstructor().newInstance();
+
+        Object left = fixtureClass.getMethod("read", boolean.class).invoke(fixture, true);
+        assertEquals(PermitFixture.class.getName() + "$Left", left.getClass().getName());
+        assertEquals(Arrays.asList("enter " + PermitScanner.DISK_READS, "exit"), PermitScopes.sCalls);
+
+        PermitScopes.sCalls.clear();
+        try {
+            fixtureClass.getMethod("fail").invoke(fixture);
+            fail();
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(Arrays.asList("enter " + PermitScanner.NETWORK, "exit"), PermitScopes.sCalls);
+
+        PermitScopes.sCalls.clear();
+        fixtureClass.getMethod("plain").invoke(fixture);
+        assertEquals(Collections.emptyList(), PermitScopes.sCalls);
+    }
+
+    @Test
+    public void failsWithoutClassesNeededForFrames() throws IOException {
+        byte[] bytes = Files.readAllBytes(mInput.resolve(PACKAGE_PATH + "PermitFixture.class"));
+        PermitScopeTransform transform = new PermitScopeTransform(Collections.<File>emptyList());
+        try {
+            transform.transform(bytes);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("PermitFixture$"));
+        }
+    }
+
+    /**
+     * Loads fixture classes from the output, other classes like the recording
+     * {@link PermitScopes} are shared with the test.
+     */
+    private static final class OutputClassLoader extends ClassLoader {
+
+        private final Path mRoot;
+
+        OutputClassLoader(Path root) {
+            super(PermitScopeTransformTest.class.getClassLoader());
+            mRoot = root;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(PermitFixture.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null) {
+                    try {
+                        byte[] bytes = Files.readAllBytes(mRoot.resolve(name.replace('.', '/') + ".class"));
+                        loaded = defineClass(name, bytes, 0, bytes.length);
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+                return loaded;
+            }
+        }
+    }
+}
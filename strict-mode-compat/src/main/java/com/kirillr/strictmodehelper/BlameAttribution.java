@@ -0,0 +1,419 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Finds the module or the library responsible for a violation.
+ * <p>
+ * Platform frames at the top of the stack are skipped, the first remaining frame is matched against
+ * the table of package prefixes. The table is compiled into a sorted array where every prefix
+ * links to the longest other prefix it starts with, so a lookup is one binary search followed
+ * by a short walk. Results are cached per {@link StackFingerprint} when the blamed frame is
+ * within the hashed top frames, repeated violations cost one hash lookup. The least recently
+ * used results are evicted.
+ *
+ * <pre>
+ * BlameAttribution attribution = new BlameAttribution.Builder()
+ *         .module("com.example.checkout.", "checkout")
+ *         .library("okhttp3.", "OkHttp")
+ *         .build();
+ * </pre>
+ */
+public final class BlameAttribution {
+
+    /**
+     * Owner of violations which have no frames outside of platform packages.
+     */
+    public static final String OWNER_PLATFORM = "platform";
+
+    /**
+     * Owner of violations whose first non-platform frame doesn't match any prefix.
+     */
+    public static final String OWNER_UNKNOWN = "unknown";
+
+    private static final int MAX_CACHE_SIZE = 4096;
+
+    // Frames hashed for the cache key, the blamed frame is usually within them
+    private static final int KEY_FRAMES = 24;
+
+    private static final String[] DEFAULT_PLATFORM_PREFIXES = {
+            "android.",
+            "androidx.",
+            "com.android.",
+            "com.google.android.",
+            "com.kirillr.strictmodehelper.",
+            "dalvik.",
+            "java.",
+            "javax.",
+            "jdk.",
+            "kotlin.",
+            "kotlinx.coroutines.",
+            "libcore.",
+            "org.apache.harmony.",
+            "sun.",
+    };
+
+    private static final Blame PLATFORM = new Blame(OWNER_PLATFORM, false, null);
+
+    // Sorted prefixes and data of their owners
+    @NonNull
+    private final String[] mPrefixes;
+    @NonNull
+    private final int[] mParents;
+    @NonNull
+    private final String[] mOwners;
+    @NonNull
+    private final boolean[] mLibraries;
+    @NonNull
+    private final boolean[] mPlatform;
+
+    // Keys are fingerprints of the top KEY_FRAMES frames or of the whole stack. Only blames decided
+    // within the top KEY_FRAMES frames are cached, so both keys decide them. Guarded by itself.
+    private final Map<Long, Blame> mCache = new LinkedHashMap<Long, Blame>(16, 0.75F, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Blame> eldest) {
+            return size() > MAX_CACHE_SIZE;
+        }
+    };
+    private final ConcurrentHashMap<String, AtomicLong> mCounts = new ConcurrentHashMap<>();
+
+    private BlameAttribution(@NonNull Builder builder) {
+        List<Entry> entries = new ArrayList<>(builder.mEntries.values());
+        Collections.sort(entries);
+        int size = entries.size();
+        mPrefixes = new String[size];
+        mParents = new int[size];
+        mOwners = new String[size];
+        mLibraries = new boolean[size];
+        mPlatform = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries.get(i);
+            mPrefixes[i] = entry.prefix;
+            mOwners[i] = entry.owner;
+            mLibraries[i] = entry.library;
+            mPlatform[i] = entry.platform;
+
+            int parent = i - 1;
+            while (parent >= 0 && !entry.prefix.startsWith(mPrefixes[parent])) {
+                parent = mParents[parent];
+            }
+            mParents[i] = parent;
+        }
+    }
+
+    /**
+     * Find the owner of the violation and count it.
+     */
+    @NonNull
+    public Blame attribute(@NonNull Throwable violation) {
+        return attribute(violation.getClass().getName(), violation.getStackTrace());
+    }
+
+    /**
+     * Find the owner of the violation with its {@link StackFingerprint} known and count it.
+     * The stack is read only for fingerprints which aren't cached yet.
+     */
+    @NonNull
+    public Blame attribute(@NonNull Throwable violation, long fingerprint) {
+        long start = OverheadProfiler.start();
+        Long key = fingerprint;
+        Blame blame = cached(key);
+        if (blame == null) {
+            blame = resolveAndCache(key, violation.getStackTrace());
+        }
+        count(blame.getOwner());
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+        return blame;
+    }
+
+    /**
+     * Find the owner of the violation of the class with the stack and count it. Only the top frames
+     * are hashed, the whole stack is walked only when the blamed frame is deeper.
+     */
+    @NonNull
+    public Blame attribute(@NonNull String violationClass, @NonNull StackTraceElement[] frames) {
+        long start = OverheadProfiler.start();
+        Blame blame = resolve(violationClass, frames);
+        count(blame.getOwner());
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+        return blame;
+    }
+
+    /**
+     * Find the owner of the violation of the class with the stack without counting it,
+     * for queries over violations which were counted already.
+     */
+    @NonNull
+    public Blame resolve(@NonNull String violationClass, @NonNull StackTraceElement[] frames) {
+        Long key = StackFingerprint.of(violationClass, frames, KEY_FRAMES);
+        Blame blame = cached(key);
+        return blame != null ? blame : resolveAndCache(key, frames);
+    }
+
+    /**
+     * Find the owner of the compact violation and count it. Frames are read only for fingerprints
+     * which aren't cached yet.
+     */
+    @NonNull
+    public Blame attribute(@NonNull CompactViolation violation) {
+        long start = OverheadProfiler.start();
+        Long fingerprint = violation.getFingerprint();
+        Blame blame = cached(fingerprint);
+        if (blame == null) {
+            blame = resolveAndCache(fingerprint, violation.getFrames());
+        }
+        count(blame.getOwner());
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+        return blame;
+    }
+
+    /**
+     * Owner of the class or {@code null} if the class doesn't match any prefix.
+     */
+    @Nullable
+    public String ownerOf(@NonNull String className) {
+        int index = find(className);
+        return index < 0 || mPlatform[index] ? null : mOwners[index];
+    }
+
+    /**
+     * Count of attributed violations per owner.
+     */
+    @NonNull
+    public Map<String, Long> getViolationCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : mCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public void resetViolationCounts() {
+        mCounts.clear();
+    }
+
+    /**
+     * Live counters per owner, read without copying.
+     */
+    @NonNull
+    Map<String, AtomicLong> liveViolationCounts() {
+        return mCounts;
+    }
+
+    @Nullable
+    private Blame cached(@NonNull Long key) {
+        synchronized (mCache) {
+            return mCache.get(key);
+        }
+    }
+
+    @NonNull
+    private Blame resolveAndCache(@NonNull Long key, @NonNull StackTraceElement[] frames) {
+        int index = blamedIndex(frames);
+        Blame blame = resolve(frames, index);
+        // Frames below the top ones could change the blame of another stack with the same key
+        // unless it was found within them
+        if (index < 0 ? frames.length <= KEY_FRAMES : index < KEY_FRAMES) {
+            synchronized (mCache) {
+                mCache.put(key, blame);
+            }
+        }
+        return blame;
+    }
+
+    /**
+     * Index of the first frame outside of platform packages or -1.
+     */
+    private int blamedIndex(@NonNull StackTraceElement[] frames) {
+        for (int i = 0; i < frames.length; i++) {
+            int index = find(frames[i].getClassName());
+            if (index < 0 || !mPlatform[index]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @NonNull
+    private Blame resolve(@NonNull StackTraceElement[] frames, int blamedIndex) {
+        if (blamedIndex < 0) {
+            return PLATFORM;
+        }
+        StackTraceElement frame = frames[blamedIndex];
+        int index = find(frame.getClassName());
+        if (index < 0) {
+            return new Blame(OWNER_UNKNOWN, false, frame);
+        }
+        return new Blame(mOwners[index], mLibraries[index], frame);
+    }
+
+    /**
+     * Index of the longest prefix of the class name or -1.
+     */
+    private int find(@NonNull String className) {
+        int index = Arrays.binarySearch(mPrefixes, className);
+        if (index < 0) {
+            // Greatest prefix that is less than the class name
+            index = -index - 2;
+        }
+        while (index >= 0 && !className.startsWith(mPrefixes[index])) {
+            index = mParents[index];
+        }
+        return index;
+    }
+
+    private void count(@NonNull String owner) {
+        AtomicLong counter = mCounts.get(owner);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = mCounts.putIfAbsent(owner, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Result of attribution.
+     */
+    public static final class Blame {
+
+        @NonNull
+        private final String mOwner;
+
+        private final boolean mLibrary;
+
+        @Nullable
+        private final StackTraceElement mFrame;
+
+        Blame(@NonNull String owner, boolean library, @Nullable StackTraceElement frame) {
+            mOwner = owner;
+            mLibrary = library;
+            mFrame = frame;
+        }
+
+        /**
+         * Name of the module or the library, {@link #OWNER_PLATFORM} or {@link #OWNER_UNKNOWN}.
+         */
+        @NonNull
+        public String getOwner() {
+            return mOwner;
+        }
+
+        /**
+         * Returns {@code true} if the owner is a third-party library.
+         */
+        public boolean isLibrary() {
+            return mLibrary;
+        }
+
+        /**
+         * First frame that doesn't belong to the platform.
+         */
+        @Nullable
+        public StackTraceElement getFrame() {
+            return mFrame;
+        }
+
+        @Override
+        public String toString() {
+            return mOwner + (mFrame != null ? " at " + mFrame : "");
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        @NonNull
+        final String prefix;
+
+        @NonNull
+        final String owner;
+
+        final boolean library;
+
+        final boolean platform;
+
+        Entry(@NonNull String prefix, @NonNull String owner, boolean library, boolean platform) {
+            this.prefix = prefix;
+            this.owner = owner;
+            this.library = library;
+            this.platform = platform;
+        }
+
+        @Override
+        public int compareTo(@NonNull Entry other) {
+            return prefix.compareTo(other.prefix);
+        }
+    }
+
+    public static final class Builder {
+
+        private final Map<String, Entry> mEntries = new HashMap<>();
+
+        public Builder() {
+            for (String prefix : DEFAULT_PLATFORM_PREFIXES) {
+                platformPackage(prefix);
+            }
+        }
+
+        /**
+         * Classes whose names start with {@code packagePrefix} belong to the app module.
+         * The longest matching prefix wins.
+         */
+        public Builder module(@NonNull String packagePrefix, @NonNull String name) {
+            mEntries.put(packagePrefix, new Entry(packagePrefix, name, false, false));
+            return this;
+        }
+
+        /**
+         * Classes whose names start with {@code packagePrefix} belong to the third-party library.
+         * The longest matching prefix wins.
+         */
+        public Builder library(@NonNull String packagePrefix, @NonNull String name) {
+            mEntries.put(packagePrefix, new Entry(packagePrefix, name, true, false));
+            return this;
+        }
+
+        /**
+         * Frames of classes whose names start with {@code packagePrefix} are skipped.
+         * Common platform packages are skipped by default.
+         */
+        public Builder platformPackage(@NonNull String packagePrefix) {
+            mEntries.put(packagePrefix, new Entry(packagePrefix, OWNER_PLATFORM, false, true));
+            return this;
+        }
+
+        public BlameAttribution build() {
+            return new BlameAttribution(this);
+        }
+    }
+}
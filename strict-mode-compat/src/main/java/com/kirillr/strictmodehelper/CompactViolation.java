@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Violation reduced to its class, thread and the top frames of its stack, without a reference
+ * to the violation {@link Throwable}.
+ * <p>
+ * Frames are interned into a table and stacks are nodes of a prefix tree, so records of violations
+ * with a shared call chain share their stack. Records made with {@link #of(ViolationInfo)} go to
+ * a shared table, which starts a new generation when it's full. Sinks of the library, like
+ * {@link ViolationStore}, {@link ViolationTable}, {@link SharedViolationCounters} and
+ * {@link BlameAttribution}, accept compact records, sinks which keep stacks intern them into their own
+ * tables and count them in their memory use.
+ */
+public final class CompactViolation {
+
+    public static final int DEFAULT_MAX_FRAMES = 64;
+
+    @NonNull
+    private final String mViolationClass;
+
+    private final long mFingerprint;
+
+    private final boolean mThreadViolation;
+
+    @NonNull
+    private final String mThreadName;
+
+    private final long mThreadId;
+
+    private final long mUptimeMillis;
+
+    @Nullable
+    private final String mSpanPath;
+
+    private final int mUiPhases;
+
+    @NonNull
+    private final StackTable mTable;
+
+    private final int mStack;
+
+    private CompactViolation(@NonNull ViolationInfo info, int maxFrames, @NonNull StackTable table) {
+        Throwable violation = info.getViolation();
+        StackTraceElement[] frames = violation.getStackTrace();
+        mViolationClass = violation.getClass().getName();
+        mFingerprint = StackFingerprint.of(mViolationClass, frames);
+        mThreadViolation = info.isThreadViolation();
+        mThreadName = info.getThreadName();
+        mThreadId = info.getThreadId();
+        mUptimeMillis = info.getUptimeMillis();
+        mSpanPath = info.getSpanPath();
+        mUiPhases = info.getUiPhases();
+        mTable = table;
+        mStack = table.intern(frames, maxFrames);
+    }
+
+    private CompactViolation(@NonNull CompactViolation violation, @NonNull StackTable table) {
+        mViolationClass = violation.mViolationClass;
+        mFingerprint = violation.mFingerprint;
+        mThreadViolation = violation.mThreadViolation;
+        mThreadName = violation.mThreadName;
+        mThreadId = violation.mThreadId;
+        mUptimeMillis = violation.mUptimeMillis;
+        mSpanPath = violation.mSpanPath;
+        mUiPhases = violation.mUiPhases;
+        mTable = table;
+        mStack = table.intern(violation.mTable, violation.mStack);
+    }
+
+    @NonNull
+    public static CompactViolation of(@NonNull ViolationInfo info) {
+        return new CompactViolation(info, DEFAULT_MAX_FRAMES, StackTable.shared());
+    }
+
+    /**
+     * @param maxFrames number of top frames to keep
+     */
+    @NonNull
+    public static CompactViolation of(@NonNull ViolationInfo info, @IntRange(from = 0) int maxFrames) {
+        return new CompactViolation(info, maxFrames, StackTable.shared());
+    }
+
+    @NonNull
+    static CompactViolation of(@NonNull ViolationInfo info, int maxFrames, @NonNull StackTable table) {
+        return new CompactViolation(info, maxFrames, table);
+    }
+
+    /**
+     * The same record with the stack in the table, itself if it's already there.
+     */
+    @NonNull
+    CompactViolation internedIn(@NonNull StackTable table) {
+        return table == mTable ? this : new CompactViolation(this, table);
+    }
+
+    @NonNull
+    StackTable getStackTable() {
+        return mTable;
+    }
+
+    @NonNull
+    public String getViolationClass() {
+        return mViolationClass;
+    }
+
+    /**
+     * {@link StackFingerprint} of the full stack of the violation.
+     */
+    public long getFingerprint() {
+        return mFingerprint;
+    }
+
+    public boolean isThreadViolation() {
+        return mThreadViolation;
+    }
+
+    @NonNull
+    public String getThreadName() {
+        return mThreadName;
+    }
+
+    public long getThreadId() {
+        return mThreadId;
+    }
+
+    public long getUptimeMillis() {
+        return mUptimeMillis;
+    }
+
+    @Nullable
+    public String getSpanPath() {
+        return mSpanPath;
+    }
+
+    /**
+     * @see ViolationInfo#getUiPhases()
+     */
+    public int getUiPhases() {
+        return mUiPhases;
+    }
+
+    /**
+     * Kept frames, the top frame first. A new array is built on every call.
+     */
+    @NonNull
+    public StackTraceElement[] getFrames() {
+        return mTable.frames(mStack);
+    }
+
+    /**
+     * Id of the stack in the prefix tree of its table. Records of the same sink with equal ids
+     * have equal kept frames.
+     */
+    public int getStackId() {
+        return mStack;
+    }
+
+    /**
+     * Number of distinct frames interned by records of the current generation of the shared table.
+     */
+    public static int getInternedFrameCount() {
+        return StackTable.shared().getFrameCount();
+    }
+
+    /**
+     * Number of nodes in the prefix tree of stacks of the current generation of the shared table.
+     */
+    public static int getStackNodeCount() {
+        return StackTable.shared().getNodeCount();
+    }
+
+    @Override
+    public String toString() {
+        return "CompactViolation{" +
+                "violationClass=" + mViolationClass +
+                ", fingerprint=" + StackFingerprint.toString(mFingerprint) +
+                ", thread=" + mThreadName +
+                ", spanPath=" + mSpanPath +
+                ", uiPhases=" + UiPhases.toString(mUiPhases) +
+                ", uptimeMillis=" + mUptimeMillis +
+                '}';
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps the most recent violations, {@code noteSlowCall} markers and policy changes in a
+ * preallocated ring and writes them to a file when the process dies with an uncaught exception
+ * or by VM {@code penaltyDeath()}.
+ * <p>
+ * Recording doesn't allocate and doesn't take locks: a writer claims a slot with an atomic counter,
+ * unpublishes it, fills the parallel arrays and publishes the slot again. All slots are volatile,
+ * so a reader which sees the same sequence before and after reading the data has read one record.
+ * Only references to already existing objects (violation class, message, slow call name, policy)
+ * are stored.
+ * <p>
+ * Violations are recorded on the violating thread by policies built with {@link StrictModeCompat}
+ * builders on Android 9 and newer, with or without listeners, so install the recorder before
+ * the policies are built. Such VM policies execute {@code penaltyDeath()} themselves after
+ * the records are dumped, the platform penalty kills the process without calling listeners.
+ */
+public final class FlightRecorder {
+
+    public static final int KIND_THREAD_VIOLATION = 1;
+    public static final int KIND_VM_VIOLATION = 2;
+    public static final int KIND_SLOW_CALL = 3;
+    public static final int KIND_THREAD_POLICY = 4;
+    public static final int KIND_VM_POLICY = 5;
+
+    private static final String TAG = "StrictModeCompat";
+
+    @Nullable
+    private static volatile FlightRecorder sInstance;
+
+    private final int mMask;
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private final AtomicLongArray mPublished;
+    private final AtomicLongArray mTimeMillis;
+    private final AtomicLongArray mThreadIds;
+    private final AtomicIntegerArray mKinds;
+    private final AtomicReferenceArray<Object> mThreadNames;
+    private final AtomicReferenceArray<Object> mSubjects;
+    private final AtomicReferenceArray<Object> mDetails;
+
+    @NonNull
+    private final File mDumpFile;
+
+    private FlightRecorder(int capacity, @NonNull File dumpFile) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        mMask = size - 1;
+        mPublished = new AtomicLongArray(size);
+        mTimeMillis = new AtomicLongArray(size);
+        mThreadIds = new AtomicLongArray(size);
+        mKinds = new AtomicIntegerArray(size);
+        mThreadNames = new AtomicReferenceArray<>(size);
+        mSubjects = new AtomicReferenceArray<>(size);
+        mDetails = new AtomicReferenceArray<>(size);
+        mDumpFile = dumpFile;
+    }
+
+    /**
+     * Start recording and dump the records to {@code dumpFile} on uncaught exception
+     * and before VM {@code penaltyDeath()}.
+     * The handler is chained to the current default uncaught exception handler.
+     *
+     * @param capacity count of the most recent records to keep, rounded up to a power of two
+     */
+    @NonNull
+    public static synchronized FlightRecorder install(@NonNull File dumpFile, @IntRange(from = 2) int capacity) {
+        FlightRecorder recorder = sInstance;
+        if (recorder != null) {
+            return recorder;
+        }
+
+        recorder = new FlightRecorder(capacity, dumpFile);
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        final FlightRecorder installed = recorder;
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+
+            @Override
+            public void uncaughtException(Thread thread, Throwable error) {
+                installed.dumpOnCrash(thread, error);
+                if (previous != null) {
+                    previous.uncaughtException(thread, error);
+                }
+            }
+        });
+        sInstance = recorder;
+        return recorder;
+    }
+
+    /**
+     * Installed recorder or {@code null}.
+     */
+    @Nullable
+    public static FlightRecorder getInstance() {
+        return sInstance;
+    }
+
+    static void recordThreadViolation(@NonNull Throwable violation) {
+        FlightRecorder recorder = sInstance;
+        if (recorder != null) {
+            recorder.record(KIND_THREAD_VIOLATION, violation.getClass(), violation.getMessage());
+        }
+    }
+
+    static void recordVmViolation(@NonNull Throwable violation) {
+        FlightRecorder recorder = sInstance;
+        if (recorder != null) {
+            recorder.record(KIND_VM_VIOLATION, violation.getClass(), violation.getMessage());
+        }
+    }
+
+    static void recordSlowCall(@NonNull String name) {
+        FlightRecorder recorder = sInstance;
+        if (recorder != null) {
+            recorder.record(KIND_SLOW_CALL, name, null);
+        }
+    }
+
+    static void recordThreadPolicy(@NonNull Object policy) {
+        FlightRecorder recorder = sInstance;
+        if (recorder != null) {
+            recorder.record(KIND_THREAD_POLICY, policy, null);
+        }
+    }
+
+    static void recordVmPolicy(@NonNull Object policy) {
+        FlightRecorder recorder = sInstance;
+        if (recorder != null) {
+            recorder.record(KIND_VM_POLICY, policy, null);
+        }
+    }
+
+    private void record(int kind, @NonNull Object subject, @Nullable Object details) {
+        long start = OverheadProfiler.start();
+        Thread thread = Thread.currentThread();
+        long sequence = mNextSequence.getAndIncrement();
+        int slot = (int) (sequence & mMask);
+        // Unpublish the slot while it's rewritten, so a concurrent dump skips it. Volatile writes
+        // aren't reordered, the data can't be written before the slot is unpublished.
+        mPublished.set(slot, 0);
+        mTimeMillis.set(slot, System.currentTimeMillis());
+        mThreadIds.set(slot, thread.getId());
+        mThreadNames.set(slot, thread.getName());
+        mKinds.set(slot, kind);
+        mSubjects.set(slot, subject);
+        mDetails.set(slot, details);
+        mPublished.set(slot, sequence + 1);
+        OverheadProfiler.end(OverheadProfiler.Stage.JOURNALING, start);
+    }
+
+    /**
+     * Write all available records, from the oldest to the newest.
+     */
+    public void dump(@NonNull Writer writer) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        long end = mNextSequence.get();
+        long begin = Math.max(0, end - (mMask + 1));
+        for (long sequence = begin; sequence < end; sequence++) {
+            int slot = (int) (sequence & mMask);
+            if (mPublished.get(slot) != sequence + 1) {
+                continue;
+            }
+
+            // Volatile reads, the data can't be read after the second check of the sequence
+            long timeMillis = mTimeMillis.get(slot);
+            long threadId = mThreadIds.get(slot);
+            Object threadName = mThreadNames.get(slot);
+            int kind = mKinds.get(slot);
+            Object subject = mSubjects.get(slot);
+            Object details = mDetails.get(slot);
+            if (mPublished.get(slot) != sequence + 1) {
+                // Overwritten while read
+                continue;
+            }
+
+            writer.write(format.format(new Date(timeMillis)));
+            writer.write(' ');
+            writer.write(kindName(kind));
+            writer.write(" [" + threadName + ':' + threadId + "] ");
+            writer.write(subject instanceof Class ? ((Class<?>) subject).getName() : String.valueOf(subject));
+            if (details != null) {
+                writer.write(": ");
+                writer.write(String.valueOf(details));
+            }
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Called on the violating thread before a death penalty kills the process.
+     */
+    void dumpBeforeDeath(@NonNull Throwable violation) {
+        dumpToFile("Death penalty for " + violation + " in thread " + Thread.currentThread().getName());
+    }
+
+    private void dumpOnCrash(@NonNull Thread thread, @NonNull Throwable error) {
+        dumpToFile("Uncaught " + error + " in thread " + thread.getName());
+    }
+
+    private void dumpToFile(@NonNull String reason) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mDumpFile), "UTF-8");
+            writer.write(reason + '\n');
+            dump(writer);
+        } catch (Throwable e) {
+            Log.w(TAG, "Failed to dump flight recorder", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private static String kindName(int kind) {
+        switch (kind) {
+            case KIND_THREAD_VIOLATION:
+                return "THREAD_VIOLATION";
+            case KIND_VM_VIOLATION:
+                return "VM_VIOLATION";
+            case KIND_SLOW_CALL:
+                return "SLOW_CALL";
+            case KIND_THREAD_POLICY:
+                return "THREAD_POLICY";
+            case KIND_VM_POLICY:
+                return "VM_POLICY";
+            default:
+                return "UNKNOWN";
+        }
+    }
+}
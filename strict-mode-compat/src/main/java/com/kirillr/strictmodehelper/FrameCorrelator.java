@@ -0,0 +1,622 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Tags thread violations and slow sections with the frame they landed in and ranks them by
+ * the jank they caused.
+ * <p>
+ * Frames come from a {@link FrameSource}, {@link #choreographer()} on device or a fake one in JVM
+ * tests. Timestamps of frames are nanoseconds on the clock of {@link android.os.SystemClock#uptimeMillis()},
+ * which is {@link System#nanoTime()} on Android. A frame which took longer than the frame budget is
+ * jank, every violation which landed in it shares the blame.
+ * <p>
+ * StrictMode delivers thread violations on Looper threads after the message where they happened, so
+ * the time of such a violation is a window from the last idle of the thread to the delivery, see
+ * {@link ViolationInfo#getEarliestUptimeNanos()}. A violation is tagged with the frame which overlaps
+ * its window the most, or with the frame which contains its time when it's exact.
+ * <p>
+ * Violations usually arrive before the end of their frame is known, they wait for it in a bounded
+ * queue. Violations outside of any known frame are counted without blame.
+ * <p>
+ * While started, the correlator also tags sections of the main thread opened with
+ * {@link StrictModeCompat#beginSection(String)} and calls of
+ * {@link StrictModeCompat#noteSlowCall(String)} on the main thread, as sections of zero duration.
+ * Only the correlator started last receives them.
+ */
+public final class FrameCorrelator implements StrictModeCompat.OnViolationInfoListener {
+
+    private static final int RECENT_FRAMES = 128;
+    private static final int MAX_PENDING = 256;
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    // Started last, receives sections and slow calls of the main thread
+    @Nullable
+    private static volatile FrameCorrelator sActive;
+
+    @NonNull
+    private final FrameSource mSource;
+
+    private final long mBudgetNanos;
+
+    @Nullable
+    private final OnTagListener mListener;
+
+    // Guarded by this
+    private final long[] mFrameStarts = new long[RECENT_FRAMES];
+    private final long[] mFrameEnds = new long[RECENT_FRAMES];
+    private int mFrameCount;
+    private long mTotalFrames;
+    private long mJankFrames;
+    private final ArrayDeque<Tag> mPending = new ArrayDeque<>();
+    private final Map<Long, Stats> mViolationStats = new HashMap<>();
+    private final Map<String, Stats> mSectionStats = new HashMap<>();
+
+    private final FrameListener mFrameListener = new FrameListener() {
+
+        @Override
+        public void onFrame(long startNanos, long endNanos) {
+            addFrame(startNanos, endNanos);
+        }
+    };
+
+    private FrameCorrelator(@NonNull Builder builder) {
+        mSource = builder.mSource;
+        mBudgetNanos = builder.mBudgetNanos;
+        mListener = builder.mListener;
+    }
+
+    /**
+     * Start receiving frames from the source.
+     */
+    public void start() {
+        sActive = this;
+        mSource.start(mFrameListener);
+    }
+
+    public void stop() {
+        if (sActive == this) {
+            sActive = null;
+        }
+        mSource.stop();
+    }
+
+    /**
+     * Correlator which receives sections and slow calls of the main thread, {@code null} if none is started.
+     */
+    @Nullable
+    static FrameCorrelator getActive() {
+        return sActive;
+    }
+
+    static void recordSlowCall(@NonNull String name) {
+        FrameCorrelator correlator = sActive;
+        if (correlator != null && Looper.myLooper() == Looper.getMainLooper()) {
+            long now = System.nanoTime();
+            correlator.recordSection(name, now, now);
+        }
+    }
+
+    /**
+     * Thread violations are tagged, VM violations are ignored.
+     */
+    @Override
+    public void onViolation(@NonNull ViolationInfo info) {
+        if (!info.isThreadViolation()) {
+            return;
+        }
+        Throwable violation = info.getViolation();
+        add(new Tag(violation.getClass().getName(), StackFingerprint.of(violation), false,
+                info.getEarliestUptimeNanos(), info.getLatestUptimeNanos()));
+    }
+
+    /**
+     * Tag a slow section measured by the app with the frame which overlaps it the most.
+     */
+    public void recordSection(@NonNull String name, long startNanos, long endNanos) {
+        add(new Tag(name, 0, true, startNanos, endNanos));
+    }
+
+    /**
+     * K violation fingerprints which caused the most jank frames, the worst first.
+     */
+    @NonNull
+    public List<Stats> topJankViolations(int k) {
+        synchronized (this) {
+            return top(new ArrayList<>(mViolationStats.values()), k);
+        }
+    }
+
+    /**
+     * K sections which caused the most jank frames, the worst first.
+     */
+    @NonNull
+    public List<Stats> topJankSections(int k) {
+        synchronized (this) {
+            return top(new ArrayList<>(mSectionStats.values()), k);
+        }
+    }
+
+    public synchronized long getFrameCount() {
+        return mTotalFrames;
+    }
+
+    public synchronized long getJankFrameCount() {
+        return mJankFrames;
+    }
+
+    public synchronized void clear() {
+        mPending.clear();
+        mViolationStats.clear();
+        mSectionStats.clear();
+        mTotalFrames = 0;
+        mJankFrames = 0;
+    }
+
+    private void add(@NonNull Tag tag) {
+        long start = OverheadProfiler.start();
+        List<Tag> resolved = null;
+        synchronized (this) {
+            // The last frame must end after the window, a later frame may overlap it more
+            if (mFrameCount > 0 && tag.mLatestNanos < mFrameEnds[(mFrameCount - 1) % RECENT_FRAMES]) {
+                resolveLocked(tag);
+                resolved = Collections.singletonList(tag);
+            } else {
+                if (mPending.size() == MAX_PENDING) {
+                    // Frames stopped coming, count the oldest violation without a frame
+                    Tag oldest = mPending.poll();
+                    countLocked(oldest);
+                    resolved = Collections.singletonList(oldest);
+                }
+                mPending.add(tag);
+            }
+        }
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+        notifyListener(resolved);
+    }
+
+    private void addFrame(long startNanos, long endNanos) {
+        List<Tag> resolved = null;
+        synchronized (this) {
+            int slot = mFrameCount % RECENT_FRAMES;
+            mFrameStarts[slot] = startNanos;
+            mFrameEnds[slot] = endNanos;
+            mFrameCount++;
+            mTotalFrames++;
+            if (endNanos - startNanos > mBudgetNanos) {
+                mJankFrames++;
+            }
+
+            for (Iterator<Tag> iterator = mPending.iterator(); iterator.hasNext(); ) {
+                Tag tag = iterator.next();
+                if (tag.mLatestNanos < endNanos) {
+                    iterator.remove();
+                    resolveLocked(tag);
+                    if (resolved == null) {
+                        resolved = new ArrayList<>();
+                    }
+                    resolved.add(tag);
+                }
+            }
+        }
+        notifyListener(resolved);
+    }
+
+    private void resolveLocked(@NonNull Tag tag) {
+        // Recent frames are sorted by time, search from the latest one
+        int oldest = Math.max(0, mFrameCount - RECENT_FRAMES);
+        int best = -1;
+        long bestOverlap = 0;
+        for (int i = mFrameCount - 1; i >= oldest; i--) {
+            int slot = i % RECENT_FRAMES;
+            long start = mFrameStarts[slot];
+            long end = mFrameEnds[slot];
+            if (start > tag.mLatestNanos) {
+                continue;
+            }
+            if (tag.mEarliestNanos >= tag.mLatestNanos) {
+                // Exact time, the frame which contains it
+                if (tag.mLatestNanos < end) {
+                    best = slot;
+                }
+                break;
+            }
+            if (end <= tag.mEarliestNanos) {
+                break;
+            }
+            long overlap = Math.min(end, tag.mLatestNanos) - Math.max(start, tag.mEarliestNanos);
+            if (overlap > bestOverlap) {
+                best = slot;
+                bestOverlap = overlap;
+            }
+        }
+        if (best >= 0) {
+            tag.mFrameStartNanos = mFrameStarts[best];
+            tag.mFrameDurationNanos = mFrameEnds[best] - mFrameStarts[best];
+        }
+        countLocked(tag);
+    }
+
+    private void countLocked(@NonNull Tag tag) {
+        Stats stats;
+        if (tag.mSection) {
+            stats = mSectionStats.get(tag.mName);
+            if (stats == null) {
+                stats = new Stats(tag.mName, 0);
+                mSectionStats.put(tag.mName, stats);
+            }
+        } else {
+            stats = mViolationStats.get(tag.mFingerprint);
+            if (stats == null) {
+                stats = new Stats(tag.mName, tag.mFingerprint);
+                mViolationStats.put(tag.mFingerprint, stats);
+            }
+        }
+        stats.mCount++;
+        if (tag.isInFrame()) {
+            stats.mFrameCount++;
+            if (tag.mFrameDurationNanos > mBudgetNanos) {
+                tag.mJank = true;
+                stats.mJankCount++;
+                stats.mOverBudgetNanos += tag.mFrameDurationNanos - mBudgetNanos;
+            }
+        }
+    }
+
+    private void notifyListener(@Nullable List<Tag> tags) {
+        if (tags == null || mListener == null) {
+            return;
+        }
+        for (Tag tag : tags) {
+            mListener.onTagged(tag);
+        }
+    }
+
+    @NonNull
+    private static List<Stats> top(@NonNull List<Stats> stats, int k) {
+        Collections.sort(stats, new Comparator<Stats>() {
+
+            @Override
+            public int compare(Stats first, Stats second) {
+                if (first.mJankCount != second.mJankCount) {
+                    return second.mJankCount < first.mJankCount ? -1 : 1;
+                }
+                return Long.valueOf(second.mOverBudgetNanos).compareTo(first.mOverBudgetNanos);
+            }
+        });
+        return stats.size() > k ? new ArrayList<>(stats.subList(0, Math.max(0, k))) : stats;
+    }
+
+    /**
+     * Frames from {@link Choreographer} of the main thread. Every frame spans from its vsync to
+     * the vsync of the next frame, so a frame which missed vsyncs is longer than the budget.
+     * Frame callbacks keep Choreographer waking up on every vsync while the source is started.
+     * Before Android 4.1 no frames are reported.
+     */
+    @NonNull
+    public static FrameSource choreographer() {
+        return new ChoreographerSource();
+    }
+
+    /**
+     * Pluggable source of frame timestamps.
+     */
+    public interface FrameSource {
+
+        void start(@NonNull FrameListener listener);
+
+        void stop();
+    }
+
+    public interface FrameListener {
+
+        /**
+         * Report the frame. Frames must be reported in time order.
+         */
+        void onFrame(long startNanos, long endNanos);
+    }
+
+    public interface OnTagListener {
+
+        /**
+         * Called when the frame of the violation or the section is known, on the thread which
+         * reported the frame or the violation.
+         */
+        void onTagged(@NonNull Tag tag);
+    }
+
+    /**
+     * Violation or section with the frame it landed in.
+     */
+    public static final class Tag {
+
+        @NonNull
+        private final String mName;
+
+        private final long mFingerprint;
+
+        private final boolean mSection;
+
+        private final long mEarliestNanos;
+
+        private final long mLatestNanos;
+
+        private long mFrameStartNanos = -1;
+
+        private long mFrameDurationNanos = -1;
+
+        private boolean mJank;
+
+        Tag(@NonNull String name, long fingerprint, boolean section, long earliestNanos, long latestNanos) {
+            mName = name;
+            mFingerprint = fingerprint;
+            mSection = section;
+            mEarliestNanos = earliestNanos;
+            mLatestNanos = latestNanos;
+        }
+
+        /**
+         * Violation class or name of the section.
+         */
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * {@link StackFingerprint} of the violation, 0 for sections.
+         */
+        public long getFingerprint() {
+            return mFingerprint;
+        }
+
+        public boolean isSection() {
+            return mSection;
+        }
+
+        /**
+         * Start of the section or the earliest possible time of the violation.
+         */
+        public long getEarliestNanos() {
+            return mEarliestNanos;
+        }
+
+        /**
+         * End of the section or the latest possible time of the violation, equal to
+         * {@link #getEarliestNanos()} when the time of the violation is exact.
+         */
+        public long getTimeNanos() {
+            return mLatestNanos;
+        }
+
+        /**
+         * Duration of the section, 0 for violations.
+         */
+        public long getSectionNanos() {
+            return mSection ? mLatestNanos - mEarliestNanos : 0;
+        }
+
+        public boolean isInFrame() {
+            return mFrameStartNanos >= 0;
+        }
+
+        /**
+         * Start of the frame or -1 when it landed outside of known frames.
+         */
+        public long getFrameStartNanos() {
+            return mFrameStartNanos;
+        }
+
+        /**
+         * Duration of the frame or -1 when it landed outside of known frames.
+         */
+        public long getFrameDurationNanos() {
+            return mFrameDurationNanos;
+        }
+
+        /**
+         * Whether the frame took longer than the budget.
+         */
+        public boolean isJank() {
+            return mJank;
+        }
+
+        @Override
+        public String toString() {
+            return mName + (isInFrame()
+                    ? " in frame of " + mFrameDurationNanos / NANOS_PER_MILLI + "ms" + (mJank ? " (jank)" : "")
+                    : " outside of frames");
+        }
+    }
+
+    /**
+     * Jank caused by a violation fingerprint or a section.
+     */
+    public static final class Stats {
+
+        @NonNull
+        private final String mName;
+
+        private final long mFingerprint;
+
+        private int mCount;
+
+        private int mFrameCount;
+
+        private int mJankCount;
+
+        private long mOverBudgetNanos;
+
+        Stats(@NonNull String name, long fingerprint) {
+            mName = name;
+            mFingerprint = fingerprint;
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        public long getFingerprint() {
+            return mFingerprint;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Count of violations which landed in a known frame.
+         */
+        public int getFrameCount() {
+            return mFrameCount;
+        }
+
+        /**
+         * Count of violations which landed in a jank frame.
+         */
+        public int getJankCount() {
+            return mJankCount;
+        }
+
+        /**
+         * Sum of time over the budget of jank frames.
+         */
+        public long getOverBudgetNanos() {
+            return mOverBudgetNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mName + (mFingerprint != 0 ? " [" + StackFingerprint.toString(mFingerprint) + "]" : "")
+                    + " jank " + mJankCount + "/" + mCount
+                    + ", over budget " + mOverBudgetNanos / NANOS_PER_MILLI + "ms";
+        }
+    }
+
+    private static final class ChoreographerSource implements FrameSource {
+
+        @NonNull
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Nullable
+        private volatile FrameListener mListener;
+
+        private long mLastFrameNanos;
+
+        private final Choreographer.FrameCallback mCallback = new Choreographer.FrameCallback() {
+
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                FrameListener listener = mListener;
+                if (listener == null) {
+                    return;
+                }
+                if (mLastFrameNanos != 0) {
+                    listener.onFrame(mLastFrameNanos, frameTimeNanos);
+                }
+                mLastFrameNanos = frameTimeNanos;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        };
+
+        @Override
+        public void start(@NonNull final FrameListener listener) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (mListener == null) {
+                        mListener = listener;
+                        mLastFrameNanos = 0;
+                        Choreographer.getInstance().postFrameCallback(mCallback);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void stop() {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    mListener = null;
+                    Choreographer.getInstance().removeFrameCallback(mCallback);
+                }
+            });
+        }
+    }
+
+    public static final class Builder {
+
+        @NonNull
+        private final FrameSource mSource;
+
+        private long mBudgetNanos = 16_666_667L;
+
+        @Nullable
+        private OnTagListener mListener;
+
+        public Builder(@NonNull FrameSource source) {
+            mSource = source;
+        }
+
+        /**
+         * Frame duration above which the frame is jank. Default is 16.67 ms, a frame at 60 Hz.
+         */
+        public Builder frameBudgetNanos(long budgetNanos) {
+            if (budgetNanos <= 0) {
+                throw new IllegalArgumentException("budgetNanos must be positive");
+            }
+            mBudgetNanos = budgetNanos;
+            return this;
+        }
+
+        public Builder listener(@NonNull OnTagListener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        public FrameCorrelator build() {
+            return new FrameCorrelator(this);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import java.io.Closeable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Lightweight replacement of {@link StrictModeCompat.VmPolicy.Builder#detectLeakedClosableObjects()}
+ * and {@link StrictModeCompat.VmPolicy.Builder#detectLeakedSqlLiteObjects()} for builds with real traffic.
+ * <p>
+ * Every tracked resource is watched with a {@link PhantomReference} and drained by a single cleaner
+ * thread, so leaks are counted exactly. Allocation stack trace is captured only for 1 in N resources.
+ * The cleaner thread is started by {@link #track(Object, String)} and stops once no tracked resource
+ * has been live for a while.
+ *
+ * <pre>
+ * LeakTracker.Handle handle = tracker.track(cursor, "Cursor");
+ * ...
+ * cursor.close();
+ * handle.close();
+ * </pre>
+ */
+public final class LeakTracker {
+
+    private static final String CLEANER_THREAD_NAME = "StrictModeCompat-LeakTracker";
+
+    private static final long CLEANER_IDLE_MILLIS = 10_000L;
+
+    private final int mSampleRate;
+
+    @Nullable
+    private final Executor mExecutor;
+
+    @Nullable
+    private final OnLeakListener mListener;
+
+    private final ReferenceQueue<Object> mQueue = new ReferenceQueue<>();
+    private final Set<Handle> mLiveHandles = Collections.newSetFromMap(new ConcurrentHashMap<Handle, Boolean>());
+
+    private final AtomicLong mTrackedCount = new AtomicLong();
+    private final AtomicLong mSampledCount = new AtomicLong();
+    private final AtomicLong mReleasedCount = new AtomicLong();
+    private final AtomicLong mLeakedCount = new AtomicLong();
+
+    // Guarded by this
+    @Nullable
+    private Thread mCleanerThread;
+
+    private LeakTracker(@NonNull Builder builder) {
+        mSampleRate = builder.mSampleRate;
+        mExecutor = builder.mExecutor;
+        mListener = builder.mListener;
+    }
+
+    /**
+     * Start tracking of the resource. Returned handle must be closed when the resource is released,
+     * otherwise the resource will be reported as leaked after it becomes unreachable.
+     *
+     * @param resource resource to watch
+     * @param type     short name of the resource type, for example "Cursor" or "FileInputStream"
+     */
+    @NonNull
+    public Handle track(@NonNull Object resource, @NonNull String type) {
+        long index = mTrackedCount.getAndIncrement();
+        Throwable allocationSite = null;
+        if (index % mSampleRate == 0) {
+            mSampledCount.incrementAndGet();
+            allocationSite = new Throwable("Explicit termination method 'close' not called");
+        }
+        Handle handle = new Handle(this, resource, mQueue, type, allocationSite);
+        mLiveHandles.add(handle);
+        // After the handle is added, so a cleaner thread which is stopping sees it or a new one is started
+        ensureCleanerStarted();
+        return handle;
+    }
+
+    /**
+     * Count of resources passed to {@link #track(Object, String)}.
+     */
+    public long getTrackedCount() {
+        return mTrackedCount.get();
+    }
+
+    /**
+     * Count of resources for which allocation stack trace was captured.
+     */
+    public long getSampledCount() {
+        return mSampledCount.get();
+    }
+
+    /**
+     * Count of resources that were released properly.
+     */
+    public long getReleasedCount() {
+        return mReleasedCount.get();
+    }
+
+    /**
+     * Count of resources that became unreachable without being released.
+     */
+    public long getLeakedCount() {
+        return mLeakedCount.get();
+    }
+
+    /**
+     * Count of resources that are neither released nor collected yet.
+     */
+    public int getLiveCount() {
+        return mLiveHandles.size();
+    }
+
+    /**
+     * Sample rate of allocation sites. Stack trace is captured for 1 in {@code sampleRate} resources.
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    private synchronized void ensureCleanerStarted() {
+        if (mCleanerThread != null) {
+            return;
+        }
+
+        mCleanerThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drainQueue();
+            }
+        }, CLEANER_THREAD_NAME);
+        mCleanerThread.setDaemon(true);
+        mCleanerThread.start();
+    }
+
+    private void drainQueue() {
+        while (true) {
+            Handle handle;
+            try {
+                handle = (Handle) mQueue.remove(CLEANER_IDLE_MILLIS);
+            } catch (InterruptedException e) {
+                stopCleaner();
+                return;
+            }
+
+            if (handle == null) {
+                if (stopCleanerIfIdle()) {
+                    return;
+                }
+            } else if (mLiveHandles.remove(handle)) {
+                handle.clear();
+                mLeakedCount.incrementAndGet();
+                LeakedResourceViolation violation = new LeakedResourceViolation(handle.mType, handle.mAllocationSite);
+                FlightRecorder.recordVmViolation(violation);
+                report(violation);
+            }
+        }
+    }
+
+    private synchronized boolean stopCleanerIfIdle() {
+        if (!mLiveHandles.isEmpty()) {
+            return false;
+        }
+        mCleanerThread = null;
+        return true;
+    }
+
+    private synchronized void stopCleaner() {
+        mCleanerThread = null;
+    }
+
+    private void report(@NonNull final LeakedResourceViolation violation) {
+        final OnLeakListener listener = mListener;
+        if (listener == null || mExecutor == null) {
+            return;
+        }
+
+        mExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                long start = OverheadProfiler.start();
+                listener.onLeak(violation);
+                OverheadProfiler.end(OverheadProfiler.Stage.LISTENER_DISPATCH, start);
+            }
+        });
+    }
+
+    private void release(@NonNull Handle handle) {
+        if (mLiveHandles.remove(handle)) {
+            handle.clear();
+            mReleasedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called when a tracked resource became unreachable without being released.
+     */
+    public interface OnLeakListener {
+
+        void onLeak(@NonNull LeakedResourceViolation violation);
+    }
+
+    /**
+     * Handle of the tracked resource. Close it together with the resource.
+     */
+    public static final class Handle extends PhantomReference<Object> implements Closeable {
+
+        @NonNull
+        private final LeakTracker mTracker;
+
+        @NonNull
+        private final String mType;
+
+        @Nullable
+        private final Throwable mAllocationSite;
+
+        Handle(
+                @NonNull LeakTracker tracker,
+                @NonNull Object resource,
+                @NonNull ReferenceQueue<Object> queue,
+                @NonNull String type,
+                @Nullable Throwable allocationSite
+        ) {
+            super(resource, queue);
+            mTracker = tracker;
+            mType = type;
+            mAllocationSite = allocationSite;
+        }
+
+        /**
+         * Mark the resource as released. Calling it more than once is safe.
+         */
+        @Override
+        public void close() {
+            mTracker.release(this);
+        }
+    }
+
+    public static final class Builder {
+
+        private int mSampleRate = 1;
+
+        @Nullable
+        private Executor mExecutor;
+
+        @Nullable
+        private OnLeakListener mListener;
+
+        /**
+         * Capture allocation stack trace for 1 in {@code sampleRate} tracked resources.
+         * Leaks are counted for every resource regardless of the rate. Default is 1.
+         */
+        public Builder sampleRate(@IntRange(from = 1) int sampleRate) {
+            if (sampleRate < 1) {
+                throw new IllegalArgumentException("sampleRate must be positive");
+            }
+            mSampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Call {@link OnLeakListener#onLeak(LeakedResourceViolation)} on specified executor every leak.
+         *
+         * @param executor This value must never be null.
+         * @param listener This value must never be null.
+         */
+        public Builder penaltyListener(@NonNull Executor executor, @NonNull OnLeakListener listener) {
+            mExecutor = executor;
+            mListener = listener;
+            return this;
+        }
+
+        public LeakTracker build() {
+            return new LeakTracker(this);
+        }
+    }
+}
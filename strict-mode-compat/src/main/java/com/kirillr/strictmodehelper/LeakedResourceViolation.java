@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Violation reported by {@link LeakTracker} when a tracked resource became unreachable
+ * without being released.
+ * <p>
+ * Platform {@link android.os.strictmode.Violation} subclasses can't be created outside
+ * of the framework, so this class is delivered to {@link LeakTracker.OnLeakListener} instead.
+ * The allocation site is available as {@link #getCause()} only for sampled resources.
+ */
+public final class LeakedResourceViolation extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    @NonNull
+    private final String mResourceType;
+
+    LeakedResourceViolation(@NonNull String resourceType, @Nullable Throwable allocationSite) {
+        super("A resource of type " + resourceType + " was acquired but never released"
+                + (allocationSite != null ? "" : " (allocation site wasn't sampled)"), allocationSite);
+        mResourceType = resourceType;
+    }
+
+    /**
+     * Type of the leaked resource passed to {@link LeakTracker#track(Object, String)}.
+     */
+    @NonNull
+    public String getResourceType() {
+        return mResourceType;
+    }
+
+    /**
+     * Returns {@code true} if the allocation stack trace was captured for the leaked resource.
+     */
+    public boolean hasAllocationSite() {
+        return getCause() != null;
+    }
+
+    /**
+     * Stack trace of the cleaner thread doesn't say anything about the leak,
+     * so it isn't captured.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,735 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * R8 and ProGuard mapping compiled into a sorted binary index which is memory-mapped and searched
+ * in place, so the mapping isn't loaded into the heap.
+ *
+ * <pre>
+ * MappingIndex.build(new File("mapping.txt"), indexFile);
+ * MappingIndex index = MappingIndex.open(indexFile);
+ * StrictModeCompat.OnViolationInfoListener listener = index.deobfuscating(store);
+ * </pre>
+ * <p>
+ * The index is a table of classes sorted by obfuscated name and a table of their members sorted by
+ * obfuscated name, each member with its obfuscated and original line ranges. Frames are found with
+ * two binary searches. A frame inside of inlined code expands into the whole inline chain,
+ * the innermost frame first. A frame whose line is outside of every range of its method keeps
+ * the obfuscated method name unless all ranges belong to the same original method. Frames of R8
+ * outlines are removed and the line of their caller is mapped back through the positions
+ * of the outline call site. Translations are cached per frame.
+ * <p>
+ * The index uses only the JDK, so it works in offline tools as well as in debug builds.
+ */
+public final class MappingIndex implements Closeable {
+
+    private static final int MAGIC = 0x534d4d49;
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 28;
+    private static final int CLASS_ENTRY_SIZE = 20;
+    private static final int MEMBER_ENTRY_SIZE = 36;
+    private static final int NONE = -1;
+
+    private static final int FLAG_OUTLINE = 1;
+
+    private static final String OUTLINE_ID = "\"com.android.tools.r8.outline\"";
+    private static final String OUTLINE_CALLSITE_ID = "\"com.android.tools.r8.outlineCallsite\"";
+
+    private static final int MAX_CACHE_SIZE = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @NonNull
+    private final RandomAccessFile mFile;
+
+    @NonNull
+    private final ByteBuffer mBuffer;
+
+    private final int mClassCount;
+    private final int mClassesOffset;
+    private final int mMembersOffset;
+    private final int mPositionsOffset;
+    private final int mStringsOffset;
+
+    // Guarded by itself
+    private final Map<StackTraceElement, StackTraceElement[]> mCache =
+            new LinkedHashMap<StackTraceElement, StackTraceElement[]>(16, 0.75F, true) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<StackTraceElement, StackTraceElement[]> eldest) {
+                    return size() > MAX_CACHE_SIZE;
+                }
+            };
+
+    // Throwables whose stacks were already replaced, guarded by itself
+    private final Set<Throwable> mDeobfuscated = Collections.newSetFromMap(new WeakHashMap<Throwable, Boolean>());
+
+    private MappingIndex(@NonNull File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = mFile.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + " isn't a mapping index");
+            }
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+                throw new IOException(file + " isn't a mapping index");
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mClassCount = mBuffer.getInt(8);
+        mClassesOffset = mBuffer.getInt(12);
+        mMembersOffset = mBuffer.getInt(16);
+        mPositionsOffset = mBuffer.getInt(20);
+        mStringsOffset = mBuffer.getInt(24);
+    }
+
+    /**
+     * Map the index built with {@link #build(File, File)}.
+     */
+    @NonNull
+    @WorkerThread
+    public static MappingIndex open(@NonNull File indexFile) throws IOException {
+        return new MappingIndex(indexFile);
+    }
+
+    /**
+     * Parse the mapping file and write its index.
+     */
+    @WorkerThread
+    public static void build(@NonNull File mappingFile, @NonNull File indexFile) throws IOException {
+        List<ClassMapping> classes = parse(mappingFile);
+        Collections.sort(classes, new Comparator<ClassMapping>() {
+
+            @Override
+            public int compare(ClassMapping first, ClassMapping second) {
+                return first.obfuscatedName.compareTo(second.obfuscatedName);
+            }
+        });
+        write(classes, indexFile);
+    }
+
+    /**
+     * Original frames of the frame, the innermost first. Frames of classes which aren't in
+     * the mapping are returned as is.
+     */
+    @NonNull
+    public StackTraceElement[] retrace(@NonNull StackTraceElement frame) {
+        StackTraceElement[] frames;
+        synchronized (mCache) {
+            frames = mCache.get(frame);
+        }
+        if (frames == null) {
+            frames = lookup(frame);
+            synchronized (mCache) {
+                mCache.put(frame, frames);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Original frames of the stack with inline chains expanded and outlines removed.
+     */
+    @NonNull
+    public StackTraceElement[] retrace(@NonNull StackTraceElement[] stack) {
+        // Callers of outlines get remapped lines, the stack of the caller stays as it is
+        stack = stack.clone();
+        List<StackTraceElement> frames = new ArrayList<>(stack.length);
+        for (int i = 0; i < stack.length; i++) {
+            StackTraceElement frame = stack[i];
+            if (i + 1 < stack.length && isOutline(frame)) {
+                // The outline is a part of its caller, the call site knows the line it replaces
+                StackTraceElement caller = stack[i + 1];
+                int line = callSiteLine(caller, frame.getLineNumber());
+                if (line != NONE) {
+                    stack[i + 1] = new StackTraceElement(
+                            caller.getClassName(), caller.getMethodName(), caller.getFileName(), line);
+                    continue;
+                }
+            }
+            Collections.addAll(frames, retrace(frame));
+        }
+        return frames.toArray(new StackTraceElement[0]);
+    }
+
+    /**
+     * Replace stacks of the throwable and its causes with original ones. Throwables which were
+     * deobfuscated already are kept as they are, so the call can be repeated for the same violation.
+     */
+    public void deobfuscate(@NonNull Throwable throwable) {
+        long start = OverheadProfiler.start();
+        for (Throwable current = throwable; current != null; current = current.getCause()) {
+            boolean added;
+            synchronized (mDeobfuscated) {
+                added = mDeobfuscated.add(current);
+            }
+            if (added) {
+                current.setStackTrace(retrace(current.getStackTrace()));
+            }
+            if (current.getCause() == current) {
+                break;
+            }
+        }
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+    }
+
+    /**
+     * Listener which deobfuscates violations before passing them to the delegate, so
+     * {@link StackFingerprint} and {@link BlameAttribution} see original frames.
+     */
+    @NonNull
+    public StrictModeCompat.OnViolationInfoListener deobfuscating(
+            @NonNull final StrictModeCompat.OnViolationInfoListener delegate
+    ) {
+        return new StrictModeCompat.OnViolationInfoListener() {
+
+            @Override
+            public void onViolation(@NonNull ViolationInfo info) {
+                deobfuscate(info.getViolation());
+                delegate.onViolation(info);
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    @NonNull
+    private StackTraceElement[] lookup(@NonNull StackTraceElement frame) {
+        int classEntry = findClass(frame.getClassName());
+        if (classEntry == NONE) {
+            return new StackTraceElement[]{frame};
+        }
+
+        String className = string(mBuffer.getInt(classEntry + 4));
+        int sourceFileRef = mBuffer.getInt(classEntry + 8);
+        String sourceFile = sourceFileRef != NONE ? string(sourceFileRef) : sourceFileOf(className);
+        int firstMember = mBuffer.getInt(classEntry + 12);
+        int memberCount = mBuffer.getInt(classEntry + 16);
+
+        int line = frame.getLineNumber();
+        int first = findFirstMember(firstMember, memberCount, frame.getMethodName());
+        int end = firstMember + memberCount;
+        List<StackTraceElement> inRange = new ArrayList<>();
+        StackTraceElement withoutRange = null;
+        // Outermost method of the ranges which don't contain the line, null if they differ
+        StackTraceElement outOfRange = null;
+        boolean ambiguous = false;
+        for (int i = first; i != NONE && i < end; i++) {
+            int member = mMembersOffset + i * MEMBER_ENTRY_SIZE;
+            if (!frame.getMethodName().equals(string(mBuffer.getInt(member)))) {
+                break;
+            }
+            int obfuscatedStart = mBuffer.getInt(member + 4);
+            int obfuscatedEnd = mBuffer.getInt(member + 8);
+            if (obfuscatedStart == NONE) {
+                if (withoutRange == null) {
+                    withoutRange = memberFrame(member, className, sourceFile, line);
+                }
+            } else if (line >= obfuscatedStart && line <= obfuscatedEnd) {
+                // Entries of an inline chain share the range and follow each other
+                inRange.add(memberFrame(member, className, sourceFile, line));
+            } else if (isChainEnd(i, end, obfuscatedStart, obfuscatedEnd)) {
+                StackTraceElement method = memberFrame(member, className, sourceFile, NONE);
+                if (outOfRange == null) {
+                    outOfRange = method;
+                } else if (!outOfRange.equals(method)) {
+                    ambiguous = true;
+                }
+            }
+        }
+
+        if (!inRange.isEmpty()) {
+            return inRange.toArray(new StackTraceElement[0]);
+        } else if (withoutRange != null) {
+            return new StackTraceElement[]{withoutRange};
+        } else if (outOfRange != null && !ambiguous) {
+            return new StackTraceElement[]{outOfRange};
+        }
+        // Kept method of a renamed class, or the line doesn't tell which method it is
+        return new StackTraceElement[]{new StackTraceElement(className, frame.getMethodName(), sourceFile, line)};
+    }
+
+    /**
+     * Whether the member is the last, outermost entry of its inline chain.
+     */
+    private boolean isChainEnd(int index, int end, int obfuscatedStart, int obfuscatedEnd) {
+        if (index + 1 >= end) {
+            return true;
+        }
+        int next = mMembersOffset + (index + 1) * MEMBER_ENTRY_SIZE;
+        return mBuffer.getInt(next) != mBuffer.getInt(next - MEMBER_ENTRY_SIZE)
+                || mBuffer.getInt(next + 4) != obfuscatedStart
+                || mBuffer.getInt(next + 8) != obfuscatedEnd;
+    }
+
+    /**
+     * Whether the frame is in an R8 outline.
+     */
+    private boolean isOutline(@NonNull StackTraceElement frame) {
+        int member = findMember(frame);
+        return member != NONE && (mBuffer.getInt(member + 28) & FLAG_OUTLINE) != 0;
+    }
+
+    /**
+     * Line of the caller frame which the line of the outline called from it stands for, or {@link #NONE}.
+     */
+    private int callSiteLine(@NonNull StackTraceElement caller, int outlineLine) {
+        int member = findMember(caller);
+        int positions = member != NONE ? mBuffer.getInt(member + 32) : NONE;
+        if (positions == NONE) {
+            return NONE;
+        }
+        int offset = mPositionsOffset + positions;
+        int count = mBuffer.getInt(offset);
+        for (int i = 0; i < count; i++) {
+            if (mBuffer.getInt(offset + 4 + i * 8) == outlineLine) {
+                return mBuffer.getInt(offset + 8 + i * 8);
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Offset of the member entry whose range contains the line of the frame or {@link #NONE}.
+     */
+    private int findMember(@NonNull StackTraceElement frame) {
+        int classEntry = findClass(frame.getClassName());
+        if (classEntry == NONE) {
+            return NONE;
+        }
+        int firstMember = mBuffer.getInt(classEntry + 12);
+        int end = firstMember + mBuffer.getInt(classEntry + 16);
+        int line = frame.getLineNumber();
+        int found = NONE;
+        for (int i = findFirstMember(firstMember, end - firstMember, frame.getMethodName()); i != NONE && i < end; i++) {
+            int member = mMembersOffset + i * MEMBER_ENTRY_SIZE;
+            if (!frame.getMethodName().equals(string(mBuffer.getInt(member)))) {
+                break;
+            }
+            int obfuscatedStart = mBuffer.getInt(member + 4);
+            if (obfuscatedStart == NONE || (line >= obfuscatedStart && line <= mBuffer.getInt(member + 8))) {
+                // The outermost entry of an inline chain carries the metadata of the method
+                found = member;
+            } else if (found != NONE) {
+                break;
+            }
+        }
+        return found;
+    }
+
+    @NonNull
+    private StackTraceElement memberFrame(int member, @NonNull String className, @Nullable String sourceFile, int line) {
+        int obfuscatedStart = mBuffer.getInt(member + 4);
+        int originalClassRef = mBuffer.getInt(member + 12);
+        String method = string(mBuffer.getInt(member + 16));
+        int originalStart = mBuffer.getInt(member + 20);
+        int originalEnd = mBuffer.getInt(member + 24);
+
+        int originalLine;
+        if (line == NONE || originalStart == NONE) {
+            originalLine = line;
+        } else if (originalEnd == NONE || obfuscatedStart == NONE) {
+            originalLine = originalStart;
+        } else {
+            originalLine = Math.min(originalEnd, originalStart + (line - obfuscatedStart));
+        }
+
+        if (originalClassRef != NONE) {
+            String originalClass = string(originalClassRef);
+            return new StackTraceElement(originalClass, method, sourceFileOf(originalClass), originalLine);
+        }
+        return new StackTraceElement(className, method, sourceFile, originalLine);
+    }
+
+    /**
+     * Offset of the class entry or {@link #NONE}.
+     */
+    private int findClass(@NonNull String obfuscatedName) {
+        int low = 0;
+        int high = mClassCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = mClassesOffset + middle * CLASS_ENTRY_SIZE;
+            int compare = string(mBuffer.getInt(entry)).compareTo(obfuscatedName);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return entry;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Index of the first member with the name or {@link #NONE}.
+     */
+    private int findFirstMember(int firstMember, int memberCount, @NonNull String obfuscatedName) {
+        int low = firstMember;
+        int high = firstMember + memberCount - 1;
+        int found = NONE;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compare = string(mBuffer.getInt(mMembersOffset + middle * MEMBER_ENTRY_SIZE)).compareTo(obfuscatedName);
+            if (compare < 0) {
+                low = middle + 1;
+            } else {
+                if (compare == 0) {
+                    found = middle;
+                }
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    @NonNull
+    private String string(int ref) {
+        int offset = mStringsOffset + ref;
+        int length = mBuffer.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + 2 + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    @Nullable
+    private static String sourceFileOf(@NonNull String className) {
+        int start = className.lastIndexOf('.') + 1;
+        int end = className.indexOf('$', start);
+        String name = className.substring(start, end > 0 ? end : className.length());
+        return name.isEmpty() ? null : name + ".java";
+    }
+
+    @NonNull
+    private static List<ClassMapping> parse(@NonNull File mappingFile) throws IOException {
+        List<ClassMapping> classes = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mappingFile), UTF_8));
+        try {
+            ClassMapping current = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                if (trimmed.startsWith("#")) {
+                    MemberMapping lastMember = current != null && !current.members.isEmpty()
+                            ? current.members.get(current.members.size() - 1)
+                            : null;
+                    if (current != null && trimmed.contains("\"sourceFile\"")) {
+                        current.sourceFile = jsonString(trimmed, "fileName");
+                    } else if (lastMember != null && trimmed.contains(OUTLINE_CALLSITE_ID)) {
+                        lastMember.positions = jsonPositions(trimmed);
+                    } else if (lastMember != null && trimmed.contains(OUTLINE_ID)) {
+                        lastMember.flags |= FLAG_OUTLINE;
+                    }
+                    continue;
+                }
+                int arrow = trimmed.indexOf(" -> ");
+                if (arrow < 0) {
+                    continue;
+                }
+                if (line.charAt(0) != ' ' && line.charAt(0) != '\t') {
+                    String obfuscated = trimmed.substring(arrow + 4);
+                    if (obfuscated.endsWith(":")) {
+                        obfuscated = obfuscated.substring(0, obfuscated.length() - 1);
+                    }
+                    current = new ClassMapping(trimmed.substring(0, arrow), obfuscated);
+                    classes.add(current);
+                } else if (current != null && trimmed.indexOf('(') >= 0 && trimmed.indexOf('(') < arrow) {
+                    current.members.add(parseMethod(trimmed, arrow, current.originalName));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return classes;
+    }
+
+    /**
+     * {@code [a:b:]type name(args)[:c[:d]] -> obfuscated}
+     */
+    @NonNull
+    private static MemberMapping parseMethod(@NonNull String line, int arrow, @NonNull String className) {
+        MemberMapping member = new MemberMapping();
+        member.obfuscatedName = line.substring(arrow + 4);
+
+        int position = 0;
+        if (Character.isDigit(line.charAt(0))) {
+            int colon = line.indexOf(':');
+            int secondColon = line.indexOf(':', colon + 1);
+            member.obfuscatedStart = Integer.parseInt(line.substring(0, colon));
+            member.obfuscatedEnd = Integer.parseInt(line.substring(colon + 1, secondColon));
+            position = secondColon + 1;
+        }
+
+        int open = line.indexOf('(', position);
+        int close = line.indexOf(')', open);
+        String name = line.substring(line.lastIndexOf(' ', open) + 1, open);
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            // Method inlined from another class
+            String originalClass = name.substring(0, dot);
+            if (!originalClass.equals(className)) {
+                member.originalClass = originalClass;
+            }
+            name = name.substring(dot + 1);
+        }
+        member.originalName = name;
+
+        String lines = line.substring(close + 1, arrow);
+        if (lines.startsWith(":")) {
+            int colon = lines.indexOf(':', 1);
+            if (colon < 0) {
+                member.originalStart = Integer.parseInt(lines.substring(1));
+            } else {
+                member.originalStart = Integer.parseInt(lines.substring(1, colon));
+                member.originalEnd = Integer.parseInt(lines.substring(colon + 1));
+            }
+        } else if (member.obfuscatedStart != NONE) {
+            // Lines weren't changed
+            member.originalStart = member.obfuscatedStart;
+            member.originalEnd = member.obfuscatedEnd;
+        }
+        return member;
+    }
+
+    @Nullable
+    private static String jsonString(@NonNull String json, @NonNull String key) {
+        int keyIndex = json.indexOf('"' + key + '"');
+        if (keyIndex < 0) {
+            return null;
+        }
+        int start = json.indexOf('"', json.indexOf(':', keyIndex) + 1);
+        int end = json.indexOf('"', start + 1);
+        return start >= 0 && end > start ? json.substring(start + 1, end) : null;
+    }
+
+    /**
+     * Pairs of outline and call site lines of {@code "positions":{"1":4,"2":5}}.
+     */
+    @Nullable
+    private static int[] jsonPositions(@NonNull String json) {
+        int keyIndex = json.indexOf("\"positions\"");
+        int start = keyIndex >= 0 ? json.indexOf('{', keyIndex) : -1;
+        int end = start >= 0 ? json.indexOf('}', start) : -1;
+        if (end < 0) {
+            return null;
+        }
+        List<Integer> values = new ArrayList<>();
+        for (String pair : json.substring(start + 1, end).split(",")) {
+            int colon = pair.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            try {
+                int outlineLine = Integer.parseInt(pair.substring(0, colon).replace("\"", "").trim());
+                int callSiteLine = Integer.parseInt(pair.substring(colon + 1).trim());
+                values.add(outlineLine);
+                values.add(callSiteLine);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        int[] positions = new int[values.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = values.get(i);
+        }
+        return positions;
+    }
+
+    private static void write(@NonNull List<ClassMapping> classes, @NonNull File indexFile) throws IOException {
+        StringPool strings = new StringPool();
+        int memberCount = 0;
+        for (ClassMapping mapping : classes) {
+            // Stable, entries of an inline chain keep their order
+            Collections.sort(mapping.members, new Comparator<MemberMapping>() {
+
+                @Override
+                public int compare(MemberMapping first, MemberMapping second) {
+                    return first.obfuscatedName.compareTo(second.obfuscatedName);
+                }
+            });
+            memberCount += mapping.members.size();
+        }
+
+        int positionsSize = 0;
+        for (ClassMapping mapping : classes) {
+            for (MemberMapping member : mapping.members) {
+                if (member.positions != null) {
+                    positionsSize += 4 + member.positions.length * 4;
+                }
+            }
+        }
+
+        int classesOffset = HEADER_SIZE;
+        int membersOffset = classesOffset + classes.size() * CLASS_ENTRY_SIZE;
+        int positionsOffset = membersOffset + memberCount * MEMBER_ENTRY_SIZE;
+        int stringsOffset = positionsOffset + positionsSize;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(classes.size());
+            out.writeInt(classesOffset);
+            out.writeInt(membersOffset);
+            out.writeInt(positionsOffset);
+            out.writeInt(stringsOffset);
+
+            int firstMember = 0;
+            for (ClassMapping mapping : classes) {
+                out.writeInt(strings.ref(mapping.obfuscatedName));
+                out.writeInt(strings.ref(mapping.originalName));
+                out.writeInt(mapping.sourceFile != null ? strings.ref(mapping.sourceFile) : NONE);
+                out.writeInt(firstMember);
+                out.writeInt(mapping.members.size());
+                firstMember += mapping.members.size();
+            }
+            int positions = 0;
+            for (ClassMapping mapping : classes) {
+                for (MemberMapping member : mapping.members) {
+                    out.writeInt(strings.ref(member.obfuscatedName));
+                    out.writeInt(member.obfuscatedStart);
+                    out.writeInt(member.obfuscatedEnd);
+                    out.writeInt(member.originalClass != null ? strings.ref(member.originalClass) : NONE);
+                    out.writeInt(strings.ref(member.originalName));
+                    out.writeInt(member.originalStart);
+                    out.writeInt(member.originalEnd);
+                    out.writeInt(member.flags);
+                    if (member.positions != null) {
+                        out.writeInt(positions);
+                        positions += 4 + member.positions.length * 4;
+                    } else {
+                        out.writeInt(NONE);
+                    }
+                }
+            }
+            for (ClassMapping mapping : classes) {
+                for (MemberMapping member : mapping.members) {
+                    if (member.positions != null) {
+                        out.writeInt(member.positions.length / 2);
+                        for (int value : member.positions) {
+                            out.writeInt(value);
+                        }
+                    }
+                }
+            }
+            strings.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static final class ClassMapping {
+
+        @NonNull
+        final String originalName;
+
+        @NonNull
+        final String obfuscatedName;
+
+        @Nullable
+        String sourceFile;
+
+        final List<MemberMapping> members = new ArrayList<>();
+
+        ClassMapping(@NonNull String originalName, @NonNull String obfuscatedName) {
+            this.originalName = originalName;
+            this.obfuscatedName = obfuscatedName;
+        }
+    }
+
+    private static final class MemberMapping {
+
+        String obfuscatedName;
+        int obfuscatedStart = NONE;
+        int obfuscatedEnd = NONE;
+        @Nullable
+        String originalClass;
+        String originalName;
+        int originalStart = NONE;
+        int originalEnd = NONE;
+        int flags;
+        // Pairs of outline and call site lines of an outline call site
+        @Nullable
+        int[] positions;
+    }
+
+    /**
+     * Deduplicated strings, each stored as its length and UTF-8 bytes.
+     */
+    private static final class StringPool {
+
+        private final Map<String, Integer> mRefs = new LinkedHashMap<>();
+        private int mSize;
+
+        int ref(@NonNull String value) {
+            Integer ref = mRefs.get(value);
+            if (ref == null) {
+                ref = mSize;
+                mRefs.put(value, ref);
+                mSize += 2 + value.getBytes(UTF_8).length;
+            }
+            return ref;
+        }
+
+        void writeTo(@NonNull DataOutputStream out) throws IOException {
+            for (String value : mRefs.keySet()) {
+                byte[] bytes = value.getBytes(UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * HTTP/1.1 endpoint on localhost which serves violation counters in OpenMetrics text format,
+ * for scraping soak tests live. Meant for debug builds only.
+ *
+ * <pre>
+ * MetricsEndpoint endpoint = new MetricsEndpoint.Builder().port(9464).start();
+ * builder.penaltyInfoListener(executor, endpoint);
+ * </pre>
+ * <p>
+ * Serves {@code GET /metrics} with violations by type, by {@link StackFingerprint}, by owner from
+ * {@link BlameAttribution} and histograms of {@link OverheadProfiler}. Requests are handled one by
+ * one on a single thread, responses are rendered into buffers reused by all requests.
+ * <pre>
+ * adb forward tcp:9464 tcp:9464
+ * curl http://localhost:9464/metrics
+ * </pre>
+ */
+public final class MetricsEndpoint implements StrictModeCompat.OnViolationInfoListener, Closeable {
+
+    private static final String TAG = "StrictModeCompat";
+
+    private static final int SOCKET_TIMEOUT_MILLIS = 5_000;
+
+    private static final byte[] GET_METRICS = ascii("GET /metrics");
+
+    private static final OverheadProfiler.Stage[] STAGES = OverheadProfiler.Stage.values();
+
+    // Longer durations, over 18 minutes, are only in the +Inf bucket
+    private static final int SERVED_BUCKETS = 41;
+
+    @NonNull
+    private final ServerSocket mServerSocket;
+
+    private final int mMaxFingerprints;
+
+    @Nullable
+    private final BlameAttribution mAttribution;
+
+    private final ConcurrentHashMap<String, AtomicLong> mTypes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, FingerprintCounter> mFingerprints = new ConcurrentHashMap<>();
+    private final AtomicLong mOtherFingerprints = new AtomicLong();
+
+    // Used only by the server thread
+    private final byte[] mRequest = new byte[4096];
+    private final ByteSink mBody = new ByteSink(16 * 1024);
+    private final ByteSink mHeader = new ByteSink(256);
+
+    private volatile boolean mClosed;
+
+    private MetricsEndpoint(@NonNull Builder builder) throws IOException {
+        mServerSocket = new ServerSocket(builder.mPort, 4, InetAddress.getByName("127.0.0.1"));
+        mMaxFingerprints = builder.mMaxFingerprints;
+        mAttribution = builder.mAttribution;
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "StrictModeCompat-metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Port the endpoint listens on, useful when it was started on an ephemeral port.
+     */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    @Override
+    public void onViolation(@NonNull ViolationInfo info) {
+        record(info.getViolation());
+    }
+
+    /**
+     * Count the violation.
+     */
+    public void record(@NonNull Throwable violation) {
+        long start = OverheadProfiler.start();
+        String type = violation.getClass().getName();
+        increment(mTypes, type);
+
+        long fingerprint = StackFingerprint.of(violation);
+        FingerprintCounter counter = mFingerprints.get(fingerprint);
+        if (counter == null && mFingerprints.size() < mMaxFingerprints) {
+            FingerprintCounter newCounter = new FingerprintCounter(type);
+            counter = mFingerprints.putIfAbsent(fingerprint, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        if (counter != null) {
+            counter.count.incrementAndGet();
+        } else {
+            mOtherFingerprints.incrementAndGet();
+        }
+
+        if (mAttribution != null) {
+            // Counted by the attribution itself
+            mAttribution.attribute(violation, fingerprint);
+        }
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mServerSocket.close();
+    }
+
+    private void serve() {
+        while (!mClosed) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                if (!mClosed) {
+                    Log.w(TAG, "Metrics endpoint stopped", e);
+                }
+                return;
+            }
+            try {
+                socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+                handle(socket.getInputStream(), socket.getOutputStream());
+            } catch (IOException ignored) {
+                // Client went away
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void handle(@NonNull InputStream in, @NonNull OutputStream out) throws IOException {
+        int length = readRequest(in);
+        mBody.reset();
+        mHeader.reset();
+        if (startsWith(mRequest, length, GET_METRICS)) {
+            render(mBody);
+            mHeader.append("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: application/openmetrics-text; version=1.0.0; charset=utf-8\r\n");
+        } else {
+            mBody.append("Not found\n");
+            mHeader.append("HTTP/1.1 404 Not Found\r\nContent-Type: text/plain\r\n");
+        }
+        mHeader.append("Content-Length: ").append(mBody.size()).append("\r\nConnection: close\r\n\r\n");
+        mHeader.writeTo(out);
+        mBody.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Read the request line and headers, the body is ignored.
+     */
+    private int readRequest(@NonNull InputStream in) throws IOException {
+        int length = 0;
+        while (length < mRequest.length) {
+            int read = in.read(mRequest, length, mRequest.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+            if (endsWithBlankLine(mRequest, length)) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    private void render(@NonNull ByteSink sink) {
+        sink.append("# TYPE strictmode_violations counter\n")
+                .append("# HELP strictmode_violations Violations by type.\n");
+        for (Map.Entry<String, AtomicLong> entry : mTypes.entrySet()) {
+            sink.append("strictmode_violations_total{type=\"").appendEscaped(entry.getKey())
+                    .append("\"} ").append(entry.getValue().get()).append('\n');
+        }
+
+        sink.append("# TYPE strictmode_fingerprint_violations counter\n")
+                .append("# HELP strictmode_fingerprint_violations Violations by stack fingerprint.\n");
+        for (Map.Entry<Long, FingerprintCounter> entry : mFingerprints.entrySet()) {
+            sink.append("strictmode_fingerprint_violations_total{type=\"").appendEscaped(entry.getValue().type)
+                    .append("\",fingerprint=\"").appendHex(entry.getKey())
+                    .append("\"} ").append(entry.getValue().count.get()).append('\n');
+        }
+        sink.append("strictmode_fingerprint_violations_total{type=\"\",fingerprint=\"other\"} ")
+                .append(mOtherFingerprints.get()).append('\n');
+
+        if (mAttribution != null) {
+            sink.append("# TYPE strictmode_owner_violations counter\n")
+                    .append("# HELP strictmode_owner_violations Violations by owner found by blame attribution.\n");
+            for (Map.Entry<String, AtomicLong> entry : mAttribution.liveViolationCounts().entrySet()) {
+                sink.append("strictmode_owner_violations_total{owner=\"").appendEscaped(entry.getKey())
+                        .append("\"} ").append(entry.getValue().get()).append('\n');
+            }
+        }
+
+        sink.append("# TYPE strictmode_overhead_nanoseconds histogram\n")
+                .append("# HELP strictmode_overhead_nanoseconds Time spent by the library per stage.\n")
+                .append("# UNIT strictmode_overhead_nanoseconds nanoseconds\n");
+        for (OverheadProfiler.Stage stage : STAGES) {
+            long cumulative = 0;
+            for (int bucket = 0; bucket < SERVED_BUCKETS; bucket++) {
+                // Bucket i holds durations below 2^i ns
+                cumulative += OverheadProfiler.bucketCount(stage, bucket);
+                sink.append("strictmode_overhead_nanoseconds_bucket{stage=\"").append(stage.name())
+                        .append("\",le=\"").append((1L << bucket) - 1).append("\"} ").append(cumulative).append('\n');
+            }
+            sink.append("strictmode_overhead_nanoseconds_bucket{stage=\"").append(stage.name())
+                    .append("\",le=\"+Inf\"} ").append(OverheadProfiler.count(stage)).append('\n')
+                    .append("strictmode_overhead_nanoseconds_count{stage=\"").append(stage.name())
+                    .append("\"} ").append(OverheadProfiler.count(stage)).append('\n')
+                    .append("strictmode_overhead_nanoseconds_sum{stage=\"").append(stage.name())
+                    .append("\"} ").append(OverheadProfiler.totalNanos(stage)).append('\n');
+        }
+        sink.append("# EOF\n");
+    }
+
+    private static void increment(@NonNull ConcurrentHashMap<String, AtomicLong> counters, @NonNull String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private static boolean startsWith(@NonNull byte[] bytes, int length, @NonNull byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        // "/metrics" and "/metrics?..." but not "/metricsfoo"
+        return length == prefix.length || bytes[prefix.length] == ' ' || bytes[prefix.length] == '?';
+    }
+
+    private static boolean endsWithBlankLine(@NonNull byte[] bytes, int length) {
+        return length >= 4
+                && bytes[length - 4] == '\r' && bytes[length - 3] == '\n'
+                && bytes[length - 2] == '\r' && bytes[length - 1] == '\n';
+    }
+
+    @NonNull
+    private static byte[] ascii(@NonNull String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static final class FingerprintCounter {
+
+        @NonNull
+        final String type;
+
+        final AtomicLong count = new AtomicLong();
+
+        FingerprintCounter(@NonNull String type) {
+            this.type = type;
+        }
+    }
+
+    /**
+     * Growable byte buffer which encodes strings and numbers without allocating.
+     */
+    private static final class ByteSink {
+
+        private static final byte[] HEX = ascii("0123456789abcdef");
+
+        private byte[] mBytes;
+        private int mSize;
+
+        ByteSink(int capacity) {
+            mBytes = new byte[capacity];
+        }
+
+        void reset() {
+            mSize = 0;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        @NonNull
+        ByteSink append(char value) {
+            ensure(1);
+            mBytes[mSize++] = (byte) value;
+            return this;
+        }
+
+        @NonNull
+        ByteSink append(@NonNull String value) {
+            for (int i = 0, length = value.length(); i < length; i++) {
+                appendUtf8(value.charAt(i));
+            }
+            return this;
+        }
+
+        /**
+         * Label value with backslashes, quotes and line feeds escaped.
+         */
+        @NonNull
+        ByteSink appendEscaped(@NonNull String value) {
+            for (int i = 0, length = value.length(); i < length; i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    append('\\').append(c);
+                } else if (c == '\n') {
+                    append('\\').append('n');
+                } else {
+                    appendUtf8(c);
+                }
+            }
+            return this;
+        }
+
+        @NonNull
+        ByteSink append(long value) {
+            if (value == Long.MIN_VALUE) {
+                return append("-9223372036854775808");
+            }
+            if (value < 0) {
+                append('-');
+                value = -value;
+            }
+            ensure(20);
+            int start = mSize;
+            do {
+                mBytes[mSize++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            reverse(start, mSize - 1);
+            return this;
+        }
+
+        @NonNull
+        ByteSink appendHex(long value) {
+            ensure(16);
+            for (int shift = 60; shift >= 0; shift -= 4) {
+                mBytes[mSize++] = HEX[(int) (value >>> shift) & 0xf];
+            }
+            return this;
+        }
+
+        void writeTo(@NonNull OutputStream out) throws IOException {
+            out.write(mBytes, 0, mSize);
+        }
+
+        private void appendUtf8(char c) {
+            ensure(3);
+            if (c < 0x80) {
+                mBytes[mSize++] = (byte) c;
+            } else if (c < 0x800) {
+                mBytes[mSize++] = (byte) (0xc0 | (c >> 6));
+                mBytes[mSize++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                // Surrogate pairs are encoded as is, class names and owners don't have them
+                mBytes[mSize++] = (byte) (0xe0 | (c >> 12));
+                mBytes[mSize++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                mBytes[mSize++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        private void reverse(int from, int to) {
+            while (from < to) {
+                byte tmp = mBytes[from];
+                mBytes[from++] = mBytes[to];
+                mBytes[to--] = tmp;
+            }
+        }
+
+        private void ensure(int extra) {
+            if (mSize + extra > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mSize + extra));
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        private int mPort;
+        private int mMaxFingerprints = 512;
+
+        @Nullable
+        private BlameAttribution mAttribution;
+
+        /**
+         * Port on localhost. Default is 0, an ephemeral port, see {@link MetricsEndpoint#getPort()}.
+         */
+        public Builder port(@IntRange(from = 0, to = 65535) int port) {
+            mPort = port;
+            return this;
+        }
+
+        /**
+         * Maximum number of fingerprints with own counters, others are counted together.
+         * Default is 512.
+         */
+        public Builder maxFingerprints(@IntRange(from = 0) int maxFingerprints) {
+            mMaxFingerprints = Math.max(0, maxFingerprints);
+            return this;
+        }
+
+        /**
+         * Attribute every violation to its owner and serve counts per owner.
+         */
+        public Builder blameAttribution(@NonNull BlameAttribution attribution) {
+            mAttribution = attribution;
+            return this;
+        }
+
+        /**
+         * Bind the socket and start serving.
+         */
+        @NonNull
+        public MetricsEndpoint start() throws IOException {
+            return new MetricsEndpoint(this);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kirillr.strictmodehelper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Violation reported by {@link SocketTagging} when a socket is connected on a thread whose policy
+ * detects network. The stack trace is the connecting one.
+ */
+public final class NetworkOnGuardedThreadViolation extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    @NonNull
+    private final String mFeature;
+
+    NetworkOnGuardedThreadViolation(@NonNull String feature, @NonNull String endpoint) {
+        super("Socket of feature " + feature + " connected to " + endpoint + " on a thread which detects network");
+        mFeature = feature;
+    }
+
+    /**
+     * Feature of the socket or {@link SocketTagging#UNTAGGED}.
+     */
+    @NonNull
+    public String getFeature() {
+        return mFeature;
+    }
+}
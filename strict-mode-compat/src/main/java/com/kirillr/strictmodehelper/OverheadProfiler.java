@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Measures CPU time the library spends in its own code paths.
+ * <p>
+ * Every {@link Stage} has a histogram of {@link System#nanoTime()} durations with power of two buckets.
+ * Stages nest, like {@link Stage#AGGREGATION} inside {@link Stage#LISTENER_DISPATCH}, and every stage
+ * records its exclusive time, without the time of the stages nested in it, so totals don't count any
+ * time twice. Profiler is disabled by default and costs a single volatile read per measured call until enabled.
+ */
+public final class OverheadProfiler {
+
+    /**
+     * Count of histogram buckets. Bucket {@code i} holds durations in range [2^(i-1), 2^i) ns.
+     */
+    public static final int BUCKET_COUNT = 64;
+
+    private static final Stage[] STAGES = Stage.values();
+
+    // Per stage: BUCKET_COUNT buckets, count, total nanos
+    private static final int STRIDE = BUCKET_COUNT + 2;
+
+    private static final AtomicLongArray sData = new AtomicLongArray(STAGES.length * STRIDE);
+
+    private static volatile boolean sEnabled;
+
+    // Exclusive time recorded on the thread so far. Time of sections nested in a section is
+    // the growth of it between the start and the end of the section.
+    private static final ThreadLocal<long[]> sRecordedNanos = new ThreadLocal<long[]>() {
+
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private OverheadProfiler() {
+    }
+
+    /**
+     * Library code paths measured by the profiler.
+     */
+    public enum Stage {
+
+        /**
+         * Construction of policy builders and {@code build()} calls.
+         */
+        BUILDER,
+
+        /**
+         * Applying of policies with {@code setThreadPolicy()}/{@code setVmPolicy()}.
+         */
+        POLICY_APPLICATION,
+
+        /**
+         * Delivery of violations to listeners, including listener's own time, but not the stages
+         * nested in it.
+         */
+        LISTENER_DISPATCH,
+
+        /**
+         * Counting and grouping of reported violations.
+         */
+        AGGREGATION,
+
+        /**
+         * Recording of violations for later inspection.
+         */
+        JOURNALING
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Clear all collected histograms.
+     */
+    public static void reset() {
+        for (int i = 0, length = sData.length(); i < length; i++) {
+            sData.set(i, 0);
+        }
+    }
+
+    /**
+     * Start of the measured section.
+     *
+     * @return token to pass to {@link #end(Stage, long)}, 0 when profiler is disabled
+     */
+    static long start() {
+        // Start time shifted by the time recorded so far, nested sections shift the end by their time
+        return sEnabled ? System.nanoTime() - sRecordedNanos.get()[0] : 0L;
+    }
+
+    /**
+     * End of the measured section, records the time since the start without nested sections.
+     * A section which isn't ended, because of an exception, is counted as time of the enclosing one.
+     *
+     * @param startToken value returned by {@link #start()}
+     */
+    static void end(@NonNull Stage stage, long startToken) {
+        if (startToken != 0L) {
+            long[] recordedNanos = sRecordedNanos.get();
+            long selfNanos = Math.max(0, System.nanoTime() - recordedNanos[0] - startToken);
+            recordedNanos[0] += selfNanos;
+            record(stage, selfNanos);
+        }
+    }
+
+    static void record(@NonNull Stage stage, long durationNanos) {
+        if (durationNanos < 0) {
+            durationNanos = 0;
+        }
+        int offset = stage.ordinal() * STRIDE;
+        sData.incrementAndGet(offset + bucketOf(durationNanos));
+        sData.incrementAndGet(offset + BUCKET_COUNT);
+        sData.addAndGet(offset + BUCKET_COUNT + 1, durationNanos);
+    }
+
+    static int bucketOf(long durationNanos) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(durationNanos));
+    }
+
+    static long count(@NonNull Stage stage) {
+        return sData.get(stage.ordinal() * STRIDE + BUCKET_COUNT);
+    }
+
+    static long totalNanos(@NonNull Stage stage) {
+        return sData.get(stage.ordinal() * STRIDE + BUCKET_COUNT + 1);
+    }
+
+    static long bucketCount(@NonNull Stage stage, int bucket) {
+        return sData.get(stage.ordinal() * STRIDE + bucket);
+    }
+
+    /**
+     * Copy of the histograms collected so far.
+     */
+    @NonNull
+    public static Snapshot snapshot() {
+        Histogram[] histograms = new Histogram[STAGES.length];
+        for (Stage stage : STAGES) {
+            int offset = stage.ordinal() * STRIDE;
+            long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = sData.get(offset + i);
+            }
+            histograms[stage.ordinal()] = new Histogram(
+                    stage,
+                    buckets,
+                    sData.get(offset + BUCKET_COUNT),
+                    sData.get(offset + BUCKET_COUNT + 1)
+            );
+        }
+        return new Snapshot(histograms);
+    }
+
+    public static final class Snapshot {
+
+        @NonNull
+        private final Histogram[] mHistograms;
+
+        Snapshot(@NonNull Histogram[] histograms) {
+            mHistograms = histograms;
+        }
+
+        @NonNull
+        public Histogram get(@NonNull Stage stage) {
+            return mHistograms[stage.ordinal()];
+        }
+
+        /**
+         * Time spent in all stages, in nanoseconds. Stages record exclusive time, nested ones
+         * aren't counted twice.
+         */
+        public long getTotalNanos() {
+            long total = 0;
+            for (Histogram histogram : mHistograms) {
+                total += histogram.getTotalNanos();
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("OverheadProfiler.Snapshot{");
+            for (Histogram histogram : mHistograms) {
+                builder.append('\n').append("  ").append(histogram);
+            }
+            return builder.append('\n').append('}').toString();
+        }
+    }
+
+    public static final class Histogram {
+
+        @NonNull
+        private final Stage mStage;
+
+        @NonNull
+        private final long[] mBuckets;
+
+        private final long mCount;
+
+        private final long mTotalNanos;
+
+        Histogram(@NonNull Stage stage, @NonNull long[] buckets, long count, long totalNanos) {
+            mStage = stage;
+            mBuckets = buckets;
+            mCount = count;
+            mTotalNanos = totalNanos;
+        }
+
+        @NonNull
+        public Stage getStage() {
+            return mStage;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        public long getMeanNanos() {
+            return mCount == 0 ? 0 : mTotalNanos / mCount;
+        }
+
+        /**
+         * Count of measurements in bucket {@code index}, which holds durations in range [2^(index-1), 2^index) ns.
+         */
+        public long getBucketCount(int index) {
+            return mBuckets[index];
+        }
+
+        /**
+         * Upper bound of the bucket which contains requested percentile, in nanoseconds.
+         *
+         * @param percentile value in range [0, 100]
+         */
+        public long getPercentileNanos(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+
+            long threshold = (long) Math.ceil(mCount * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets[i];
+                if (seen >= threshold && seen > 0) {
+                    return i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return mStage +
+                    "{count=" + mCount +
+                    ", totalNanos=" + mTotalNanos +
+                    ", p50<=" + getPercentileNanos(50) +
+                    ", p99<=" + getPercentileNanos(99) +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Thread policy which starts with {@code penaltyLog()} and escalates when a scope goes over its
+ * violation budget.
+ * <p>
+ * Violations are counted per violation class and per scope in sliding windows. When the count of
+ * a pair reaches the event threshold its scope moves to {@link Level#EVENT} and every further
+ * violation over budget is reported to {@link OnEscalationListener}, at the death threshold the scope
+ * moves to {@link Level#DEATH} and its violations kill the process like VM {@code penaltyDeath()}.
+ * Death is applied by the listener of the policy, which runs on the violating thread, only to violations
+ * of the escalated scope, violations of other scopes keep their level. {@link FlightRecorder} is dumped
+ * before the process is killed. After a quiet period without violations over budget a scope moves
+ * one level down.
+ * <p>
+ * The penalties of the policy are the same on every level, it's applied once on install and never
+ * rebuilt, healthy sessions pay only for counting. Listeners of the base contribution get every
+ * violation of the policy.
+ *
+ * <pre>
+ * PenaltyEscalation escalation = new PenaltyEscalation.Builder(
+ *         new PolicyContribution.Builder().detectDiskReads().detectNetwork().build()
+ * )
+ *         .thresholds(5, 20)
+ *         .listener(listener)
+ *         .build();
+ * escalation.install();
+ * </pre>
+ */
+public final class PenaltyEscalation implements StrictModeCompat.OnViolationInfoListener {
+
+    private static final int WINDOW_BUCKETS = 8;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    public enum Level {
+        /**
+         * Only penalties of the base policy and {@code penaltyLog()}.
+         */
+        LOG,
+
+        /**
+         * Violations over budget are reported to {@link OnEscalationListener#onViolationOverBudget}.
+         */
+        EVENT,
+
+        /**
+         * Violations of the scope kill the process, like VM {@code penaltyDeath()}.
+         */
+        DEATH
+    }
+
+    private final int mDetects;
+    private final int mPenalties;
+    private final long mBucketMillis;
+    private final int mEventThreshold;
+    private final int mDeathThreshold;
+    private final long mQuietPeriodMillis;
+
+    @NonNull
+    private final Map<String, int[]> mScopeThresholds;
+
+    @NonNull
+    private final ScopeResolver mScopeResolver;
+
+    @NonNull
+    private final PolicyContribution mBase;
+
+    @Nullable
+    private final OnEscalationListener mListener;
+
+    // Violation class -> scope -> window, guarded by this
+    private final Map<String, Map<String, Window>> mWindows = new HashMap<>();
+
+    // Scopes above Level.LOG, guarded by this
+    private final Map<String, ScopeLevel> mScopeLevels = new HashMap<>();
+
+    // Highest level of scopes, changed on the thread of the handler
+    @NonNull
+    private volatile Level mLevel = Level.LOG;
+
+    @Nullable
+    private volatile Handler mHandler;
+
+    private final Runnable mQuietCheck = new Runnable() {
+
+        @Override
+        public void run() {
+            checkQuietPeriod();
+        }
+    };
+
+    private PenaltyEscalation(@NonNull Builder builder) {
+        mDetects = builder.mBase.threadDetects;
+        mPenalties = builder.mBase.threadPenalties | PolicyFlags.THREAD_PENALTY_LOG;
+        mBucketMillis = Math.max(1, builder.mWindowMillis / WINDOW_BUCKETS);
+        mEventThreshold = builder.mEventThreshold;
+        mDeathThreshold = builder.mDeathThreshold;
+        mQuietPeriodMillis = builder.mQuietPeriodMillis;
+        mScopeThresholds = new HashMap<>(builder.mScopeThresholds);
+        mScopeResolver = builder.mScopeResolver;
+        mListener = builder.mListener;
+        mBase = builder.mBase;
+    }
+
+    /**
+     * Apply the policy to the current thread. The thread must have a {@link Looper}, level changes and
+     * quiet periods are tracked on it.
+     */
+    @MainThread
+    public void install() {
+        Looper looper = Looper.myLooper();
+        if (looper == null) {
+            throw new IllegalStateException("PenaltyEscalation must be installed on a thread with Looper");
+        }
+        mHandler = new Handler(looper);
+        StrictModeCompat.ThreadPolicy.Builder builder = PolicyFlags.threadPolicyBuilder(mDetects, mPenalties)
+                .penaltyInfoListener(DIRECT_EXECUTOR, this);
+        if (mBase.threadListener != null) {
+            builder.penaltyListener(mBase.threadListenerExecutor, mBase.threadListener);
+        }
+        StrictModeCompat.setThreadPolicy(builder.build());
+    }
+
+    /**
+     * Highest level of all scopes.
+     */
+    @NonNull
+    public Level getLevel() {
+        return mLevel;
+    }
+
+    @NonNull
+    public synchronized Level getLevel(@NonNull String scope) {
+        ScopeLevel scopeLevel = mScopeLevels.get(scope);
+        return scopeLevel != null ? scopeLevel.level : Level.LOG;
+    }
+
+    @Override
+    public void onViolation(@NonNull final ViolationInfo info) {
+        if (mBase.threadInfoListener != null) {
+            // The policy has one info listener, this one
+            mBase.threadInfoListenerExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    mBase.threadInfoListener.onViolation(info);
+                }
+            });
+        }
+
+        long start = OverheadProfiler.start();
+        String type = info.getViolation().getClass().getName();
+        String scope = mScopeResolver.scopeOf(info);
+        long now = SystemClock.uptimeMillis();
+
+        Level target;
+        Level scopeLevel;
+        synchronized (this) {
+            Map<String, Window> scopes = mWindows.get(type);
+            if (scopes == null) {
+                scopes = new HashMap<>();
+                mWindows.put(type, scopes);
+            }
+            Window window = scopes.get(scope);
+            if (window == null) {
+                window = new Window();
+                scopes.put(scope, window);
+            }
+            target = levelOf(window.add(now, mBucketMillis), scope);
+            ScopeLevel state = mScopeLevels.get(scope);
+            if (target != Level.LOG) {
+                if (state == null) {
+                    state = new ScopeLevel();
+                    mScopeLevels.put(scope, state);
+                }
+                state.lastOverBudgetMillis = now;
+                if (target.compareTo(state.level) > 0) {
+                    state.level = target;
+                }
+            }
+            scopeLevel = state != null ? state.level : Level.LOG;
+        }
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+
+        if (target != Level.LOG && mListener != null) {
+            mListener.onViolationOverBudget(info, scope);
+        }
+        if (scopeLevel.compareTo(mLevel) > 0) {
+            updateLevel();
+        }
+        if (scopeLevel == Level.DEATH) {
+            // Thread penaltyDeath() can't be applied per scope, the listener runs on the violating thread
+            ViolationDispatcher.executeDeathPenalty(
+                    "StrictMode ThreadPolicy violation in scope " + scope + "; shutting down.",
+                    info.getViolation()
+            );
+        }
+    }
+
+    @NonNull
+    private Level levelOf(long count, @NonNull String scope) {
+        int eventThreshold = mEventThreshold;
+        int deathThreshold = mDeathThreshold;
+        int[] thresholds = mScopeThresholds.get(scope);
+        if (thresholds != null) {
+            eventThreshold = thresholds[0];
+            deathThreshold = thresholds[1];
+        }
+        if (count >= deathThreshold) {
+            return Level.DEATH;
+        }
+        return count >= eventThreshold ? Level.EVENT : Level.LOG;
+    }
+
+    /**
+     * Move the highest level to the one of scopes and schedule the quiet check.
+     */
+    private void updateLevel() {
+        final Handler handler = mHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                checkQuietPeriod();
+            }
+        });
+    }
+
+    private void checkQuietPeriod() {
+        Handler handler = mHandler;
+        long now = SystemClock.uptimeMillis();
+        Level level = Level.LOG;
+        long nextCheckMillis = Long.MAX_VALUE;
+        synchronized (this) {
+            for (Iterator<ScopeLevel> iterator = mScopeLevels.values().iterator(); iterator.hasNext(); ) {
+                ScopeLevel state = iterator.next();
+                long quietFor = now - state.lastOverBudgetMillis;
+                if (quietFor >= mQuietPeriodMillis) {
+                    state.level = Level.values()[state.level.ordinal() - 1];
+                    state.lastOverBudgetMillis = now;
+                    quietFor = 0;
+                }
+                if (state.level == Level.LOG) {
+                    iterator.remove();
+                    continue;
+                }
+                if (state.level.compareTo(level) > 0) {
+                    level = state.level;
+                }
+                nextCheckMillis = Math.min(nextCheckMillis, mQuietPeriodMillis - quietFor);
+            }
+        }
+
+        Level old = mLevel;
+        mLevel = level;
+        if (old != level && mListener != null) {
+            mListener.onLevelChanged(old, level);
+        }
+        if (handler != null) {
+            handler.removeCallbacks(mQuietCheck);
+            if (nextCheckMillis != Long.MAX_VALUE) {
+                handler.postDelayed(mQuietCheck, nextCheckMillis);
+            }
+        }
+    }
+
+    private static final class ScopeLevel {
+
+        @NonNull
+        Level level = Level.LOG;
+
+        long lastOverBudgetMillis;
+    }
+
+    /**
+     * Sliding window made of {@link #WINDOW_BUCKETS} buckets.
+     */
+    private static final class Window {
+
+        private final long[] mEpochs = new long[WINDOW_BUCKETS];
+        private final long[] mCounts = new long[WINDOW_BUCKETS];
+
+        /**
+         * Count the violation and return the count in the window.
+         */
+        long add(long now, long bucketMillis) {
+            long epoch = now / bucketMillis;
+            int slot = (int) (epoch % WINDOW_BUCKETS);
+            if (mEpochs[slot] != epoch) {
+                mEpochs[slot] = epoch;
+                mCounts[slot] = 0;
+            }
+            mCounts[slot]++;
+
+            long sum = 0;
+            for (int i = 0; i < WINDOW_BUCKETS; i++) {
+                if (epoch - mEpochs[i] < WINDOW_BUCKETS) {
+                    sum += mCounts[i];
+                }
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Scope of the violation, like the screen or the module responsible for it.
+     */
+    public interface ScopeResolver {
+
+        @NonNull
+        String scopeOf(@NonNull ViolationInfo info);
+    }
+
+    public interface OnEscalationListener {
+
+        /**
+         * Called when the highest level of scopes changes, on the thread where the policy was installed.
+         */
+        void onLevelChanged(@NonNull Level oldLevel, @NonNull Level newLevel);
+
+        /**
+         * Called for every violation of a scope which is over its event threshold.
+         * Called on the thread which reports violations.
+         */
+        void onViolationOverBudget(@NonNull ViolationInfo info, @NonNull String scope);
+    }
+
+    public static final class Builder {
+
+        private static final String NO_SCOPE = "";
+
+        // Threshold of a disabled level, never reached
+        private static final int DISABLED = Integer.MAX_VALUE;
+
+        @NonNull
+        private final PolicyContribution mBase;
+
+        private long mWindowMillis = 60_000L;
+        private int mEventThreshold = 10;
+        private int mDeathThreshold = DISABLED;
+        private long mQuietPeriodMillis = 5 * 60_000L;
+
+        private final Map<String, int[]> mScopeThresholds = new HashMap<>();
+
+        @NonNull
+        private ScopeResolver mScopeResolver = new ScopeResolver() {
+
+            @NonNull
+            @Override
+            public String scopeOf(@NonNull ViolationInfo info) {
+                String spanPath = info.getSpanPath();
+                return spanPath != null ? spanPath : NO_SCOPE;
+            }
+        };
+
+        @Nullable
+        private OnEscalationListener mListener;
+
+        /**
+         * @param base detectors and penalties of the thread policy on {@link Level#LOG}
+         */
+        public Builder(@NonNull PolicyContribution base) {
+            mBase = base;
+        }
+
+        /**
+         * Length of the sliding window. Default is one minute.
+         */
+        public Builder window(long windowMillis) {
+            if (windowMillis <= 0) {
+                throw new IllegalArgumentException("windowMillis must be positive");
+            }
+            mWindowMillis = windowMillis;
+            return this;
+        }
+
+        /**
+         * Counts of violations of one class in one scope within the window which move the policy to
+         * {@link Level#EVENT} and {@link Level#DEATH}. 0 disables the level. Default is 10 and 0,
+         * violations never kill the process unless a death threshold is set.
+         */
+        public Builder thresholds(int eventThreshold, int deathThreshold) {
+            mEventThreshold = disabledIfZero(eventThreshold);
+            mDeathThreshold = disabledIfZero(deathThreshold);
+            return this;
+        }
+
+        /**
+         * Thresholds of the scope which override default ones.
+         */
+        public Builder scopeThresholds(@NonNull String scope, int eventThreshold, int deathThreshold) {
+            mScopeThresholds.put(scope, new int[]{disabledIfZero(eventThreshold), disabledIfZero(deathThreshold)});
+            return this;
+        }
+
+        /**
+         * Time without violations over budget after which the policy moves one level down.
+         * Default is five minutes.
+         */
+        public Builder quietPeriod(long quietPeriodMillis) {
+            if (quietPeriodMillis <= 0) {
+                throw new IllegalArgumentException("quietPeriodMillis must be positive");
+            }
+            mQuietPeriodMillis = quietPeriodMillis;
+            return this;
+        }
+
+        /**
+         * How to find the scope of a violation. Default is the path of sections
+         * from {@link StrictModeCompat#beginSection(String)}.
+         */
+        public Builder scopeResolver(@NonNull ScopeResolver resolver) {
+            mScopeResolver = resolver;
+            return this;
+        }
+
+        public Builder listener(@NonNull OnEscalationListener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        public PenaltyEscalation build() {
+            return new PenaltyEscalation(this);
+        }
+
+        private static int disabledIfZero(int threshold) {
+            return threshold > 0 ? threshold : DISABLED;
+        }
+    }
+}
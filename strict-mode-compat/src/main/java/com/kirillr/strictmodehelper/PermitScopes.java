@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.StrictMode;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+/**
+ * Runtime part of {@code @PermitDiskReads}, {@code @PermitDiskWrites} and {@code @PermitNetwork}.
+ * Calls are inserted by the build time transform around annotated methods:
+ *
+ * <pre>
+ * StrictMode.ThreadPolicy old = PermitScopes.enter(PermitScopes.DISK_READS);
+ * try {
+ *     // method body
+ * } finally {
+ *     PermitScopes.exit(old);
+ * }
+ * </pre>
+ * <p>
+ * Disk only scopes use {@link StrictMode#allowThreadDiskReads()} and
+ * {@link StrictMode#allowThreadDiskWrites()}. Scopes with network derive the relaxed
+ * policy from the current one, because the platform has no shortcut for it. Derived policies are cached
+ * per instance of the base policy, since the instance carries the listener. {@link StrictMode#getThreadPolicy()}
+ * returns a new instance on every call, so the instance set by
+ * {@link StrictModeCompat#setThreadPolicy(StrictMode.ThreadPolicy)} is remembered per thread and used
+ * while the mask of the thread still matches it. Other policies are derived without the cache.
+ * A direct {@link StrictMode#setThreadPolicy(StrictMode.ThreadPolicy)} call which changes only
+ * the listener isn't visible in the mask, set such policies with {@link StrictModeCompat}.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+public final class PermitScopes {
+
+    public static final int DISK_READS = 1;
+    public static final int DISK_WRITES = 1 << 1;
+    public static final int NETWORK = 1 << 2;
+
+    // Policy set on the thread through StrictModeCompat
+    private static final ThreadLocal<Applied> sApplied = new ThreadLocal<>();
+
+    // Base policy -> policies derived from it, indexed by permits, guarded by itself
+    private static final Map<StrictMode.ThreadPolicy, StrictMode.ThreadPolicy[]> sDerived = new WeakHashMap<>();
+
+    private PermitScopes() {
+    }
+
+    /**
+     * Relax the current thread policy.
+     *
+     * @param permits combination of {@link #DISK_READS}, {@link #DISK_WRITES} and {@link #NETWORK}
+     * @return the old policy to pass to {@link #exit(StrictMode.ThreadPolicy)}
+     */
+    @NonNull
+    public static StrictMode.ThreadPolicy enter(int permits) {
+        if (permits == DISK_READS) {
+            return StrictMode.allowThreadDiskReads();
+        }
+        if (permits == DISK_WRITES || permits == (DISK_READS | DISK_WRITES)) {
+            return StrictMode.allowThreadDiskWrites();
+        }
+
+        StrictMode.ThreadPolicy current = StrictMode.getThreadPolicy();
+        Applied applied = sApplied.get();
+        if (applied == null || !applied.description.equals(current.toString())) {
+            // Set directly through StrictMode, the instance isn't known
+            StrictMode.setThreadPolicy(build(current, permits));
+            return current;
+        }
+        StrictMode.setThreadPolicy(permit(applied.policy, permits));
+        return applied.policy;
+    }
+
+    /**
+     * Restore the policy returned by {@link #enter(int)}.
+     */
+    public static void exit(@NonNull StrictMode.ThreadPolicy old) {
+        StrictMode.setThreadPolicy(old);
+    }
+
+    /**
+     * Called by {@link StrictModeCompat#setThreadPolicy(StrictMode.ThreadPolicy)}.
+     */
+    static void onSetThreadPolicy(@NonNull StrictMode.ThreadPolicy policy) {
+        Applied applied = sApplied.get();
+        if (applied == null || applied.policy != policy) {
+            sApplied.set(new Applied(policy));
+        }
+    }
+
+    @NonNull
+    private static StrictMode.ThreadPolicy permit(@NonNull StrictMode.ThreadPolicy base, int permits) {
+        synchronized (sDerived) {
+            StrictMode.ThreadPolicy[] derived = sDerived.get(base);
+            if (derived == null) {
+                derived = new StrictMode.ThreadPolicy[(DISK_READS | DISK_WRITES | NETWORK) + 1];
+                sDerived.put(base, derived);
+            }
+            StrictMode.ThreadPolicy policy = derived[permits];
+            if (policy == null) {
+                policy = build(base, permits);
+                derived[permits] = policy;
+            }
+            return policy;
+        }
+    }
+
+    @NonNull
+    private static StrictMode.ThreadPolicy build(@NonNull StrictMode.ThreadPolicy base, int permits) {
+        StrictModeCompat.ThreadPolicy.Builder builder = new StrictModeCompat.ThreadPolicy.Builder(base);
+        if ((permits & DISK_READS) != 0) {
+            builder.permitDiskReads();
+        }
+        if ((permits & DISK_WRITES) != 0) {
+            builder.permitDiskWrites();
+        }
+        if ((permits & NETWORK) != 0) {
+            builder.permitNetwork();
+        }
+        return builder.build();
+    }
+
+    private static final class Applied {
+
+        @NonNull
+        final StrictMode.ThreadPolicy policy;
+
+        // Mask of the policy, compared with the policy of the thread
+        @NonNull
+        final String description;
+
+        Applied(@NonNull StrictMode.ThreadPolicy policy) {
+            this.policy = policy;
+            description = policy.toString();
+        }
+    }
+}
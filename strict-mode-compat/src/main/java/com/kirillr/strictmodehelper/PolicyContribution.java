@@ -0,0 +1,373 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.kirillr.strictmodehelper.PolicyFlags.*;
+
+/**
+ * Part of StrictMode policies requested by a single module.
+ *
+ * @see PolicyRegistry#contribute(String, PolicyContribution)
+ */
+public final class PolicyContribution {
+
+    final int threadDetects;
+    final int threadPenalties;
+    final int vmDetects;
+    final int vmPenalties;
+    final int priority;
+
+    @Nullable
+    final Executor threadListenerExecutor;
+    @Nullable
+    final StrictModeCompat.OnThreadViolationListener threadListener;
+    @Nullable
+    final Executor vmListenerExecutor;
+    @Nullable
+    final StrictModeCompat.OnVmViolationListener vmListener;
+    @Nullable
+    final Executor threadInfoListenerExecutor;
+    @Nullable
+    final StrictModeCompat.OnViolationInfoListener threadInfoListener;
+    @Nullable
+    final Executor vmInfoListenerExecutor;
+    @Nullable
+    final StrictModeCompat.OnViolationInfoListener vmInfoListener;
+
+    @NonNull
+    final Map<Class<?>, Integer> classInstanceLimits;
+
+    private PolicyContribution(@NonNull Builder builder) {
+        threadDetects = builder.mThreadDetects;
+        threadPenalties = builder.mThreadPenalties;
+        vmDetects = builder.mVmDetects;
+        vmPenalties = builder.mVmPenalties;
+        priority = builder.mPriority;
+        threadListenerExecutor = builder.mThreadListenerExecutor;
+        threadListener = builder.mThreadListener;
+        vmListenerExecutor = builder.mVmListenerExecutor;
+        vmListener = builder.mVmListener;
+        threadInfoListenerExecutor = builder.mThreadInfoListenerExecutor;
+        threadInfoListener = builder.mThreadInfoListener;
+        vmInfoListenerExecutor = builder.mVmInfoListenerExecutor;
+        vmInfoListener = builder.mVmInfoListener;
+        classInstanceLimits = Collections.unmodifiableMap(new HashMap<>(builder.mClassInstanceLimits));
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PolicyContribution)) {
+            return false;
+        }
+
+        PolicyContribution other = (PolicyContribution) o;
+        return threadDetects == other.threadDetects
+                && threadPenalties == other.threadPenalties
+                && vmDetects == other.vmDetects
+                && vmPenalties == other.vmPenalties
+                && priority == other.priority
+                && threadListenerExecutor == other.threadListenerExecutor
+                && threadListener == other.threadListener
+                && vmListenerExecutor == other.vmListenerExecutor
+                && vmListener == other.vmListener
+                && threadInfoListenerExecutor == other.threadInfoListenerExecutor
+                && threadInfoListener == other.threadInfoListener
+                && vmInfoListenerExecutor == other.vmInfoListenerExecutor
+                && vmInfoListener == other.vmInfoListener
+                && classInstanceLimits.equals(other.classInstanceLimits);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = threadDetects;
+        result = 31 * result + threadPenalties;
+        result = 31 * result + vmDetects;
+        result = 31 * result + vmPenalties;
+        result = 31 * result + priority;
+        result = 31 * result + System.identityHashCode(threadListener);
+        result = 31 * result + System.identityHashCode(vmListener);
+        result = 31 * result + System.identityHashCode(threadInfoListener);
+        result = 31 * result + System.identityHashCode(vmInfoListener);
+        result = 31 * result + classInstanceLimits.hashCode();
+        return result;
+    }
+
+    /**
+     * Detectors and penalties of all contributions are combined. Death penalties conflict with
+     * the non-fatal ones of other contributions, they are taken only from the contributions with
+     * the highest priority among those which set penalties of that policy. Class instance limits
+     * are combined, the lowest limit of a class wins. Listeners of all contributions are called.
+     * <p>
+     * The merged thread policy is applied only to the thread which called {@link PolicyRegistry#install()}.
+     */
+    public static final class Builder {
+
+        private int mThreadDetects;
+        private int mThreadPenalties;
+        private int mVmDetects;
+        private int mVmPenalties;
+        private int mPriority;
+
+        @Nullable
+        private Executor mThreadListenerExecutor;
+        @Nullable
+        private StrictModeCompat.OnThreadViolationListener mThreadListener;
+        @Nullable
+        private Executor mVmListenerExecutor;
+        @Nullable
+        private StrictModeCompat.OnVmViolationListener mVmListener;
+        @Nullable
+        private Executor mThreadInfoListenerExecutor;
+        @Nullable
+        private StrictModeCompat.OnViolationInfoListener mThreadInfoListener;
+        @Nullable
+        private Executor mVmInfoListenerExecutor;
+        @Nullable
+        private StrictModeCompat.OnViolationInfoListener mVmInfoListener;
+
+        private final Map<Class<?>, Integer> mClassInstanceLimits = new HashMap<>();
+
+        /**
+         * Priority of death penalties of this contribution over non-fatal penalties
+         * of other contributions. Default is 0.
+         */
+        public Builder priority(int priority) {
+            mPriority = priority;
+            return this;
+        }
+
+        public Builder detectCustomSlowCalls() {
+            mThreadDetects |= THREAD_DETECT_CUSTOM_SLOW_CALLS;
+            return this;
+        }
+
+        public Builder detectDiskReads() {
+            mThreadDetects |= THREAD_DETECT_DISK_READS;
+            return this;
+        }
+
+        public Builder detectDiskWrites() {
+            mThreadDetects |= THREAD_DETECT_DISK_WRITES;
+            return this;
+        }
+
+        public Builder detectNetwork() {
+            mThreadDetects |= THREAD_DETECT_NETWORK;
+            return this;
+        }
+
+        public Builder detectResourceMismatches() {
+            mThreadDetects |= THREAD_DETECT_RESOURCE_MISMATCHES;
+            return this;
+        }
+
+        public Builder detectUnbufferedIo() {
+            mThreadDetects |= THREAD_DETECT_UNBUFFERED_IO;
+            return this;
+        }
+
+        public Builder threadPenaltyDeath() {
+            mThreadPenalties |= THREAD_PENALTY_DEATH;
+            return this;
+        }
+
+        public Builder threadPenaltyDeathOnNetwork() {
+            mThreadPenalties |= THREAD_PENALTY_DEATH_ON_NETWORK;
+            return this;
+        }
+
+        public Builder threadPenaltyDialog() {
+            mThreadPenalties |= THREAD_PENALTY_DIALOG;
+            return this;
+        }
+
+        public Builder threadPenaltyDropBox() {
+            mThreadPenalties |= THREAD_PENALTY_DROPBOX;
+            return this;
+        }
+
+        public Builder threadPenaltyFlashScreen() {
+            mThreadPenalties |= THREAD_PENALTY_FLASH_SCREEN;
+            return this;
+        }
+
+        public Builder threadPenaltyLog() {
+            mThreadPenalties |= THREAD_PENALTY_LOG;
+            return this;
+        }
+
+        /**
+         * Listener of thread violations. Listeners of all contributions are called.
+         */
+        public Builder threadPenaltyListener(
+                @NonNull Executor executor,
+                @NonNull StrictModeCompat.OnThreadViolationListener listener
+        ) {
+            mThreadListenerExecutor = executor;
+            mThreadListener = listener;
+            return this;
+        }
+
+        /**
+         * Listener of thread violations with their context. Listeners of all contributions are called.
+         *
+         * @see StrictModeCompat.ThreadPolicy.Builder#penaltyInfoListener(Executor, StrictModeCompat.OnViolationInfoListener)
+         */
+        public Builder threadPenaltyInfoListener(
+                @NonNull Executor executor,
+                @NonNull StrictModeCompat.OnViolationInfoListener listener
+        ) {
+            mThreadInfoListenerExecutor = executor;
+            mThreadInfoListener = listener;
+            return this;
+        }
+
+        public Builder detectActivityLeaks() {
+            mVmDetects |= VM_DETECT_ACTIVITY_LEAKS;
+            return this;
+        }
+
+        public Builder detectCleartextNetwork() {
+            mVmDetects |= VM_DETECT_CLEARTEXT_NETWORK;
+            return this;
+        }
+
+        public Builder detectContentUriWithoutPermission() {
+            mVmDetects |= VM_DETECT_CONTENT_URI_WITHOUT_PERMISSION;
+            return this;
+        }
+
+        public Builder detectFileUriExposure() {
+            mVmDetects |= VM_DETECT_FILE_URI_EXPOSURE;
+            return this;
+        }
+
+        public Builder detectLeakedClosableObjects() {
+            mVmDetects |= VM_DETECT_LEAKED_CLOSABLE_OBJECTS;
+            return this;
+        }
+
+        public Builder detectLeakedRegistrationObjects() {
+            mVmDetects |= VM_DETECT_LEAKED_REGISTRATION_OBJECTS;
+            return this;
+        }
+
+        public Builder detectLeakedSqlLiteObjects() {
+            mVmDetects |= VM_DETECT_LEAKED_SQL_LITE_OBJECTS;
+            return this;
+        }
+
+        public Builder detectNonSdkApiUsage() {
+            mVmDetects |= VM_DETECT_NON_SDK_API_USAGE;
+            return this;
+        }
+
+        public Builder detectUntaggedSockets() {
+            mVmDetects |= VM_DETECT_UNTAGGED_SOCKETS;
+            return this;
+        }
+
+        public Builder detectImplicitDirectBoot() {
+            mVmDetects |= VM_DETECT_IMPLICIT_DIRECT_BOOT;
+            return this;
+        }
+
+        public Builder detectCredentialProtectedWhileLocked() {
+            mVmDetects |= VM_DETECT_CREDENTIAL_PROTECTED_WHILE_LOCKED;
+            return this;
+        }
+
+        /**
+         * @see StrictModeCompat.VmPolicy.Builder#setClassInstanceLimit(Class, int)
+         */
+        public Builder setClassInstanceLimit(@NonNull Class<?> klass, @IntRange(from = 0) int instanceLimit) {
+            mClassInstanceLimits.put(klass, instanceLimit);
+            return this;
+        }
+
+        public Builder vmPenaltyDeath() {
+            mVmPenalties |= VM_PENALTY_DEATH;
+            return this;
+        }
+
+        public Builder vmPenaltyDeathOnCleartextNetwork() {
+            mVmPenalties |= VM_PENALTY_DEATH_ON_CLEARTEXT_NETWORK;
+            return this;
+        }
+
+        public Builder vmPenaltyDeathOnFileUriExposure() {
+            mVmPenalties |= VM_PENALTY_DEATH_ON_FILE_URI_EXPOSURE;
+            return this;
+        }
+
+        public Builder vmPenaltyDropBox() {
+            mVmPenalties |= VM_PENALTY_DROPBOX;
+            return this;
+        }
+
+        public Builder vmPenaltyLog() {
+            mVmPenalties |= VM_PENALTY_LOG;
+            return this;
+        }
+
+        /**
+         * Listener of VM violations. Listeners of all contributions are called.
+         */
+        public Builder vmPenaltyListener(
+                @NonNull Executor executor,
+                @NonNull StrictModeCompat.OnVmViolationListener listener
+        ) {
+            mVmListenerExecutor = executor;
+            mVmListener = listener;
+            return this;
+        }
+
+        /**
+         * Listener of VM violations with their context. Listeners of all contributions are called.
+         *
+         * @see StrictModeCompat.VmPolicy.Builder#penaltyInfoListener(Executor, StrictModeCompat.OnViolationInfoListener)
+         */
+        public Builder vmPenaltyInfoListener(
+                @NonNull Executor executor,
+                @NonNull StrictModeCompat.OnViolationInfoListener listener
+        ) {
+            mVmInfoListenerExecutor = executor;
+            mVmInfoListener = listener;
+            return this;
+        }
+
+        public PolicyContribution build() {
+            return new PolicyContribution(this);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.StrictMode;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+/**
+ * Bit sets of detectors and penalties, used where policies are merged or rebuilt by the library.
+ * Built {@link StrictMode.ThreadPolicy} and {@link StrictMode.VmPolicy} can't be inspected,
+ * so the library keeps their description as flags and builds policies from it.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class PolicyFlags {
+
+    static final int THREAD_DETECT_CUSTOM_SLOW_CALLS = 1;
+    static final int THREAD_DETECT_DISK_READS = 1 << 1;
+    static final int THREAD_DETECT_DISK_WRITES = 1 << 2;
+    static final int THREAD_DETECT_NETWORK = 1 << 3;
+    static final int THREAD_DETECT_RESOURCE_MISMATCHES = 1 << 4;
+    static final int THREAD_DETECT_UNBUFFERED_IO = 1 << 5;
+
+    static final int THREAD_PENALTY_DEATH = 1;
+    static final int THREAD_PENALTY_DEATH_ON_NETWORK = 1 << 1;
+    static final int THREAD_PENALTY_DIALOG = 1 << 2;
+    static final int THREAD_PENALTY_DROPBOX = 1 << 3;
+    static final int THREAD_PENALTY_FLASH_SCREEN = 1 << 4;
+    static final int THREAD_PENALTY_LOG = 1 << 5;
+    static final int THREAD_PENALTIES_DEATH = THREAD_PENALTY_DEATH | THREAD_PENALTY_DEATH_ON_NETWORK;
+
+    static final int VM_DETECT_ACTIVITY_LEAKS = 1;
+    static final int VM_DETECT_CLEARTEXT_NETWORK = 1 << 1;
+    static final int VM_DETECT_CONTENT_URI_WITHOUT_PERMISSION = 1 << 2;
+    static final int VM_DETECT_FILE_URI_EXPOSURE = 1 << 3;
+    static final int VM_DETECT_LEAKED_CLOSABLE_OBJECTS = 1 << 4;
+    static final int VM_DETECT_LEAKED_REGISTRATION_OBJECTS = 1 << 5;
+    static final int VM_DETECT_LEAKED_SQL_LITE_OBJECTS = 1 << 6;
+    static final int VM_DETECT_NON_SDK_API_USAGE = 1 << 7;
+    static final int VM_DETECT_UNTAGGED_SOCKETS = 1 << 8;
+    static final int VM_DETECT_IMPLICIT_DIRECT_BOOT = 1 << 9;
+    static final int VM_DETECT_CREDENTIAL_PROTECTED_WHILE_LOCKED = 1 << 10;
+
+    static final int VM_PENALTY_DEATH = 1;
+    static final int VM_PENALTY_DEATH_ON_CLEARTEXT_NETWORK = 1 << 1;
+    static final int VM_PENALTY_DEATH_ON_FILE_URI_EXPOSURE = 1 << 2;
+    static final int VM_PENALTY_DROPBOX = 1 << 3;
+    static final int VM_PENALTY_LOG = 1 << 4;
+    static final int VM_PENALTIES_DEATH = VM_PENALTY_DEATH
+            | VM_PENALTY_DEATH_ON_CLEARTEXT_NETWORK
+            | VM_PENALTY_DEATH_ON_FILE_URI_EXPOSURE;
+
+    private PolicyFlags() {
+    }
+
+    /**
+     * Thread policy builder with detectors and penalties from flags.
+     */
+    @NonNull
+    static StrictModeCompat.ThreadPolicy.Builder threadPolicyBuilder(int detects, int penalties) {
+        StrictModeCompat.ThreadPolicy.Builder builder = new StrictModeCompat.ThreadPolicy.Builder();
+        if ((detects & THREAD_DETECT_CUSTOM_SLOW_CALLS) != 0) {
+            builder.detectCustomSlowCalls();
+        }
+        if ((detects & THREAD_DETECT_DISK_READS) != 0) {
+            builder.detectDiskReads();
+        }
+        if ((detects & THREAD_DETECT_DISK_WRITES) != 0) {
+            builder.detectDiskWrites();
+        }
+        if ((detects & THREAD_DETECT_NETWORK) != 0) {
+            builder.detectNetwork();
+        }
+        if ((detects & THREAD_DETECT_RESOURCE_MISMATCHES) != 0) {
+            builder.detectResourceMismatches();
+        }
+        if ((detects & THREAD_DETECT_UNBUFFERED_IO) != 0) {
+            builder.detectUnbufferedIo();
+        }
+
+        if ((penalties & THREAD_PENALTY_DEATH) != 0) {
+            builder.penaltyDeath();
+        }
+        if ((penalties & THREAD_PENALTY_DEATH_ON_NETWORK) != 0) {
+            builder.penaltyDeathOnNetwork();
+        }
+        if ((penalties & THREAD_PENALTY_DIALOG) != 0) {
+            builder.penaltyDialog();
+        }
+        if ((penalties & THREAD_PENALTY_DROPBOX) != 0) {
+            builder.penaltyDropBox();
+        }
+        if ((penalties & THREAD_PENALTY_FLASH_SCREEN) != 0) {
+            builder.penaltyFlashScreen();
+        }
+        if ((penalties & THREAD_PENALTY_LOG) != 0) {
+            builder.penaltyLog();
+        }
+        return builder;
+    }
+
+    /**
+     * VM policy builder with detectors and penalties from flags.
+     */
+    @NonNull
+    static StrictModeCompat.VmPolicy.Builder vmPolicyBuilder(int detects, int penalties) {
+        StrictModeCompat.VmPolicy.Builder builder = new StrictModeCompat.VmPolicy.Builder();
+        if ((detects & VM_DETECT_ACTIVITY_LEAKS) != 0) {
+            builder.detectActivityLeaks();
+        }
+        if ((detects & VM_DETECT_CLEARTEXT_NETWORK) != 0) {
+            builder.detectCleartextNetwork();
+        }
+        if ((detects & VM_DETECT_CONTENT_URI_WITHOUT_PERMISSION) != 0) {
+            builder.detectContentUriWithoutPermission();
+        }
+        if ((detects & VM_DETECT_FILE_URI_EXPOSURE) != 0) {
+            builder.detectFileUriExposure();
+        }
+        if ((detects & VM_DETECT_LEAKED_CLOSABLE_OBJECTS) != 0) {
+            builder.detectLeakedClosableObjects();
+        }
+        if ((detects & VM_DETECT_LEAKED_REGISTRATION_OBJECTS) != 0) {
+            builder.detectLeakedRegistrationObjects();
+        }
+        if ((detects & VM_DETECT_LEAKED_SQL_LITE_OBJECTS) != 0) {
+            builder.detectLeakedSqlLiteObjects();
+        }
+        if ((detects & VM_DETECT_NON_SDK_API_USAGE) != 0) {
+            builder.detectNonSdkApiUsage();
+        }
+        if ((detects & VM_DETECT_UNTAGGED_SOCKETS) != 0) {
+            builder.detectUntaggedSockets();
+        }
+        if ((detects & VM_DETECT_IMPLICIT_DIRECT_BOOT) != 0) {
+            builder.detectImplicitDirectBoot();
+        }
+        if ((detects & VM_DETECT_CREDENTIAL_PROTECTED_WHILE_LOCKED) != 0) {
+            builder.detectCredentialProtectedWhileLocked();
+        }
+
+        if ((penalties & VM_PENALTY_DEATH) != 0) {
+            builder.penaltyDeath();
+        }
+        if ((penalties & VM_PENALTY_DEATH_ON_CLEARTEXT_NETWORK) != 0) {
+            builder.penaltyDeathOnCleartextNetwork();
+        }
+        if ((penalties & VM_PENALTY_DEATH_ON_FILE_URI_EXPOSURE) != 0) {
+            builder.penaltyDeathOnFileUriExposure();
+        }
+        if ((penalties & VM_PENALTY_DROPBOX) != 0) {
+            builder.penaltyDropBox();
+        }
+        if ((penalties & VM_PENALTY_LOG) != 0) {
+            builder.penaltyLog();
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.StrictMode;
+import android.os.strictmode.Violation;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Merges policies contributed by several modules into one effective policy.
+ * <p>
+ * Modules call {@link #contribute(String, PolicyContribution)} during their initialization instead of
+ * setting policies directly. The app calls {@link #install()} once, after that the merged policies are
+ * applied and reapplied only when a contribution changes the result. The merged thread policy is
+ * applied only to the thread which called {@link #install()}, other threads keep their own policies.
+ */
+public final class PolicyRegistry {
+
+    private static final String TAG = "StrictModeCompat";
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final int THREAD_POLICY_CACHE_SIZE = 4;
+
+    private static final Object sLock = new Object();
+
+    // Contributions in order of registration
+    private static final Map<String, PolicyContribution> sContributions = new LinkedHashMap<>();
+
+    private static boolean sInstalled;
+
+    @Nullable
+    private static Looper sLooper;
+
+    // Read without the lock by hooks of StrictModeCompat on any thread
+    @Nullable
+    private static volatile Thread sThread;
+
+    @Nullable
+    private static Merged sApplied;
+
+    @Nullable
+    private static volatile String sAppliedThreadPolicy;
+
+    @Nullable
+    private static volatile String sAppliedVmPolicy;
+
+    private static volatile boolean sApplying;
+
+    // Recently built thread policies, the latest first. Contributions toggled often,
+    // like UiPhases, switch between cached policies.
+    private static final List<BuiltThreadPolicy> sBuiltThreadPolicies = new ArrayList<>(THREAD_POLICY_CACHE_SIZE);
+
+    @NonNull
+    private static OnOverwriteListener sOverwriteListener = new OnOverwriteListener() {
+
+        @Override
+        public void onPolicyOverwritten(boolean threadPolicy, @Nullable Throwable callSite) {
+            Log.w(TAG, (threadPolicy ? "Thread" : "VM") + " policy merged by PolicyRegistry was overwritten", callSite);
+        }
+    };
+
+    private PolicyRegistry() {
+    }
+
+    /**
+     * Add or replace the contribution of the module. Merged policies are reapplied only if they change.
+     */
+    public static void contribute(@NonNull String module, @NonNull PolicyContribution contribution) {
+        synchronized (sLock) {
+            if (contribution.equals(sContributions.get(module))) {
+                return;
+            }
+            sContributions.put(module, contribution);
+            applyIfChangedLocked();
+        }
+    }
+
+    /**
+     * Remove the contribution of the module.
+     */
+    public static void remove(@NonNull String module) {
+        synchronized (sLock) {
+            if (sContributions.remove(module) != null) {
+                applyIfChangedLocked();
+            }
+        }
+    }
+
+    /**
+     * Apply merged policies to the current thread and the VM. Only the current thread gets
+     * the merged thread policy, now and when contributions change later.
+     */
+    public static void install() {
+        install(false);
+    }
+
+    /**
+     * Apply merged policies to the current thread and the VM. Only the current thread gets
+     * the merged thread policy, now and when contributions change later.
+     *
+     * @param detectDirectOverwrites when the current thread has a {@link Looper}, compare policies
+     *                               with the merged ones every time the thread becomes idle to find
+     *                               direct {@link StrictMode} calls which overwrite them.
+     */
+    public static void install(boolean detectDirectOverwrites) {
+        Looper looper = Looper.myLooper();
+        synchronized (sLock) {
+            if (sInstalled) {
+                return;
+            }
+            sInstalled = true;
+            sThread = Thread.currentThread();
+            sLooper = looper;
+            applyIfChangedLocked();
+        }
+
+        if (detectDirectOverwrites && looper != null) {
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+
+                @Override
+                public boolean queueIdle() {
+                    checkDirectOverwrites();
+                    return true;
+                }
+            });
+        }
+    }
+
+    public static void setOnOverwriteListener(@NonNull OnOverwriteListener listener) {
+        sOverwriteListener = listener;
+    }
+
+    /**
+     * Called by {@link StrictModeCompat#setThreadPolicy(StrictMode.ThreadPolicy)}.
+     */
+    static void onSetThreadPolicy(@NonNull StrictMode.ThreadPolicy policy) {
+        String applied = sAppliedThreadPolicy;
+        if (applied == null || sApplying || Thread.currentThread() != sThread) {
+            return;
+        }
+        // Restoring of the merged policy after a permit block isn't an overwrite
+        if (!applied.equals(policy.toString())) {
+            sOverwriteListener.onPolicyOverwritten(true, new Throwable("Thread policy set here"));
+        }
+    }
+
+    /**
+     * Called by {@link StrictModeCompat#setVmPolicy(StrictMode.VmPolicy)}.
+     */
+    static void onSetVmPolicy(@NonNull StrictMode.VmPolicy policy) {
+        String applied = sAppliedVmPolicy;
+        if (applied == null || sApplying) {
+            return;
+        }
+        if (!applied.equals(policy.toString())) {
+            sOverwriteListener.onPolicyOverwritten(false, new Throwable("VM policy set here"));
+        }
+    }
+
+    private static void checkDirectOverwrites() {
+        String appliedThreadPolicy = sAppliedThreadPolicy;
+        if (appliedThreadPolicy != null && !appliedThreadPolicy.equals(StrictMode.getThreadPolicy().toString())) {
+            sAppliedThreadPolicy = null;
+            sOverwriteListener.onPolicyOverwritten(true, null);
+        }
+
+        String appliedVmPolicy = sAppliedVmPolicy;
+        if (appliedVmPolicy != null && !appliedVmPolicy.equals(StrictMode.getVmPolicy().toString())) {
+            sAppliedVmPolicy = null;
+            sOverwriteListener.onPolicyOverwritten(false, null);
+        }
+    }
+
+    private static void applyIfChangedLocked() {
+        if (!sInstalled) {
+            return;
+        }
+
+        final Merged merged = merge(new ArrayList<>(sContributions.values()));
+        final Merged applied = sApplied;
+        if (merged.equals(applied)) {
+            return;
+        }
+        sApplied = merged;
+
+        if (applied == null || !merged.sameVmPolicy(applied)) {
+            StrictMode.VmPolicy policy = merged.buildVmPolicy();
+            sApplying = true;
+            try {
+                StrictModeCompat.setVmPolicy(policy);
+            } finally {
+                sApplying = false;
+            }
+            sAppliedVmPolicy = policy.toString();
+        }
+
+        if (applied == null || !merged.sameThreadPolicy(applied)) {
+            if (Thread.currentThread() == sThread || sLooper == null) {
+                applyThreadPolicy(merged);
+            } else {
+                new Handler(sLooper).post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        synchronized (sLock) {
+                            // A newer merge could be applied already
+                            if (sApplied == merged) {
+                                applyThreadPolicy(merged);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static void applyThreadPolicy(@NonNull Merged merged) {
+        BuiltThreadPolicy built = builtThreadPolicy(merged);
+        sApplying = true;
+        try {
+            StrictModeCompat.setThreadPolicy(built.policy);
+        } finally {
+            sApplying = false;
+        }
+        sAppliedThreadPolicy = built.description;
+    }
+
+    @NonNull
+    private static BuiltThreadPolicy builtThreadPolicy(@NonNull Merged merged) {
+        for (int i = 0; i < sBuiltThreadPolicies.size(); i++) {
+            BuiltThreadPolicy built = sBuiltThreadPolicies.get(i);
+            if (built.merged.sameThreadPolicy(merged)) {
+                sBuiltThreadPolicies.remove(i);
+                sBuiltThreadPolicies.add(0, built);
+                return built;
+            }
+        }
+        BuiltThreadPolicy built = new BuiltThreadPolicy(merged, merged.buildThreadPolicy());
+        if (sBuiltThreadPolicies.size() == THREAD_POLICY_CACHE_SIZE) {
+            sBuiltThreadPolicies.remove(THREAD_POLICY_CACHE_SIZE - 1);
+        }
+        sBuiltThreadPolicies.add(0, built);
+        return built;
+    }
+
+    /**
+     * Detectors and penalties are combined. Death penalties are taken only from the contributions
+     * with the highest priority among those which set penalties, a contribution with only non-fatal
+     * penalties and a higher priority turns them off.
+     */
+    @NonNull
+    private static Merged merge(@NonNull List<PolicyContribution> contributions) {
+        Merged merged = new Merged();
+        int threadPenaltyPriority = Integer.MIN_VALUE;
+        int vmPenaltyPriority = Integer.MIN_VALUE;
+        int threadDeath = 0;
+        int vmDeath = 0;
+        for (PolicyContribution contribution : contributions) {
+            merged.threadDetects |= contribution.threadDetects;
+            merged.vmDetects |= contribution.vmDetects;
+            merged.threadPenalties |= contribution.threadPenalties & ~PolicyFlags.THREAD_PENALTIES_DEATH;
+            merged.vmPenalties |= contribution.vmPenalties & ~PolicyFlags.VM_PENALTIES_DEATH;
+            if (contribution.threadPenalties != 0) {
+                int death = contribution.threadPenalties & PolicyFlags.THREAD_PENALTIES_DEATH;
+                if (contribution.priority > threadPenaltyPriority) {
+                    threadPenaltyPriority = contribution.priority;
+                    threadDeath = death;
+                } else if (contribution.priority == threadPenaltyPriority) {
+                    threadDeath |= death;
+                }
+            }
+            if (contribution.vmPenalties != 0) {
+                int death = contribution.vmPenalties & PolicyFlags.VM_PENALTIES_DEATH;
+                if (contribution.priority > vmPenaltyPriority) {
+                    vmPenaltyPriority = contribution.priority;
+                    vmDeath = death;
+                } else if (contribution.priority == vmPenaltyPriority) {
+                    vmDeath |= death;
+                }
+            }
+            if (contribution.threadListener != null) {
+                merged.threadListeners.add(contribution);
+            }
+            if (contribution.vmListener != null) {
+                merged.vmListeners.add(contribution);
+            }
+            if (contribution.threadInfoListener != null) {
+                merged.threadInfoListeners.add(contribution);
+            }
+            if (contribution.vmInfoListener != null) {
+                merged.vmInfoListeners.add(contribution);
+            }
+            for (Map.Entry<Class<?>, Integer> limit : contribution.classInstanceLimits.entrySet()) {
+                Integer current = merged.classInstanceLimits.get(limit.getKey());
+                if (current == null || limit.getValue() < current) {
+                    merged.classInstanceLimits.put(limit.getKey(), limit.getValue());
+                }
+            }
+        }
+        merged.threadPenalties |= threadDeath;
+        merged.vmPenalties |= vmDeath;
+        return merged;
+    }
+
+    /**
+     * Called when a policy merged by the registry is replaced by somebody else.
+     */
+    public interface OnOverwriteListener {
+
+        /**
+         * @param threadPolicy {@code true} for the thread policy, {@code false} for the VM policy
+         * @param callSite     stack of the call if it was made through {@link StrictModeCompat},
+         *                     {@code null} for direct {@link StrictMode} calls
+         */
+        void onPolicyOverwritten(boolean threadPolicy, @Nullable Throwable callSite);
+    }
+
+    private static final class BuiltThreadPolicy {
+
+        @NonNull
+        final Merged merged;
+
+        @NonNull
+        final StrictMode.ThreadPolicy policy;
+
+        // Compared with the current policy to find overwrites
+        @NonNull
+        final String description;
+
+        BuiltThreadPolicy(@NonNull Merged merged, @NonNull StrictMode.ThreadPolicy policy) {
+            this.merged = merged;
+            this.policy = policy;
+            description = policy.toString();
+        }
+    }
+
+    private static final class Merged {
+
+        int threadDetects;
+        int threadPenalties;
+        int vmDetects;
+        int vmPenalties;
+        final List<PolicyContribution> threadListeners = new ArrayList<>();
+        final List<PolicyContribution> vmListeners = new ArrayList<>();
+        final List<PolicyContribution> threadInfoListeners = new ArrayList<>();
+        final List<PolicyContribution> vmInfoListeners = new ArrayList<>();
+        final Map<Class<?>, Integer> classInstanceLimits = new HashMap<>();
+
+        boolean sameThreadPolicy(@NonNull Merged other) {
+            return threadDetects == other.threadDetects
+                    && threadPenalties == other.threadPenalties
+                    && threadListeners.equals(other.threadListeners)
+                    && threadInfoListeners.equals(other.threadInfoListeners);
+        }
+
+        boolean sameVmPolicy(@NonNull Merged other) {
+            return vmDetects == other.vmDetects
+                    && vmPenalties == other.vmPenalties
+                    && vmListeners.equals(other.vmListeners)
+                    && vmInfoListeners.equals(other.vmInfoListeners)
+                    && classInstanceLimits.equals(other.classInstanceLimits);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Merged && sameThreadPolicy((Merged) o) && sameVmPolicy((Merged) o);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * threadDetects + threadPenalties) + 31 * vmDetects + vmPenalties;
+        }
+
+        @NonNull
+        StrictMode.ThreadPolicy buildThreadPolicy() {
+            StrictModeCompat.OnThreadViolationListener listener = null;
+            if (!threadListeners.isEmpty()) {
+                final List<PolicyContribution> listeners = threadListeners;
+                listener = new StrictModeCompat.OnThreadViolationListener() {
+
+                    @Override
+                    public void onThreadViolation(@NonNull final Violation violation) {
+                        for (final PolicyContribution contribution : listeners) {
+                            contribution.threadListenerExecutor.execute(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    contribution.threadListener.onThreadViolation(violation);
+                                }
+                            });
+                        }
+                    }
+                };
+            }
+            StrictModeCompat.ThreadPolicy.Builder builder = PolicyFlags.threadPolicyBuilder(threadDetects, threadPenalties);
+            if (listener != null) {
+                builder.penaltyListener(DIRECT_EXECUTOR, listener);
+            }
+            if (!threadInfoListeners.isEmpty()) {
+                builder.penaltyInfoListener(DIRECT_EXECUTOR, infoListener(threadInfoListeners, true));
+            }
+            return builder.build();
+        }
+
+        @NonNull
+        StrictMode.VmPolicy buildVmPolicy() {
+            StrictModeCompat.OnVmViolationListener listener = null;
+            if (!vmListeners.isEmpty()) {
+                final List<PolicyContribution> listeners = vmListeners;
+                listener = new StrictModeCompat.OnVmViolationListener() {
+
+                    @Override
+                    public void onVmViolation(@NonNull final Violation violation) {
+                        for (final PolicyContribution contribution : listeners) {
+                            contribution.vmListenerExecutor.execute(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    contribution.vmListener.onVmViolation(violation);
+                                }
+                            });
+                        }
+                    }
+                };
+            }
+            StrictModeCompat.VmPolicy.Builder builder = PolicyFlags.vmPolicyBuilder(vmDetects, vmPenalties);
+            for (Map.Entry<Class<?>, Integer> limit : classInstanceLimits.entrySet()) {
+                builder.setClassInstanceLimit(limit.getKey(), limit.getValue());
+            }
+            if (listener != null) {
+                builder.penaltyListener(DIRECT_EXECUTOR, listener);
+            }
+            if (!vmInfoListeners.isEmpty()) {
+                builder.penaltyInfoListener(DIRECT_EXECUTOR, infoListener(vmInfoListeners, false));
+            }
+            return builder.build();
+        }
+
+        @NonNull
+        private static StrictModeCompat.OnViolationInfoListener infoListener(
+                @NonNull final List<PolicyContribution> listeners,
+                final boolean threadPolicy
+        ) {
+            return new StrictModeCompat.OnViolationInfoListener() {
+
+                @Override
+                public void onViolation(@NonNull final ViolationInfo info) {
+                    for (final PolicyContribution contribution : listeners) {
+                        Executor executor = threadPolicy
+                                ? contribution.threadInfoListenerExecutor
+                                : contribution.vmInfoListenerExecutor;
+                        executor.execute(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                if (threadPolicy) {
+                                    contribution.threadInfoListener.onViolation(info);
+                                } else {
+                                    contribution.vmInfoListener.onViolation(info);
+                                }
+                            }
+                        });
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import androidx.annotation.FloatRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Decides whether StrictMode policies are enabled in the current session.
+ * <p>
+ * A session is sampled when the stable hash of its key falls into the configured
+ * fraction, so the same key always gives the same decision. Sessions that aren't
+ * sampled get {@link android.os.StrictMode.ThreadPolicy#LAX} and
+ * {@link android.os.StrictMode.VmPolicy#LAX} policies.
+ *
+ * @see StrictModeCompat#setPolicies(android.os.StrictMode.ThreadPolicy, android.os.StrictMode.VmPolicy, SamplingPolicy)
+ */
+public final class SamplingPolicy {
+
+    private static final int BUCKETS = 10000;
+
+    private static volatile float sActiveRate = 1F;
+
+    private final float mRate;
+
+    private final boolean mSessionSampled;
+
+    @Nullable
+    private final ThreadFilter mThreadFilter;
+
+    private SamplingPolicy(@NonNull Builder builder) {
+        mRate = builder.mRate;
+        mThreadFilter = builder.mThreadFilter;
+        mSessionSampled = bucket(builder.mSessionKey) < Math.round(mRate * BUCKETS);
+    }
+
+    /**
+     * Fraction of sessions with enabled policies.
+     */
+    public float getRate() {
+        return mRate;
+    }
+
+    /**
+     * Returns {@code true} if policies are enabled in this session.
+     */
+    public boolean isSessionSampled() {
+        return mSessionSampled;
+    }
+
+    /**
+     * Returns {@code true} if thread policy must be enabled for the thread.
+     */
+    public boolean isThreadSampled(@NonNull Thread thread) {
+        return mSessionSampled && (mThreadFilter == null || mThreadFilter.isSampled(thread));
+    }
+
+    /**
+     * Sampling rate of the policies applied last time, 1 if sampling wasn't used.
+     * Divide aggregated violation counts by it to scale them to the whole population.
+     */
+    public static float getActiveRate() {
+        return sActiveRate;
+    }
+
+    static void setActiveRate(float rate) {
+        sActiveRate = rate;
+    }
+
+    /**
+     * Stable bucket of the key in range [0, {@link #BUCKETS}).
+     * FNV-1a followed by the MurmurHash3 finalizer, so close keys get far buckets.
+     */
+    static int bucket(@NonNull String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, length = key.length(); i < length; i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) ((hash >>> 1) % BUCKETS);
+    }
+
+    /**
+     * Selects threads which get the configured thread policy in a sampled session.
+     */
+    public interface ThreadFilter {
+
+        boolean isSampled(@NonNull Thread thread);
+    }
+
+    public static final class Builder {
+
+        @NonNull
+        private final String mSessionKey;
+
+        private float mRate = 1F;
+
+        @Nullable
+        private ThreadFilter mThreadFilter;
+
+        /**
+         * @param sessionKey stable identifier of the session, for example installation id.
+         *                   Must not change between launches to keep decision stable.
+         */
+        public Builder(@NonNull String sessionKey) {
+            mSessionKey = sessionKey;
+        }
+
+        /**
+         * Fraction of sessions with enabled policies. Default is 1, all sessions.
+         */
+        public Builder rate(@FloatRange(from = 0.0, to = 1.0) float rate) {
+            if (rate < 0F || rate > 1F) {
+                throw new IllegalArgumentException("rate must be in range [0, 1]");
+            }
+            mRate = rate;
+            return this;
+        }
+
+        /**
+         * Enable thread policy only for threads accepted by the filter. By default all threads are accepted.
+         */
+        public Builder threadFilter(@NonNull ThreadFilter filter) {
+            mThreadFilter = filter;
+            return this;
+        }
+
+        public SamplingPolicy build() {
+            return new SamplingPolicy(this);
+        }
+    }
+}
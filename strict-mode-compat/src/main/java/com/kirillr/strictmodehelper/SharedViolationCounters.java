@@ -0,0 +1,644 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Violation counters shared by all processes of the app through a memory-mapped file.
+ * <p>
+ * The file is split into stripes, one per process. A process owns its stripe while it holds
+ * a {@link FileLock} on it, so every slot has a single writing process and no IPC or locks are
+ * needed to count. Inside the process counters are {@link AtomicLongArray} slots which are mirrored
+ * into the mapped stripe after every increment. A stripe left by a dead process keeps its counts,
+ * the next process which takes it continues counting from them.
+ * <p>
+ * Every process opens the same file, usually in {@code Application.onCreate()}:
+ *
+ * <pre>
+ * SharedViolationCounters counters = new SharedViolationCounters.Builder(
+ *         new File(context.getNoBackupFilesDir(), "strict-mode-counters")
+ * ).build();
+ * builder.penaltyInfoListener(executor, counters);
+ * </pre>
+ * <p>
+ * {@link #snapshot()} or {@link #read(File)} combine counters of all processes.
+ */
+public final class SharedViolationCounters implements StrictModeCompat.OnViolationInfoListener, Closeable {
+
+    private static final int MAGIC = 0x534d4343; // SMCC
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int STRIPE_HEADER_SIZE = 64;
+    private static final int TYPE_SLOT_SIZE = 64;
+    private static final int FINGERPRINT_SLOT_SIZE = 16;
+
+    // Header
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_MAX_PROCESSES = 8;
+    private static final int OFFSET_TYPE_SLOTS = 12;
+    private static final int OFFSET_FINGERPRINT_SLOTS = 16;
+
+    // Stripe header
+    private static final int OFFSET_CLAIMED = 0;
+    private static final int OFFSET_DROPPED = 8;
+    private static final int OFFSET_LABEL_LENGTH = 16;
+    private static final int OFFSET_LABEL = 20;
+    private static final int MAX_LABEL_LENGTH = STRIPE_HEADER_SIZE - OFFSET_LABEL;
+
+    // Slots
+    private static final int OFFSET_KEY = 0;
+    private static final int OFFSET_COUNT = 8;
+    private static final int OFFSET_NAME_LENGTH = 16;
+    private static final int OFFSET_NAME = 20;
+    private static final int MAX_NAME_LENGTH = TYPE_SLOT_SIZE - OFFSET_NAME;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+
+    // File locks are held by the process, overlapping ones of two instances throw
+    // OverlappingFileLockException, so instances take the header lock in turn
+    private static final Object sHeaderLock = new Object();
+
+    @NonNull
+    private final RandomAccessFile mFile;
+
+    @NonNull
+    private final FileLock mStripeLock;
+
+    @NonNull
+    private final MappedByteBuffer mBuffer;
+
+    @NonNull
+    private final Layout mLayout;
+
+    private final int mStripe;
+
+    @NonNull
+    private final Table mTypes;
+
+    @NonNull
+    private final Table mFingerprints;
+
+    private final AtomicLong mDropped;
+
+    private SharedViolationCounters(@NonNull Builder builder) throws IOException {
+        mFile = new RandomAccessFile(builder.mFile, "rw");
+        try {
+            FileChannel channel = mFile.getChannel();
+            mLayout = initHeader(channel, builder);
+            mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mLayout.fileSize());
+
+            FileLock lock = null;
+            int stripe = -1;
+            while (lock == null && ++stripe < mLayout.maxProcesses) {
+                lock = tryLock(channel, mLayout.stripeOffset(stripe));
+            }
+            if (lock == null) {
+                throw new IOException("All " + mLayout.maxProcesses + " stripes of " + builder.mFile + " are taken");
+            }
+            mStripeLock = lock;
+            mStripe = stripe;
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+
+        int stripeOffset = mLayout.stripeOffset(mStripe);
+        mTypes = new Table(mLayout.typeSlots, stripeOffset + STRIPE_HEADER_SIZE, TYPE_SLOT_SIZE);
+        mFingerprints = new Table(mLayout.fingerprintSlots, mLayout.fingerprintsOffset(stripeOffset), FINGERPRINT_SLOT_SIZE);
+        mTypes.load(mBuffer);
+        mFingerprints.load(mBuffer);
+        mDropped = new AtomicLong(mBuffer.getLong(stripeOffset + OFFSET_DROPPED));
+
+        byte[] label = truncate(builder.mProcessName != null ? builder.mProcessName : currentProcessName(), MAX_LABEL_LENGTH);
+        for (int i = 0; i < label.length; i++) {
+            mBuffer.put(stripeOffset + OFFSET_LABEL + i, label[i]);
+        }
+        mBuffer.putInt(stripeOffset + OFFSET_LABEL_LENGTH, label.length);
+        mBuffer.putLong(stripeOffset + OFFSET_CLAIMED, 1L);
+    }
+
+    @Override
+    public void onViolation(@NonNull ViolationInfo info) {
+        record(info.getViolation());
+    }
+
+    /**
+     * Count the violation in the stripe of the current process.
+     */
+    public void record(@NonNull Throwable violation) {
+        long start = OverheadProfiler.start();
+        String type = violation.getClass().getName();
+        record(type, StackFingerprint.of(type, violation.getStackTrace()));
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+    }
+
+    /**
+     * Count the violation in the stripe of the current process.
+     */
+    public void record(@NonNull CompactViolation violation) {
+        long start = OverheadProfiler.start();
+        record(violation.getViolationClass(), violation.getFingerprint());
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+    }
+
+    /**
+     * Count the violation of the class with the fingerprint in the stripe of the current process.
+     */
+    public void record(@NonNull String violationClass, long fingerprint) {
+        boolean counted = mTypes.increment(mBuffer, StackFingerprint.of(violationClass, NO_FRAMES), violationClass);
+        counted &= mFingerprints.increment(mBuffer, fingerprint, null);
+        if (!counted) {
+            countDropped();
+        }
+    }
+
+    /**
+     * Counters of all processes which have used the file.
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        return readSnapshot(mBuffer, mLayout);
+    }
+
+    /**
+     * Counters of all processes which have used the file, without taking a stripe.
+     */
+    @NonNull
+    public static Snapshot read(@NonNull File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + " isn't a counters file");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            Layout layout = readLayout(header);
+            if (layout == null || channel.size() < layout.fileSize()) {
+                throw new IOException(file + " isn't a counters file");
+            }
+            return readSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, layout.fileSize()), layout);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Release the stripe. Its counts stay in the file.
+     */
+    @Override
+    public void close() throws IOException {
+        mBuffer.force();
+        try {
+            mStripeLock.release();
+        } finally {
+            mFile.close();
+        }
+    }
+
+    @NonNull
+    private static Layout initHeader(@NonNull FileChannel channel, @NonNull Builder builder) throws IOException {
+        synchronized (sHeaderLock) {
+            return initHeaderLocked(channel, builder);
+        }
+    }
+
+    @NonNull
+    private static Layout initHeaderLocked(@NonNull FileChannel channel, @NonNull Builder builder) throws IOException {
+        // Held only while the file is created, concurrent processes wait for the header
+        FileLock lock = channel.lock(0, HEADER_SIZE, false);
+        try {
+            if (channel.size() >= HEADER_SIZE) {
+                Layout layout = readLayout(channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE));
+                if (layout == null) {
+                    throw new IOException("Unknown format of counters file " + builder.mFile);
+                }
+                return layout;
+            }
+
+            Layout layout = new Layout(builder.mMaxProcesses, builder.mTypeSlots, builder.mFingerprintSlots);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(OFFSET_MAGIC, MAGIC);
+            header.putInt(OFFSET_VERSION, VERSION);
+            header.putInt(OFFSET_MAX_PROCESSES, layout.maxProcesses);
+            header.putInt(OFFSET_TYPE_SLOTS, layout.typeSlots);
+            header.putInt(OFFSET_FINGERPRINT_SLOTS, layout.fingerprintSlots);
+            // Grow the file before the header is visible, so readers never map a short file
+            channel.write(ByteBuffer.allocate(1), layout.fileSize() - 1);
+            channel.write(header, 0);
+            channel.force(false);
+            return layout;
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Nullable
+    private static Layout readLayout(@NonNull ByteBuffer header) {
+        if (header.getInt(OFFSET_MAGIC) != MAGIC || header.getInt(OFFSET_VERSION) != VERSION) {
+            return null;
+        }
+        return new Layout(
+                header.getInt(OFFSET_MAX_PROCESSES),
+                header.getInt(OFFSET_TYPE_SLOTS),
+                header.getInt(OFFSET_FINGERPRINT_SLOTS)
+        );
+    }
+
+    @Nullable
+    private static FileLock tryLock(@NonNull FileChannel channel, long position) throws IOException {
+        try {
+            return channel.tryLock(position, 1, false);
+        } catch (OverlappingFileLockException e) {
+            // The stripe is taken by another instance in this process
+            return null;
+        }
+    }
+
+    @NonNull
+    private static Snapshot readSnapshot(@NonNull ByteBuffer buffer, @NonNull Layout layout) {
+        Map<String, Long> types = new HashMap<>();
+        Map<Long, Long> fingerprints = new HashMap<>();
+        List<String> processes = new ArrayList<>();
+        long dropped = 0;
+        for (int stripe = 0; stripe < layout.maxProcesses; stripe++) {
+            int stripeOffset = layout.stripeOffset(stripe);
+            if (buffer.getLong(stripeOffset + OFFSET_CLAIMED) == 0L) {
+                continue;
+            }
+            processes.add(readString(buffer, stripeOffset + OFFSET_LABEL_LENGTH, MAX_LABEL_LENGTH));
+            dropped += buffer.getLong(stripeOffset + OFFSET_DROPPED);
+
+            int offset = stripeOffset + STRIPE_HEADER_SIZE;
+            for (int i = 0; i < layout.typeSlots; i++, offset += TYPE_SLOT_SIZE) {
+                long count = buffer.getLong(offset + OFFSET_COUNT);
+                if (buffer.getLong(offset + OFFSET_KEY) != 0L && count != 0L) {
+                    String type = readString(buffer, offset + OFFSET_NAME_LENGTH, MAX_NAME_LENGTH);
+                    Long total = types.get(type);
+                    types.put(type, total == null ? count : total + count);
+                }
+            }
+
+            offset = layout.fingerprintsOffset(stripeOffset);
+            for (int i = 0; i < layout.fingerprintSlots; i++, offset += FINGERPRINT_SLOT_SIZE) {
+                long key = buffer.getLong(offset + OFFSET_KEY);
+                long count = buffer.getLong(offset + OFFSET_COUNT);
+                if (key != 0L && count != 0L) {
+                    Long total = fingerprints.get(key);
+                    fingerprints.put(key, total == null ? count : total + count);
+                }
+            }
+        }
+        return new Snapshot(types, fingerprints, processes, dropped);
+    }
+
+    private void countDropped() {
+        int offset = mLayout.stripeOffset(mStripe) + OFFSET_DROPPED;
+        long value = mDropped.incrementAndGet();
+        while (true) {
+            mBuffer.putLong(offset, value);
+            long latest = mDropped.get();
+            if (latest == value) {
+                return;
+            }
+            value = latest;
+        }
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer buffer, int lengthOffset, int maxLength) {
+        int length = Math.max(0, Math.min(buffer.getInt(lengthOffset), maxLength));
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(lengthOffset + 4 + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Last {@code maxLength} bytes of the value, the end of a class name is the most specific part.
+     */
+    @NonNull
+    private static byte[] truncate(@NonNull String value, int maxLength) {
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length <= maxLength) {
+            return bytes;
+        }
+        byte[] tail = new byte[maxLength];
+        System.arraycopy(bytes, bytes.length - maxLength, tail, 0, maxLength);
+        return tail;
+    }
+
+    @NonNull
+    private static String currentProcessName() {
+        try {
+            InputStream in = new FileInputStream("/proc/self/cmdline");
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) > 0) {
+                    out.write(b);
+                }
+                return new String(out.toByteArray(), UTF_8);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Open addressing table of fixed-size slots in the stripe with its in-process counterpart.
+     */
+    private static final class Table {
+
+        private final int mMask;
+        private final int mOffset;
+        private final int mSlotSize;
+        private final AtomicLongArray mKeys;
+        private final AtomicLongArray mCounts;
+
+        Table(int slots, int offset, int slotSize) {
+            mMask = slots - 1;
+            mOffset = offset;
+            mSlotSize = slotSize;
+            mKeys = new AtomicLongArray(slots);
+            mCounts = new AtomicLongArray(slots);
+        }
+
+        /**
+         * Continue counting from values left by a previous owner of the stripe.
+         */
+        void load(@NonNull ByteBuffer buffer) {
+            for (int i = 0, offset = mOffset; i <= mMask; i++, offset += mSlotSize) {
+                mKeys.set(i, buffer.getLong(offset + OFFSET_KEY));
+                mCounts.set(i, buffer.getLong(offset + OFFSET_COUNT));
+            }
+        }
+
+        /**
+         * @return {@code false} if the table is full
+         */
+        boolean increment(@NonNull ByteBuffer buffer, long key, @Nullable String name) {
+            if (key == 0L) {
+                key = 1L;
+            }
+            int index = (int) (key ^ (key >>> 32)) & mMask;
+            for (int probe = 0; probe <= mMask; probe++, index = (index + 1) & mMask) {
+                long current = mKeys.get(index);
+                if (current == 0L) {
+                    if (!mKeys.compareAndSet(index, 0L, key)) {
+                        current = mKeys.get(index);
+                    } else {
+                        claim(buffer, index, key, name);
+                        current = key;
+                    }
+                }
+                if (current == key) {
+                    publish(buffer, index);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void claim(@NonNull ByteBuffer buffer, int index, long key, @Nullable String name) {
+            int offset = mOffset + index * mSlotSize;
+            if (name != null) {
+                byte[] bytes = truncate(name, MAX_NAME_LENGTH);
+                for (int i = 0; i < bytes.length; i++) {
+                    buffer.put(offset + OFFSET_NAME + i, bytes[i]);
+                }
+                buffer.putInt(offset + OFFSET_NAME_LENGTH, bytes.length);
+            }
+            buffer.putLong(offset + OFFSET_KEY, key);
+        }
+
+        /**
+         * Increment the counter and write its latest value to the mapped file. Writers race only
+         * with threads of the same process and every writer rereads the counter after the write,
+         * so the file converges to the latest value.
+         */
+        private void publish(@NonNull ByteBuffer buffer, int index) {
+            int offset = mOffset + index * mSlotSize + OFFSET_COUNT;
+            long value = mCounts.incrementAndGet(index);
+            while (true) {
+                buffer.putLong(offset, value);
+                long latest = mCounts.get(index);
+                if (latest == value) {
+                    return;
+                }
+                value = latest;
+            }
+        }
+    }
+
+    private static final class Layout {
+
+        final int maxProcesses;
+        final int typeSlots;
+        final int fingerprintSlots;
+
+        Layout(int maxProcesses, int typeSlots, int fingerprintSlots) {
+            this.maxProcesses = maxProcesses;
+            this.typeSlots = typeSlots;
+            this.fingerprintSlots = fingerprintSlots;
+        }
+
+        int stripeSize() {
+            return STRIPE_HEADER_SIZE + typeSlots * TYPE_SLOT_SIZE + fingerprintSlots * FINGERPRINT_SLOT_SIZE;
+        }
+
+        int stripeOffset(int stripe) {
+            return HEADER_SIZE + stripe * stripeSize();
+        }
+
+        int fingerprintsOffset(int stripeOffset) {
+            return stripeOffset + STRIPE_HEADER_SIZE + typeSlots * TYPE_SLOT_SIZE;
+        }
+
+        int fileSize() {
+            return HEADER_SIZE + maxProcesses * stripeSize();
+        }
+    }
+
+    /**
+     * Combined counters of all processes.
+     */
+    public static final class Snapshot {
+
+        @NonNull
+        private final Map<String, Long> mTypeCounts;
+
+        @NonNull
+        private final Map<Long, Long> mFingerprintCounts;
+
+        @NonNull
+        private final List<String> mProcesses;
+
+        private final long mDropped;
+
+        Snapshot(
+                @NonNull Map<String, Long> typeCounts,
+                @NonNull Map<Long, Long> fingerprintCounts,
+                @NonNull List<String> processes,
+                long dropped
+        ) {
+            mTypeCounts = Collections.unmodifiableMap(typeCounts);
+            mFingerprintCounts = Collections.unmodifiableMap(fingerprintCounts);
+            mProcesses = Collections.unmodifiableList(processes);
+            mDropped = dropped;
+        }
+
+        /**
+         * Count of violations per violation class name.
+         */
+        @NonNull
+        public Map<String, Long> getTypeCounts() {
+            return mTypeCounts;
+        }
+
+        /**
+         * Count of violations per {@link StackFingerprint}.
+         */
+        @NonNull
+        public Map<Long, Long> getFingerprintCounts() {
+            return mFingerprintCounts;
+        }
+
+        /**
+         * Names of processes which have counted into the file.
+         */
+        @NonNull
+        public List<String> getProcesses() {
+            return mProcesses;
+        }
+
+        /**
+         * Violations which didn't fit into full tables.
+         */
+        public long getDropped() {
+            return mDropped;
+        }
+
+        public long getTotal() {
+            long total = 0;
+            for (Long count : mTypeCounts.values()) {
+                total += count;
+            }
+            return total;
+        }
+    }
+
+    public static final class Builder {
+
+        @NonNull
+        private final File mFile;
+
+        @Nullable
+        private String mProcessName;
+
+        private int mMaxProcesses = 8;
+        private int mTypeSlots = 256;
+        private int mFingerprintSlots = 4096;
+
+        public Builder(@NonNull File file) {
+            mFile = file;
+        }
+
+        /**
+         * Name of the process shown in {@link Snapshot#getProcesses()}.
+         * Default is read from {@code /proc/self/cmdline}.
+         */
+        public Builder processName(@NonNull String name) {
+            mProcessName = name;
+            return this;
+        }
+
+        /**
+         * Number of processes which can count at the same time. Default is 8.
+         * Ignored if the file already exists.
+         */
+        public Builder maxProcesses(int maxProcesses) {
+            if (maxProcesses < 1) {
+                throw new IllegalArgumentException("maxProcesses must be positive");
+            }
+            mMaxProcesses = maxProcesses;
+            return this;
+        }
+
+        /**
+         * Number of distinct violation classes per process, rounded up to a power of two. Default is 256.
+         * Ignored if the file already exists.
+         */
+        public Builder typeSlots(int slots) {
+            mTypeSlots = powerOfTwo(slots);
+            return this;
+        }
+
+        /**
+         * Number of distinct fingerprints per process, rounded up to a power of two. Default is 4096.
+         * Ignored if the file already exists.
+         */
+        public Builder fingerprintSlots(int slots) {
+            mFingerprintSlots = powerOfTwo(slots);
+            return this;
+        }
+
+        /**
+         * Map the file, creating it if needed, and take a free stripe.
+         *
+         * @throws IOException if the file can't be mapped or all stripes are taken
+         */
+        public SharedViolationCounters build() throws IOException {
+            return new SharedViolationCounters(this);
+        }
+
+        private static int powerOfTwo(int slots) {
+            if (slots < 1 || slots > (1 << 20)) {
+                throw new IllegalArgumentException("slots must be in [1, 2^20]");
+            }
+            return slots <= 2 ? 2 : Integer.highestOneBit(slots - 1) << 1;
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.annotation.TargetApi;
+import android.app.usage.NetworkStats;
+import android.app.usage.NetworkStatsManager;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.TrafficStats;
+import android.os.Build;
+import android.os.Process;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Tags sockets with {@link TrafficStats} per feature, so
+ * {@link StrictModeCompat.VmPolicy.Builder#detectUntaggedSockets()} doesn't report them,
+ * and accounts network use per feature.
+ *
+ * <pre>
+ * Executor imageExecutor = SocketTagging.executor(pool, "images");
+ *
+ * OkHttpClient client = new OkHttpClient.Builder()
+ *         .socketFactory(SocketTagging.socketFactory())
+ *         .build();
+ *
+ * SocketTagging.beginFeature("checkout");
+ * try {
+ *     // network calls
+ * } finally {
+ *     SocketTagging.endFeature();
+ * }
+ * </pre>
+ * <p>
+ * A feature gets a stable tag derived from its name, see {@link #tagOf(String)}. Inside a feature
+ * the thread stats tag is set too, so sockets created by other code are tagged, but only sockets of
+ * {@link #socketFactory()} are accounted. Sockets connected outside of features stay untagged
+ * and are accounted as {@link #UNTAGGED}.
+ * <p>
+ * Bytes of {@link #getStats()} are counted by the streams of sockets, so they miss TLS. Conscrypt
+ * reads and writes the file descriptor of the socket directly, and TLS sockets show about 0 bytes.
+ * {@link #queryNetworkUse(Context, long, long)} reads bytes per tag from the system, which counts
+ * every byte of tagged sockets.
+ */
+public final class SocketTagging {
+
+    /**
+     * Name of the feature of sockets connected outside of features.
+     */
+    public static final String UNTAGGED = "untagged";
+
+    // NetworkStatsManager queries take only these legacy types, there is no variant
+    // taking NetworkCapabilities transports
+    @SuppressWarnings("deprecation")
+    private static final int[] NETWORK_TYPES = {
+            ConnectivityManager.TYPE_MOBILE,
+            ConnectivityManager.TYPE_WIFI,
+            ConnectivityManager.TYPE_ETHERNET
+    };
+
+    private static final ConcurrentHashMap<String, Account> sAccounts = new ConcurrentHashMap<>();
+
+    private static final Account sUntagged = new Account(UNTAGGED, 0);
+
+    private static final ThreadLocal<Frame> sFrame = new ThreadLocal<>();
+
+    @Nullable
+    private static volatile Executor sListenerExecutor;
+
+    @Nullable
+    private static volatile OnNetworkViolationListener sListener;
+
+    private SocketTagging() {
+    }
+
+    /**
+     * Stable {@link TrafficStats} tag of the feature. Tags are positive, so they never fall
+     * in the range reserved by the system.
+     */
+    public static int tagOf(@NonNull String feature) {
+        int tag = feature.hashCode() & Integer.MAX_VALUE;
+        return tag != 0 ? tag : 1;
+    }
+
+    /**
+     * Start the feature on the current thread. Features nest, calls must be paired with {@link #endFeature()}.
+     */
+    public static void beginFeature(@NonNull String feature) {
+        push(accountOf(feature));
+    }
+
+    public static void endFeature() {
+        Frame frame = sFrame.get();
+        if (frame != null) {
+            pop(frame);
+        }
+    }
+
+    /**
+     * Run commands of the executor inside the feature, usually named after the pool.
+     */
+    @NonNull
+    public static Executor executor(@NonNull final Executor executor, @NonNull String feature) {
+        final Account account = accountOf(feature);
+        return new Executor() {
+
+            @Override
+            public void execute(@NonNull final Runnable command) {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Frame frame = push(account);
+                        try {
+                            command.run();
+                        } finally {
+                            pop(frame);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Sockets tagged with the feature active on the thread which connects them.
+     */
+    @NonNull
+    public static SocketFactory socketFactory() {
+        return new TaggingSocketFactory(null);
+    }
+
+    /**
+     * Sockets tagged with the feature on any thread.
+     */
+    @NonNull
+    public static SocketFactory socketFactory(@NonNull String feature) {
+        return new TaggingSocketFactory(accountOf(feature));
+    }
+
+    /**
+     * Report sockets connected on threads whose policy detects network. Only policies built with
+     * {@link StrictModeCompat.ThreadPolicy.Builder} and set with
+     * {@link StrictModeCompat#setThreadPolicy(android.os.StrictMode.ThreadPolicy)} are known.
+     */
+    public static void setOnNetworkViolationListener(
+            @NonNull Executor executor,
+            @NonNull OnNetworkViolationListener listener
+    ) {
+        sListenerExecutor = executor;
+        sListener = listener;
+    }
+
+    public static void clearOnNetworkViolationListener() {
+        sListener = null;
+        sListenerExecutor = null;
+    }
+
+    /**
+     * Network use of features, the longest total connection time first.
+     */
+    @NonNull
+    public static List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>(sAccounts.size() + 1);
+        for (Account account : sAccounts.values()) {
+            stats.add(new Stats(account));
+        }
+        stats.add(new Stats(sUntagged));
+        Collections.sort(stats, new Comparator<Stats>() {
+
+            @Override
+            public int compare(Stats left, Stats right) {
+                long diff = right.mOpenNanos - left.mOpenNanos;
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        return stats;
+    }
+
+    /**
+     * Bytes of every feature between the times, counted by the system per {@link TrafficStats} tag,
+     * so TLS and sockets of other factories inside features are counted too. Uses
+     * {@link NetworkStatsManager}, which collects stats with a delay and in buckets of hours, query
+     * periods of hours. Mobile networks are queried for all subscriptions. Empty before Android 7.0.
+     *
+     * @param startMillis start of the period, in {@link System#currentTimeMillis()}
+     * @param endMillis   end of the period, in {@link System#currentTimeMillis()}
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    @NonNull
+    public static List<NetworkUse> queryNetworkUse(@NonNull Context context, long startMillis, long endMillis) {
+        List<NetworkUse> uses = new ArrayList<>(sAccounts.size());
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return uses;
+        }
+        NetworkStatsManager manager =
+                (NetworkStatsManager) context.getSystemService(Context.NETWORK_STATS_SERVICE);
+        if (manager == null) {
+            return uses;
+        }
+
+        int uid = Process.myUid();
+        NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+        for (Account account : sAccounts.values()) {
+            long rxBytes = 0;
+            long txBytes = 0;
+            for (int networkType : NETWORK_TYPES) {
+                NetworkStats stats;
+                try {
+                    stats = manager.queryDetailsForUidTag(networkType, null, startMillis, endMillis, uid, account.tag);
+                } catch (RuntimeException e) {
+                    // The network type isn't supported or the stats service isn't available
+                    continue;
+                }
+                try {
+                    while (stats.hasNextBucket()) {
+                        stats.getNextBucket(bucket);
+                        rxBytes += bucket.getRxBytes();
+                        txBytes += bucket.getTxBytes();
+                    }
+                } finally {
+                    stats.close();
+                }
+            }
+            uses.add(new NetworkUse(account.name, account.tag, rxBytes, txBytes));
+        }
+        Collections.sort(uses, new Comparator<NetworkUse>() {
+
+            @Override
+            public int compare(NetworkUse left, NetworkUse right) {
+                long diff = (right.mRxBytes + right.mTxBytes) - (left.mRxBytes + left.mTxBytes);
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        return uses;
+    }
+
+    @NonNull
+    static Account accountOf(@NonNull String feature) {
+        if (UNTAGGED.equals(feature)) {
+            return sUntagged;
+        }
+        Account account = sAccounts.get(feature);
+        if (account == null) {
+            Account newAccount = new Account(feature, tagOf(feature));
+            account = sAccounts.putIfAbsent(feature, newAccount);
+            if (account == null) {
+                account = newAccount;
+            }
+        }
+        return account;
+    }
+
+    /**
+     * Account of the feature active on the current thread.
+     */
+    @NonNull
+    static Account currentAccount() {
+        Frame frame = sFrame.get();
+        return frame != null ? frame.account : sUntagged;
+    }
+
+    /**
+     * Called before the socket is connected.
+     */
+    static void onConnect(@NonNull Account account, @NonNull SocketAddress endpoint) {
+        OnNetworkViolationListener listener = sListener;
+        Executor executor = sListenerExecutor;
+        if (listener == null || executor == null || !StrictModeCompat.threadDetectsNetwork()) {
+            return;
+        }
+
+        account.guardedConnections.incrementAndGet();
+        NetworkOnGuardedThreadViolation violation =
+                new NetworkOnGuardedThreadViolation(account.name, endpoint.toString());
+        FlightRecorder.recordThreadViolation(violation);
+        report(executor, listener, violation);
+    }
+
+    private static void report(
+            @NonNull Executor executor,
+            @NonNull final OnNetworkViolationListener listener,
+            @NonNull final NetworkOnGuardedThreadViolation violation
+    ) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                long start = OverheadProfiler.start();
+                listener.onNetworkViolation(violation);
+                OverheadProfiler.end(OverheadProfiler.Stage.LISTENER_DISPATCH, start);
+            }
+        });
+    }
+
+    @NonNull
+    private static Frame push(@NonNull Account account) {
+        Frame frame = new Frame(account, TrafficStats.getThreadStatsTag(), sFrame.get());
+        sFrame.set(frame);
+        TrafficStats.setThreadStatsTag(account.tag);
+        return frame;
+    }
+
+    private static void pop(@NonNull Frame frame) {
+        TrafficStats.setThreadStatsTag(frame.previousTag);
+        sFrame.set(frame.parent);
+    }
+
+    /**
+     * Called when a socket of {@link #socketFactory()} is connected on a thread whose policy detects network.
+     */
+    public interface OnNetworkViolationListener {
+
+        void onNetworkViolation(@NonNull NetworkOnGuardedThreadViolation violation);
+    }
+
+    /**
+     * Network use of a feature. Connection time and bytes of sockets are accounted when they are closed.
+     */
+    public static final class Stats {
+
+        @NonNull
+        private final String mFeature;
+
+        private final int mTag;
+
+        private final long mConnections;
+
+        private final long mGuardedConnections;
+
+        private final long mBytesRead;
+
+        private final long mBytesWritten;
+
+        private final long mConnectNanos;
+
+        private final long mOpenNanos;
+
+        Stats(@NonNull Account account) {
+            mFeature = account.name;
+            mTag = account.tag;
+            mConnections = account.connections.get();
+            mGuardedConnections = account.guardedConnections.get();
+            mBytesRead = account.bytesRead.get();
+            mBytesWritten = account.bytesWritten.get();
+            mConnectNanos = account.connectNanos.get();
+            mOpenNanos = account.openNanos.get();
+        }
+
+        @NonNull
+        public String getFeature() {
+            return mFeature;
+        }
+
+        /**
+         * {@link TrafficStats} tag, {@code 0} for {@link #UNTAGGED}.
+         */
+        public int getTag() {
+            return mTag;
+        }
+
+        public long getConnections() {
+            return mConnections;
+        }
+
+        /**
+         * Connections reported to {@link OnNetworkViolationListener}.
+         */
+        public long getGuardedConnections() {
+            return mGuardedConnections;
+        }
+
+        /**
+         * Bytes read from the input stream of sockets. Only plaintext I/O through the streams is counted,
+         * TLS isn't, see {@link #queryNetworkUse(Context, long, long)}.
+         */
+        public long getBytesRead() {
+            return mBytesRead;
+        }
+
+        /**
+         * Bytes written to the output stream of sockets. Only plaintext I/O through the streams is counted,
+         * TLS isn't, see {@link #queryNetworkUse(Context, long, long)}.
+         */
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        /**
+         * Total time spent in {@link Socket#connect(SocketAddress, int)}.
+         */
+        public long getConnectNanos() {
+            return mConnectNanos;
+        }
+
+        /**
+         * Total time of closed sockets from connect to close.
+         */
+        public long getOpenNanos() {
+            return mOpenNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "feature=" + mFeature +
+                    ", tag=" + mTag +
+                    ", connections=" + mConnections +
+                    ", guardedConnections=" + mGuardedConnections +
+                    ", bytesRead=" + mBytesRead +
+                    ", bytesWritten=" + mBytesWritten +
+                    ", connectNanos=" + mConnectNanos +
+                    ", openNanos=" + mOpenNanos +
+                    '}';
+        }
+    }
+
+    /**
+     * Bytes of a feature counted by the system for its tag.
+     */
+    public static final class NetworkUse {
+
+        @NonNull
+        private final String mFeature;
+
+        private final int mTag;
+
+        private final long mRxBytes;
+
+        private final long mTxBytes;
+
+        NetworkUse(@NonNull String feature, int tag, long rxBytes, long txBytes) {
+            mFeature = feature;
+            mTag = tag;
+            mRxBytes = rxBytes;
+            mTxBytes = txBytes;
+        }
+
+        @NonNull
+        public String getFeature() {
+            return mFeature;
+        }
+
+        public int getTag() {
+            return mTag;
+        }
+
+        public long getRxBytes() {
+            return mRxBytes;
+        }
+
+        public long getTxBytes() {
+            return mTxBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "NetworkUse{" +
+                    "feature=" + mFeature +
+                    ", tag=" + mTag +
+                    ", rxBytes=" + mRxBytes +
+                    ", txBytes=" + mTxBytes +
+                    '}';
+        }
+    }
+
+    static final class Account {
+
+        @NonNull
+        final String name;
+
+        final int tag;
+
+        final AtomicLong connections = new AtomicLong();
+        final AtomicLong guardedConnections = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+        final AtomicLong connectNanos = new AtomicLong();
+        final AtomicLong openNanos = new AtomicLong();
+
+        Account(@NonNull String name, int tag) {
+            this.name = name;
+            this.tag = tag;
+        }
+    }
+
+    private static final class Frame {
+
+        @NonNull
+        final Account account;
+
+        final int previousTag;
+
+        @Nullable
+        final Frame parent;
+
+        Frame(@NonNull Account account, int previousTag, @Nullable Frame parent) {
+            this.account = account;
+            this.previousTag = previousTag;
+            this.parent = parent;
+        }
+    }
+
+    private static final class TaggingSocketFactory extends SocketFactory {
+
+        // null to use the account of the connecting thread
+        @Nullable
+        private final Account mAccount;
+
+        TaggingSocketFactory(@Nullable Account account) {
+            mAccount = account;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new TaggedSocket(mAccount);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket socket = new TaggedSocket(mAccount);
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            Socket socket = new TaggedSocket(mAccount);
+            socket.bind(new InetSocketAddress(localHost, localPort));
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            Socket socket = new TaggedSocket(mAccount);
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            Socket socket = new TaggedSocket(mAccount);
+            socket.bind(new InetSocketAddress(localAddress, localPort));
+            socket.connect(new InetSocketAddress(address, port));
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Stable 64-bit fingerprint of a violation: its class and the frames of its stack trace.
+ * Violations that happened in the same place get the same fingerprint.
+ */
+public final class StackFingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private StackFingerprint() {
+    }
+
+    public static long of(@NonNull Throwable violation) {
+        return of(violation.getClass().getName(), violation.getStackTrace());
+    }
+
+    public static long of(@NonNull String violationClass, @NonNull StackTraceElement[] frames) {
+        return of(violationClass, frames, frames.length);
+    }
+
+    /**
+     * Fingerprint of the class and the top frames, equal to the full one for stacks not deeper
+     * than {@code maxFrames}.
+     */
+    static long of(@NonNull String violationClass, @NonNull StackTraceElement[] frames, int maxFrames) {
+        long hash = hash(FNV_OFFSET, violationClass);
+        for (int i = 0, count = Math.min(frames.length, maxFrames); i < count; i++) {
+            StackTraceElement frame = frames[i];
+            hash = hash(hash, frame.getClassName());
+            hash = hash(hash, frame.getMethodName());
+            hash = (hash ^ frame.getLineNumber()) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    static long hash(long hash, @NonNull String value) {
+        for (int i = 0, length = value.length(); i < length; i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Fingerprint formatted as 16 hex digits.
+     */
+    @NonNull
+    public static String toString(long fingerprint) {
+        String hex = Long.toHexString(fingerprint);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+/**
+ * Table of interned stack frames and a prefix tree of stacks built from them.
+ * <p>
+ * A stack is a path from the root of the tree, starting with the outermost frame. Stacks which
+ * share their callers share tree nodes, a stack is referenced by the id of its last node.
+ * <p>
+ * Nodes are never removed from a table. Sinks own their tables and rebuild them from the stacks
+ * they still keep. Records made without a sink go to the {@link #shared()} table, which is replaced
+ * with a new generation when it's full, the old one lives as long as records which reference it.
+ * Hash tables are open addressing over primitive arrays, no keys are boxed.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class StackTable {
+
+    static final int ROOT = 0;
+
+    // Nodes after which the shared table starts a new generation
+    private static final int SHARED_MAX_NODES = 1 << 16;
+
+    // StackTraceElement and slots of arrays, strings are shared with the class metadata
+    private static final int FRAME_BYTES = 56;
+
+    // Parent, frame and depth of the node and its slot in the children table
+    private static final int NODE_BYTES = 40;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+
+    private static volatile StackTable sShared = new StackTable();
+
+    // Interned frames, slots hold frame id + 1, guarded by this
+    private StackTraceElement[] mFrames = new StackTraceElement[INITIAL_CAPACITY];
+    private int[] mFrameSlots = new int[INITIAL_CAPACITY * 2];
+    private int mFrameCount;
+
+    // Nodes of the prefix tree, node 0 is the root. Slots of children hold (parent, frame) keys
+    // and child nodes, 0 is an empty slot because the root is nobody's child
+    private int[] mParents = new int[INITIAL_CAPACITY];
+    private int[] mNodeFrames = new int[INITIAL_CAPACITY];
+    private int[] mDepths = new int[INITIAL_CAPACITY];
+    private long[] mChildKeys = new long[INITIAL_CAPACITY * 2];
+    private int[] mChildNodes = new int[INITIAL_CAPACITY * 2];
+    private int mNodeCount = 1;
+
+    /**
+     * Current generation of the table of records made without a sink.
+     */
+    @NonNull
+    static StackTable shared() {
+        StackTable table = sShared;
+        if (table.getNodeCount() >= SHARED_MAX_NODES) {
+            synchronized (StackTable.class) {
+                if (sShared == table) {
+                    sShared = new StackTable();
+                }
+                table = sShared;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Intern the top {@code maxFrames} frames of the stack.
+     *
+     * @return id of the node of the stack
+     */
+    synchronized int intern(@NonNull StackTraceElement[] stack, int maxFrames) {
+        int count = Math.min(stack.length, maxFrames);
+        int node = ROOT;
+        for (int i = count - 1; i >= 0; i--) {
+            node = child(node, frameId(stack[i]));
+        }
+        return node;
+    }
+
+    /**
+     * Intern the stack of another table.
+     *
+     * @return id of the node of the stack in this table
+     */
+    int intern(@NonNull StackTable table, int node) {
+        if (table == this) {
+            return node;
+        }
+        StackTraceElement[] frames = table.frames(node);
+        return intern(frames, frames.length);
+    }
+
+    /**
+     * Frames of the stack, the top frame first.
+     */
+    @NonNull
+    synchronized StackTraceElement[] frames(int node) {
+        if (node == ROOT) {
+            return NO_FRAMES;
+        }
+        StackTraceElement[] frames = new StackTraceElement[mDepths[node]];
+        for (int i = 0; node != ROOT; i++, node = mParents[node]) {
+            frames[i] = mFrames[mNodeFrames[node]];
+        }
+        return frames;
+    }
+
+    synchronized int depth(int node) {
+        return mDepths[node];
+    }
+
+    synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    synchronized int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Estimated bytes retained by frames and nodes.
+     */
+    synchronized long getRetainedBytes() {
+        return (long) mFrameCount * FRAME_BYTES + (long) mNodeCount * NODE_BYTES;
+    }
+
+    /**
+     * Counter of nodes and frames referenced by a set of stacks of the table.
+     */
+    @NonNull
+    Usage usage() {
+        return new Usage(this);
+    }
+
+    private int frameId(@NonNull StackTraceElement frame) {
+        int mask = mFrameSlots.length - 1;
+        int slot = mix(frame.hashCode()) & mask;
+        while (mFrameSlots[slot] != 0) {
+            int id = mFrameSlots[slot] - 1;
+            if (mFrames[id].equals(frame)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = mFrameCount++;
+        if (id == mFrames.length) {
+            mFrames = Arrays.copyOf(mFrames, id * 2);
+        }
+        mFrames[id] = frame;
+        mFrameSlots[slot] = id + 1;
+        if (mFrameCount * 2 > mFrameSlots.length) {
+            rehashFrames();
+        }
+        return id;
+    }
+
+    private int child(int parent, int frame) {
+        long key = ((long) parent << 32) | (frame & 0xffffffffL);
+        int mask = mChildKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (mChildNodes[slot] != 0) {
+            if (mChildKeys[slot] == key) {
+                return mChildNodes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int node = mNodeCount++;
+        if (node == mParents.length) {
+            mParents = Arrays.copyOf(mParents, node * 2);
+            mNodeFrames = Arrays.copyOf(mNodeFrames, node * 2);
+            mDepths = Arrays.copyOf(mDepths, node * 2);
+        }
+        mParents[node] = parent;
+        mNodeFrames[node] = frame;
+        mDepths[node] = mDepths[parent] + 1;
+        mChildKeys[slot] = key;
+        mChildNodes[slot] = node;
+        if (mNodeCount * 2 > mChildKeys.length) {
+            rehashChildren();
+        }
+        return node;
+    }
+
+    private void rehashFrames() {
+        int[] slots = new int[mFrameSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < mFrameCount; id++) {
+            int slot = mix(mFrames[id].hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+        mFrameSlots = slots;
+    }
+
+    private void rehashChildren() {
+        long[] keys = new long[mChildKeys.length * 2];
+        int[] nodes = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int i = 0; i < mChildKeys.length; i++) {
+            if (mChildNodes[i] == 0) {
+                continue;
+            }
+            int slot = mix(mChildKeys[i]) & mask;
+            while (nodes[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = mChildKeys[i];
+            nodes[slot] = mChildNodes[i];
+        }
+        mChildKeys = keys;
+        mChildNodes = nodes;
+    }
+
+    private static int mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /**
+     * Bytes a table rebuilt from the added stacks would retain, updated as stacks are removed.
+     * A node is kept while a stack ends at it or a kept node is its child, a frame while a kept node
+     * holds it. The table must not change while the usage is in use.
+     */
+    static final class Usage {
+
+        @NonNull
+        private final StackTable mTable;
+
+        // Stacks which end at the node and kept children of the node
+        private final int[] mNodeRefs;
+        // Kept nodes which hold the frame
+        private final int[] mFrameRefs;
+
+        // The root is always kept
+        private long mRetainedBytes = NODE_BYTES;
+
+        private Usage(@NonNull StackTable table) {
+            synchronized (table) {
+                mTable = table;
+                mNodeRefs = new int[table.mNodeCount];
+                mFrameRefs = new int[table.mFrameCount];
+            }
+        }
+
+        void add(int node) {
+            synchronized (mTable) {
+                while (node != ROOT && mNodeRefs[node]++ == 0) {
+                    mRetainedBytes += NODE_BYTES;
+                    if (mFrameRefs[mTable.mNodeFrames[node]]++ == 0) {
+                        mRetainedBytes += FRAME_BYTES;
+                    }
+                    node = mTable.mParents[node];
+                }
+            }
+        }
+
+        void remove(int node) {
+            synchronized (mTable) {
+                while (node != ROOT && --mNodeRefs[node] == 0) {
+                    mRetainedBytes -= NODE_BYTES;
+                    if (--mFrameRefs[mTable.mNodeFrames[node]] == 0) {
+                        mRetainedBytes -= FRAME_BYTES;
+                    }
+                    node = mTable.mParents[node];
+                }
+            }
+        }
+
+        long getRetainedBytes() {
+            return mRetainedBytes;
+        }
+    }
+}
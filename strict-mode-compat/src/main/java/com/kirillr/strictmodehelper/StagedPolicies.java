@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+/**
+ * Policies installed in stages, so expensive detectors are kept off the cold start path.
+ * <p>
+ * Every stage is a {@link PolicyContribution} with only the detectors it adds, applied when its
+ * {@link Trigger} fires. Stages are contributed to {@link PolicyRegistry}, so every stage is applied
+ * with one policy change and the merged policy keeps the detectors, listeners and class instance
+ * limits of earlier stages.
+ *
+ * <pre>
+ * new StagedPolicies.Builder()
+ *         .stage(StagedPolicies.immediately(), new PolicyContribution.Builder()
+ *                 .detectDiskReads()
+ *                 .detectNetwork()
+ *                 .threadPenaltyLog()
+ *                 .vmPenaltyLog()
+ *                 .build())
+ *         .stage(StagedPolicies.firstFrame(), new PolicyContribution.Builder()
+ *                 .detectLeakedClosableObjects()
+ *                 .detectActivityLeaks()
+ *                 .build())
+ *         .build()
+ *         .install();
+ * </pre>
+ */
+public final class StagedPolicies {
+
+    private static final String MODULE_PREFIX = "StagedPolicies#";
+
+    private static final Trigger IMMEDIATELY = new Trigger() {
+
+        @Override
+        public void schedule(@NonNull Runnable stage) {
+            stage.run();
+        }
+    };
+
+    @NonNull
+    private final List<Trigger> mTriggers;
+
+    @NonNull
+    private final List<PolicyContribution> mStages;
+
+    private boolean mInstalled;
+
+    private StagedPolicies(@NonNull Builder builder) {
+        mTriggers = new ArrayList<>(builder.mTriggers);
+        mStages = new ArrayList<>(builder.mStages);
+    }
+
+    /**
+     * Apply immediate stages to the current thread and the VM and schedule the others.
+     * Thread policies of later stages are applied to the current thread too.
+     *
+     * @see PolicyRegistry#install()
+     */
+    @MainThread
+    public void install() {
+        synchronized (this) {
+            if (mInstalled) {
+                return;
+            }
+            mInstalled = true;
+        }
+
+        // Triggers which run the stage right away contribute it before the first policy is applied
+        List<Integer> scheduled = new ArrayList<>();
+        for (int i = 0; i < mStages.size(); i++) {
+            if (mTriggers.get(i) == IMMEDIATELY) {
+                PolicyRegistry.contribute(MODULE_PREFIX + i, mStages.get(i));
+            } else {
+                scheduled.add(i);
+            }
+        }
+        PolicyRegistry.install();
+
+        for (final int index : scheduled) {
+            mTriggers.get(index).schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    PolicyRegistry.contribute(MODULE_PREFIX + index, mStages.get(index));
+                }
+            });
+        }
+    }
+
+    /**
+     * Stage applied during {@link #install()}.
+     */
+    @NonNull
+    public static Trigger immediately() {
+        return IMMEDIATELY;
+    }
+
+    /**
+     * Stage applied after the first frame is drawn by the main thread. Before Android 4.1 it is
+     * applied when the main thread becomes idle.
+     */
+    @NonNull
+    public static Trigger firstFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return idle();
+        }
+        return new Trigger() {
+
+            @Override
+            public void schedule(@NonNull final Runnable stage) {
+                final Handler handler = new Handler(Looper.getMainLooper());
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+
+                            @Override
+                            public void doFrame(long frameTimeNanos) {
+                                // Frame callbacks run before traversals, the frame is drawn after them
+                                handler.post(stage);
+                            }
+                        });
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Stage applied when the main thread becomes idle for the first time.
+     */
+    @NonNull
+    public static Trigger idle() {
+        return new Trigger() {
+
+            @Override
+            public void schedule(@NonNull final Runnable stage) {
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+
+                            @Override
+                            public boolean queueIdle() {
+                                stage.run();
+                                return false;
+                            }
+                        });
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Stage applied on the main thread after the delay since {@link #install()}.
+     */
+    @NonNull
+    public static Trigger delay(final long delayMillis) {
+        return new Trigger() {
+
+            @Override
+            public void schedule(@NonNull Runnable stage) {
+                new Handler(Looper.getMainLooper()).postDelayed(stage, delayMillis);
+            }
+        };
+    }
+
+    /**
+     * Decides when a stage is applied.
+     */
+    public interface Trigger {
+
+        /**
+         * Run the stage once, on any thread.
+         */
+        void schedule(@NonNull Runnable stage);
+    }
+
+    public static final class Builder {
+
+        private final List<Trigger> mTriggers = new ArrayList<>();
+        private final List<PolicyContribution> mStages = new ArrayList<>();
+
+        /**
+         * Add the stage. Stages with the same trigger are applied in the order of addition.
+         *
+         * @param policies detectors added by the stage. Penalties of all stages are combined, death
+         *                 penalties are decided by {@link PolicyContribution.Builder#priority(int)}.
+         */
+        public Builder stage(@NonNull Trigger trigger, @NonNull PolicyContribution policies) {
+            mTriggers.add(trigger);
+            mStages.add(policies);
+            return this;
+        }
+
+        public StagedPolicies build() {
+            return new StagedPolicies(this);
+        }
+    }
+}
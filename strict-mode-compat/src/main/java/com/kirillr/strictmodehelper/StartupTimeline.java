@@ -0,0 +1,552 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Timeline of violations and {@code noteSlowCall} markers from process start until a startup
+ * milestone, split into phases marked by the app.
+ *
+ * <pre>
+ * new StartupTimeline.Builder()
+ *         .milestone("first frame")
+ *         .listener(listener)
+ *         .start();
+ * StartupTimeline.mark("DI graph");
+ * ...
+ * StartupTimeline.mark("first Activity");
+ * ...
+ * StartupTimeline.mark("first frame"); // Finishes the timeline and reports it
+ * </pre>
+ * <p>
+ * The first phase, {@link #PHASE_PROCESS_START}, starts with the process on Android 7.0+ and with
+ * {@link Builder#start()} on older versions. When the timeline is finished it is detached, later
+ * violations and markers cost one volatile read.
+ * <p>
+ * Violations are recorded when they are delivered to a listener registered with
+ * {@code penaltyListener()} or {@code penaltyInfoListener()}, with the time and the thread captured
+ * when StrictMode hands them over. StrictMode hands over thread violations on Looper threads after
+ * the message where they happened, their time is only known to be between the last idle of the thread
+ * and the end of the message, see {@link ViolationInfo#getEarliestUptimeNanos()}. Such violations are
+ * assigned to the phase which overlaps that window the most. Violations delivered after the milestone
+ * are not recorded, use a direct executor to deliver them in time.
+ */
+public final class StartupTimeline {
+
+    public static final String PHASE_PROCESS_START = "process start";
+
+    @Nullable
+    private static volatile StartupTimeline sActive;
+
+    private final long mProcessStartMillis;
+    private final long mTimeoutMillis;
+    private final int mMaxEvents;
+
+    @Nullable
+    private final String mMilestone;
+
+    @Nullable
+    private final OnFinishListener mListener;
+
+    // Guarded by this
+    private final List<String> mPhaseNames = new ArrayList<>();
+    private final List<Long> mPhaseStarts = new ArrayList<>();
+    private final List<Event> mEvents = new ArrayList<>();
+    private int mDroppedEvents;
+
+    @Nullable
+    private Report mReport;
+
+    private StartupTimeline(@NonNull Builder builder) {
+        mProcessStartMillis = builder.mProcessStartMillis;
+        mTimeoutMillis = builder.mTimeoutMillis;
+        mMaxEvents = builder.mMaxEvents;
+        mMilestone = builder.mMilestone;
+        mListener = builder.mListener;
+        mPhaseNames.add(PHASE_PROCESS_START);
+        mPhaseStarts.add(0L);
+    }
+
+    /**
+     * Active timeline or {@code null} when it isn't started or already finished.
+     */
+    @Nullable
+    public static StartupTimeline getActive() {
+        return sActive;
+    }
+
+    /**
+     * End the current phase and start a new one. The milestone finishes the timeline.
+     */
+    public static void mark(@NonNull String phase) {
+        StartupTimeline timeline = sActive;
+        if (timeline != null) {
+            timeline.onMark(phase, SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Finish the active timeline now.
+     */
+    public static void finish() {
+        StartupTimeline timeline = sActive;
+        if (timeline != null) {
+            timeline.finishAt(SystemClock.uptimeMillis());
+        }
+    }
+
+    static void recordViolation(
+            @NonNull Throwable violation,
+            boolean threadViolation,
+            @NonNull ViolationContext context
+    ) {
+        StartupTimeline timeline = sActive;
+        if (timeline != null) {
+            long windowMillis = (context.latestNanos - context.earliestNanos) / 1_000_000L;
+            timeline.record(
+                    threadViolation ? Event.KIND_THREAD_VIOLATION : Event.KIND_VM_VIOLATION,
+                    violation.getClass().getName(),
+                    context.threadName,
+                    context.uptimeMillis - windowMillis,
+                    context.uptimeMillis
+            );
+        }
+    }
+
+    static void recordSlowCall(@NonNull String name) {
+        StartupTimeline timeline = sActive;
+        if (timeline != null) {
+            long now = SystemClock.uptimeMillis();
+            timeline.record(Event.KIND_SLOW_CALL, name, Thread.currentThread().getName(), now, now);
+        }
+    }
+
+    /**
+     * Report of the finished timeline or {@code null} when it is still active.
+     */
+    @Nullable
+    public synchronized Report getReport() {
+        return mReport;
+    }
+
+    private void onMark(@NonNull String phase, long now) {
+        if (phase.equals(mMilestone)) {
+            finishAt(now);
+            return;
+        }
+        synchronized (this) {
+            if (mReport != null) {
+                return;
+            }
+            mPhaseNames.add(phase);
+            mPhaseStarts.add(Math.max(now - mProcessStartMillis, mPhaseStarts.get(mPhaseStarts.size() - 1)));
+        }
+        checkTimeout(now);
+    }
+
+    private void record(
+            int kind,
+            @NonNull String name,
+            @NonNull String threadName,
+            long earliestUptimeMillis,
+            long uptimeMillis
+    ) {
+        synchronized (this) {
+            if (mReport != null) {
+                return;
+            }
+            if (mEvents.size() < mMaxEvents) {
+                mEvents.add(new Event(kind, name, threadName,
+                        earliestUptimeMillis - mProcessStartMillis, uptimeMillis - mProcessStartMillis));
+            } else {
+                mDroppedEvents++;
+            }
+        }
+        checkTimeout(uptimeMillis);
+    }
+
+    private void checkTimeout(long now) {
+        if (now - mProcessStartMillis >= mTimeoutMillis) {
+            finishAt(now);
+        }
+    }
+
+    private void finishAt(long now) {
+        Report report;
+        synchronized (this) {
+            if (mReport != null) {
+                return;
+            }
+            long end = Math.max(now - mProcessStartMillis, mPhaseStarts.get(mPhaseStarts.size() - 1));
+            report = new Report(buildPhases(end), Collections.unmodifiableList(new ArrayList<>(mEvents)),
+                    end, mDroppedEvents);
+            mReport = report;
+            mEvents.clear();
+        }
+        synchronized (StartupTimeline.class) {
+            if (sActive == this) {
+                sActive = null;
+            }
+        }
+        if (mListener != null) {
+            mListener.onStartupFinished(report);
+        }
+    }
+
+    @NonNull
+    private List<Phase> buildPhases(long end) {
+        int count = mPhaseNames.size();
+        List<Phase> phases = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long phaseEnd = i + 1 < count ? mPhaseStarts.get(i + 1) : end;
+            phases.add(new Phase(mPhaseNames.get(i), mPhaseStarts.get(i), phaseEnd - mPhaseStarts.get(i)));
+        }
+        for (Event event : mEvents) {
+            int index = phaseOf(event.mEarliestOffsetMillis, event.mOffsetMillis, end);
+            event.mPhase = mPhaseNames.get(index);
+            phases.get(index).add(event);
+        }
+        return Collections.unmodifiableList(phases);
+    }
+
+    /**
+     * Index of the phase which contains the time, or overlaps the window of possible times the most.
+     */
+    private int phaseOf(long earliest, long latest, long end) {
+        int index = mPhaseStarts.size() - 1;
+        while (index > 0 && mPhaseStarts.get(index) > latest) {
+            index--;
+        }
+        int best = index;
+        long bestOverlap = -1;
+        // Phases before the latest time, back to the one which contains the earliest time
+        for (int i = index; i >= 0; i--) {
+            long phaseStart = mPhaseStarts.get(i);
+            long phaseEnd = i + 1 < mPhaseStarts.size() ? mPhaseStarts.get(i + 1) : end;
+            long overlap = Math.min(latest, phaseEnd) - Math.max(earliest, phaseStart);
+            if (overlap > bestOverlap) {
+                best = i;
+                bestOverlap = overlap;
+            }
+            if (phaseStart <= earliest) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    public interface OnFinishListener {
+
+        /**
+         * Called on the thread which reached the milestone.
+         */
+        void onStartupFinished(@NonNull Report report);
+    }
+
+    /**
+     * Violation or slow call with its time since process start.
+     */
+    public static final class Event {
+
+        public static final int KIND_THREAD_VIOLATION = FlightRecorder.KIND_THREAD_VIOLATION;
+        public static final int KIND_VM_VIOLATION = FlightRecorder.KIND_VM_VIOLATION;
+        public static final int KIND_SLOW_CALL = FlightRecorder.KIND_SLOW_CALL;
+
+        private final int mKind;
+
+        @NonNull
+        private final String mName;
+
+        @NonNull
+        private final String mThreadName;
+
+        private final long mEarliestOffsetMillis;
+
+        private final long mOffsetMillis;
+
+        @NonNull
+        private String mPhase = PHASE_PROCESS_START;
+
+        Event(int kind, @NonNull String name, @NonNull String threadName, long earliestOffsetMillis, long offsetMillis) {
+            mKind = kind;
+            mName = name;
+            mThreadName = threadName;
+            mEarliestOffsetMillis = earliestOffsetMillis;
+            mOffsetMillis = offsetMillis;
+        }
+
+        /**
+         * One of {@link #KIND_THREAD_VIOLATION}, {@link #KIND_VM_VIOLATION} or {@link #KIND_SLOW_CALL}.
+         */
+        public int getKind() {
+            return mKind;
+        }
+
+        /**
+         * Class of the violation or name of the slow call.
+         */
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Thread where the violation happened or which noted the slow call.
+         */
+        @NonNull
+        public String getThreadName() {
+            return mThreadName;
+        }
+
+        /**
+         * Time since process start. For thread violations on Looper threads it's the end of the message
+         * where the violation happened.
+         */
+        public long getOffsetMillis() {
+            return mOffsetMillis;
+        }
+
+        /**
+         * Earliest possible time since process start, equal to {@link #getOffsetMillis()} when
+         * the time is exact.
+         */
+        public long getEarliestOffsetMillis() {
+            return mEarliestOffsetMillis;
+        }
+
+        @NonNull
+        public String getPhase() {
+            return mPhase;
+        }
+
+        @Override
+        public String toString() {
+            return "+" + mOffsetMillis + "ms [" + mPhase + "] " + mName + " (" + mThreadName + ')';
+        }
+    }
+
+    public static final class Phase {
+
+        @NonNull
+        private final String mName;
+
+        private final long mStartMillis;
+
+        private final long mDurationMillis;
+
+        private final Map<String, Integer> mViolationCounts = new HashMap<>();
+
+        private int mViolationCount;
+
+        private int mSlowCallCount;
+
+        Phase(@NonNull String name, long startMillis, long durationMillis) {
+            mName = name;
+            mStartMillis = startMillis;
+            mDurationMillis = durationMillis;
+        }
+
+        void add(@NonNull Event event) {
+            if (event.mKind == Event.KIND_SLOW_CALL) {
+                mSlowCallCount++;
+            } else {
+                mViolationCount++;
+                Integer count = mViolationCounts.get(event.mName);
+                mViolationCounts.put(event.mName, count == null ? 1 : count + 1);
+            }
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Start of the phase since process start.
+         */
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        public long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        public int getViolationCount() {
+            return mViolationCount;
+        }
+
+        public int getSlowCallCount() {
+            return mSlowCallCount;
+        }
+
+        /**
+         * Count of violations by violation class.
+         */
+        @NonNull
+        public Map<String, Integer> getViolationCounts() {
+            return Collections.unmodifiableMap(mViolationCounts);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-24s +%6dms %6dms %4d violations %4d slow calls",
+                    mName, mStartMillis, mDurationMillis, mViolationCount, mSlowCallCount);
+        }
+    }
+
+    public static final class Report {
+
+        @NonNull
+        private final List<Phase> mPhases;
+
+        @NonNull
+        private final List<Event> mEvents;
+
+        private final long mDurationMillis;
+
+        private final int mDroppedEvents;
+
+        Report(@NonNull List<Phase> phases, @NonNull List<Event> events, long durationMillis, int droppedEvents) {
+            mPhases = phases;
+            mEvents = events;
+            mDurationMillis = durationMillis;
+            mDroppedEvents = droppedEvents;
+        }
+
+        /**
+         * Phases in the order of markers, starting with {@link #PHASE_PROCESS_START}.
+         */
+        @NonNull
+        public List<Phase> getPhases() {
+            return mPhases;
+        }
+
+        /**
+         * Events in the order of delivery.
+         */
+        @NonNull
+        public List<Event> getEvents() {
+            return mEvents;
+        }
+
+        /**
+         * Time from process start to the milestone.
+         */
+        public long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        /**
+         * Events which didn't fit into {@link Builder#maxEvents(int)}.
+         */
+        public int getDroppedEvents() {
+            return mDroppedEvents;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Startup ").append(mDurationMillis).append("ms");
+            for (Phase phase : mPhases) {
+                builder.append('\n').append(phase);
+            }
+            if (mDroppedEvents > 0) {
+                builder.append('\n').append(mDroppedEvents).append(" events dropped");
+            }
+            return builder.toString();
+        }
+    }
+
+    public static final class Builder {
+
+        private long mProcessStartMillis = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? Process.getStartUptimeMillis()
+                : SystemClock.uptimeMillis();
+
+        private long mTimeoutMillis = 60_000L;
+        private int mMaxEvents = 512;
+
+        @Nullable
+        private String mMilestone;
+
+        @Nullable
+        private OnFinishListener mListener;
+
+        /**
+         * Phase marker which finishes the timeline. Without it the timeline is finished
+         * with {@link StartupTimeline#finish()} or on timeout.
+         */
+        public Builder milestone(@NonNull String phase) {
+            mMilestone = phase;
+            return this;
+        }
+
+        /**
+         * Time since process start after which the timeline is finished on the next event.
+         * Default is one minute.
+         */
+        public Builder timeout(long timeoutMillis) {
+            if (timeoutMillis <= 0) {
+                throw new IllegalArgumentException("timeoutMillis must be positive");
+            }
+            mTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /**
+         * Maximum number of recorded events. Default is 512.
+         */
+        public Builder maxEvents(@IntRange(from = 0) int maxEvents) {
+            mMaxEvents = Math.max(0, maxEvents);
+            return this;
+        }
+
+        public Builder listener(@NonNull OnFinishListener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        /**
+         * Start the timeline. A timeline which is already active is returned as is.
+         */
+        @NonNull
+        public StartupTimeline start() {
+            synchronized (StartupTimeline.class) {
+                StartupTimeline timeline = sActive;
+                if (timeline == null) {
+                    timeline = new StartupTimeline(this);
+                    sActive = timeline;
+                }
+                return timeline;
+            }
+        }
+    }
+}
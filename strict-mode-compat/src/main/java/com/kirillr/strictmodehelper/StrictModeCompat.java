@@ -32,6 +32,8 @@ import android.os.strictmode.Violation;
 
 import java.io.Closeable;
 import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.Executor;
 
 import androidx.annotation.IntRange;
@@ -41,6 +43,13 @@ import androidx.annotation.Nullable;
 @SuppressWarnings("ALL")
 public final class StrictModeCompat {
 
+    // Policies built by ThreadPolicy.Builder which detect network, the platform hides the mask.
+    // Guarded by itself.
+    private static final Map<StrictMode.ThreadPolicy, Boolean> sNetworkPolicies = new WeakHashMap<>();
+
+    // Policy set on the thread by setThreadPolicy() if it detects network
+    private static final ThreadLocal<StrictMode.ThreadPolicy> sNetworkPolicy = new ThreadLocal<>();
+
     private StrictModeCompat() {
     }
 
@@ -115,6 +124,9 @@ public final class StrictModeCompat {
      * @see StrictModeCompat#noteSlowCall(Locale, String, Object...)
      */
     public static void noteSlowCall(@NonNull String name) {
+        FlightRecorder.recordSlowCall(name);
+        StartupTimeline.recordSlowCall(name);
+        FrameCorrelator.recordSlowCall(name);
         StrictMode.noteSlowCall(name);
     }
 
@@ -131,7 +143,7 @@ public final class StrictModeCompat {
      * @see StrictModeCompat#noteSlowCall(Locale, String, Object...)
      */
     public static void noteSlowCall(@NonNull String message, @NonNull Object... args) {
-        StrictMode.noteSlowCall(String.format(message, args));
+        noteSlowCall(String.format(message, args));
     }
 
     /**
@@ -149,12 +161,34 @@ public final class StrictModeCompat {
      */
     public static void noteSlowCall(@Nullable Locale locale, @NonNull String message, @NonNull Object... args) {
         if (locale == null) {
-            StrictMode.noteSlowCall(String.format(message, args));
+            noteSlowCall(String.format(message, args));
         } else {
-            StrictMode.noteSlowCall(String.format(locale, message, args));
+            noteSlowCall(String.format(locale, message, args));
         }
     }
 
+    /**
+     * Open a named section on the current thread. Violations reported to
+     * {@link OnViolationInfoListener} are tagged with the path of open sections,
+     * see {@link ViolationInfo#getSpanPath()}. Thread violations on Looper threads are delivered after
+     * the message, they're tagged only with sections open since the thread was last idle.
+     * <p>
+     * Every call must be matched with {@link #endSection()} on the same thread.
+     *
+     * @param name name of the feature or the screen, must not contain {@link TraceSections#SEPARATOR}
+     * @throws IllegalArgumentException if the name contains {@link TraceSections#SEPARATOR}
+     */
+    public static void beginSection(@NonNull String name) {
+        TraceSections.begin(name);
+    }
+
+    /**
+     * Close the section opened last with {@link #beginSection(String)} on the current thread.
+     */
+    public static void endSection() {
+        TraceSections.end();
+    }
+
     /**
      * Sets the policy for what actions on the current thread should
      * be detected, as well as the penalty if such actions occur.
@@ -167,7 +201,30 @@ public final class StrictModeCompat {
      * @param policy the policy to put into place
      */
     public static void setThreadPolicy(@NonNull StrictMode.ThreadPolicy policy) {
+        long start = OverheadProfiler.start();
+        PolicyRegistry.onSetThreadPolicy(policy);
+        PermitScopes.onSetThreadPolicy(policy);
+        sNetworkPolicy.set(detectsNetwork(policy) ? policy : null);
         StrictMode.setThreadPolicy(policy);
+        FlightRecorder.recordThreadPolicy(policy);
+        OverheadProfiler.end(OverheadProfiler.Stage.POLICY_APPLICATION, start);
+    }
+
+    /**
+     * Whether the policy of the current thread detects network. Known only for policies built by
+     * {@link ThreadPolicy.Builder} and set by {@link #setThreadPolicy(StrictMode.ThreadPolicy)}
+     * while the thread still has them, policies set or relaxed directly through {@link StrictMode} aren't.
+     */
+    static boolean threadDetectsNetwork() {
+        StrictMode.ThreadPolicy policy = sNetworkPolicy.get();
+        // getThreadPolicy() returns a new instance, the mask is compared through the string
+        return policy != null && policy.toString().equals(StrictMode.getThreadPolicy().toString());
+    }
+
+    private static boolean detectsNetwork(@NonNull StrictMode.ThreadPolicy policy) {
+        synchronized (sNetworkPolicies) {
+            return sNetworkPolicies.containsKey(policy);
+        }
     }
 
     /**
@@ -178,7 +235,11 @@ public final class StrictModeCompat {
      * @param policy the policy to put into place
      */
     public static void setVmPolicy(@NonNull StrictMode.VmPolicy policy) {
+        long start = OverheadProfiler.start();
+        PolicyRegistry.onSetVmPolicy(policy);
         StrictMode.setVmPolicy(policy);
+        FlightRecorder.recordVmPolicy(policy);
+        OverheadProfiler.end(OverheadProfiler.Stage.POLICY_APPLICATION, start);
     }
 
     /**
@@ -195,6 +256,40 @@ public final class StrictModeCompat {
         setVmPolicy(vmPolicy);
     }
 
+    /**
+     * Set Thread and VM policies in one method only if the current session is sampled.
+     * Not sampled sessions and threads get permissive policies.
+     * <p>
+     * Sampling rate is attached to every {@link ViolationInfo} reported after this call.
+     *
+     * @param threadPolicy the thread policy to put into place in a sampled session
+     * @param vmPolicy     the vm policy to put into place in a sampled session
+     * @param sampling     decides whether the session and the current thread are sampled
+     */
+    public static void setPolicies(
+            @NonNull StrictMode.ThreadPolicy threadPolicy,
+            @NonNull StrictMode.VmPolicy vmPolicy,
+            @NonNull SamplingPolicy sampling
+    ) {
+        SamplingPolicy.setActiveRate(sampling.getRate());
+        setThreadPolicy(threadPolicy, sampling);
+        setVmPolicy(sampling.isSessionSampled() ? vmPolicy : StrictMode.VmPolicy.LAX);
+    }
+
+    /**
+     * Sets the policy for the current thread only if the session and the thread are sampled,
+     * otherwise sets {@link StrictMode.ThreadPolicy#LAX}.
+     *
+     * @param policy   the policy to put into place in a sampled thread
+     * @param sampling decides whether the session and the current thread are sampled
+     */
+    public static void setThreadPolicy(
+            @NonNull StrictMode.ThreadPolicy policy,
+            @NonNull SamplingPolicy sampling
+    ) {
+        setThreadPolicy(sampling.isThreadSampled(Thread.currentThread()) ? policy : StrictMode.ThreadPolicy.LAX);
+    }
+
     /**
      * When {@link StrictMode.VmPolicy.Builder#penaltyListener(Executor, StrictMode.OnVmViolationListener)} is enabled,
      * the listener is called on the provided executor when a VM violation occurs.
@@ -221,6 +316,20 @@ public final class StrictModeCompat {
         void onThreadViolation(@NonNull Violation violation);
     }
 
+    /**
+     * Receives violations together with the context captured on the violating thread.
+     *
+     * @see ThreadPolicy.Builder#penaltyInfoListener(Executor, OnViolationInfoListener)
+     * @see VmPolicy.Builder#penaltyInfoListener(Executor, OnViolationInfoListener)
+     */
+    public interface OnViolationInfoListener {
+
+        /**
+         * Called on a thread or VM policy violation.
+         */
+        void onViolation(@NonNull ViolationInfo info);
+    }
+
     public static final class ThreadPolicy {
 
         private ThreadPolicy() {
@@ -231,7 +340,10 @@ public final class StrictModeCompat {
             @NonNull
             private final BuilderImpl mBuilder;
 
+            private boolean mDetectsNetwork;
+
             public Builder() {
+                long start = OverheadProfiler.start();
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
                     mBuilder = new V28BuilderImpl();
                 } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -241,9 +353,11 @@ public final class StrictModeCompat {
                 } else {
                     mBuilder = new V14BuilderImpl();
                 }
+                OverheadProfiler.end(OverheadProfiler.Stage.BUILDER, start);
             }
 
             public Builder(@NonNull StrictMode.ThreadPolicy policy) {
+                long start = OverheadProfiler.start();
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
                     mBuilder = new V28BuilderImpl(policy);
                 } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -253,6 +367,8 @@ public final class StrictModeCompat {
                 } else {
                     mBuilder = new V14BuilderImpl(policy);
                 }
+                mDetectsNetwork = detectsNetwork(policy);
+                OverheadProfiler.end(OverheadProfiler.Stage.BUILDER, start);
             }
 
             /**
@@ -263,7 +379,15 @@ public final class StrictModeCompat {
              * set.
              */
             public StrictMode.ThreadPolicy build() {
-                return mBuilder.build();
+                long start = OverheadProfiler.start();
+                StrictMode.ThreadPolicy policy = mBuilder.build();
+                if (mDetectsNetwork) {
+                    synchronized (sNetworkPolicies) {
+                        sNetworkPolicies.put(policy, Boolean.TRUE);
+                    }
+                }
+                OverheadProfiler.end(OverheadProfiler.Stage.BUILDER, start);
+                return policy;
             }
 
             /**
@@ -271,6 +395,7 @@ public final class StrictModeCompat {
              */
             public Builder detectAll() {
                 mBuilder.detectAll();
+                mDetectsNetwork = true;
                 return this;
             }
 
@@ -303,6 +428,7 @@ public final class StrictModeCompat {
              */
             public Builder detectNetwork() {
                 mBuilder.detectNetwork();
+                mDetectsNetwork = true;
                 return this;
             }
 
@@ -393,6 +519,7 @@ public final class StrictModeCompat {
              */
             public Builder permitAll() {
                 mBuilder.permitAll();
+                mDetectsNetwork = false;
                 return this;
             }
 
@@ -425,6 +552,7 @@ public final class StrictModeCompat {
              */
             public Builder permitNetwork() {
                 mBuilder.permitNetwork();
+                mDetectsNetwork = false;
                 return this;
             }
 
@@ -459,7 +587,8 @@ public final class StrictModeCompat {
 
             /**
              * Call {@link StrictMode.OnThreadViolationListener#onThreadViolation(Violation)}
-             * on specified executor every violation.
+             * on specified executor every violation. Can be combined with
+             * {@link #penaltyInfoListener(Executor, OnViolationInfoListener)}, both listeners are called.
              * <p>
              * Work on {@link Build.VERSION_CODES#P} and newer.
              *
@@ -473,6 +602,24 @@ public final class StrictModeCompat {
                 mBuilder.penaltyListener(executor, listener);
                 return this;
             }
+
+            /**
+             * Call {@link OnViolationInfoListener#onViolation(ViolationInfo)}
+             * on specified executor every violation. Can be combined with
+             * {@link #penaltyListener(Executor, OnThreadViolationListener)}, both listeners are called.
+             * <p>
+             * Work on {@link Build.VERSION_CODES#P} and newer.
+             *
+             * @param executor This value must never be null.
+             * @param listener This value must never be null.
+             */
+            public Builder penaltyInfoListener(
+                    @NonNull Executor executor,
+                    @NonNull OnViolationInfoListener listener
+            ) {
+                mBuilder.penaltyInfoListener(executor, listener);
+                return this;
+            }
         }
 
         private interface BuilderImpl {
@@ -527,6 +674,9 @@ public final class StrictModeCompat {
 
             // Min sdk 28
             void penaltyListener(@NonNull Executor executor, @NonNull OnThreadViolationListener listener);
+
+            // Min sdk 28
+            void penaltyInfoListener(@NonNull Executor executor, @NonNull OnViolationInfoListener listener);
         }
 
         private static class V14BuilderImpl implements BuilderImpl {
@@ -656,6 +806,12 @@ public final class StrictModeCompat {
             public void penaltyListener(@NonNull Executor executor, @NonNull OnThreadViolationListener listener) {
                 Utils.logUnsupportedFeature(CATEGORY, "Penalty listener");
             }
+
+            // Min sdk 28
+            @Override
+            public void penaltyInfoListener(@NonNull Executor executor, @NonNull OnViolationInfoListener listener) {
+                Utils.logUnsupportedFeature(CATEGORY, "Penalty listener");
+            }
         }
 
         @TargetApi(Build.VERSION_CODES.M)
@@ -703,6 +859,10 @@ public final class StrictModeCompat {
         @TargetApi(Build.VERSION_CODES.P)
         private static class V28BuilderImpl extends V26BuilderImpl {
 
+            // The platform keeps one listener, plain and info listeners are registered together
+            @NonNull
+            private ViolationDispatcher.Listeners mListeners = ViolationDispatcher.Listeners.forThreadPolicy();
+
             V28BuilderImpl() {
             }
 
@@ -711,20 +871,44 @@ public final class StrictModeCompat {
             }
 
             @Override
-            public void penaltyListener(
-                    @NonNull Executor executor,
-                    @NonNull final OnThreadViolationListener listener
+            public void penaltyListener(@NonNull Executor executor, @NonNull OnThreadViolationListener listener) {
+                mListeners = mListeners.withListener(executor, listener);
+                registerListeners();
+            }
+
+            @Override
+            public void penaltyInfoListener(@NonNull Executor executor, @NonNull OnViolationInfoListener listener) {
+                mListeners = mListeners.withInfoListener(executor, listener);
+                registerListeners();
+            }
+
+            @Override
+            public StrictMode.ThreadPolicy build() {
+                if (FlightRecorder.getInstance() == null || !mListeners.isEmpty()) {
+                    return builder.build();
+                }
+                // Listeners record violations for FlightRecorder. Built first, so the platform
+                // adds the implicit penaltyLog() as it does without listeners.
+                StrictMode.ThreadPolicy.Builder recorded = new StrictMode.ThreadPolicy.Builder(builder.build());
+                registerListeners(recorded, mListeners);
+                return recorded.build();
+            }
+
+            private void registerListeners() {
+                registerListeners(builder, mListeners);
+            }
+
+            private static void registerListeners(
+                    @NonNull StrictMode.ThreadPolicy.Builder builder,
+                    @NonNull final ViolationDispatcher.Listeners listeners
             ) {
-                builder.penaltyListener(
-                        executor,
-                        new StrictMode.OnThreadViolationListener() {
+                builder.penaltyListener(listeners.executor(), new StrictMode.OnThreadViolationListener() {
 
-                            @Override
-                            public void onThreadViolation(Violation violation) {
-                                listener.onThreadViolation(violation);
-                            }
-                        }
-                );
+                    @Override
+                    public void onThreadViolation(Violation violation) {
+                        listeners.onViolation(violation);
+                    }
+                });
             }
         }
     }
@@ -740,6 +924,7 @@ public final class StrictModeCompat {
             private final BuilderImpl mBuilder;
 
             public Builder() {
+                long start = OverheadProfiler.start();
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                     mBuilder = new V29BuilderImpl();
 
@@ -764,9 +949,11 @@ public final class StrictModeCompat {
                 } else {
                     mBuilder = new V14BuilderImpl();
                 }
+                OverheadProfiler.end(OverheadProfiler.Stage.BUILDER, start);
             }
 
             public Builder(@NonNull StrictMode.VmPolicy policy) {
+                long start = OverheadProfiler.start();
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                     mBuilder = new V29BuilderImpl(policy);
 
@@ -791,10 +978,14 @@ public final class StrictModeCompat {
                 } else {
                     mBuilder = new V14BuilderImpl(policy);
                 }
+                OverheadProfiler.end(OverheadProfiler.Stage.BUILDER, start);
             }
 
             public StrictMode.VmPolicy build() {
-                return mBuilder.build();
+                long start = OverheadProfiler.start();
+                StrictMode.VmPolicy policy = mBuilder.build();
+                OverheadProfiler.end(OverheadProfiler.Stage.BUILDER, start);
+                return policy;
             }
 
             /**
@@ -903,6 +1094,9 @@ public final class StrictModeCompat {
              * Crashes the whole process on violation. This penalty runs at the
              * end of all enabled penalties so you'll still get your logging or
              * other violations before the process dies.
+             * <p>
+             * On Android 9 and newer with {@link FlightRecorder} installed, the process is killed
+             * after listeners are called and the recorder is dumped.
              */
             public Builder penaltyDeath() {
                 mBuilder.penaltyDeath();
@@ -1000,6 +1194,8 @@ public final class StrictModeCompat {
 
             /**
              * Call {@link StrictMode.OnVmViolationListener#onVmViolation(Violation)} on every violation.
+             * Can be combined with {@link #penaltyInfoListener(Executor, OnViolationInfoListener)},
+             * both listeners are called.
              *
              * @param executor This value must never be null.
              * @param listener This value must never be null.
@@ -1010,6 +1206,22 @@ public final class StrictModeCompat {
                 return this;
             }
 
+            /**
+             * Call {@link OnViolationInfoListener#onViolation(ViolationInfo)} on every violation.
+             * Can be combined with {@link #penaltyListener(Executor, OnVmViolationListener)},
+             * both listeners are called.
+             * <p>
+             * Work on {@link Build.VERSION_CODES#P} and newer.
+             *
+             * @param executor This value must never be null.
+             * @param listener This value must never be null.
+             */
+            public Builder penaltyInfoListener(@NonNull Executor executor,
+                                               @NonNull OnViolationInfoListener listener) {
+                mBuilder.penaltyInfoListener(executor, listener);
+                return this;
+            }
+
             /**
              * Permit reflective usage of APIs that are not part of the public Android SDK.
              * <p>
@@ -1105,6 +1317,9 @@ public final class StrictModeCompat {
             // Min SDK 28
             void penaltyListener(@NonNull Executor executor, @NonNull OnVmViolationListener listener);
 
+            // Min SDK 28
+            void penaltyInfoListener(@NonNull Executor executor, @NonNull OnViolationInfoListener listener);
+
             // Min SDK 28
             void permitNonSdkApiUsage();
 
@@ -1219,6 +1434,12 @@ public final class StrictModeCompat {
                 Utils.logUnsupportedFeature(CATEGORY, "Penalty listener");
             }
 
+            @Override
+            public void penaltyInfoListener(@NonNull Executor executor,
+                                            @NonNull OnViolationInfoListener listener) {
+                Utils.logUnsupportedFeature(CATEGORY, "Penalty listener");
+            }
+
             @Override
             public void permitNonSdkApiUsage() {
                 Utils.logUnsupportedFeature(CATEGORY, "Non SDK api usage");
@@ -1328,6 +1549,10 @@ public final class StrictModeCompat {
         @TargetApi(Build.VERSION_CODES.P)
         private static class V28BuilderImpl extends V26BuilderImpl {
 
+            // The platform keeps one listener, plain and info listeners are registered together
+            @NonNull
+            private ViolationDispatcher.Listeners mListeners = ViolationDispatcher.Listeners.forVmPolicy();
+
             V28BuilderImpl() {
             }
 
@@ -1345,26 +1570,67 @@ public final class StrictModeCompat {
                 mBuilder.permitNonSdkApiUsage();
             }
 
+            // Applied on build, by the platform or by the listeners when FlightRecorder is installed
+            private boolean mPenaltyDeath;
+
             @Override
-            public void penaltyListener(
-                    @NonNull Executor executor,
-                    @NonNull final OnVmViolationListener listener
+            public void penaltyDeath() {
+                mPenaltyDeath = true;
+            }
+
+            @Override
+            public void penaltyListener(@NonNull Executor executor, @NonNull OnVmViolationListener listener) {
+                mListeners = mListeners.withListener(executor, listener);
+                registerListeners(mBuilder, mListeners);
+            }
+
+            @Override
+            public void penaltyInfoListener(@NonNull Executor executor, @NonNull OnViolationInfoListener listener) {
+                mListeners = mListeners.withInfoListener(executor, listener);
+                registerListeners(mBuilder, mListeners);
+            }
+
+            /**
+             * When FlightRecorder is installed, listeners record violations and execute {@link #penaltyDeath()},
+             * the platform one kills the process before listeners are called.
+             */
+            @Override
+            public StrictMode.VmPolicy build() {
+                if (FlightRecorder.getInstance() == null) {
+                    if (mPenaltyDeath) {
+                        mBuilder.penaltyDeath();
+                    }
+                    return mBuilder.build();
+                }
+                if (mPenaltyDeath) {
+                    registerListeners(mBuilder, mListeners.withPenaltyDeath());
+                    return mBuilder.build();
+                }
+                if (!mListeners.isEmpty()) {
+                    return mBuilder.build();
+                }
+                // Built first, so the platform adds the implicit penaltyLog() as it does without listeners
+                StrictMode.VmPolicy.Builder recorded = new StrictMode.VmPolicy.Builder(mBuilder.build());
+                registerListeners(recorded, mListeners);
+                return recorded.build();
+            }
+
+            private static void registerListeners(
+                    @NonNull StrictMode.VmPolicy.Builder builder,
+                    @NonNull final ViolationDispatcher.Listeners listeners
             ) {
-                mBuilder.penaltyListener(
-                        executor,
-                        new StrictMode.OnVmViolationListener() {
+                builder.penaltyListener(listeners.executor(), new StrictMode.OnVmViolationListener() {
 
-                            @Override
-                            public void onVmViolation(Violation violation) {
-                                listener.onVmViolation(violation);
-                            }
-                        }
-                );
+                    @Override
+                    public void onVmViolation(Violation violation) {
+                        listeners.onViolation(violation);
+                    }
+                });
             }
         }
 
         @TargetApi(Build.VERSION_CODES.Q)
-        private static class V29BuilderImpl extends V26BuilderImpl {
+        private static class V29BuilderImpl extends V28BuilderImpl {
 
             V29BuilderImpl() {
             }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kirillr.strictmodehelper;
+
+import android.net.TrafficStats;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Socket of {@link SocketTagging#socketFactory()}, tagged on connect and accounted until it's closed.
+ * Bytes are counted by its streams, TLS layered on the socket by Conscrypt bypasses them.
+ */
+final class TaggedSocket extends Socket {
+
+    // null to use the account of the connecting thread
+    @Nullable
+    private final SocketTagging.Account mFixedAccount;
+
+    @Nullable
+    private SocketTagging.Account mAccount;
+
+    private long mConnectedNanos;
+
+    private boolean mAccounted;
+
+    @Nullable
+    private InputStream mInput;
+
+    @Nullable
+    private OutputStream mOutput;
+
+    TaggedSocket(@Nullable SocketTagging.Account account) {
+        mFixedAccount = account;
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+        SocketTagging.Account account = mFixedAccount != null ? mFixedAccount : SocketTagging.currentAccount();
+        SocketTagging.onConnect(account, endpoint);
+
+        int previousTag = TrafficStats.getThreadStatsTag();
+        if (account.tag != 0) {
+            TrafficStats.setThreadStatsTag(account.tag);
+        }
+        long start = System.nanoTime();
+        try {
+            super.connect(endpoint, timeout);
+            if (account.tag != 0) {
+                TrafficStats.tagSocket(this);
+            }
+        } finally {
+            TrafficStats.setThreadStatsTag(previousTag);
+        }
+        long connected = System.nanoTime();
+        account.connections.incrementAndGet();
+        account.connectNanos.addAndGet(connected - start);
+        synchronized (this) {
+            mAccount = account;
+            mConnectedNanos = connected;
+        }
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (mInput == null) {
+            mInput = new CountingInputStream(super.getInputStream(), accountOrThrow().bytesRead);
+        }
+        return mInput;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (mOutput == null) {
+            mOutput = new CountingOutputStream(super.getOutputStream(), accountOrThrow().bytesWritten);
+        }
+        return mOutput;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mAccount != null && !mAccounted) {
+                mAccounted = true;
+                mAccount.openNanos.addAndGet(System.nanoTime() - mConnectedNanos);
+            }
+        }
+        super.close();
+    }
+
+    @NonNull
+    private SocketTagging.Account accountOrThrow() throws IOException {
+        if (mAccount == null) {
+            // Same as the platform socket, which has no streams until it's connected
+            throw new IOException("Socket is not connected");
+        }
+        return mAccount;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        @NonNull
+        private final AtomicLong mCounter;
+
+        CountingInputStream(@NonNull InputStream in, @NonNull AtomicLong counter) {
+            super(in);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = in.read();
+            if (read >= 0) {
+                mCounter.incrementAndGet();
+            }
+            return read;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read > 0) {
+                mCounter.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(count);
+            if (skipped > 0) {
+                mCounter.addAndGet(skipped);
+            }
+            return skipped;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        @NonNull
+        private final AtomicLong mCounter;
+
+        CountingOutputStream(@NonNull OutputStream out, @NonNull AtomicLong counter) {
+            super(out);
+            mCounter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCounter.incrementAndGet();
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            // FilterOutputStream writes arrays byte by byte
+            out.write(buffer, offset, count);
+            mCounter.addAndGet(count);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Per-thread stack of named sections opened with {@link StrictModeCompat#beginSection(String)}.
+ * <p>
+ * Violations delivered to {@link StrictModeCompat.OnViolationInfoListener} are tagged with
+ * the path of sections active on the violating thread, for example {@code "checkout/payment"},
+ * and counted per path.
+ * <p>
+ * On Looper threads StrictMode delivers thread violations after the message where they happened,
+ * when sections opened during the message may be already closed or opened after the violation.
+ * Such violations are tagged only with the sections which have stayed open since the thread
+ * was last idle, those were open when the violation happened.
+ * <p>
+ * Sections of the main thread are reported to the started {@link FrameCorrelator} when they are closed.
+ */
+public final class TraceSections {
+
+    /**
+     * Separator of section names in a path.
+     */
+    public static final char SEPARATOR = '/';
+
+    private static final ThreadLocal<Stack> sStack = new ThreadLocal<Stack>() {
+
+        @Override
+        protected Stack initialValue() {
+            return new Stack();
+        }
+    };
+
+    private static final ConcurrentHashMap<String, AtomicLong> sViolationCounts = new ConcurrentHashMap<>();
+
+    private static final long NO_IDLE = Long.MIN_VALUE;
+
+    private static volatile boolean sMainThreadTracked;
+
+    private TraceSections() {
+    }
+
+    static void begin(@NonNull String name) {
+        if (name.indexOf(SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Section name must not contain '" + SEPARATOR + "': " + name);
+        }
+        sStack.get().push(name);
+    }
+
+    static void end() {
+        sStack.get().pop();
+    }
+
+    /**
+     * Path of the sections active on the current thread or {@code null} if there are none.
+     */
+    @Nullable
+    public static String currentPath() {
+        return sStack.get().path();
+    }
+
+    /**
+     * Path for a thread violation delivered by StrictMode after the message where it happened.
+     */
+    @Nullable
+    static String pathSinceIdle() {
+        return sStack.get().pathSinceIdle();
+    }
+
+    /**
+     * {@link System#nanoTime()} when the Looper of the current thread was last idle,
+     * {@code defaultNanos} if it's unknown or the thread has no Looper.
+     */
+    static long idleNanos(long defaultNanos) {
+        long idleNanos = sStack.get().mIdleNanos;
+        return idleNanos != NO_IDLE ? idleNanos : defaultNanos;
+    }
+
+    /**
+     * Start tracking idle time of the main thread before its first violation.
+     */
+    static void trackMainThread() {
+        if (sMainThreadTracked) {
+            return;
+        }
+        sMainThreadTracked = true;
+
+        Looper mainLooper = Looper.getMainLooper();
+        if (Looper.myLooper() == mainLooper) {
+            sStack.get();
+        } else {
+            new Handler(mainLooper).post(new Runnable() {
+
+                @Override
+                public void run() {
+                    sStack.get();
+                }
+            });
+        }
+    }
+
+    static void countViolation(@Nullable String path) {
+        if (path == null) {
+            return;
+        }
+
+        long start = OverheadProfiler.start();
+        AtomicLong counter = sViolationCounts.get(path);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = sViolationCounts.putIfAbsent(path, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+    }
+
+    /**
+     * Count of violations reported to {@link StrictModeCompat.OnViolationInfoListener}s per section path.
+     * Violations that happened outside of any section aren't counted.
+     */
+    @NonNull
+    public static Map<String, Long> getViolationCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : sViolationCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public static void resetViolationCounts() {
+        sViolationCounts.clear();
+    }
+
+    /**
+     * Array backed stack. Paths are built lazily and cached per depth until the stack changes there.
+     */
+    private static final class Stack implements MessageQueue.IdleHandler {
+
+        @NonNull
+        private String[] mNames = new String[8];
+
+        @NonNull
+        private String[] mPaths = new String[8];
+
+        @NonNull
+        private long[] mStartNanos = new long[8];
+
+        private int mDepth;
+
+        private final boolean mTracksIdle;
+
+        private final boolean mMainThread;
+
+        private long mIdleNanos = NO_IDLE;
+
+        // Count of the bottom sections which have stayed open since the thread was last idle
+        private int mOpenSinceIdle;
+
+        Stack() {
+            mTracksIdle = Looper.myLooper() != null;
+            mMainThread = mTracksIdle && Looper.myLooper() == Looper.getMainLooper();
+            if (mTracksIdle) {
+                Looper.myQueue().addIdleHandler(this);
+            }
+        }
+
+        @Override
+        public boolean queueIdle() {
+            mIdleNanos = System.nanoTime();
+            mOpenSinceIdle = mDepth;
+            return true;
+        }
+
+        void push(@NonNull String name) {
+            if (mDepth == mNames.length) {
+                String[] names = new String[mDepth * 2];
+                System.arraycopy(mNames, 0, names, 0, mDepth);
+                mNames = names;
+                String[] paths = new String[mDepth * 2];
+                System.arraycopy(mPaths, 0, paths, 0, mDepth);
+                mPaths = paths;
+                long[] startNanos = new long[mDepth * 2];
+                System.arraycopy(mStartNanos, 0, startNanos, 0, mDepth);
+                mStartNanos = startNanos;
+            }
+            mNames[mDepth] = name;
+            mPaths[mDepth] = null;
+            mStartNanos[mDepth] = mMainThread ? System.nanoTime() : 0;
+            mDepth++;
+        }
+
+        void pop() {
+            if (mDepth == 0) {
+                return;
+            }
+            if (mMainThread) {
+                FrameCorrelator correlator = FrameCorrelator.getActive();
+                if (correlator != null) {
+                    correlator.recordSection(path(), mStartNanos[mDepth - 1], System.nanoTime());
+                }
+            }
+            mDepth--;
+            mNames[mDepth] = null;
+            mPaths[mDepth] = null;
+            if (mOpenSinceIdle > mDepth) {
+                mOpenSinceIdle = mDepth;
+            }
+        }
+
+        @Nullable
+        String path() {
+            if (mDepth == 0) {
+                return null;
+            }
+
+            int top = mDepth - 1;
+            if (mPaths[top] == null) {
+                int first = top;
+                while (first > 0 && mPaths[first - 1] == null) {
+                    first--;
+                }
+                for (int i = first; i <= top; i++) {
+                    mPaths[i] = i == 0 ? mNames[0] : mPaths[i - 1] + SEPARATOR + mNames[i];
+                }
+            }
+            return mPaths[top];
+        }
+
+        @Nullable
+        String pathSinceIdle() {
+            if (!mTracksIdle || mOpenSinceIdle == mDepth) {
+                return path();
+            }
+            if (mOpenSinceIdle == 0) {
+                return null;
+            }
+            // Paths of the top section cover every depth below it
+            path();
+            return mPaths[mOpenSinceIdle - 1];
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Stricter thread policy of the main thread while the UI is in a phase sensitive to jank,
+ * like scrolling or animating.
+ *
+ * <pre>
+ * new UiPhases.Builder()
+ *         .phasePolicies(new PolicyContribution.Builder()
+ *                 .detectDiskReads()
+ *                 .threadPenaltyFlashScreen()
+ *                 .priority(100)
+ *                 .build())
+ *         .build()
+ *         .install();
+ * PolicyRegistry.install();
+ *
+ * // RecyclerView.OnScrollListener
+ * if (newState == SCROLL_STATE_IDLE) {
+ *     UiPhases.exit(UiPhases.SCROLLING);
+ * } else if (oldState == SCROLL_STATE_IDLE) {
+ *     UiPhases.enter(UiPhases.SCROLLING);
+ * }
+ * </pre>
+ * <p>
+ * Phase policies are a {@link PolicyContribution}, contributed to {@link PolicyRegistry} while a phase
+ * is active and removed after it. The registry keeps policies of other modules and stages, caches
+ * the built policies, and doesn't take phase switches for overwrites. It must be installed
+ * on the main thread.
+ * <p>
+ * Phases are counted, so nested and overlapping phases are allowed: the phase policies are contributed
+ * when the first phase is entered and removed when the last one is exited. Active phases are recorded in
+ * {@link ViolationInfo#getUiPhases()}, they are tracked even if nothing is installed.
+ */
+public final class UiPhases {
+
+    public static final int SCROLLING = 1;
+    public static final int ANIMATING = 1 << 1;
+    public static final int TRANSITIONING = 1 << 2;
+
+    private static final String MODULE = "UiPhases";
+
+    private static final int PHASE_COUNT = 3;
+
+    private static final String[] NAMES = {"scrolling", "animating", "transitioning"};
+
+    // Entered and not exited times of every phase, guarded by the main thread
+    private static final int[] sCounts = new int[PHASE_COUNT];
+
+    private static int sDepth;
+
+    @Nullable
+    private static UiPhases sInstalled;
+
+    // Phases active at any time since the main thread was last idle, guarded by the main thread
+    private static int sSinceIdle;
+
+    private static boolean sIdleTracked;
+
+    // Read by violating threads
+    private static volatile int sActive;
+
+    @NonNull
+    private final PolicyContribution mPhasePolicies;
+
+    private UiPhases(@NonNull Builder builder) {
+        mPhasePolicies = builder.mPhasePolicies != null ? builder.mPhasePolicies : defaultPhasePolicies();
+    }
+
+    /**
+     * Contribute the phase policies while a phase is active. Replaces the installed instance.
+     */
+    @MainThread
+    public void install() {
+        sInstalled = this;
+        if (sDepth > 0) {
+            PolicyRegistry.contribute(MODULE, mPhasePolicies);
+        }
+    }
+
+    /**
+     * Remove the phase policies and stop contributing them.
+     */
+    @MainThread
+    public void uninstall() {
+        if (sInstalled == this) {
+            sInstalled = null;
+            PolicyRegistry.remove(MODULE);
+        }
+    }
+
+    /**
+     * Enter the phase. Every call must be paired with {@link #exit(int)}.
+     *
+     * @param phase one of {@link #SCROLLING}, {@link #ANIMATING} and {@link #TRANSITIONING}
+     */
+    @MainThread
+    public static void enter(int phase) {
+        int index = indexOf(phase);
+        trackIdle();
+        if (sCounts[index]++ == 0) {
+            sActive |= phase;
+            sSinceIdle |= phase;
+        }
+        if (sDepth++ == 0) {
+            UiPhases installed = sInstalled;
+            if (installed != null) {
+                PolicyRegistry.contribute(MODULE, installed.mPhasePolicies);
+            }
+        }
+    }
+
+    @MainThread
+    public static void exit(int phase) {
+        int index = indexOf(phase);
+        if (sCounts[index] == 0) {
+            throw new IllegalStateException("Phase " + NAMES[index] + " wasn't entered");
+        }
+        if (--sCounts[index] == 0) {
+            sActive &= ~phase;
+        }
+        if (--sDepth == 0 && sInstalled != null) {
+            PolicyRegistry.remove(MODULE);
+        }
+    }
+
+    /**
+     * Combination of active phases, {@code 0} if there are none.
+     */
+    public static int getActive() {
+        return sActive;
+    }
+
+    /**
+     * Phases active at any time since the main thread was last idle, for thread violations which
+     * StrictMode delivers after the message where they happened. On other threads it's the active phases.
+     */
+    static int getActiveSinceIdle() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            return sActive;
+        }
+        return sActive | sSinceIdle;
+    }
+
+    /**
+     * Names of the phases, like {@code "scrolling|animating"}, or {@code null} for {@code 0}.
+     */
+    @Nullable
+    public static String toString(int phases) {
+        if (phases == 0) {
+            return null;
+        }
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            if ((phases & (1 << i)) != 0) {
+                if (names.length() > 0) {
+                    names.append('|');
+                }
+                names.append(NAMES[i]);
+            }
+        }
+        return names.toString();
+    }
+
+    private static int indexOf(int phase) {
+        if (Integer.bitCount(phase) != 1 || phase >= 1 << PHASE_COUNT) {
+            throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+        return Integer.numberOfTrailingZeros(phase);
+    }
+
+    private static void trackIdle() {
+        if (sIdleTracked) {
+            return;
+        }
+        sIdleTracked = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+
+            @Override
+            public boolean queueIdle() {
+                sSinceIdle = sActive;
+                return true;
+            }
+        });
+    }
+
+    @NonNull
+    private static PolicyContribution defaultPhasePolicies() {
+        return new PolicyContribution.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectNetwork()
+                .detectCustomSlowCalls()
+                .build();
+    }
+
+    public static final class Builder {
+
+        @Nullable
+        private PolicyContribution mPhasePolicies;
+
+        /**
+         * Detectors and penalties added to the merged policies during phases. Penalties replace
+         * penalties of other contributions if the priority is higher. Default is detection of disk reads,
+         * disk writes, network and custom slow calls with penalties of other contributions.
+         */
+        public Builder phasePolicies(@NonNull PolicyContribution policies) {
+            mPhasePolicies = policies;
+            return this;
+        }
+
+        public UiPhases build() {
+            return new UiPhases(this);
+        }
+    }
+}
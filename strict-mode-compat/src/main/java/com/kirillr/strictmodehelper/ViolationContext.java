@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+/**
+ * State of the violating thread, captured before the violation is handed to the listener executor.
+ * <p>
+ * Thread violations on Looper threads are handed over after the message where they happened,
+ * their section path and UI phases are resolved from the ones seen since the thread was last idle
+ * and their time is only known to be between the idle time and the capture.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class ViolationContext {
+
+    @NonNull
+    final String threadName;
+
+    final long threadId;
+
+    final long uptimeMillis;
+
+    final long earliestNanos;
+
+    final long latestNanos;
+
+    final float samplingRate;
+
+    @Nullable
+    final String spanPath;
+
+    final int uiPhases;
+
+    private ViolationContext(@NonNull Thread thread, boolean delivered) {
+        threadName = thread.getName();
+        threadId = thread.getId();
+        uptimeMillis = SystemClock.uptimeMillis();
+        latestNanos = System.nanoTime();
+        samplingRate = SamplingPolicy.getActiveRate();
+        if (delivered) {
+            earliestNanos = TraceSections.idleNanos(latestNanos);
+            spanPath = TraceSections.pathSinceIdle();
+            uiPhases = UiPhases.getActiveSinceIdle();
+        } else {
+            earliestNanos = latestNanos;
+            spanPath = TraceSections.currentPath();
+            uiPhases = UiPhases.getActive();
+        }
+    }
+
+    /**
+     * Context of a violation which wasn't captured on the violating thread, outside of any section.
+     */
+    ViolationContext(@NonNull String threadName, long threadId, long uptimeMillis) {
+        this.threadName = threadName;
+        this.threadId = threadId;
+        this.uptimeMillis = uptimeMillis;
+        latestNanos = System.nanoTime();
+        earliestNanos = latestNanos;
+        samplingRate = SamplingPolicy.getActiveRate();
+        spanPath = null;
+        uiPhases = 0;
+    }
+
+    /**
+     * Capture the context on the violating thread.
+     *
+     * @param threadViolation {@code true} for thread policy violations, StrictMode delivers them
+     *                        on Looper threads after the message where they happened
+     */
+    @NonNull
+    static ViolationContext capture(boolean threadViolation) {
+        return new ViolationContext(Thread.currentThread(), threadViolation && Looper.myLooper() != null);
+    }
+}
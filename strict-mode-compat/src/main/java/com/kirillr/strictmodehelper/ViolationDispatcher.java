@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.Process;
+import android.os.strictmode.Violation;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers violations to listeners of {@link StrictModeCompat} policy builders.
+ * <p>
+ * The platform keeps one listener per policy, so plain and info listeners of a builder are
+ * registered as one {@link Listeners}. StrictMode calls its executor on the violating thread,
+ * so the context is captured there and the violation is handed over to the executor of every listener.
+ * VM violations are handed over synchronously. Thread violations on Looper threads are handed over
+ * from a callback posted at the front of the queue, after the violating message has finished,
+ * so their context is resolved against the time since the thread was last idle.
+ * <p>
+ * Violations are recorded by {@link FlightRecorder} on the violating thread before they are handed over.
+ * When a recorder is installed, VM {@code penaltyDeath()} is executed here instead of by the platform,
+ * which kills the process without calling listeners, so the recorder is dumped first.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class ViolationDispatcher {
+
+    private static final String TAG = "StrictModeCompat";
+
+    // Exit code of the platform death penalty
+    private static final int DEATH_EXIT_CODE = 10;
+
+    private static final ThreadLocal<ViolationContext> sDeliveredContext = new ThreadLocal<>();
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private ViolationDispatcher() {
+    }
+
+    static void dispatch(
+            @NonNull StrictModeCompat.OnViolationInfoListener listener,
+            @NonNull Throwable violation,
+            boolean threadViolation
+    ) {
+        long start = OverheadProfiler.start();
+        ViolationContext context = sDeliveredContext.get();
+        if (context == null) {
+            context = ViolationContext.capture(false);
+        }
+        StartupTimeline.recordViolation(violation, threadViolation, context);
+        TraceSections.countViolation(context.spanPath);
+        listener.onViolation(new ViolationInfo(violation, threadViolation, context));
+        OverheadProfiler.end(OverheadProfiler.Stage.LISTENER_DISPATCH, start);
+    }
+
+    /**
+     * Same as the platform VM {@code penaltyDeath()}, after the recorder is dumped.
+     */
+    static void executeDeathPenalty(@NonNull String message, @NonNull Throwable violation) {
+        FlightRecorder recorder = FlightRecorder.getInstance();
+        if (recorder != null) {
+            recorder.dumpBeforeDeath(violation);
+        }
+        Log.e(TAG, message, violation);
+        Process.killProcess(Process.myPid());
+        System.exit(DEATH_EXIT_CODE);
+    }
+
+    private static void deliver(
+            @NonNull Executor executor,
+            @Nullable final ViolationContext context,
+            @NonNull final Runnable command
+    ) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                sDeliveredContext.set(context);
+                try {
+                    command.run();
+                } finally {
+                    sDeliveredContext.remove();
+                }
+            }
+        });
+    }
+
+    /**
+     * Listeners of one policy builder, immutable so built policies don't see later changes of the builder.
+     */
+    static final class Listeners {
+
+        private final boolean mThreadViolations;
+
+        @Nullable
+        private final Executor mExecutor;
+
+        // Plain listener, StrictModeCompat.OnThreadViolationListener or OnVmViolationListener
+        @Nullable
+        private final Object mListener;
+
+        @Nullable
+        private final Executor mInfoExecutor;
+
+        @Nullable
+        private final StrictModeCompat.OnViolationInfoListener mInfoListener;
+
+        // VM penaltyDeath() executed after the listeners instead of the platform one
+        private final boolean mPenaltyDeath;
+
+        private Listeners(
+                boolean threadViolations,
+                @Nullable Executor executor,
+                @Nullable Object listener,
+                @Nullable Executor infoExecutor,
+                @Nullable StrictModeCompat.OnViolationInfoListener infoListener,
+                boolean penaltyDeath
+        ) {
+            mThreadViolations = threadViolations;
+            mExecutor = executor;
+            mListener = listener;
+            mInfoExecutor = infoExecutor;
+            mInfoListener = infoListener;
+            mPenaltyDeath = penaltyDeath;
+        }
+
+        @NonNull
+        static Listeners forThreadPolicy() {
+            return new Listeners(true, null, null, null, null, false);
+        }
+
+        @NonNull
+        static Listeners forVmPolicy() {
+            return new Listeners(false, null, null, null, null, false);
+        }
+
+        boolean isEmpty() {
+            return mListener == null && mInfoListener == null;
+        }
+
+        /**
+         * Listeners which execute VM {@code penaltyDeath()} after violations are handed over.
+         */
+        @NonNull
+        Listeners withPenaltyDeath() {
+            return new Listeners(mThreadViolations, mExecutor, mListener, mInfoExecutor, mInfoListener, true);
+        }
+
+        @NonNull
+        Listeners withListener(
+                @NonNull Executor executor,
+                @NonNull StrictModeCompat.OnThreadViolationListener listener
+        ) {
+            return withPlainListener(executor, listener);
+        }
+
+        @NonNull
+        Listeners withListener(@NonNull Executor executor, @NonNull StrictModeCompat.OnVmViolationListener listener) {
+            return withPlainListener(executor, listener);
+        }
+
+        @NonNull
+        Listeners withInfoListener(
+                @NonNull Executor executor,
+                @NonNull StrictModeCompat.OnViolationInfoListener listener
+        ) {
+            trackMainThread();
+            return new Listeners(mThreadViolations, mExecutor, mListener, executor, listener, mPenaltyDeath);
+        }
+
+        /**
+         * Executor to register with the platform, the listener runs on the violating thread.
+         */
+        @NonNull
+        Executor executor() {
+            return DIRECT_EXECUTOR;
+        }
+
+        /**
+         * Called by the platform listener on the violating thread.
+         */
+        void onViolation(@NonNull final Violation violation) {
+            if (mThreadViolations) {
+                FlightRecorder.recordThreadViolation(violation);
+            } else {
+                FlightRecorder.recordVmViolation(violation);
+            }
+            final StrictModeCompat.OnViolationInfoListener infoListener = mInfoListener;
+            // Plain listeners need the context only for StartupTimeline
+            ViolationContext context = infoListener != null || StartupTimeline.getActive() != null
+                    ? ViolationContext.capture(mThreadViolations)
+                    : null;
+            if (infoListener != null) {
+                deliver(mInfoExecutor, context, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        dispatch(infoListener, violation, mThreadViolations);
+                    }
+                });
+            }
+            if (mListener != null) {
+                // Added to the timeline by the info listener if there is one
+                final boolean record = infoListener == null;
+                deliver(mExecutor, context, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        notifyListener(violation, record);
+                    }
+                });
+            }
+            if (mPenaltyDeath) {
+                executeDeathPenalty("StrictMode VmPolicy violation with POLICY_DEATH; shutting down.", violation);
+            }
+        }
+
+        private void notifyListener(@NonNull Violation violation, boolean record) {
+            if (record) {
+                ViolationContext context = sDeliveredContext.get();
+                if (context != null) {
+                    StartupTimeline.recordViolation(violation, mThreadViolations, context);
+                }
+            }
+            long start = OverheadProfiler.start();
+            if (mThreadViolations) {
+                ((StrictModeCompat.OnThreadViolationListener) mListener).onThreadViolation(violation);
+            } else {
+                ((StrictModeCompat.OnVmViolationListener) mListener).onVmViolation(violation);
+            }
+            OverheadProfiler.end(OverheadProfiler.Stage.LISTENER_DISPATCH, start);
+        }
+
+        @NonNull
+        private Listeners withPlainListener(@NonNull Executor executor, @NonNull Object listener) {
+            trackMainThread();
+            return new Listeners(mThreadViolations, executor, listener, mInfoExecutor, mInfoListener, mPenaltyDeath);
+        }
+
+        private void trackMainThread() {
+            if (mThreadViolations) {
+                TraceSections.trackMainThread();
+            }
+        }
+    }
+}
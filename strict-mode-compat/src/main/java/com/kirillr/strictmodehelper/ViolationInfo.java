@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Violation together with the context captured on the thread where it happened.
+ *
+ * @see StrictModeCompat.OnViolationInfoListener
+ */
+public final class ViolationInfo {
+
+    @NonNull
+    private final Throwable mViolation;
+
+    private final boolean mThreadViolation;
+
+    @NonNull
+    private final String mThreadName;
+
+    private final long mThreadId;
+
+    private final long mUptimeMillis;
+
+    private final long mEarliestUptimeNanos;
+
+    private final long mLatestUptimeNanos;
+
+    private final float mSamplingRate;
+
+    @Nullable
+    private final String mSpanPath;
+
+    private final int mUiPhases;
+
+    ViolationInfo(@NonNull Throwable violation, boolean threadViolation, @NonNull ViolationContext context) {
+        mViolation = violation;
+        mThreadViolation = threadViolation;
+        mThreadName = context.threadName;
+        mThreadId = context.threadId;
+        mUptimeMillis = context.uptimeMillis;
+        mEarliestUptimeNanos = context.earliestNanos;
+        mLatestUptimeNanos = context.latestNanos;
+        mSamplingRate = context.samplingRate;
+        mSpanPath = context.spanPath;
+        mUiPhases = context.uiPhases;
+    }
+
+    /**
+     * The violation. It's {@link android.os.strictmode.Violation} for violations reported by the platform.
+     */
+    @NonNull
+    public Throwable getViolation() {
+        return mViolation;
+    }
+
+    /**
+     * Returns {@code true} for thread policy violations and {@code false} for VM policy violations.
+     */
+    public boolean isThreadViolation() {
+        return mThreadViolation;
+    }
+
+    /**
+     * Name of the thread where violation happened.
+     */
+    @NonNull
+    public String getThreadName() {
+        return mThreadName;
+    }
+
+    /**
+     * Id of the thread where violation happened.
+     */
+    public long getThreadId() {
+        return mThreadId;
+    }
+
+    /**
+     * Time of the violation in {@link android.os.SystemClock#uptimeMillis()} base. For thread violations
+     * on Looper threads it's the end of the message where the violation happened.
+     */
+    public long getUptimeMillis() {
+        return mUptimeMillis;
+    }
+
+    /**
+     * Earliest possible time of the violation in {@link System#nanoTime()} base, which is the base of
+     * {@link android.os.SystemClock#uptimeMillis()} on Android. StrictMode delivers thread violations on
+     * Looper threads after the message where they happened, they are only known to happen after
+     * the thread was last idle. For other violations it's equal to {@link #getLatestUptimeNanos()}.
+     */
+    public long getEarliestUptimeNanos() {
+        return mEarliestUptimeNanos;
+    }
+
+    /**
+     * Latest possible time of the violation in {@link System#nanoTime()} base.
+     *
+     * @see #getEarliestUptimeNanos()
+     */
+    public long getLatestUptimeNanos() {
+        return mLatestUptimeNanos;
+    }
+
+    /**
+     * Fraction of sessions with enabled policies at the moment of violation.
+     *
+     * @see SamplingPolicy#getActiveRate()
+     */
+    public float getSamplingRate() {
+        return mSamplingRate;
+    }
+
+    /**
+     * How many violations in the whole population this violation stands for.
+     */
+    public float getWeight() {
+        return mSamplingRate > 0F ? 1F / mSamplingRate : 0F;
+    }
+
+    /**
+     * Path of sections active on the violating thread, like {@code "checkout/payment"},
+     * or {@code null} if the violation happened outside of any section. For thread violations on
+     * Looper threads it's resolved from sections open since the thread was last idle, see {@link TraceSections}.
+     *
+     * @see StrictModeCompat#beginSection(String)
+     */
+    @Nullable
+    public String getSpanPath() {
+        return mSpanPath;
+    }
+
+    /**
+     * UI phases active at the moment of violation, combination of {@link UiPhases#SCROLLING},
+     * {@link UiPhases#ANIMATING} and {@link UiPhases#TRANSITIONING}. For thread violations on the main
+     * thread it's the phases active since the thread was last idle.
+     */
+    public int getUiPhases() {
+        return mUiPhases;
+    }
+
+    @Override
+    public String toString() {
+        return "ViolationInfo{" +
+                "violation=" + mViolation +
+                ", thread=" + mThreadName +
+                ", spanPath=" + mSpanPath +
+                ", uiPhases=" + UiPhases.toString(mUiPhases) +
+                ", uptimeMillis=" + mUptimeMillis +
+                ", samplingRate=" + mSamplingRate +
+                '}';
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.strictmode.Violation;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Sends every violation to the handler registered for its class instead of a chain of
+ * {@code instanceof} checks in one listener.
+ * <p>
+ * The route of a class is resolved once: the class and its superclasses are looked up
+ * in the registered routes, so unknown subclasses fall back to the handler of the closest
+ * superclass. Resolved routes are cached in an identity map, later violations of the class cost
+ * one lookup. Every route has its own queue drained on its own executor, so a slow handler
+ * delays only violations of its route.
+ *
+ * <pre>
+ * ViolationRouter router = new ViolationRouter.Builder()
+ *         .route(NetworkViolation.class, networkExecutor, networkHandler)
+ *         .route(DiskReadViolation.class, diskExecutor, diskHandler)
+ *         .fallback(executor, defaultHandler)
+ *         .build();
+ * builder.penaltyListener(router.getExecutor(), router);
+ * </pre>
+ */
+public final class ViolationRouter
+        implements StrictModeCompat.OnThreadViolationListener, StrictModeCompat.OnVmViolationListener {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    // Cached result for classes without a route
+    private static final Route NO_ROUTE = new Route(DIRECT_EXECUTOR, null, 0);
+
+    @NonNull
+    private final Map<Class<?>, Route> mRoutes;
+
+    // Copied on write, only classes seen for the first time take the lock
+    @NonNull
+    private volatile IdentityHashMap<Class<?>, Route> mResolved;
+
+    private ViolationRouter(@NonNull Builder builder) {
+        mRoutes = new IdentityHashMap<>(builder.mRoutes);
+        mResolved = new IdentityHashMap<>(mRoutes);
+    }
+
+    /**
+     * Executor to pass together with the router to {@code penaltyListener()}. Violations are routed
+     * on the thread which reports them, handlers are called on executors of their routes.
+     */
+    @NonNull
+    public Executor getExecutor() {
+        return DIRECT_EXECUTOR;
+    }
+
+    @Override
+    public void onThreadViolation(@NonNull Violation violation) {
+        route(violation, true);
+    }
+
+    @Override
+    public void onVmViolation(@NonNull Violation violation) {
+        route(violation, false);
+    }
+
+    /**
+     * Number of violations of the class dropped because the queue of its route was full.
+     */
+    public long getDroppedCount(@NonNull Class<? extends Violation> violationClass) {
+        return resolve(violationClass).mDropped.get();
+    }
+
+    private void route(@NonNull Violation violation, boolean threadViolation) {
+        long start = OverheadProfiler.start();
+        Route route = mResolved.get(violation.getClass());
+        if (route == null) {
+            route = resolve(violation.getClass());
+        }
+        if (route != NO_ROUTE) {
+            route.enqueue(violation, threadViolation);
+        }
+        OverheadProfiler.end(OverheadProfiler.Stage.LISTENER_DISPATCH, start);
+    }
+
+    @NonNull
+    private Route resolve(@NonNull Class<?> violationClass) {
+        synchronized (this) {
+            Route route = mResolved.get(violationClass);
+            if (route != null) {
+                return route;
+            }
+
+            for (Class<?> type = violationClass; type != null; type = type.getSuperclass()) {
+                route = mRoutes.get(type);
+                if (route != null) {
+                    break;
+                }
+            }
+            if (route == null) {
+                route = NO_ROUTE;
+            }
+
+            IdentityHashMap<Class<?>, Route> resolved = new IdentityHashMap<>(mResolved);
+            resolved.put(violationClass, route);
+            mResolved = resolved;
+            return route;
+        }
+    }
+
+    public interface Handler {
+
+        /**
+         * Called on the executor of the route, one violation at a time.
+         *
+         * @param threadViolation {@code true} for thread policy violations, {@code false} for VM policy ones
+         */
+        void onViolation(@NonNull Violation violation, boolean threadViolation);
+    }
+
+    /**
+     * Bounded queue of violations of one route drained on its executor.
+     */
+    private static final class Route implements Runnable {
+
+        @NonNull
+        private final Executor mExecutor;
+
+        @Nullable
+        private final Handler mHandler;
+
+        private final int mCapacity;
+
+        private final ConcurrentLinkedQueue<Item> mQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mSize = new AtomicInteger();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private final AtomicLong mDropped = new AtomicLong();
+
+        Route(@NonNull Executor executor, @Nullable Handler handler, int capacity) {
+            mExecutor = executor;
+            mHandler = handler;
+            mCapacity = capacity;
+        }
+
+        void enqueue(@NonNull Violation violation, boolean threadViolation) {
+            if (mSize.incrementAndGet() > mCapacity) {
+                mSize.decrementAndGet();
+                mDropped.incrementAndGet();
+                return;
+            }
+            mQueue.offer(new Item(violation, threadViolation));
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Item item;
+                while ((item = mQueue.poll()) != null) {
+                    mSize.decrementAndGet();
+                    mHandler.onViolation(item.violation, item.threadViolation);
+                }
+            } finally {
+                mScheduled.set(false);
+                // Violation could be queued after the last poll, but before the flag was reset
+                if (!mQueue.isEmpty() && mScheduled.compareAndSet(false, true)) {
+                    mExecutor.execute(this);
+                }
+            }
+        }
+    }
+
+    private static final class Item {
+
+        @NonNull
+        final Violation violation;
+
+        final boolean threadViolation;
+
+        Item(@NonNull Violation violation, boolean threadViolation) {
+            this.violation = violation;
+            this.threadViolation = threadViolation;
+        }
+    }
+
+    public static final class Builder {
+
+        private static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+        private final Map<Class<?>, Route> mRoutes = new IdentityHashMap<>();
+
+        private int mQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+        /**
+         * Maximum number of violations waiting in the queue of every route. Default is 256,
+         * violations that don't fit are dropped. Applies to routes added after the call.
+         */
+        public Builder queueCapacity(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be positive");
+            }
+            mQueueCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Handle violations of the class and its subclasses which have no own route.
+         */
+        public Builder route(
+                @NonNull Class<? extends Violation> violationClass,
+                @NonNull Executor executor,
+                @NonNull Handler handler
+        ) {
+            mRoutes.put(violationClass, new Route(executor, handler, mQueueCapacity));
+            return this;
+        }
+
+        /**
+         * Handle violations which have no other route.
+         */
+        public Builder fallback(@NonNull Executor executor, @NonNull Handler handler) {
+            return route(Violation.class, executor, handler);
+        }
+
+        public ViolationRouter build() {
+            return new ViolationRouter(this);
+        }
+    }
+}
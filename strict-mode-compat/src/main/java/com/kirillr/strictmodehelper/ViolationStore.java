@@ -0,0 +1,593 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Violations of the session kept in memory within a byte budget, for debug overlays and bug reports.
+ * <p>
+ * Every violation is reduced to a {@link Record}: its message and a {@link CompactViolation} with
+ * the class, thread, section and the top frames of its stack. Repeated violations with the same
+ * {@link StackFingerprint} are merged into one record with a counter. Retained size of every
+ * record is estimated, when the total goes over the budget records with the lowest frequency
+ * are evicted. Frequency decays with age, so old bursts give way to recent violations.
+ * <p>
+ * New records first wait in an admission window for the grace period, so a new violation gets
+ * a chance to repeat before it competes with established ones. The window takes a small share
+ * of the budget, the oldest records leave it early when it's full. Records out of the window are
+ * kept in a min-heap by frequency, decay doesn't change their order, so eviction doesn't sort the store.
+ * <p>
+ * Stacks of records are interned into a table of the store, counted in the budget. The table is
+ * rebuilt from the kept records on eviction, so it doesn't keep stacks of evicted ones.
+ */
+public final class ViolationStore implements StrictModeCompat.OnViolationInfoListener {
+
+    // Evicted down to this share of the budget, so eviction doesn't run on every violation
+    private static final float LOW_WATER_MARK = 0.9F;
+
+    // Share of the budget for records in the admission window
+    private static final float ADMISSION_SHARE = 0.2F;
+
+    private static final int RECORD_BYTES = 48;
+    private static final int COMPACT_VIOLATION_BYTES = 64;
+    private static final int STRING_BYTES = 40;
+    private static final int MAP_ENTRY_BYTES = 48;
+
+    private final long mBudgetBytes;
+    private final int mMaxFrames;
+    private final int mMaxMessageLength;
+    private final double mDecayPerMillis;
+    private final long mAdmissionGraceMillis;
+
+    // Guarded by this
+    private final Map<Long, Record> mRecords = new HashMap<>();
+    // Min-heap of records by Record.mScore
+    @NonNull
+    private Record[] mHeap = new Record[16];
+    private int mHeapSize;
+    // Records in the grace period, the oldest first
+    private final ArrayDeque<Record> mWindow = new ArrayDeque<>();
+    private long mWindowBytes;
+    @NonNull
+    private StackTable mStackTable = new StackTable();
+    // Bytes of records without the table of stacks
+    private long mRetainedBytes;
+    private long mEvictedCount;
+
+    private ViolationStore(@NonNull Builder builder) {
+        mBudgetBytes = builder.mBudgetBytes;
+        mMaxFrames = builder.mMaxFrames;
+        mMaxMessageLength = builder.mMaxMessageLength;
+        mDecayPerMillis = Math.log(2) / builder.mHalfLifeMillis;
+        mAdmissionGraceMillis = builder.mAdmissionGraceMillis;
+    }
+
+    @Override
+    public void onViolation(@NonNull ViolationInfo info) {
+        add(info);
+    }
+
+    /**
+     * Add the violation. The store doesn't keep a reference to it.
+     */
+    public void add(@NonNull ViolationInfo info) {
+        long start = OverheadProfiler.start();
+        Throwable violation = info.getViolation();
+        long fingerprint = StackFingerprint.of(violation);
+        synchronized (this) {
+            Record record = mRecords.get(fingerprint);
+            if (record == null) {
+                record = new Record(CompactViolation.of(info, mMaxFrames, mStackTable),
+                        truncate(violation.getMessage()));
+            }
+            addLocked(record, info.getUptimeMillis());
+        }
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+    }
+
+    /**
+     * Add the violation without a message.
+     */
+    public void add(@NonNull CompactViolation violation) {
+        long start = OverheadProfiler.start();
+        synchronized (this) {
+            Record record = mRecords.get(violation.getFingerprint());
+            if (record == null) {
+                record = new Record(violation.internedIn(mStackTable), null);
+            }
+            addLocked(record, violation.getUptimeMillis());
+        }
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+    }
+
+    private void addLocked(@NonNull Record record, long now) {
+        record.hit(now, mDecayPerMillis);
+        if (record.mCount == 1) {
+            mRecords.put(record.getFingerprint(), record);
+            mRetainedBytes += record.mRetainedBytes;
+            mWindow.addLast(record);
+            mWindowBytes += record.mRetainedBytes;
+        } else if (record.mHeapIndex >= 0) {
+            // The score only grows on a hit
+            siftDown(record.mHeapIndex);
+        }
+        admit(now);
+        if (mRetainedBytes + mStackTable.getRetainedBytes() > mBudgetBytes) {
+            evict();
+        }
+    }
+
+    @Nullable
+    private String truncate(@Nullable String message) {
+        return message != null && message.length() > mMaxMessageLength
+                ? message.substring(0, mMaxMessageLength)
+                : message;
+    }
+
+    /**
+     * Visit every record while holding the lock of the store. The visitor must not modify the store.
+     */
+    public synchronized void forEach(@NonNull Visitor visitor) {
+        for (Record record : mRecords.values()) {
+            visitor.visit(record);
+        }
+    }
+
+    /**
+     * K records with the highest count, the most frequent first. Records of the top lists are copies
+     * which don't change with later violations.
+     */
+    @NonNull
+    public List<Record> topByCount(int k) {
+        return top(k, new Comparator<Record>() {
+
+            @Override
+            public int compare(Record first, Record second) {
+                return compareLongs(first.mCount, second.mCount);
+            }
+        });
+    }
+
+    /**
+     * K records with the highest decayed frequency, the record which is kept longest first.
+     */
+    @NonNull
+    public List<Record> topByFrequency(int k) {
+        final long now = SystemClock.uptimeMillis();
+        final double decay = mDecayPerMillis;
+        return top(k, new Comparator<Record>() {
+
+            @Override
+            public int compare(Record first, Record second) {
+                return Double.compare(first.frequencyAt(now, decay), second.frequencyAt(now, decay));
+            }
+        });
+    }
+
+    /**
+     * K records seen last, the latest first.
+     */
+    @NonNull
+    public List<Record> topByRecency(int k) {
+        return top(k, new Comparator<Record>() {
+
+            @Override
+            public int compare(Record first, Record second) {
+                return compareLongs(first.mLastUptimeMillis, second.mLastUptimeMillis);
+            }
+        });
+    }
+
+    public synchronized int size() {
+        return mRecords.size();
+    }
+
+    /**
+     * Estimated bytes retained by records and the table of their stacks.
+     */
+    public synchronized long getRetainedBytes() {
+        return mRetainedBytes + mStackTable.getRetainedBytes();
+    }
+
+    /**
+     * Number of records evicted to stay within the budget.
+     */
+    public synchronized long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    public synchronized void clear() {
+        mRecords.clear();
+        Arrays.fill(mHeap, 0, mHeapSize, null);
+        mHeapSize = 0;
+        mWindow.clear();
+        mWindowBytes = 0;
+        mStackTable = new StackTable();
+        mRetainedBytes = 0;
+    }
+
+    /**
+     * Min-heap of size K over all records, O(n log K) without copying the store.
+     */
+    @NonNull
+    private synchronized List<Record> top(int k, @NonNull Comparator<Record> comparator) {
+        if (k <= 0 || mRecords.isEmpty()) {
+            return Collections.emptyList();
+        }
+        PriorityQueue<Record> heap = new PriorityQueue<>(Math.min(k, mRecords.size()), comparator);
+        for (Record record : mRecords.values()) {
+            if (heap.size() < k) {
+                heap.add(record);
+            } else if (comparator.compare(record, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(record);
+            }
+        }
+        Record[] result = new Record[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = new Record(heap.poll());
+        }
+        return Arrays.asList(result);
+    }
+
+    private void evict() {
+        // Drop stacks of records evicted before, the table may be over the budget by itself
+        rebuildStackTable();
+        long target = (long) (mBudgetBytes * LOW_WATER_MARK);
+        if (mRetainedBytes + mStackTable.getRetainedBytes() <= target) {
+            return;
+        }
+
+        // Bytes of the table rebuilt from the kept records, so it's rebuilt once after eviction
+        StackTable.Usage usage = mStackTable.usage();
+        for (Record record : mRecords.values()) {
+            usage.add(record.mViolation.getStackId());
+        }
+        while (!mRecords.isEmpty() && mRetainedBytes + usage.getRetainedBytes() > target) {
+            Record record;
+            if (mHeapSize > 0) {
+                record = poll();
+            } else {
+                record = mWindow.removeFirst();
+                mWindowBytes -= record.mRetainedBytes;
+            }
+            remove(record);
+            usage.remove(record.mViolation.getStackId());
+        }
+        rebuildStackTable();
+    }
+
+    /**
+     * Move records out of the admission window to the heap after the grace period,
+     * or earlier if the window is over its share of the budget.
+     */
+    private void admit(long now) {
+        long windowBudget = (long) (mBudgetBytes * ADMISSION_SHARE);
+        while (!mWindow.isEmpty()) {
+            Record record = mWindow.peekFirst();
+            if (now - record.getFirstUptimeMillis() < mAdmissionGraceMillis && mWindowBytes <= windowBudget) {
+                break;
+            }
+            mWindow.removeFirst();
+            mWindowBytes -= record.mRetainedBytes;
+            offer(record);
+        }
+    }
+
+    private void remove(@NonNull Record record) {
+        mRecords.remove(record.getFingerprint());
+        mRetainedBytes -= record.mRetainedBytes;
+        mEvictedCount++;
+    }
+
+    private void offer(@NonNull Record record) {
+        if (mHeapSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mHeapSize * 2);
+        }
+        mHeap[mHeapSize] = record;
+        record.mHeapIndex = mHeapSize;
+        siftUp(mHeapSize++);
+    }
+
+    @NonNull
+    private Record poll() {
+        Record min = mHeap[0];
+        Record last = mHeap[--mHeapSize];
+        mHeap[mHeapSize] = null;
+        if (mHeapSize > 0) {
+            mHeap[0] = last;
+            last.mHeapIndex = 0;
+            siftDown(0);
+        }
+        min.mHeapIndex = -1;
+        return min;
+    }
+
+    private void siftUp(int index) {
+        Record record = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (mHeap[parent].mScore <= record.mScore) {
+                break;
+            }
+            place(mHeap[parent], index);
+            index = parent;
+        }
+        place(record, index);
+    }
+
+    private void siftDown(int index) {
+        Record record = mHeap[index];
+        int half = mHeapSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < mHeapSize && mHeap[child + 1].mScore < mHeap[child].mScore) {
+                child++;
+            }
+            if (record.mScore <= mHeap[child].mScore) {
+                break;
+            }
+            place(mHeap[child], index);
+            index = child;
+        }
+        place(record, index);
+    }
+
+    private void place(@NonNull Record record, int index) {
+        mHeap[index] = record;
+        record.mHeapIndex = index;
+    }
+
+    private void rebuildStackTable() {
+        StackTable table = new StackTable();
+        for (Record record : mRecords.values()) {
+            record.mViolation = record.mViolation.internedIn(table);
+        }
+        mStackTable = table;
+    }
+
+    private static int compareLongs(long first, long second) {
+        return first < second ? -1 : (first == second ? 0 : 1);
+    }
+
+    private static long stringBytes(@Nullable String value) {
+        return value == null ? 0 : STRING_BYTES + 2L * value.length();
+    }
+
+    public interface Visitor {
+
+        void visit(@NonNull Record record);
+    }
+
+    /**
+     * Violations with the same fingerprint. Records passed to a {@link Visitor} are read under the lock
+     * of the store, records of the top lists are copies.
+     */
+    public static final class Record {
+
+        // Replaced when the table of stacks is rebuilt, guarded by the store
+        @NonNull
+        private CompactViolation mViolation;
+
+        @Nullable
+        private final String mMessage;
+
+        private final long mRetainedBytes;
+
+        private long mLastUptimeMillis;
+
+        private int mCount;
+
+        // Decayed count at mLastUptimeMillis
+        private double mFrequency;
+
+        // Log of the frequency at uptime 0. Decay doesn't change the order of scores, guarded by the store
+        private double mScore;
+
+        private int mHeapIndex = -1;
+
+        Record(@NonNull CompactViolation violation, @Nullable String message) {
+            mViolation = violation;
+            mMessage = message;
+            mLastUptimeMillis = violation.getUptimeMillis();
+            // Class names are shared with loaded classes and stacks are counted by the table of the store
+            mRetainedBytes = RECORD_BYTES + COMPACT_VIOLATION_BYTES + MAP_ENTRY_BYTES
+                    + stringBytes(mMessage)
+                    + stringBytes(violation.getThreadName())
+                    + stringBytes(violation.getSpanPath());
+        }
+
+        /**
+         * Copy of the record taken under the lock of the store, out of the heap of the store.
+         */
+        Record(@NonNull Record record) {
+            mViolation = record.mViolation;
+            mMessage = record.mMessage;
+            mRetainedBytes = record.mRetainedBytes;
+            mLastUptimeMillis = record.mLastUptimeMillis;
+            mCount = record.mCount;
+            mFrequency = record.mFrequency;
+            mScore = record.mScore;
+        }
+
+        void hit(long now, double decayPerMillis) {
+            mFrequency = frequencyAt(now, decayPerMillis) + 1;
+            mLastUptimeMillis = Math.max(mLastUptimeMillis, now);
+            mScore = Math.log(mFrequency) + decayPerMillis * mLastUptimeMillis;
+            mCount++;
+        }
+
+        double frequencyAt(long now, double decayPerMillis) {
+            return mFrequency * Math.exp(-decayPerMillis * Math.max(0, now - mLastUptimeMillis));
+        }
+
+        /**
+         * The first violation.
+         */
+        @NonNull
+        public CompactViolation getViolation() {
+            return mViolation;
+        }
+
+        public long getFingerprint() {
+            return mViolation.getFingerprint();
+        }
+
+        @NonNull
+        public String getViolationClass() {
+            return mViolation.getViolationClass();
+        }
+
+        /**
+         * Message of the first violation, truncated.
+         */
+        @Nullable
+        public String getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * Thread of the first violation.
+         */
+        @NonNull
+        public String getThreadName() {
+            return mViolation.getThreadName();
+        }
+
+        /**
+         * Section path of the first violation.
+         */
+        @Nullable
+        public String getSpanPath() {
+            return mViolation.getSpanPath();
+        }
+
+        /**
+         * Top frames of the stack.
+         */
+        @NonNull
+        public StackTraceElement[] getFrames() {
+            return mViolation.getFrames();
+        }
+
+        public long getFirstUptimeMillis() {
+            return mViolation.getUptimeMillis();
+        }
+
+        public long getLastUptimeMillis() {
+            return mLastUptimeMillis;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Estimated bytes retained by the record.
+         */
+        public long getRetainedBytes() {
+            return mRetainedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return getViolationClass() + " x" + mCount + " [" + StackFingerprint.toString(getFingerprint()) + "]";
+        }
+    }
+
+    public static final class Builder {
+
+        private long mBudgetBytes = 512 * 1024;
+        private int mMaxFrames = 16;
+        private int mMaxMessageLength = 256;
+        private long mHalfLifeMillis = 5 * 60_000L;
+        private long mAdmissionGraceMillis = 10_000L;
+
+        /**
+         * Maximum estimated bytes retained by records. Default is 512 KiB.
+         */
+        public Builder budgetBytes(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("bytes must be positive");
+            }
+            mBudgetBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Number of top frames kept for every record. Default is 16.
+         *
+         * @see CompactViolation#of(ViolationInfo, int)
+         */
+        public Builder maxFrames(int maxFrames) {
+            if (maxFrames < 0) {
+                throw new IllegalArgumentException("maxFrames must not be negative");
+            }
+            mMaxFrames = maxFrames;
+            return this;
+        }
+
+        /**
+         * Maximum length of kept messages. Default is 256.
+         */
+        public Builder maxMessageLength(int length) {
+            mMaxMessageLength = Math.max(0, length);
+            return this;
+        }
+
+        /**
+         * Time after which a violation counts half as much for eviction. Default is five minutes.
+         */
+        public Builder frequencyHalfLife(long halfLifeMillis) {
+            if (halfLifeMillis <= 0) {
+                throw new IllegalArgumentException("halfLifeMillis must be positive");
+            }
+            mHalfLifeMillis = halfLifeMillis;
+            return this;
+        }
+
+        /**
+         * Time after the first violation of a record during which it isn't evicted for violations
+         * with a higher frequency. Records in the grace period take up to a fifth of the budget.
+         * Default is ten seconds.
+         */
+        public Builder admissionGrace(long graceMillis) {
+            if (graceMillis < 0) {
+                throw new IllegalArgumentException("graceMillis must not be negative");
+            }
+            mAdmissionGraceMillis = graceMillis;
+            return this;
+        }
+
+        public ViolationStore build() {
+            return new ViolationStore(this);
+        }
+    }
+}
@@ -0,0 +1,824 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Column-oriented table of violations of the session for fast queries from debug tools.
+ * <p>
+ * Every violation is a row of primitive columns: time, type id, thread id and name id, fingerprint
+ * and span id. Rows are appended in the order of delivery, which is almost the time order. Time ranges
+ * are found with a binary search over the running maximum of times, the end of the range is widened
+ * by the largest delay of a late row seen, and rows are then checked by their own time. Indexes on
+ * type and fingerprint hold sorted row numbers, a query walks the shortest matching index instead of
+ * the whole table.
+ * <p>
+ * Columns are a ring: when the table is full the oldest row is evicted for the new one. Row numbers
+ * keep growing from a moving base row, the evicted row is the first one of its index lists and is
+ * pruned from their head. Names of types, threads and spans are released with their last row.
+ *
+ * <pre>
+ * Map&lt;String, Integer&gt; byFrame = table.query()
+ *         .type(DiskReadViolation.class)
+ *         .threadName("main")
+ *         .span("checkout")
+ *         .since(SystemClock.uptimeMillis() - 5 * 60_000L)
+ *         .groupByBlameFrame(attribution);
+ * </pre>
+ */
+public final class ViolationTable implements StrictModeCompat.OnViolationInfoListener {
+
+    private static final int NO_SPAN = -1;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int mMaxRows;
+    private final int mMaxFrames;
+
+    // Columns, guarded by this
+    private long[] mUptimes = new long[INITIAL_CAPACITY];
+    // Maximum of uptimes up to the row, ascending
+    private long[] mWatermarks = new long[INITIAL_CAPACITY];
+    private int[] mTypes = new int[INITIAL_CAPACITY];
+    private long[] mThreadIds = new long[INITIAL_CAPACITY];
+    private int[] mThreadNameIds = new int[INITIAL_CAPACITY];
+    private long[] mFingerprints = new long[INITIAL_CAPACITY];
+    private int[] mSpans = new int[INITIAL_CAPACITY];
+    // Row number of the oldest row, the row is at mBase % capacity of columns
+    private int mBase;
+    private int mSize;
+    private long mEvicted;
+    // Largest difference between the watermark and the time of a row
+    private long mMaxDelay;
+
+    private final Dictionary mTypeNames = new Dictionary();
+    private final Dictionary mSpanPaths = new Dictionary();
+    private final Dictionary mThreadNames = new Dictionary();
+
+    // Indexes
+    private final Map<Integer, IntList> mTypeIndex = new HashMap<>();
+    private final Map<Long, IntList> mFingerprintIndex = new HashMap<>();
+
+    // Stack of top frames of every fingerprint, for grouping by blame
+    @NonNull
+    private StackTable mStackTable = new StackTable();
+    private final Map<Long, Integer> mStacks = new HashMap<>();
+    // Fingerprints evicted since the table of stacks was built
+    private int mEvictedStacks;
+
+    private ViolationTable(@NonNull Builder builder) {
+        mMaxRows = builder.mMaxRows;
+        mMaxFrames = builder.mMaxFrames;
+    }
+
+    @Override
+    public void onViolation(@NonNull ViolationInfo info) {
+        add(info);
+    }
+
+    public void add(@NonNull ViolationInfo info) {
+        long start = OverheadProfiler.start();
+        Throwable violation = info.getViolation();
+        long fingerprint = StackFingerprint.of(violation);
+        synchronized (this) {
+            boolean added = append(violation.getClass().getName(), fingerprint, info.getUptimeMillis(),
+                    info.getThreadId(), info.getThreadName(), info.getSpanPath());
+            if (added) {
+                mStacks.put(fingerprint, mStackTable.intern(violation.getStackTrace(), mMaxFrames));
+            }
+        }
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+    }
+
+    /**
+     * Add the violation. Frames of the first violation of every fingerprint are kept
+     * as {@link CompactViolation#getFrames()} returns them.
+     */
+    public void add(@NonNull CompactViolation violation) {
+        long start = OverheadProfiler.start();
+        synchronized (this) {
+            boolean added = append(violation.getViolationClass(), violation.getFingerprint(),
+                    violation.getUptimeMillis(), violation.getThreadId(), violation.getThreadName(),
+                    violation.getSpanPath());
+            if (added) {
+                mStacks.put(violation.getFingerprint(),
+                        mStackTable.intern(violation.getStackTable(), violation.getStackId()));
+            }
+        }
+        OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+    }
+
+    /**
+     * @return true if it is the first row of the fingerprint
+     */
+    private boolean append(@NonNull String type, long fingerprint, long uptimeMillis, long threadId,
+                           @NonNull String threadName, @Nullable String spanPath) {
+        if (mSize == mMaxRows) {
+            evictOldest();
+        } else if (mSize == mUptimes.length) {
+            // Columns grow only before the first eviction, while the base is 0
+            grow();
+        }
+        if (mBase > Integer.MAX_VALUE - mMaxRows) {
+            rebase();
+        }
+
+        int row = mBase + mSize++;
+        int slot = slotOf(row);
+        long watermark = mSize > 1 ? Math.max(mWatermarks[slotOf(row - 1)], uptimeMillis) : uptimeMillis;
+        mUptimes[slot] = uptimeMillis;
+        mWatermarks[slot] = watermark;
+        mMaxDelay = Math.max(mMaxDelay, watermark - uptimeMillis);
+        int typeId = mTypeNames.acquire(type);
+        mTypes[slot] = typeId;
+        mThreadIds[slot] = threadId;
+        mThreadNameIds[slot] = mThreadNames.acquire(threadName);
+        mFingerprints[slot] = fingerprint;
+        mSpans[slot] = spanPath != null ? mSpanPaths.acquire(spanPath) : NO_SPAN;
+
+        index(mTypeIndex, typeId, row);
+        return index(mFingerprintIndex, fingerprint, row);
+    }
+
+    @NonNull
+    public Query query() {
+        return new Query(this);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Oldest violations evicted to make room for new ones.
+     */
+    public synchronized long getDroppedCount() {
+        return mEvicted;
+    }
+
+    public synchronized void clear() {
+        mBase = 0;
+        mSize = 0;
+        mEvicted = 0;
+        mMaxDelay = 0;
+        mEvictedStacks = 0;
+        mTypeIndex.clear();
+        mFingerprintIndex.clear();
+        mStacks.clear();
+        mStackTable = new StackTable();
+        mTypeNames.clear();
+        mSpanPaths.clear();
+        mThreadNames.clear();
+    }
+
+    private int slotOf(int row) {
+        return row % mUptimes.length;
+    }
+
+    private void evictOldest() {
+        int row = mBase;
+        int slot = slotOf(row);
+        unindex(mTypeIndex, mTypes[slot], row);
+        mTypeNames.release(mTypes[slot]);
+        mThreadNames.release(mThreadNameIds[slot]);
+        if (mSpans[slot] != NO_SPAN) {
+            mSpanPaths.release(mSpans[slot]);
+        }
+        long fingerprint = mFingerprints[slot];
+        if (unindex(mFingerprintIndex, fingerprint, row)) {
+            mStacks.remove(fingerprint);
+            if (++mEvictedStacks > mStacks.size()) {
+                rebuildStackTable();
+            }
+        }
+        mBase++;
+        mSize--;
+        mEvicted++;
+    }
+
+    /**
+     * Stacks of evicted fingerprints outnumber live ones, keep only the live ones.
+     */
+    private void rebuildStackTable() {
+        StackTable table = new StackTable();
+        for (Map.Entry<Long, Integer> entry : mStacks.entrySet()) {
+            entry.setValue(table.intern(mStackTable, entry.getValue()));
+        }
+        mStackTable = table;
+        mEvictedStacks = 0;
+    }
+
+    /**
+     * Move row numbers down by whole turns of the ring before they overflow, slots stay the same.
+     */
+    private void rebase() {
+        int shift = mBase - mBase % mUptimes.length;
+        for (IntList rows : mTypeIndex.values()) {
+            rows.shift(shift);
+        }
+        for (IntList rows : mFingerprintIndex.values()) {
+            rows.shift(shift);
+        }
+        mBase -= shift;
+    }
+
+    private void grow() {
+        int capacity = (int) Math.min(mMaxRows, mUptimes.length * 2L);
+        mUptimes = Arrays.copyOf(mUptimes, capacity);
+        mWatermarks = Arrays.copyOf(mWatermarks, capacity);
+        mTypes = Arrays.copyOf(mTypes, capacity);
+        mThreadIds = Arrays.copyOf(mThreadIds, capacity);
+        mThreadNameIds = Arrays.copyOf(mThreadNameIds, capacity);
+        mFingerprints = Arrays.copyOf(mFingerprints, capacity);
+        mSpans = Arrays.copyOf(mSpans, capacity);
+    }
+
+    /**
+     * @return {@code true} if the key is new
+     */
+    private static <K> boolean index(@NonNull Map<K, IntList> index, @NonNull K key, int row) {
+        IntList rows = index.get(key);
+        boolean created = rows == null;
+        if (created) {
+            rows = new IntList();
+            index.put(key, rows);
+        }
+        rows.add(row);
+        return created;
+    }
+
+    /**
+     * Remove the oldest row, the first one of its list.
+     *
+     * @return {@code true} if the key has no rows left
+     */
+    private static <K> boolean unindex(@NonNull Map<K, IntList> index, @NonNull K key, int row) {
+        IntList rows = index.get(key);
+        rows.removeFirst(row);
+        if (rows.size() == 0) {
+            index.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * First row with the watermark not less than {@code uptimeMillis}, all rows before it are older.
+     */
+    private int lowerBound(long uptimeMillis) {
+        int low = mBase;
+        int high = mBase + mSize;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mWatermarks[slotOf(middle)] < uptimeMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Violation filter and aggregations over matching rows. Filters are combined with AND.
+     */
+    public static final class Query {
+
+        @NonNull
+        private final ViolationTable mTable;
+
+        @Nullable
+        private String mType;
+
+        @Nullable
+        private Long mFingerprint;
+
+        @Nullable
+        private Long mThreadId;
+
+        @Nullable
+        private String mThreadName;
+
+        @Nullable
+        private String mSpan;
+
+        private long mFrom = Long.MIN_VALUE;
+        private long mTo = Long.MAX_VALUE;
+
+        Query(@NonNull ViolationTable table) {
+            mTable = table;
+        }
+
+        public Query type(@NonNull Class<? extends Throwable> violationClass) {
+            return type(violationClass.getName());
+        }
+
+        public Query type(@NonNull String violationClass) {
+            mType = violationClass;
+            return this;
+        }
+
+        public Query fingerprint(long fingerprint) {
+            mFingerprint = fingerprint;
+            return this;
+        }
+
+        public Query threadId(long threadId) {
+            mThreadId = threadId;
+            return this;
+        }
+
+        /**
+         * Violations on threads with the name, like {@code "main"}.
+         */
+        public Query threadName(@NonNull String threadName) {
+            mThreadName = threadName;
+            return this;
+        }
+
+        /**
+         * Violations inside the section with the name at any depth.
+         *
+         * @see StrictModeCompat#beginSection(String)
+         */
+        public Query span(@NonNull String name) {
+            mSpan = name;
+            return this;
+        }
+
+        /**
+         * Violations which happened at {@code uptimeMillis} or later.
+         */
+        public Query since(long uptimeMillis) {
+            mFrom = uptimeMillis;
+            return this;
+        }
+
+        /**
+         * Violations which happened before {@code uptimeMillis}.
+         */
+        public Query until(long uptimeMillis) {
+            mTo = uptimeMillis;
+            return this;
+        }
+
+        public int count() {
+            final int[] count = new int[1];
+            run(new RowVisitor() {
+
+                @Override
+                public void visit(@NonNull ViolationTable table, int slot) {
+                    count[0]++;
+                }
+            });
+            return count[0];
+        }
+
+        @NonNull
+        public Map<String, Integer> groupByType() {
+            final Map<String, Integer> groups = new HashMap<>();
+            run(new RowVisitor() {
+
+                @Override
+                public void visit(@NonNull ViolationTable table, int slot) {
+                    increment(groups, table.mTypeNames.nameOf(table.mTypes[slot]));
+                }
+            });
+            return groups;
+        }
+
+        @NonNull
+        public Map<Long, Integer> groupByFingerprint() {
+            final Map<Long, Integer> groups = new HashMap<>();
+            run(new RowVisitor() {
+
+                @Override
+                public void visit(@NonNull ViolationTable table, int slot) {
+                    increment(groups, table.mFingerprints[slot]);
+                }
+            });
+            return groups;
+        }
+
+        /**
+         * Groups by thread name.
+         */
+        @NonNull
+        public Map<String, Integer> groupByThread() {
+            final Map<String, Integer> groups = new HashMap<>();
+            run(new RowVisitor() {
+
+                @Override
+                public void visit(@NonNull ViolationTable table, int slot) {
+                    increment(groups, table.mThreadNames.nameOf(table.mThreadNameIds[slot]));
+                }
+            });
+            return groups;
+        }
+
+        /**
+         * Groups by section path, violations outside of sections have {@code ""} key.
+         */
+        @NonNull
+        public Map<String, Integer> groupBySpan() {
+            final Map<String, Integer> groups = new HashMap<>();
+            run(new RowVisitor() {
+
+                @Override
+                public void visit(@NonNull ViolationTable table, int slot) {
+                    int span = table.mSpans[slot];
+                    increment(groups, span == NO_SPAN ? "" : table.mSpanPaths.nameOf(span));
+                }
+            });
+            return groups;
+        }
+
+        /**
+         * Groups by the first non-platform frame found by {@link BlameAttribution},
+         * or by the owner if there is no such frame. Every fingerprint is resolved once
+         * and counters of the attribution don't change.
+         */
+        @NonNull
+        public Map<String, Integer> groupByBlameFrame(@NonNull BlameAttribution attribution) {
+            Map<Long, Integer> byFingerprint = groupByFingerprint();
+            Map<String, Integer> groups = new HashMap<>();
+            for (Map.Entry<Long, Integer> entry : byFingerprint.entrySet()) {
+                String type;
+                StackTable stackTable;
+                int stack;
+                synchronized (mTable) {
+                    IntList rows = mTable.mFingerprintIndex.get(entry.getKey());
+                    if (rows == null) {
+                        continue;
+                    }
+                    type = mTable.mTypeNames.nameOf(mTable.mTypes[mTable.slotOf(rows.get(0))]);
+                    stackTable = mTable.mStackTable;
+                    stack = mTable.mStacks.get(entry.getKey());
+                }
+                BlameAttribution.Blame blame = attribution.resolve(type, stackTable.frames(stack));
+                StackTraceElement frame = blame.getFrame();
+                String key = frame != null ? frame.toString() : blame.getOwner();
+                Integer count = groups.get(key);
+                groups.put(key, count == null ? entry.getValue() : count + entry.getValue());
+            }
+            return groups;
+        }
+
+        /**
+         * Visit matching rows in the order they were added while holding the lock of the table.
+         * It's the time order except for violations delivered late.
+         */
+        public void forEach(@NonNull final Visitor visitor) {
+            run(new RowVisitor() {
+
+                @Override
+                public void visit(@NonNull ViolationTable table, int slot) {
+                    int span = table.mSpans[slot];
+                    visitor.visit(
+                            table.mUptimes[slot],
+                            table.mTypeNames.nameOf(table.mTypes[slot]),
+                            table.mThreadIds[slot],
+                            table.mFingerprints[slot],
+                            span == NO_SPAN ? null : table.mSpanPaths.nameOf(span)
+                    );
+                }
+            });
+        }
+
+        private void run(@NonNull RowVisitor visitor) {
+            long start = OverheadProfiler.start();
+            synchronized (mTable) {
+                scan(mTable, visitor);
+            }
+            OverheadProfiler.end(OverheadProfiler.Stage.AGGREGATION, start);
+        }
+
+        private void scan(@NonNull ViolationTable table, @NonNull RowVisitor visitor) {
+            int type = -1;
+            if (mType != null) {
+                type = table.mTypeNames.find(mType);
+                if (type < 0) {
+                    return;
+                }
+            }
+            int threadName = -1;
+            if (mThreadName != null) {
+                threadName = table.mThreadNames.find(mThreadName);
+                if (threadName < 0) {
+                    return;
+                }
+            }
+            boolean[] spans = matchingSpans(table);
+
+            int from = table.lowerBound(mFrom);
+            // Late rows older than the end can follow rows newer than it
+            int to = mTo > Long.MAX_VALUE - table.mMaxDelay
+                    ? table.mBase + table.mSize
+                    : table.lowerBound(mTo + table.mMaxDelay);
+
+            // Walk the shortest index if any
+            IntList rows = null;
+            if (mFingerprint != null) {
+                rows = table.mFingerprintIndex.get(mFingerprint);
+                if (rows == null) {
+                    return;
+                }
+            }
+            if (type >= 0) {
+                IntList typeRows = table.mTypeIndex.get(type);
+                if (typeRows == null) {
+                    return;
+                }
+                if (rows == null || typeRows.size() < rows.size()) {
+                    rows = typeRows;
+                }
+            }
+
+            if (rows != null) {
+                for (int i = rows.lowerBound(from), size = rows.size(); i < size; i++) {
+                    int row = rows.get(i);
+                    if (row >= to) {
+                        break;
+                    }
+                    int slot = table.slotOf(row);
+                    if (matches(table, slot, type, threadName, spans)) {
+                        visitor.visit(table, slot);
+                    }
+                }
+            } else {
+                for (int row = from; row < to; row++) {
+                    int slot = table.slotOf(row);
+                    if (matches(table, slot, type, threadName, spans)) {
+                        visitor.visit(table, slot);
+                    }
+                }
+            }
+        }
+
+        private boolean matches(
+                @NonNull ViolationTable table,
+                int slot,
+                int type,
+                int threadName,
+                @Nullable boolean[] spans
+        ) {
+            long uptime = table.mUptimes[slot];
+            if (uptime < mFrom || uptime >= mTo) {
+                return false;
+            }
+            if (type >= 0 && table.mTypes[slot] != type) {
+                return false;
+            }
+            if (mFingerprint != null && table.mFingerprints[slot] != mFingerprint) {
+                return false;
+            }
+            if (mThreadId != null && table.mThreadIds[slot] != mThreadId) {
+                return false;
+            }
+            if (threadName >= 0 && table.mThreadNameIds[slot] != threadName) {
+                return false;
+            }
+            if (spans != null) {
+                int span = table.mSpans[slot];
+                return span != NO_SPAN && spans[span];
+            }
+            return true;
+        }
+
+        /**
+         * Span ids whose path contains the section, computed once per query.
+         */
+        @Nullable
+        private boolean[] matchingSpans(@NonNull ViolationTable table) {
+            if (mSpan == null) {
+                return null;
+            }
+            Dictionary paths = table.mSpanPaths;
+            boolean[] spans = new boolean[paths.size()];
+            for (int i = 0; i < spans.length; i++) {
+                String path = paths.nameOf(i);
+                if (path == null) {
+                    continue;
+                }
+                int index = path.indexOf(mSpan);
+                while (index >= 0 && !isSegment(path, index, mSpan.length())) {
+                    index = path.indexOf(mSpan, index + 1);
+                }
+                spans[i] = index >= 0;
+            }
+            return spans;
+        }
+
+        private static boolean isSegment(@NonNull String path, int start, int length) {
+            int end = start + length;
+            return (start == 0 || path.charAt(start - 1) == TraceSections.SEPARATOR)
+                    && (end == path.length() || path.charAt(end) == TraceSections.SEPARATOR);
+        }
+
+        private static <K> void increment(@NonNull Map<K, Integer> groups, K key) {
+            Integer count = groups.get(key);
+            groups.put(key, count == null ? 1 : count + 1);
+        }
+    }
+
+    public interface Visitor {
+
+        /**
+         * @param spanPath section path or {@code null} if the violation happened outside of sections
+         */
+        void visit(long uptimeMillis, @NonNull String violationClass, long threadId, long fingerprint,
+                   @Nullable String spanPath);
+    }
+
+    private interface RowVisitor {
+
+        void visit(@NonNull ViolationTable table, int slot);
+    }
+
+    /**
+     * Strings to dense ids with counts of rows. Ids of names without rows are reused.
+     */
+    private static final class Dictionary {
+
+        private final Map<String, Integer> mIds = new HashMap<>();
+        private final List<String> mNames = new ArrayList<>();
+        private int[] mRows = new int[8];
+        private final IntList mFree = new IntList();
+
+        /**
+         * Id of the name for a new row.
+         */
+        int acquire(@NonNull String name) {
+            Integer id = mIds.get(name);
+            if (id == null) {
+                if (mFree.size() > 0) {
+                    id = mFree.get(0);
+                    mFree.removeFirst(id);
+                    mNames.set(id, name);
+                } else {
+                    id = mNames.size();
+                    mNames.add(name);
+                    if (id == mRows.length) {
+                        mRows = Arrays.copyOf(mRows, id * 2);
+                    }
+                }
+                mIds.put(name, id);
+            }
+            mRows[id]++;
+            return id;
+        }
+
+        /**
+         * A row with the id was evicted.
+         */
+        void release(int id) {
+            if (--mRows[id] == 0) {
+                mIds.remove(mNames.get(id));
+                mNames.set(id, null);
+                mFree.add(id);
+            }
+        }
+
+        int find(@NonNull String name) {
+            Integer id = mIds.get(name);
+            return id != null ? id : -1;
+        }
+
+        /**
+         * Name of the id, {@code null} if the id is free.
+         */
+        @Nullable
+        String nameOf(int id) {
+            return mNames.get(id);
+        }
+
+        /**
+         * Upper bound of ids.
+         */
+        int size() {
+            return mNames.size();
+        }
+
+        void clear() {
+            mIds.clear();
+            mNames.clear();
+            Arrays.fill(mRows, 0);
+            mFree.clear();
+        }
+    }
+
+    /**
+     * Growable list of ascending row numbers, appended at the tail and removed from the head.
+     * Free ids of a {@link Dictionary} aren't ascending, they are only added and taken from the head.
+     */
+    private static final class IntList {
+
+        private int[] mValues = new int[4];
+        private int mStart;
+        private int mEnd;
+
+        void add(int value) {
+            if (mEnd == mValues.length) {
+                // Reuse the head freed by removals before growing
+                int size = mEnd - mStart;
+                int[] values = size * 2 < mValues.length ? mValues : new int[mValues.length * 2];
+                System.arraycopy(mValues, mStart, values, 0, size);
+                mValues = values;
+                mStart = 0;
+                mEnd = size;
+            }
+            mValues[mEnd++] = value;
+        }
+
+        /**
+         * Remove the first value, which must be {@code value}.
+         */
+        void removeFirst(int value) {
+            if (mStart == mEnd || mValues[mStart] != value) {
+                throw new IllegalStateException("Row " + value + " isn't the first one");
+            }
+            mStart++;
+            if (mStart == mEnd) {
+                mStart = 0;
+                mEnd = 0;
+            }
+        }
+
+        void clear() {
+            mStart = 0;
+            mEnd = 0;
+        }
+
+        void shift(int delta) {
+            for (int i = mStart; i < mEnd; i++) {
+                mValues[i] -= delta;
+            }
+        }
+
+        int get(int index) {
+            return mValues[mStart + index];
+        }
+
+        int size() {
+            return mEnd - mStart;
+        }
+
+        /**
+         * Index of the first value not less than {@code value}.
+         */
+        int lowerBound(int value) {
+            int index = Arrays.binarySearch(mValues, mStart, mEnd, value);
+            return (index >= 0 ? index : -index - 1) - mStart;
+        }
+    }
+
+    public static final class Builder {
+
+        private int mMaxRows = 100_000;
+        private int mMaxFrames = 32;
+
+        /**
+         * Maximum number of rows, the oldest rows are evicted for new ones. Default is 100 000.
+         */
+        public Builder maxRows(int maxRows) {
+            if (maxRows <= 0) {
+                throw new IllegalArgumentException("maxRows must be positive");
+            }
+            mMaxRows = maxRows;
+            return this;
+        }
+
+        /**
+         * Number of top frames kept per fingerprint for {@link Query#groupByBlameFrame}. Default is 32.
+         */
+        public Builder maxFrames(int maxFrames) {
+            mMaxFrames = Math.max(0, maxFrames);
+            return this;
+        }
+
+        public ViolationTable build() {
+            return new ViolationTable(this);
+        }
+    }
+}
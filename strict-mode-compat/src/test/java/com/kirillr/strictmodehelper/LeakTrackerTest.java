@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Leaks are found through the garbage collector, tests request collections until the leak is reported.
+ */
+public class LeakTrackerTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final LinkedBlockingQueue<LeakedResourceViolation> mLeaks = new LinkedBlockingQueue<>();
+
+    private final LeakTracker.OnLeakListener mListener = new LeakTracker.OnLeakListener() {
+
+        @Override
+        public void onLeak(LeakedResourceViolation violation) {
+            mLeaks.add(violation);
+        }
+    };
+
+    @Test
+    public void releasedResourceIsNotLeaked() throws InterruptedException {
+        LeakTracker tracker = newTracker(1);
+        Object resource = new Object();
+        LeakTracker.Handle handle = tracker.track(resource, "Cursor");
+        assertEquals(1, tracker.getLiveCount());
+
+        handle.close();
+        handle.close();
+        resource = null;
+        assertNull(awaitLeak());
+
+        assertEquals(1, tracker.getTrackedCount());
+        assertEquals(1, tracker.getReleasedCount());
+        assertEquals(0, tracker.getLeakedCount());
+        assertEquals(0, tracker.getLiveCount());
+    }
+
+    @Test
+    public void unreachableResourceIsLeaked() throws InterruptedException {
+        LeakTracker tracker = newTracker(1);
+        trackAndForget(tracker, "Cursor");
+
+        LeakedResourceViolation violation = awaitLeak();
+        assertNotNull(violation);
+        assertEquals("Cursor", violation.getResourceType());
+        assertTrue(violation.hasAllocationSite());
+        assertEquals(1, tracker.getLeakedCount());
+        assertEquals(0, tracker.getReleasedCount());
+        assertEquals(0, tracker.getLiveCount());
+    }
+
+    @Test
+    public void allocationSitesAreSampled() throws InterruptedException {
+        LeakTracker tracker = newTracker(2);
+        trackAndForget(tracker, "first");
+        trackAndForget(tracker, "second");
+
+        int sampled = 0;
+        for (int i = 0; i < 2; i++) {
+            LeakedResourceViolation violation = awaitLeak();
+            assertNotNull(violation);
+            if (violation.hasAllocationSite()) {
+                sampled++;
+                assertEquals("first", violation.getResourceType());
+            }
+        }
+        assertEquals(1, sampled);
+        assertEquals(1, tracker.getSampledCount());
+        assertEquals(2, tracker.getLeakedCount());
+    }
+
+    private LeakTracker newTracker(int sampleRate) {
+        return new LeakTracker.Builder()
+                .sampleRate(sampleRate)
+                .penaltyListener(DIRECT_EXECUTOR, mListener)
+                .build();
+    }
+
+    // Separate frame, so the resource isn't reachable from the test's locals
+    private static void trackAndForget(LeakTracker tracker, String type) {
+        tracker.track(new Object(), type);
+    }
+
+    private LeakedResourceViolation awaitLeak() throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            System.gc();
+            LeakedResourceViolation violation = mLeaks.poll(100, TimeUnit.MILLISECONDS);
+            if (violation != null) {
+                return violation;
+            }
+        }
+        return null;
+    }
+}
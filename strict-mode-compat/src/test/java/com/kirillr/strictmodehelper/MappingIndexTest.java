@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kirillr.strictmodehelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MappingIndexTest {
+
+    private static final String MAPPING = ""
+            + "com.example.Checkout -> a.a:\n"
+            + "# {\"id\":\"sourceFile\",\"fileName\":\"Checkout.java\"}\n"
+            + "    1:3:void pay():10:12 -> a\n"
+            + "    4:4:void validate():20:20 -> a\n"
+            + "    4:4:void pay():13 -> a\n"
+            + "    5:7:void refund():30:32 -> a\n"
+            + "    1:2:void submit():40:41 -> b\n"
+            + "    3:3:void submit():42:42 -> b\n"
+            + "    1:1:void report():50:50 -> c\n"
+            + "# {\"id\":\"com.android.tools.r8.outlineCallsite\",\"positions\":{\"1\":52,\"2\":53}}\n"
+            + "    52:53:void report():51:52 -> c\n"
+            + "com.example.Outlines -> a.b:\n"
+            + "    1:2:void outline0():0:0 -> a\n"
+            + "# {\"id\":\"com.android.tools.r8.outline\"}\n";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MappingIndex mIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        File mapping = mFolder.newFile("mapping.txt");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(mapping), "UTF-8");
+        try {
+            writer.write(MAPPING);
+        } finally {
+            writer.close();
+        }
+        File index = new File(mFolder.getRoot(), "mapping.idx");
+        MappingIndex.build(mapping, index);
+        mIndex = MappingIndex.open(index);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mIndex.close();
+    }
+
+    @Test
+    public void inlineChainExpandsInnermostFirst() {
+        StackTraceElement[] frames = mIndex.retrace(frame("a.a", "a", 4));
+
+        assertArrayEquals(new StackTraceElement[]{
+                new StackTraceElement("com.example.Checkout", "validate", "Checkout.java", 20),
+                new StackTraceElement("com.example.Checkout", "pay", "Checkout.java", 13),
+        }, frames);
+    }
+
+    @Test
+    public void outlineFrameIsRemovedAndCallerLineRemapped() {
+        StackTraceElement[] frames = mIndex.retrace(new StackTraceElement[]{
+                frame("a.b", "a", 2),
+                frame("a.a", "c", 1),
+        });
+
+        assertArrayEquals(new StackTraceElement[]{
+                new StackTraceElement("com.example.Checkout", "report", "Checkout.java", 52),
+        }, frames);
+    }
+
+    @Test
+    public void outOfRangeLineOfSeveralMethodsStaysUnresolved() {
+        StackTraceElement[] frames = mIndex.retrace(frame("a.a", "a", 9));
+
+        assertArrayEquals(new StackTraceElement[]{
+                new StackTraceElement("com.example.Checkout", "a", "Checkout.java", 9),
+        }, frames);
+    }
+
+    @Test
+    public void outOfRangeLineOfOneMethodKeepsMethodWithoutLine() {
+        StackTraceElement[] frames = mIndex.retrace(frame("a.a", "b", 9));
+
+        assertArrayEquals(new StackTraceElement[]{
+                new StackTraceElement("com.example.Checkout", "submit", "Checkout.java", -1),
+        }, frames);
+    }
+
+    @Test
+    public void deobfuscateIsIdempotent() {
+        Throwable cause = new Throwable();
+        cause.setStackTrace(new StackTraceElement[]{frame("a.a", "a", 4)});
+        Throwable throwable = new Throwable(cause);
+        throwable.setStackTrace(new StackTraceElement[]{frame("a.a", "b", 1)});
+
+        mIndex.deobfuscate(throwable);
+        StackTraceElement[] stack = throwable.getStackTrace();
+        StackTraceElement[] causeStack = cause.getStackTrace();
+        mIndex.deobfuscate(throwable);
+
+        assertArrayEquals(stack, throwable.getStackTrace());
+        assertArrayEquals(causeStack, cause.getStackTrace());
+        assertEquals(2, causeStack.length);
+        assertEquals("submit", stack[0].getMethodName());
+    }
+
+    @Test
+    public void retraceDoesNotChangeStack() {
+        StackTraceElement caller = frame("a.a", "c", 1);
+        StackTraceElement[] stack = {frame("a.b", "a", 1), caller};
+
+        mIndex.retrace(stack);
+
+        assertSame(caller, stack[1]);
+    }
+
+    private static StackTraceElement frame(String className, String methodName, int line) {
+        return new StackTraceElement(className, methodName, "SourceFile", line);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scrapes the endpoint with a plain socket client, like Prometheus does.
+ */
+public class MetricsEndpointTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private MetricsEndpoint mEndpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        OverheadProfiler.setEnabled(false);
+        OverheadProfiler.reset();
+        mEndpoint = new MetricsEndpoint.Builder().port(0).start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mEndpoint.close();
+        OverheadProfiler.reset();
+    }
+
+    @Test
+    public void servesViolationCounters() throws IOException {
+        IllegalStateException diskRead = new IllegalStateException("disk read");
+        mEndpoint.record(diskRead);
+        mEndpoint.record(diskRead);
+        mEndpoint.record(new IllegalArgumentException("network"));
+
+        Response response = get("/metrics");
+        assertEquals("HTTP/1.1 200 OK", response.statusLine);
+        assertTrue(response.headers.contains("Content-Type: application/openmetrics-text; version=1.0.0; charset=utf-8"));
+        assertTrue(response.body.endsWith("# EOF\n"));
+
+        List<String> lines = response.lines();
+        assertEquals(2, value(lines, "strictmode_violations_total{type=\"java.lang.IllegalStateException\"}"));
+        assertEquals(1, value(lines, "strictmode_violations_total{type=\"java.lang.IllegalArgumentException\"}"));
+        assertEquals(2, value(lines, "strictmode_fingerprint_violations_total{type=\"java.lang.IllegalStateException\","
+                + "fingerprint=\"" + hex(StackFingerprint.of(diskRead)) + "\"}"));
+        assertEquals(0, value(lines, "strictmode_fingerprint_violations_total{type=\"\",fingerprint=\"other\"}"));
+    }
+
+    @Test
+    public void countsFingerprintsOverTheLimitAsOther() throws IOException {
+        mEndpoint.close();
+        mEndpoint = new MetricsEndpoint.Builder().port(0).maxFingerprints(1).start();
+        mEndpoint.record(new IllegalStateException());
+        mEndpoint.record(new IllegalStateException());
+
+        List<String> lines = get("/metrics").lines();
+        assertEquals(2, value(lines, "strictmode_violations_total{type=\"java.lang.IllegalStateException\"}"));
+        assertEquals(1, value(lines, "strictmode_fingerprint_violations_total{type=\"\",fingerprint=\"other\"}"));
+    }
+
+    @Test
+    public void histogramBucketsAreCumulativeAndEndWithCount() throws IOException {
+        OverheadProfiler.Stage stage = OverheadProfiler.Stage.AGGREGATION;
+        long[] durations = {0, 1, 5, 1000, 1L << 50};
+        long sum = 0;
+        for (long duration : durations) {
+            OverheadProfiler.record(stage, duration);
+            sum += duration;
+        }
+
+        List<String> lines = get("/metrics").lines();
+        String bucket = "strictmode_overhead_nanoseconds_bucket{stage=\"" + stage.name() + "\",le=\"";
+        assertEquals(1, value(lines, bucket + "0\"}"));
+        assertEquals(2, value(lines, bucket + "1\"}"));
+        assertEquals(3, value(lines, bucket + "7\"}"));
+        assertEquals(4, value(lines, bucket + "1023\"}"));
+        // Longer than the last served bucket, only in +Inf
+        assertEquals(4, value(lines, bucket + ((1L << 40) - 1) + "\"}"));
+        assertEquals(5, value(lines, bucket + "+Inf\"}"));
+        assertEquals(5, value(lines, "strictmode_overhead_nanoseconds_count{stage=\"" + stage.name() + "\"}"));
+        assertEquals(sum, value(lines, "strictmode_overhead_nanoseconds_sum{stage=\"" + stage.name() + "\"}"));
+
+        for (OverheadProfiler.Stage each : OverheadProfiler.Stage.values()) {
+            assertConsistent(lines, each);
+        }
+    }
+
+    @Test
+    public void unknownPathIsNotFound() throws IOException {
+        Response response = get("/metricsfoo");
+        assertEquals("HTTP/1.1 404 Not Found", response.statusLine);
+        assertEquals("Not found\n", response.body);
+    }
+
+    @Test
+    public void servesRequestsOneAfterAnother() throws IOException {
+        for (int i = 1; i <= 3; i++) {
+            mEndpoint.record(new IllegalStateException());
+            List<String> lines = get("/metrics?i=" + i).lines();
+            assertEquals(i, value(lines, "strictmode_violations_total{type=\"java.lang.IllegalStateException\"}"));
+        }
+    }
+
+    /**
+     * Bounds grow, counts never go down and the last bucket is +Inf equal to the count.
+     */
+    private static void assertConsistent(List<String> lines, OverheadProfiler.Stage stage) {
+        String prefix = "strictmode_overhead_nanoseconds_bucket{stage=\"" + stage.name() + "\",le=\"";
+        long previousBound = -1;
+        long previousCount = 0;
+        String lastBound = null;
+        long lastCount = -1;
+        for (String line : lines) {
+            if (!line.startsWith(prefix)) {
+                continue;
+            }
+            int end = line.indexOf('"', prefix.length());
+            lastBound = line.substring(prefix.length(), end);
+            lastCount = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            assertTrue(stage + " bucket " + lastBound + " went down", lastCount >= previousCount);
+            previousCount = lastCount;
+            if (!"+Inf".equals(lastBound)) {
+                long bound = Long.parseLong(lastBound);
+                assertTrue(stage + " bounds aren't growing", bound > previousBound);
+                previousBound = bound;
+            }
+        }
+        assertEquals("+Inf", lastBound);
+        assertEquals(value(lines, "strictmode_overhead_nanoseconds_count{stage=\"" + stage.name() + "\"}"), lastCount);
+    }
+
+    private static long value(List<String> lines, String series) {
+        for (String line : lines) {
+            if (line.startsWith(series + " ")) {
+                return Long.parseLong(line.substring(series.length() + 1));
+            }
+        }
+        throw new AssertionError("No " + series + " in " + lines);
+    }
+
+    private static String hex(long fingerprint) {
+        return String.format(Locale.US, "%016x", fingerprint);
+    }
+
+    private Response get(String path) throws IOException {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), mEndpoint.getPort());
+        try {
+            socket.setSoTimeout(10_000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n").getBytes(UTF_8));
+            out.flush();
+
+            // The endpoint closes the connection after the response
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return new Response(bytes.toByteArray());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static final class Response {
+
+        final String statusLine;
+
+        final List<String> headers = new ArrayList<>();
+
+        final String body;
+
+        Response(byte[] bytes) {
+            String response = new String(bytes, UTF_8);
+            int headersEnd = response.indexOf("\r\n\r\n");
+            assertTrue("No end of headers", headersEnd >= 0);
+            String[] head = response.substring(0, headersEnd).split("\r\n");
+            statusLine = head[0];
+            int contentLength = -1;
+            for (int i = 1; i < head.length; i++) {
+                headers.add(head[i]);
+                if (head[i].startsWith("Content-Length: ")) {
+                    contentLength = Integer.parseInt(head[i].substring("Content-Length: ".length()));
+                }
+            }
+            int bodyStart = response.substring(0, headersEnd + 4).getBytes(UTF_8).length;
+            assertEquals("Content-Length", bytes.length - bodyStart, contentLength);
+            body = new String(bytes, bodyStart, bytes.length - bodyStart, UTF_8);
+        }
+
+        List<String> lines() {
+            List<String> lines = new ArrayList<>();
+            for (String line : body.split("\n")) {
+                lines.add(line);
+            }
+            return lines;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kirillr.strictmodehelper;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts from several JVM processes writing the same file at once.
+ */
+public class SharedViolationCountersTest {
+
+    private static final int PROCESSES = 4;
+    private static final int THREADS = 4;
+    private static final int VIOLATIONS = 20_000;
+    private static final int FINGERPRINTS = 16;
+
+    private static final String DISK_READ = "android.os.strictmode.DiskReadViolation";
+    private static final String NETWORK = "android.os.strictmode.NetworkViolation";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Before
+    public void linuxOnly() {
+        // Stripes are claimed with file locks, which are per process on Linux as on Android
+        Assume.assumeTrue("Linux only", System.getProperty("os.name").startsWith("Linux"));
+    }
+
+    @Test
+    public void countsOfAllProcessesAddUp() throws Exception {
+        File file = new File(mFolder.getRoot(), "counters");
+        // Create the file before children race for it
+        SharedViolationCounters parent = new SharedViolationCounters.Builder(file).processName("parent").build();
+
+        File start = new File(mFolder.getRoot(), "start");
+        List<Process> children = new ArrayList<>();
+        for (int i = 0; i < PROCESSES; i++) {
+            children.add(startChild(file, "child" + i, start));
+        }
+        // Every child holds its stripe before anyone records, so all of them write at once
+        for (int i = 0; i < PROCESSES; i++) {
+            awaitFile(new File(mFolder.getRoot(), "child" + i + ".ready"));
+        }
+        assertTrue(start.createNewFile());
+        record(parent);
+        for (Process child : children) {
+            assertEquals(0, awaitExit(child));
+        }
+        parent.close();
+
+        SharedViolationCounters.Snapshot snapshot = SharedViolationCounters.read(file);
+        long expected = (long) (PROCESSES + 1) * THREADS * VIOLATIONS;
+        assertEquals(0, snapshot.getDropped());
+        assertEquals(expected, snapshot.getTotal());
+        assertEquals(expected / 2, (long) snapshot.getTypeCounts().get(DISK_READ));
+        assertEquals(expected / 2, (long) snapshot.getTypeCounts().get(NETWORK));
+        assertEquals(FINGERPRINTS, snapshot.getFingerprintCounts().size());
+        for (long count : snapshot.getFingerprintCounts().values()) {
+            assertEquals(expected / FINGERPRINTS, count);
+        }
+        assertEquals(PROCESSES + 1, snapshot.getProcesses().size());
+        assertTrue(snapshot.getProcesses().contains("parent"));
+        for (int i = 0; i < PROCESSES; i++) {
+            assertTrue(snapshot.getProcesses().contains("child" + i));
+        }
+    }
+
+    @Test
+    public void closedStripeIsReused() throws Exception {
+        File file = new File(mFolder.getRoot(), "counters");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, awaitExit(startChild(file, "child", null)));
+        }
+
+        SharedViolationCounters.Snapshot snapshot = SharedViolationCounters.read(file);
+        assertEquals(3L * THREADS * VIOLATIONS, snapshot.getTotal());
+        assertEquals(1, snapshot.getProcesses().size());
+    }
+
+    @Test
+    public void instancesOfOneProcessTakeSeparateStripes() throws Exception {
+        final File file = new File(mFolder.getRoot(), "counters");
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<SharedViolationCounters> instances = Collections.synchronizedList(new ArrayList<SharedViolationCounters>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final String name = "instance" + t;
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        instances.add(new SharedViolationCounters.Builder(file).processName(name).build());
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+
+        for (SharedViolationCounters counters : instances) {
+            counters.record(DISK_READ, 1);
+        }
+        SharedViolationCounters.Snapshot snapshot = instances.get(0).snapshot();
+        for (SharedViolationCounters counters : instances) {
+            counters.close();
+        }
+        assertEquals(THREADS, snapshot.getTotal());
+        assertEquals(THREADS, snapshot.getProcesses().size());
+    }
+
+    /**
+     * @param start file the child waits for after taking its stripe, {@code null} to record at once
+     */
+    private static Process startChild(File file, String name, File start) throws IOException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Child.class.getName(), file.getPath(), name, start != null ? start.getPath() : "")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * Exit value of the process, polled since {@code Process.waitFor} with a timeout isn't in Java 7.
+     */
+    private static int awaitExit(Process process) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (true) {
+            try {
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                if (System.nanoTime() > deadline) {
+                    process.destroy();
+                    throw new AssertionError("Child didn't finish in time");
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    static void awaitFile(File file) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (!file.exists()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError(file + " didn't appear in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Records from several threads at once, every thread counts both types and all fingerprints evenly.
+     */
+    static void record(final SharedViolationCounters counters) throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < VIOLATIONS; i++) {
+                        counters.record(i % 2 == 0 ? DISK_READ : NETWORK, 1 + i % FINGERPRINTS);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    public static final class Child {
+
+        public static void main(String[] args) throws Exception {
+            File file = new File(args[0]);
+            SharedViolationCounters counters = new SharedViolationCounters.Builder(file).processName(args[1]).build();
+            try {
+                if (!args[2].isEmpty()) {
+                    if (!new File(file.getParentFile(), args[1] + ".ready").createNewFile()) {
+                        throw new IOException("Child " + args[1] + " started twice");
+                    }
+                    awaitFile(new File(args[2]));
+                }
+                record(counters);
+            } finally {
+                counters.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017-2021 Kirill Rozov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kirillr.strictmodehelper;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every violation has its own single frame, so a record retains 208 bytes and its stack 96 bytes
+ * on top of 40 bytes of the root of the table.
+ */
+public class ViolationStoreTest {
+
+    private static final long RECORD_BYTES = 208 + 96;
+
+    @Test
+    public void mergesViolationsWithTheSameStack() {
+        ViolationStore store = new ViolationStore.Builder().build();
+
+        store.add(violation(1, 0));
+        store.add(violation(1, 10));
+        store.add(violation(2, 20));
+
+        assertEquals(2, store.size());
+        List<ViolationStore.Record> top = store.topByCount(1);
+        assertEquals(1, top.size());
+        assertEquals(2, top.get(0).getCount());
+        assertEquals(10, top.get(0).getLastUptimeMillis());
+        assertEquals(2 * RECORD_BYTES + 40, store.getRetainedBytes());
+    }
+
+    @Test
+    public void topRecordsDontChangeWithLaterViolations() {
+        ViolationStore store = new ViolationStore.Builder().build();
+        store.add(violation(1, 0));
+
+        ViolationStore.Record record = store.topByRecency(1).get(0);
+        store.add(violation(1, 10));
+
+        assertEquals(1, record.getCount());
+        assertEquals(0, record.getLastUptimeMillis());
+    }
+
+    @Test
+    public void evictsLeastFrequentRecords() {
+        ViolationStore store = new ViolationStore.Builder()
+                .budgetBytes(1600)
+                .admissionGrace(0)
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            store.add(violation(0, i));
+        }
+        for (int i = 1; i <= 5; i++) {
+            store.add(violation(i, 10 + i));
+        }
+
+        Set<String> methods = methods(store);
+        assertTrue(methods.contains("method0"));
+        assertEquals(4, store.size());
+        assertEquals(2, store.getEvictedCount());
+    }
+
+    @Test
+    public void evictsDownToLowWaterMarkOnly() {
+        ViolationStore store = new ViolationStore.Builder()
+                .budgetBytes(1600)
+                .admissionGrace(0)
+                .build();
+
+        for (int i = 0; i < 6; i++) {
+            store.add(violation(i, i));
+        }
+
+        // 4 records are within 90% of the budget, evicting by bytes of stacks before eviction drops one more
+        assertEquals(4, store.size());
+        assertEquals(4 * RECORD_BYTES + 40, store.getRetainedBytes());
+        assertTrue(store.getRetainedBytes() + RECORD_BYTES > 1600 * 0.9);
+    }
+
+    @Test
+    public void newRecordIsKeptDuringAdmissionGrace() {
+        ViolationStore store = new ViolationStore.Builder()
+                .budgetBytes(1600)
+                .admissionGrace(10_000)
+                .build();
+
+        // The window holds one record, older ones leave it early
+        for (int i = 0; i < 5; i++) {
+            store.add(violation(i, 0));
+        }
+        store.add(violation(5, 20_000));
+
+        assertTrue(methods(store).contains("method5"));
+        assertEquals(4, store.size());
+        assertEquals(2, store.getEvictedCount());
+    }
+
+    @Test
+    public void newRecordIsEvictedAfterAdmissionGrace() {
+        ViolationStore store = new ViolationStore.Builder()
+                .budgetBytes(1600)
+                .admissionGrace(10_000)
+                .build();
+
+        for (int i = 0; i < 4; i++) {
+            for (int hit = 0; hit < 3; hit++) {
+                store.add(violation(i, hit));
+            }
+        }
+        store.add(violation(4, 20_000));
+        store.add(violation(5, 40_000));
+
+        Set<String> methods = methods(store);
+        assertTrue(!methods.contains("method4"));
+        assertTrue(methods.contains("method5"));
+    }
+
+    @NonNull
+    private static Set<String> methods(@NonNull ViolationStore store) {
+        final Set<String> methods = new HashSet<>();
+        store.forEach(new ViolationStore.Visitor() {
+
+            @Override
+            public void visit(@NonNull ViolationStore.Record record) {
+                methods.add(record.getFrames()[0].getMethodName());
+            }
+        });
+        return methods;
+    }
+
+    @NonNull
+    private static ViolationInfo violation(int stack, long uptimeMillis) {
+        Throwable violation = new Throwable();
+        violation.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("com.example.Feature", "method" + stack, "Feature.java", 1),
+        });
+        return new ViolationInfo(violation, false, new ViolationContext("main", 1, uptimeMillis));
+    }
+}